@@ -0,0 +1,454 @@
+/*
+    JPC: An x86 PC Hardware Emulator for a pure Java Virtual Machine
+    Release Version 2.4
+
+    A project from the Physics Dept, The University of Oxford
+
+    Copyright (C) 2007-2010 The University of Oxford
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License version 2 as published by
+    the Free Software Foundation.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License along
+    with this program; if not, write to the Free Software Foundation, Inc.,
+    51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+
+    Details (including contact information) can be found at:
+
+    jpc.sourceforge.net
+    or the developer website
+    sourceforge.net/projects/jpc/
+
+    Conceived and Developed by:
+    Rhys Newman, Ian Preston, Chris Dennis
+
+    End of licence header
+*/
+
+
+
+package org.jpc.emulator;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.jpc.emulator.memory.AddressSpace;
+import org.jpc.emulator.memory.DirtyPageMap;
+import org.jpc.emulator.memory.PageSource;
+import org.jpc.emulator.memory.PhysicalAddressSpace;
+
+/**
+ * Moves a running <code>PC</code> into another JVM by pre-copy live migration over a socket.
+ * <p>
+ * The sender first streams every RAM page while the guest keeps running, then repeatedly resends
+ * the pages the guest has written since the previous round until few enough remain or the number
+ * stops falling. It then holds the guest at a safe point between blocks, sends the last dirty
+ * pages and the state of every other component, and waits for the receiver to acknowledge that it
+ * has loaded them. The guest is only stopped for this final round, and if the receiver has not
+ * acknowledged within {@link #FINAL_ROUND_TIMEOUT_MS} the migration fails and the guest carries on
+ * where it was. The receiver pages its RAM in
+ * on first access from the pages it was sent, so loading does not grow with the size of RAM.
+ * <pre>
+ * int magic, int version, int RAM page count
+ * per round: byte ROUND or FINAL_ROUND, then page records ending with int END_OF_ROUND
+ *     page record: int page followed by the page contents, or int ~page for a zeroed page
+ * byte DEVICES, int length, snapshot of everything but RAM
+ * receiver replies with byte ACK once the snapshot is loaded
+ * </pre>
+ */
+public class LiveMigration {
+    private static final Logger LOGGING = Logger.getLogger(LiveMigration.class.getName());
+
+    private static final int MAGIC = 0x4a50434d;
+    private static final int VERSION = 1;
+    private static final int ROUND = 1;
+    private static final int FINAL_ROUND = 2;
+    private static final int DEVICES = 3;
+    private static final int ACK = 4;
+    private static final int END_OF_ROUND = Integer.MIN_VALUE;
+    private static final int PAGE_SIZE = AddressSpace.BLOCK_SIZE;
+
+    private static final int MAX_ROUNDS = 30;
+    private static final int STOP_AND_COPY_PAGES = 256;
+    private static final long SAFE_POINT_TIMEOUT_MS = 10000;
+    private static final int FINAL_ROUND_TIMEOUT_MS = 10000;
+
+    private LiveMigration() {
+    }
+
+    /**
+     * Migrates <code>pc</code>, which must be running on another thread, to a receiver listening
+     * at <code>host:port</code>. On success the guest has been resumed by the receiver and
+     * <code>pc</code> has been halted at the point its state was handed over, so the caller need
+     * only stop the thread executing it; on failure <code>pc</code> carries on unaffected.
+     * @param pc running machine to migrate
+     * @param host receiving host
+     * @param port receiving port
+     * @return statistics on the migration
+     * @throws IOException if the migration fails
+     */
+    public static Report send(PC pc, String host, int port) throws IOException {
+        try (Socket socket = new Socket(host, port)) {
+            socket.setTcpNoDelay(true);
+            return send(pc, socket);
+        }
+    }
+
+    /**
+     * Waits for a single incoming migration on <code>port</code> and loads it into
+     * <code>pc</code>, which must not be running.
+     * @param pc machine to load the migrated state into
+     * @param port port to listen on
+     * @return statistics on the migration
+     * @throws IOException if the migration fails
+     */
+    public static Report receive(PC pc, int port) throws IOException {
+        try (ServerSocket server = new ServerSocket(port)) {
+            LOGGING.log(Level.INFO, "waiting for incoming migration on port {0,number,#}", port);
+            try (Socket socket = server.accept()) {
+                socket.setTcpNoDelay(true);
+                return receive(pc, socket);
+            }
+        }
+    }
+
+    private static Report send(final PC pc, final Socket socket) throws IOException {
+        final PhysicalAddressSpace memory = (PhysicalAddressSpace)pc.getComponent(PhysicalAddressSpace.class);
+        final int pages = memory.getRAMPageCount();
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 64 * 1024));
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        final DirtyPageMap dirty = new DirtyPageMap(memory.getModifiedPages().size());
+        final byte[] page = new byte[PAGE_SIZE];
+        final Report report = new Report();
+
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(pages);
+
+        atSafePoint(pc, new SafePointTask() {
+            void execute() {
+                memory.getModifiedPages().clearAll();
+                pc.forgetSnapshot();
+            }
+        });
+        dirty.markAll();
+        sendRound(out, memory, dirty, pages, page, ROUND, report);
+
+        final int[] remaining = new int[1];
+        while (report.getRounds() < MAX_ROUNDS) {
+            final int previous = report.getPages(report.getRounds() - 1);
+            atSafePoint(pc, new SafePointTask() {
+                void execute() {
+                    DirtyPageMap modified = memory.getModifiedPages();
+                    remaining[0] = modified.count();
+                    if (remaining[0] > STOP_AND_COPY_PAGES && remaining[0] < previous) {
+                        modified.moveTo(dirty);
+                    } else {
+                        remaining[0] = -1;
+                    }
+                }
+            });
+            if (remaining[0] < 0) {
+                break;
+            }
+            sendRound(out, memory, dirty, pages, page, ROUND, report);
+        }
+
+        // the guest is frozen from here until the receiver answers, so it must not wait for ever:
+        // the read of the ACK times out, and should a write stick on a dead link the socket is
+        // closed under it once the whole round has taken twice as long
+        socket.setSoTimeout(FINAL_ROUND_TIMEOUT_MS);
+        final Timer watchdog = new Timer("Live Migration Watchdog", true);
+        final TimerTask closer = new TimerTask() {
+            public void run() {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                }
+            }
+        };
+        try {
+            atSafePoint(pc, new SafePointTask() {
+                void execute() throws IOException {
+                    long pause = System.nanoTime();
+                    watchdog.schedule(closer, 2L * FINAL_ROUND_TIMEOUT_MS);
+                    memory.getModifiedPages().moveTo(dirty);
+                    sendRound(out, memory, dirty, pages, page, FINAL_ROUND, report);
+
+                    ByteArrayOutputStream devices = new ByteArrayOutputStream();
+                    pc.saveStateExcludingRAM(devices);
+                    out.writeByte(DEVICES);
+                    out.writeInt(devices.size());
+                    devices.writeTo(out);
+                    out.flush();
+                    report.deviceBytes = 5 + devices.size();
+                    if (in.read() != ACK) {
+                        throw new IOException("receiver did not acknowledge the migrated state");
+                    }
+                    // the receiver owns the guest now, so not one more block may run here
+                    pc.halt();
+                    report.downtimeNanos = System.nanoTime() - pause;
+                }
+            });
+        } finally {
+            watchdog.cancel();
+        }
+        LOGGING.log(Level.INFO, "migration sent: {0}", report);
+        return report;
+    }
+
+    private static void sendRound(DataOutputStream out, PhysicalAddressSpace memory, DirtyPageMap dirty, int pages, byte[] page, int type, Report report) throws IOException {
+        long start = System.nanoTime();
+        // the receiver starts zeroed, so the first round need not send zeroed pages
+        boolean first = report.getRounds() == 0;
+        out.writeByte(type);
+        int count = 0;
+        long bytes = 5;
+        for (int i = dirty.nextMarked(0); i >= 0 && i < pages; i = dirty.nextMarked(i + 1)) {
+            if (memory.copyRAMPage(i, page) && !PhysicalAddressSpace.isZeroPage(page, PAGE_SIZE)) {
+                out.writeInt(i);
+                out.write(page);
+                bytes += 4 + PAGE_SIZE;
+            } else if (!first) {
+                out.writeInt(~i);
+                bytes += 4;
+            } else {
+                continue;
+            }
+            count++;
+        }
+        out.writeInt(END_OF_ROUND);
+        out.flush();
+        dirty.clearAll();
+        report.addRound(count, bytes, System.nanoTime() - start);
+    }
+
+    private static Report receive(PC pc, Socket socket) throws IOException {
+        PhysicalAddressSpace memory = (PhysicalAddressSpace)pc.getComponent(PhysicalAddressSpace.class);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024));
+        DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+        Report report = new Report();
+
+        if (in.readInt() != MAGIC) {
+            throw new IOException("not a migration stream");
+        }
+        int version = in.readInt();
+        if (version != VERSION) {
+            throw new IOException("unsupported migration version " + version);
+        }
+        int pages = in.readInt();
+        if (pages != memory.getRAMPageCount()) {
+            throw new IOException("sender has " + pages + " RAM pages, machine has " + memory.getRAMPageCount());
+        }
+
+        byte[][] received = new byte[pages][];
+        long pause = 0;
+        while (true) {
+            int type = in.readUnsignedByte();
+            if (type == DEVICES) {
+                byte[] devices = new byte[in.readInt()];
+                in.readFully(devices);
+                report.deviceBytes = 5 + devices.length;
+                pc.loadState(new ByteArrayInputStream(devices), new ReceivedPages(received));
+                out.writeByte(ACK);
+                out.flush();
+                report.downtimeNanos = System.nanoTime() - pause;
+                break;
+            }
+            if (type != ROUND && type != FINAL_ROUND) {
+                throw new IOException("unexpected migration record " + type);
+            }
+
+            long start = System.nanoTime();
+            if (type == FINAL_ROUND) {
+                pause = start;
+            }
+            int count = 0;
+            long bytes = 5;
+            for (int i = in.readInt(); i != END_OF_ROUND; i = in.readInt()) {
+                bytes += 4;
+                if (i < 0) {
+                    received[~i] = null;
+                } else {
+                    bytes += PAGE_SIZE;
+                    if (received[i] == null) {
+                        received[i] = new byte[PAGE_SIZE];
+                    }
+                    in.readFully(received[i]);
+                }
+                count++;
+            }
+            report.addRound(count, bytes, System.nanoTime() - start);
+        }
+        LOGGING.log(Level.INFO, "migration received: {0}", report);
+        return report;
+    }
+
+    private static void atSafePoint(PC pc, SafePointTask task) throws IOException {
+        pc.runAtSafePoint(task);
+        task.await();
+    }
+
+    /**
+     * Task run by the thread executing the machine, waited for by the migrating thread.
+     */
+    private abstract static class SafePointTask implements Runnable {
+        private final AtomicBoolean claimed = new AtomicBoolean();
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile IOException failure;
+
+        abstract void execute() throws IOException;
+
+        public void run() {
+            if (!claimed.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                execute();
+            } catch (IOException e) {
+                failure = e;
+            } finally {
+                done.countDown();
+            }
+        }
+
+        void await() throws IOException {
+            try {
+                if (!done.await(SAFE_POINT_TIMEOUT_MS, TimeUnit.MILLISECONDS) && claimed.compareAndSet(false, true)) {
+                    throw new IOException("machine did not reach a safe point, is it running?");
+                }
+                done.await();
+            } catch (InterruptedException e) {
+                claimed.set(true);
+                throw new IOException("interrupted during migration", e);
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        }
+    }
+
+    private static final class ReceivedPages implements PageSource {
+        private final byte[][] pages;
+
+        ReceivedPages(byte[][] pages) {
+            this.pages = pages;
+        }
+
+        public boolean hasPage(int page) {
+            return pages[page] != null;
+        }
+
+        public void readPage(int page, byte[] dest) {
+            System.arraycopy(pages[page], 0, dest, 0, PAGE_SIZE);
+        }
+
+        public byte[] getSharedPage(int page) {
+            return null;
+        }
+    }
+
+    /**
+     * Pages and bytes transferred in each round of a migration, and how long the guest was
+     * stopped for.
+     */
+    public static final class Report {
+        private final List<Integer> roundPages = new ArrayList<Integer>();
+        private final List<Long> roundBytes = new ArrayList<Long>();
+        private final List<Long> roundNanos = new ArrayList<Long>();
+        private long deviceBytes;
+        private long downtimeNanos;
+
+        void addRound(int pages, long bytes, long nanos) {
+            roundPages.add(pages);
+            roundBytes.add(bytes);
+            roundNanos.add(nanos);
+            LOGGING.log(Level.INFO, "migration round {0}: {1} pages, {2} KB in {3} ms", new Object[]{roundPages.size() - 1, pages, bytes / 1024, nanos / 1000000});
+        }
+
+        /**
+         * @return number of rounds, including the final stop-and-copy round
+         */
+        public int getRounds() {
+            return roundPages.size();
+        }
+
+        /**
+         * @param round round index
+         * @return number of pages sent in <code>round</code>
+         */
+        public int getPages(int round) {
+            return roundPages.get(round);
+        }
+
+        /**
+         * @param round round index
+         * @return bytes sent in <code>round</code>
+         */
+        public long getBytes(int round) {
+            return roundBytes.get(round);
+        }
+
+        /**
+         * @param round round index
+         * @return time taken to transfer <code>round</code> in nanoseconds
+         */
+        public long getNanos(int round) {
+            return roundNanos.get(round);
+        }
+
+        /**
+         * @return bytes of device state sent at the end of the final round
+         */
+        public long getDeviceBytes() {
+            return deviceBytes;
+        }
+
+        /**
+         * @return total bytes sent, including the stream header
+         */
+        public long getTotalBytes() {
+            long total = 12 + deviceBytes;
+            for (int i = 0; i < getRounds(); i++) {
+                total += getBytes(i);
+            }
+            return total;
+        }
+
+        /**
+         * Returns how long the guest was stopped for. The sender measures from the start of the
+         * final round to the receiver's acknowledgement; the receiver from the start of the final
+         * round arriving to sending the acknowledgement.
+         * @return downtime in nanoseconds
+         */
+        public long getDowntimeNanos() {
+            return downtimeNanos;
+        }
+
+        public String toString() {
+            return getRounds() + " rounds, " + getTotalBytes() / 1024 + " KB, " + downtimeNanos / 1000000 + " ms downtime";
+        }
+    }
+}
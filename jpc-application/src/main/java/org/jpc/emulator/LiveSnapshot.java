@@ -0,0 +1,158 @@
+/*
+    JPC: An x86 PC Hardware Emulator for a pure Java Virtual Machine
+    Release Version 2.4
+
+    A project from the Physics Dept, The University of Oxford
+
+    Copyright (C) 2007-2010 The University of Oxford
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License version 2 as published by
+    the Free Software Foundation.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License along
+    with this program; if not, write to the Free Software Foundation, Inc.,
+    51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+
+    Details (including contact information) can be found at:
+
+    jpc.sourceforge.net
+    or the developer website
+    sourceforge.net/projects/jpc/
+
+    Conceived and Developed by:
+    Rhys Newman, Ian Preston, Chris Dennis
+
+    End of licence header
+*/
+
+
+package org.jpc.emulator;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.jpc.emulator.memory.LiveMemoryDump;
+
+/**
+ * A snapshot being written while its <code>PC</code> continues to run.
+ * <p>
+ * Device state is serialised in one go at a safe point between blocks, and RAM is dumped copy on
+ * write from a background thread, so the machine only pauses for as long as the device capture
+ * takes. The result is an ordinary full snapshot. Obtain one from
+ * {@link PC#saveStateLive(OutputStream)}.
+ */
+public class LiveSnapshot {
+    private static final Logger LOGGING = Logger.getLogger(LiveSnapshot.class.getName());
+
+    private final PC pc;
+    private final OutputStream out;
+    private final CountDownLatch done = new CountDownLatch(1);
+    private volatile IOException failure;
+    private volatile LiveMemoryDump dump;
+    private volatile long pauseNanos;
+
+    LiveSnapshot(PC pc, OutputStream out) {
+        this.pc = pc;
+        this.out = out;
+    }
+
+    void start(final SnapshotChain.Info info, final List<String> names, final List<byte[]> states, final LiveMemoryDump memory, long pause) {
+        dump = memory;
+        pauseNanos = pause;
+        Thread writer = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    write(info, names, states, memory);
+                    pc.liveSnapshotWritten(info.id);
+                } catch (IOException e) {
+                    LOGGING.log(Level.WARNING, "live snapshot failed", e);
+                    failure = e;
+                } finally {
+                    memory.abort();
+                    done.countDown();
+                }
+            }
+        }, "Live Snapshot Writer");
+        writer.setDaemon(true);
+        writer.setPriority(Thread.MIN_PRIORITY);
+        writer.start();
+    }
+
+    void fail(IOException e) {
+        failure = e;
+        done.countDown();
+    }
+
+    private void write(SnapshotChain.Info info, List<String> names, List<byte[]> states, LiveMemoryDump memory) throws IOException {
+        ZipOutputStream zout = new ZipOutputStream(out);
+        zout.setLevel(Deflater.BEST_SPEED);
+        SnapshotChain.writeInfo(zout, info);
+        for (int i = 0; i < names.size(); i++) {
+            zout.putNextEntry(new ZipEntry(names.get(i)));
+            byte[] state = states.get(i);
+            if (state == null) {
+                DataOutputStream dout = new DataOutputStream(new BufferedOutputStream(zout, 64 * 1024));
+                memory.writeTo(dout);
+                dout.flush();
+            } else {
+                zout.write(state);
+            }
+            zout.closeEntry();
+        }
+        zout.finish();
+        LOGGING.log(Level.INFO, "live snapshot done, {0} pages copied on write, {1} spilled",
+            new Object[]{memory.getPagesCopiedOnWrite(), memory.getPagesSpilled()});
+    }
+
+    /**
+     * Returns <code>true</code> once the snapshot has been completely written, or has failed.
+     * @return <code>true</code> if finished
+     */
+    public boolean isDone() {
+        return done.getCount() == 0;
+    }
+
+    /**
+     * Waits for the snapshot to be completely written.
+     * @throws IOException if writing the snapshot failed
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void await() throws IOException, InterruptedException {
+        done.await();
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Returns how long the machine was held at the safe point while device state was captured.
+     * @return pause in nanoseconds, or zero if capture has not happened yet
+     */
+    public long getPauseNanos() {
+        return pauseNanos;
+    }
+
+    /**
+     * Returns the number of RAM pages the machine wrote to before they were written out.
+     * @return copy-on-write page count
+     */
+    public int getPagesCopiedOnWrite() {
+        LiveMemoryDump memory = dump;
+        return memory == null ? 0 : memory.getPagesCopiedOnWrite();
+    }
+}
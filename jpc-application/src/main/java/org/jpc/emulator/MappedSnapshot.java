@@ -0,0 +1,290 @@
+/*
+    JPC: An x86 PC Hardware Emulator for a pure Java Virtual Machine
+    Release Version 2.4
+
+    A project from the Physics Dept, The University of Oxford
+
+    Copyright (C) 2007-2010 The University of Oxford
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License version 2 as published by
+    the Free Software Foundation.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License along
+    with this program; if not, write to the Free Software Foundation, Inc.,
+    51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+
+    Details (including contact information) can be found at:
+
+    jpc.sourceforge.net
+    or the developer website
+    sourceforge.net/projects/jpc/
+
+    Conceived and Developed by:
+    Rhys Newman, Ian Preston, Chris Dennis
+
+    End of licence header
+*/
+
+
+package org.jpc.emulator;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.jpc.emulator.memory.AddressSpace;
+import org.jpc.emulator.memory.PageSource;
+import org.jpc.emulator.memory.PhysicalAddressSpace;
+import org.jpc.j2se.Option;
+
+/**
+ * Snapshot file laid out for restoring by memory mapping.
+ * <p>
+ * The file holds an ordinary snapshot of everything except RAM, followed by a page aligned region
+ * of uncompressed RAM pages and a table locating each page within it. Pages that are zero or were
+ * never allocated are not stored. On restore the device state is loaded eagerly, the page region is
+ * mapped, and each RAM page is only copied in when the guest first touches it, so the time to the
+ * first instruction does not grow with the size of RAM.
+ * <p>
+ * Alternatively the pages can be kept in a {@link PageStore} shared between snapshots, in which
+ * case the table locates each page within the store and the file holds no page region.
+ * <pre>
+ *  0  magic "JPCMSNAP"
+ *  8  int version
+ * 12  int RAM page count
+ * 16  long offset of device snapshot
+ * 24  long offset of page region
+ * 32  int stored page count
+ * 36  int length of page store path, or 0 if the pages are held in this file
+ * 64  int[RAM page count] page region or store slot of each page, or -1 if zero
+ *     page store path, UTF-8, relative to this file's directory
+ * </pre>
+ */
+public class MappedSnapshot {
+    private static final Logger LOGGING = Logger.getLogger(MappedSnapshot.class.getName());
+
+    private static final byte[] MAGIC = "JPCMSNAP".getBytes();
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+    private static final int PAGE_SIZE = AddressSpace.BLOCK_SIZE;
+    private static final boolean SHARE_PAGES = Option.sharePages.isSet();
+
+    private MappedSnapshot() {
+    }
+
+    /**
+     * Returns <code>true</code> if <code>file</code> starts with the mapped snapshot signature.
+     * @param file file to test
+     * @return <code>true</code> if a mapped snapshot
+     * @throws IOException if the file cannot be read
+     */
+    public static boolean isMappedSnapshot(File file) throws IOException {
+        byte[] magic = new byte[MAGIC.length];
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            if (raf.length() < HEADER_SIZE) {
+                return false;
+            }
+            raf.readFully(magic);
+        }
+        return Arrays.equals(magic, MAGIC);
+    }
+
+    /**
+     * Saves the state of <code>pc</code>, which must be stopped, to <code>file</code>.
+     * @param pc machine to save
+     * @param file file to write
+     * @throws IOException if the file cannot be written
+     */
+    public static void save(PC pc, File file) throws IOException {
+        save(pc, file, null);
+    }
+
+    /**
+     * Saves the state of <code>pc</code>, which must be stopped, to <code>file</code> with its RAM
+     * pages added to <code>store</code>.
+     * @param pc machine to save
+     * @param file file to write
+     * @param store store to hold the RAM pages, or <code>null</code> to hold them in the file
+     * @throws IOException if the file or store cannot be written
+     */
+    public static void save(PC pc, File file, PageStore store) throws IOException {
+        PhysicalAddressSpace memory = (PhysicalAddressSpace)pc.getComponent(PhysicalAddressSpace.class);
+        int pages = memory.getRAMPageCount();
+        int[] table = new int[pages];
+        byte[] storeName = {};
+        if (store != null) {
+            Path dir = file.getAbsoluteFile().getParentFile().toPath();
+            storeName = dir.relativize(store.getFile().getAbsoluteFile().toPath()).toString().getBytes(StandardCharsets.UTF_8);
+        }
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(0);
+            FileChannel channel = raf.getChannel();
+            long deviceOffset = HEADER_SIZE + 4L * pages + storeName.length;
+            channel.position(deviceOffset);
+            OutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel), 64 * 1024);
+            pc.saveStateExcludingRAM(out);
+            out.flush();
+
+            long deviceEnd = channel.position();
+            long regionOffset = (deviceEnd + PAGE_SIZE - 1) & ~(long)(PAGE_SIZE - 1);
+            channel.position(regionOffset);
+            byte[] page = new byte[PAGE_SIZE];
+            ByteBuffer wrapped = ByteBuffer.wrap(page);
+            int stored = 0;
+            int duplicates = store == null ? 0 : store.getDuplicatePages();
+            for (int i = 0; i < pages; i++) {
+                if (!memory.copyRAMPage(i, page) || PhysicalAddressSpace.isZeroPage(page, PAGE_SIZE)) {
+                    table[i] = -1;
+                    continue;
+                }
+                if (store != null) {
+                    table[i] = store.store(page);
+                    stored++;
+                    continue;
+                }
+                wrapped.clear();
+                while (wrapped.hasRemaining()) {
+                    channel.write(wrapped);
+                }
+                table[i] = stored++;
+            }
+
+            if (store != null) {
+                regionOffset = 0;
+                raf.setLength(deviceEnd);
+            }
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + 4 * pages + storeName.length).order(ByteOrder.BIG_ENDIAN);
+            header.put(MAGIC).putInt(VERSION).putInt(pages).putLong(deviceOffset).putLong(regionOffset).putInt(stored).putInt(storeName.length);
+            header.position(HEADER_SIZE);
+            header.asIntBuffer().put(table);
+            header.position(HEADER_SIZE + 4 * pages);
+            header.put(storeName);
+            header.rewind();
+            channel.position(0);
+            while (header.hasRemaining()) {
+                channel.write(header);
+            }
+            if (store != null) {
+                LOGGING.log(Level.INFO, "mapped snapshot saved with {0} of {1} RAM pages in {2}, {3} already present",
+                    new Object[]{stored, pages, store.getFile(), store.getDuplicatePages() - duplicates});
+            } else {
+                LOGGING.log(Level.INFO, "mapped snapshot saved with {0} of {1} RAM pages stored", new Object[]{stored, pages});
+            }
+        }
+    }
+
+    /**
+     * Restores <code>pc</code> from <code>file</code>. Device state is loaded immediately; RAM
+     * pages are read from the mapped file as the guest first accesses them.
+     * @param pc machine to restore into
+     * @param file mapped snapshot file
+     * @throws IOException if the file is not a valid mapped snapshot for this machine
+     */
+    public static void restore(PC pc, File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            FileChannel channel = raf.getChannel();
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+            byte[] magic = new byte[MAGIC.length];
+            header.get(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new IOException(file + " is not a mapped snapshot");
+            }
+            int version = header.getInt();
+            if (version != VERSION) {
+                throw new IOException("unsupported mapped snapshot version " + version);
+            }
+            int pages = header.getInt();
+            long deviceOffset = header.getLong();
+            long regionOffset = header.getLong();
+            int stored = header.getInt();
+            int storeNameLength = header.getInt();
+
+            PhysicalAddressSpace memory = (PhysicalAddressSpace)pc.getComponent(PhysicalAddressSpace.class);
+            if (pages != memory.getRAMPageCount()) {
+                throw new IOException("snapshot has " + pages + " RAM pages, machine has " + memory.getRAMPageCount());
+            }
+
+            IntBuffer table = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE, 4L * pages).asIntBuffer();
+            PageSource source;
+            if (storeNameLength > 0) {
+                ByteBuffer name = ByteBuffer.allocate(storeNameLength);
+                channel.read(name, HEADER_SIZE + 4L * pages);
+                File storeFile = new File(file.getAbsoluteFile().getParentFile(), new String(name.array(), StandardCharsets.UTF_8));
+                source = new StoredPages(table, PageStore.open(storeFile));
+            } else {
+                source = new MappedPages(table, channel.map(FileChannel.MapMode.READ_ONLY, regionOffset, (long)stored * PAGE_SIZE));
+            }
+
+            channel.position(deviceOffset);
+            InputStream in = new BufferedInputStream(Channels.newInputStream(channel), 64 * 1024);
+            pc.loadState(in, source);
+        }
+    }
+
+    private static final class MappedPages implements PageSource {
+        private final IntBuffer table;
+        private final MappedByteBuffer region;
+
+        MappedPages(IntBuffer table, MappedByteBuffer region) {
+            this.table = table;
+            this.region = region;
+        }
+
+        public boolean hasPage(int page) {
+            return table.get(page) >= 0;
+        }
+
+        public void readPage(int page, byte[] dest) {
+            region.get(table.get(page) * PAGE_SIZE, dest, 0, PAGE_SIZE);
+        }
+
+        public byte[] getSharedPage(int page) {
+            return null;
+        }
+    }
+
+    private static final class StoredPages implements PageSource {
+        private final IntBuffer table;
+        private final PageStore store;
+
+        StoredPages(IntBuffer table, PageStore store) {
+            this.table = table;
+            this.store = store;
+        }
+
+        public boolean hasPage(int page) {
+            return table.get(page) >= 0;
+        }
+
+        public void readPage(int page, byte[] dest) {
+            store.read(table.get(page), dest);
+        }
+
+        public byte[] getSharedPage(int page) {
+            return SHARE_PAGES ? store.getShared(table.get(page)) : null;
+        }
+    }
+}
@@ -33,18 +33,26 @@
 
 package org.jpc.emulator;
 
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.Reader;
 import java.net.URL;
 import java.net.URLClassLoader;
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
 import java.util.Set;
 import java.util.jar.JarInputStream;
 import java.util.jar.Manifest;
@@ -65,6 +73,8 @@ import org.jpc.emulator.execution.codeblock.CodeBlockManager;
 import org.jpc.emulator.execution.decoder.BasicBlock;
 import org.jpc.emulator.execution.decoder.DebugBasicBlock;
 import org.jpc.emulator.memory.LinearAddressSpace;
+import org.jpc.emulator.memory.LiveMemoryDump;
+import org.jpc.emulator.memory.PageSource;
 import org.jpc.emulator.memory.PhysicalAddressSpace;
 import org.jpc.emulator.motherboard.BochsPIT;
 import org.jpc.emulator.motherboard.DMAController;
@@ -79,6 +89,7 @@ import org.jpc.emulator.motherboard.VGABIOS;
 import org.jpc.emulator.pci.PCIBus;
 import org.jpc.emulator.pci.PCIHostBridge;
 import org.jpc.emulator.pci.PCIISABridge;
+import org.jpc.emulator.pci.TextScreen;
 import org.jpc.emulator.pci.VGACard;
 import org.jpc.emulator.pci.peripheral.DefaultVGACard;
 import org.jpc.emulator.pci.peripheral.EthernetCard;
@@ -98,12 +109,15 @@ import org.jpc.emulator.processor.Processor;
 import org.jpc.emulator.processor.ProcessorException;
 import org.jpc.emulator.processor.Segment;
 import org.jpc.emulator.processor.SegmentFactory;
+import org.jpc.j2se.InputScript;
 import org.jpc.j2se.Option;
 import org.jpc.j2se.PCMonitor;
 import org.jpc.j2se.VirtualClock;
 import org.jpc.support.ArgProcessor;
 import org.jpc.support.Clock;
 import org.jpc.support.DriveSet;
+import org.jpc.support.PacketCapture;
+import org.jpc.support.SerialBackend;
 
 /**
  * This class represents the emulated PC and holds references to the hardware components.
@@ -112,7 +126,6 @@ import org.jpc.support.DriveSet;
 public class PC {
     public static final int DEFAULT_RAM_SIZE = Option.ram.intValue(16) * 1024 * 1024;
     public static final int INSTRUCTIONS_BETWEEN_INTERRUPTS = 1;
-    public static final boolean ETHERNET = Option.ethernet.isSet();
 
     public static volatile boolean compile = Option.compile.isSet();
 
@@ -134,6 +147,11 @@ public class PC {
     private final CodeBlockManager manager;
     private EthernetCard ethernet;
     private final Keyboard keyboard;
+    private volatile String snapshotId;
+    private String liveSnapshotId;
+    private final Queue<Runnable> safePointTasks = new ConcurrentLinkedQueue<Runnable>();
+    private volatile boolean safePointPending;
+    private volatile boolean halted;
 
     /**
      * Constructs a new <code>PC</code> instance with the specified external time-source and drive set.
@@ -193,10 +211,20 @@ public class PC {
             parts.add(ethernet = new EthernetCard());
         parts.add(new DefaultVGACard());
 
-        parts.add(new SerialPort(0));
-        parts.add(new SerialPort(1));
-        parts.add(new SerialPort(2));
-        parts.add(new SerialPort(3));
+        Option.Opt[] serialOptions = { Option.com1, Option.com2, Option.com3, Option.com4 };
+        for (int i = 0; i < serialOptions.length; i++) {
+            SerialPort port = new SerialPort(i);
+            if (serialOptions[i].isSet()) {
+                try {
+                    port.setBackend(SerialBackend.open(serialOptions[i].value()));
+                } catch (IOException e) {
+                    LOGGING.log(Level.WARNING, "COM" + (i + 1) + " left unconnected", e);
+                } catch (IllegalArgumentException e) {
+                    LOGGING.log(Level.WARNING, "COM" + (i + 1) + " left unconnected", e);
+                }
+            }
+            parts.add(port);
+        }
         keyboard = new Keyboard();
         parts.add(keyboard);
         parts.add(new FloppyController());
@@ -218,7 +246,7 @@ public class PC {
             Midi.MIDI_Init();
             Mixer.MIXER_Init();
             String device = Option.sounddevice.value("sb16");
-            if (device.equals("sb16")) {
+            if (AudioLayer.isSoundBlaster(device)) {
                 parts.add(new Mixer());
                 parts.add(new MPU401());
                 parts.add(new SBlaster());
@@ -229,6 +257,28 @@ public class PC {
         if (!configure()) {
             throw new IllegalStateException("PC Configuration failed");
         }
+
+        if (ethernet != null) {
+            // received packets are delivered between blocks rather than polled for
+            ethernet.setDeliveryExecutor(new Executor() {
+                public void execute(Runnable task) {
+                    runAtSafePoint(task);
+                }
+            });
+            if (Option.pcap.isSet()) {
+                ethernet.setPacketCapture(new PacketCapture(Option.pcap.value(), Option.pcap_snaplen.intValue(PacketCapture.DEFAULT_SNAPLEN),
+                    Option.pcap_rotate.intValue(0) * 1024L * 1024L, Option.pcap_files.intValue(0)));
+            }
+        }
+
+        if (Option.inputscript.isSet()) {
+            Reader script = new FileReader(Option.inputscript.value());
+            try {
+                new InputScript(this).load(script);
+            } finally {
+                script.close();
+            }
+        }
     }
 
     public PC(Clock clock, DriveSet drives, int ramSize) throws IOException {
@@ -353,6 +403,10 @@ public class PC {
         return ((VGACard)getComponent(VGACard.class)).getText();
     }
 
+    public TextScreen getTextScreen() {
+        return ((VGACard)getComponent(VGACard.class)).getTextScreen();
+    }
+
     public void sendMouse(Integer dx, Integer dy, Integer dz, Integer buttons) {
         keyboard.putMouseEvent(dx, dy, dz, buttons);
     }
@@ -470,6 +524,7 @@ public class PC {
      * Starts this PC's attached clock instance.
      */
     public void start() {
+        halted = false;
         vmClock.resume();
         if (Option.sound.value())
             AudioLayer.open(Option.mixer_javabuffer.intValue(8820), Option.mixer_rate.intValue(SBlaster.OPL_RATE));
@@ -541,17 +596,182 @@ public class PC {
      * @throws java.io.IOException propogated from the supplied stream.
      */
     public void saveState(OutputStream out) throws IOException {
-        LOGGING.log(Level.INFO, "snapshot saving");
-        ZipOutputStream zout = new ZipOutputStream(out);
-        for (HardwareComponent hwc : parts) {
-            saveComponent(zout, hwc);
+        saveState(out, SaveMode.FULL);
+    }
+
+    /**
+     * Saves the state of this PC as a delta against the snapshot most recently saved or loaded.
+     * <p>
+     * Device state is written in full, but only the RAM pages modified since that snapshot are
+     * included. The result can only be loaded through a {@link SnapshotChain}.
+     * @param out stream the serialised state is written to
+     * @throws java.io.IOException propogated from the supplied stream.
+     * @throws IllegalStateException if no snapshot has been saved or loaded since the last reset.
+     */
+    public void saveDeltaState(OutputStream out) throws IOException {
+        if (snapshotId == null) {
+            throw new IllegalStateException("No parent snapshot to save a delta against");
+        }
+        saveState(out, SaveMode.DELTA);
+    }
+
+    /**
+     * Saves everything but the contents of RAM, which the caller must save itself from the
+     * physical address space while this PC remains stopped.
+     */
+    void saveStateExcludingRAM(OutputStream out) throws IOException {
+        saveState(out, SaveMode.EXCLUDING_RAM);
+    }
+
+    /**
+     * Forgets the snapshot this PC was last saved to or loaded from, so that no delta is saved
+     * against it, once the record of RAM modified since then has been consumed elsewhere.
+     */
+    void forgetSnapshot() {
+        setSnapshotId(null);
+    }
+
+    /**
+     * Records the snapshot that the RAM modification record now runs from, which is the parent of
+     * the next delta, or <code>null</code> if there is none.
+     */
+    private synchronized void setSnapshotId(String id) {
+        snapshotId = id;
+        liveSnapshotId = null;
+    }
+
+    /**
+     * Makes the live snapshot <code>id</code>, now completely written, the parent of the next
+     * delta, unless this PC has been saved, loaded or reset since the snapshot was captured.
+     */
+    synchronized void liveSnapshotWritten(String id) {
+        if (id.equals(liveSnapshotId)) {
+            snapshotId = id;
+            liveSnapshotId = null;
+        }
+    }
+
+    /**
+     * Saves the state of this PC without stopping it.
+     * <p>
+     * Device state is captured at the next block boundary reached by the thread executing this
+     * PC, after which RAM is written copy on write by a background thread while execution
+     * continues. If no thread is executing this PC the capture waits until one does.
+     * @param out stream the serialised state is written to
+     * @return handle on the snapshot being written
+     */
+    public LiveSnapshot saveStateLive(OutputStream out) {
+        return saveStateLive(out, null);
+    }
+
+    /**
+     * Saves the state of this PC without stopping it, as {@link #saveStateLive(OutputStream)},
+     * running <code>atCapture</code> at the same safe point just before device state is captured
+     * so that state held outside this PC can be saved as of the same instant.
+     * @param out stream the serialised state is written to
+     * @param atCapture task to run at the capture, or <code>null</code>
+     * @return handle on the snapshot being written
+     */
+    public LiveSnapshot saveStateLive(OutputStream out, final Runnable atCapture) {
+        final LiveSnapshot snapshot = new LiveSnapshot(this, out);
+        runAtSafePoint(new Runnable() {
+            public void run() {
+                captureLiveState(snapshot, atCapture);
+            }
+        });
+        return snapshot;
+    }
+
+    private void captureLiveState(LiveSnapshot snapshot, Runnable atCapture) {
+        long start = System.nanoTime();
+        LOGGING.log(Level.INFO, "live snapshot capturing");
+        if (atCapture != null) {
+            try {
+                atCapture.run();
+            } catch (RuntimeException e) {
+                snapshot.fail(new IOException("live snapshot capture failed", e));
+                return;
+            }
+        }
+        List<String> names = new ArrayList<String>();
+        List<byte[]> states = new ArrayList<byte[]>();
+        Map<String, Integer> counts = new HashMap<String, Integer>();
+        try {
+            for (HardwareComponent hwc : parts) {
+                String cls = hwc.getClass().getName();
+                Integer count = counts.get(cls);
+                counts.put(cls, count == null ? 1 : count + 1);
+                names.add(cls + "#" + (count == null ? 0 : count));
+                if (hwc == physicalAddr) {
+                    states.add(null);
+                    continue;
+                }
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                DataOutputStream dout = new DataOutputStream(bytes);
+                hwc.saveState(dout);
+                dout.flush();
+                states.add(bytes.toByteArray());
+            }
+        } catch (IOException e) {
+            snapshot.fail(e);
+            return;
+        }
+        SnapshotChain.Info info = SnapshotChain.newInfo(null);
+        LiveMemoryDump dump = physicalAddr.startLiveDump();
+        // the modification record now runs from this snapshot, which only becomes a parent once written
+        synchronized (this) {
+            snapshotId = null;
+            liveSnapshotId = info.id;
+        }
+        snapshot.start(info, names, states, dump, System.nanoTime() - start);
+    }
+
+    /**
+     * Queues a task to be run by the thread executing this PC at the next block boundary.
+     * @param task task to run
+     */
+    public void runAtSafePoint(Runnable task) {
+        safePointTasks.add(task);
+        safePointPending = true;
+    }
+
+    /**
+     * Stops any further guest code running on this PC until it is next started. Called from a
+     * safe point task, this takes effect before the executing thread runs another block, however
+     * long that thread takes to notice it should stop.
+     */
+    public void halt() {
+        halted = true;
+    }
+
+    private void runSafePointTasks() {
+        safePointPending = false;
+        for (Runnable task = safePointTasks.poll(); task != null; task = safePointTasks.poll()) {
+            task.run();
         }
+    }
 
-        zout.finish();
+    private void saveState(OutputStream out, SaveMode mode) throws IOException {
+        LOGGING.log(Level.INFO, mode == SaveMode.DELTA ? "delta snapshot saving" : "snapshot saving");
+        ZipOutputStream zout = new ZipOutputStream(out);
+        SnapshotChain.Info info = SnapshotChain.newInfo(mode == SaveMode.DELTA ? snapshotId : null);
+        try {
+            SnapshotChain.writeInfo(zout, info);
+            for (HardwareComponent hwc : parts) {
+                saveComponent(zout, hwc, mode);
+            }
+            zout.finish();
+        } catch (IOException e) {
+            // the modification record may already have been cleared for a snapshot that was never written
+            setSnapshotId(null);
+            throw e;
+        }
+        // state without RAM is not a snapshot anything can be a delta of
+        setSnapshotId(mode == SaveMode.EXCLUDING_RAM ? null : info.id);
         LOGGING.log(Level.INFO, "snapshot done");
     }
 
-    private void saveComponent(ZipOutputStream zip, HardwareComponent component) throws IOException {
+    private void saveComponent(ZipOutputStream zip, HardwareComponent component, SaveMode mode) throws IOException {
         LOGGING.log(Level.FINE, "snapshot saving {0}", component);
         int i = 0;
         while (true) {
@@ -569,7 +789,13 @@ public class PC {
         }
 
         DataOutputStream dout = new DataOutputStream(zip);
-        component.saveState(dout);
+        if (mode == SaveMode.DELTA && component instanceof PhysicalAddressSpace) {
+            ((PhysicalAddressSpace)component).saveDeltaState(dout);
+        } else if (mode == SaveMode.EXCLUDING_RAM && component instanceof PhysicalAddressSpace) {
+            ((PhysicalAddressSpace)component).saveStateExcludingRAM(dout);
+        } else {
+            component.saveState(dout);
+        }
         dout.flush();
         zip.closeEntry();
     }
@@ -580,15 +806,34 @@ public class PC {
      * @throws java.io.IOException propogated from the supplied stream.
      */
     public void loadState(InputStream in) throws IOException {
+        loadState(in, null);
+    }
+
+    /**
+     * Loads state as {@link #loadState(InputStream)}, but with RAM pages held by
+     * <code>ramPages</code> populated from it on first access.
+     */
+    void loadState(InputStream in, PageSource ramPages) throws IOException {
         LOGGING.log(Level.INFO, "snapshot loading");
-        physicalAddr.reset();
         ZipInputStream zin = new ZipInputStream(in);
+        ZipEntry first = zin.getNextEntry();
+        String id = null;
+        if (first != null && first.getName().equals(SnapshotChain.INFO_ENTRY)) {
+            SnapshotChain.Info info = SnapshotChain.readInfo(new DataInputStream(zin));
+            if (info.isDelta()) {
+                throw new IOException("Snapshot " + info.id + " is a delta of " + info.parent + " and must be loaded as part of a SnapshotChain");
+            }
+            id = info.id;
+            first = zin.getNextEntry();
+        }
+        setSnapshotId(null);
+        physicalAddr.reset();
         Set<HardwareComponent> newParts = new HashSet<HardwareComponent>();
         IOPortHandler ioHandler = (IOPortHandler)getComponent(IOPortHandler.class);
         ioHandler.reset();
         newParts.add(ioHandler);
         try {
-            for (ZipEntry entry = zin.getNextEntry(); entry != null; entry = zin.getNextEntry()) {
+            for (ZipEntry entry = first; entry != null; entry = zin.getNextEntry()) {
                 DataInputStream din = new DataInputStream(zin);
 
                 String cls = entry.getName().split("#")[0];
@@ -608,6 +853,9 @@ public class PC {
                     ((VirtualClock)hwc).loadState(din);
                 } else if (hwc instanceof PhysicalAddressSpace) {
                     ((PhysicalAddressSpace)hwc).loadState(din, manager);
+                    if (ramPages != null) {
+                        ((PhysicalAddressSpace)hwc).setPageSource(ramPages);
+                    }
                 } else {
                     hwc.loadState(din);
                 }
@@ -624,6 +872,7 @@ public class PC {
             parts.addAll(newParts);
 
             linkComponents();
+            setSnapshotId(id);
             LOGGING.log(Level.INFO, "snapshot load done");
         } catch (IOException e) {
             LOGGING.log(Level.WARNING, "snapshot load failed", e);
@@ -677,6 +926,7 @@ public class PC {
      * This is roughly equivalent to a hard-reset (power down-up cycle).
      */
     public void reset() {
+        setSnapshotId(null);
         for (HardwareComponent hwc : parts) {
             hwc.reset();
         }
@@ -712,6 +962,10 @@ public class PC {
         return processor;
     }
 
+    private static enum SaveMode {
+        FULL, DELTA, EXCLUDING_RAM
+    }
+
     private static int staticClockx86Count = 0;
 
     public int eipBreak(Integer breakEip) {
@@ -743,6 +997,10 @@ public class PC {
     }
 
     public int executeBlock() {
+        if (safePointPending)
+            runSafePointTasks();
+        if (halted)
+            return 0;
         if (processor.isProtectedMode()) {
             if (processor.isVirtual8086Mode()) {
                 return executeVirtual8086Block();
@@ -821,6 +1079,10 @@ public class PC {
      * @return total number of x86 instructions executed.
      */
     public final int execute() {
+        if (safePointPending)
+            runSafePointTasks();
+        if (halted)
+            return 0;
         try {
             if (processor.isProtectedMode()) {
                 if (processor.isVirtual8086Mode()) {
@@ -870,8 +1132,6 @@ public class PC {
         int nextClockCheck = INSTRUCTIONS_BETWEEN_INTERRUPTS;
         try {
             for (int i = 0; i < 100; i++) {
-                if (ETHERNET)
-                    ethernet.checkForPackets();
                 int block = physicalAddr.executeReal(processor, processor.getInstructionPointer());
                 x86Count += block;
                 clockx86Count += block;
@@ -902,8 +1162,6 @@ public class PC {
                 clockx86Count += block;
                 if (x86Count > nextClockCheck) {
                     nextClockCheck = x86Count + INSTRUCTIONS_BETWEEN_INTERRUPTS;
-                    if (ETHERNET)
-                        ethernet.checkForPackets();
                     processor.processProtectedModeInterrupts(clockx86Count);
                     clockx86Count = 0;
                 }
@@ -928,8 +1186,6 @@ public class PC {
                 clockx86Count += block;
                 if (x86Count > nextClockCheck) {
                     nextClockCheck = x86Count + INSTRUCTIONS_BETWEEN_INTERRUPTS;
-                    if (ETHERNET)
-                        ethernet.checkForPackets();
                     processor.processVirtual8086ModeInterrupts(clockx86Count);
                     clockx86Count = 0;
                 }
@@ -0,0 +1,288 @@
+/*
+    JPC: An x86 PC Hardware Emulator for a pure Java Virtual Machine
+    Release Version 2.4
+
+    A project from the Physics Dept, The University of Oxford
+
+    Copyright (C) 2007-2010 The University of Oxford
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License version 2 as published by
+    the Free Software Foundation.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License along
+    with this program; if not, write to the Free Software Foundation, Inc.,
+    51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+
+    Details (including contact information) can be found at:
+
+    jpc.sourceforge.net
+    or the developer website
+    sourceforge.net/projects/jpc/
+
+    Conceived and Developed by:
+    Rhys Newman, Ian Preston, Chris Dennis
+
+    End of licence header
+*/
+
+
+package org.jpc.emulator;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.jpc.emulator.memory.AddressSpace;
+
+/**
+ * Content addressed store of RAM pages, shared between any number of mapped snapshots.
+ * <p>
+ * The store is a flat file of pages; a snapshot saved through it records, for each RAM page, the
+ * slot in the store holding its contents. A page whose contents are already in the store, whether
+ * from the same snapshot or another, is not written again. Pages are matched by a 64 bit hash
+ * and confirmed by comparing contents, so a hash collision costs a duplicate page rather than a
+ * wrong one.
+ * <p>
+ * Stores are opened once per JVM through {@link #open(File)}, so every machine restored from the
+ * same store can share the same read-only copy of a page (see <code>-share-pages</code>). Several
+ * processes may append to the same store; each append is made under a lock on the file.
+ */
+public final class PageStore {
+    private static final Map<String, PageStore> OPEN = new HashMap<String, PageStore>();
+    private static final int PAGE_SIZE = AddressSpace.BLOCK_SIZE;
+    private static final int MAX_PAGES = Integer.MAX_VALUE / PAGE_SIZE;
+    private static final VarHandle LONG_VIEW = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+    private final File file;
+    private final FileChannel channel;
+    private volatile MappedByteBuffer mapped;
+    private volatile int pages;
+    private Map<Long, Integer> index;
+    private int indexed;
+    private final Map<Integer, WeakReference<byte[]>> shared = new ConcurrentHashMap<Integer, WeakReference<byte[]>>();
+    private int duplicates;
+
+    private PageStore(File file) throws IOException {
+        this.file = file;
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+        long length;
+        FileLock lock = channel.lock();
+        try {
+            length = channel.size();
+        } finally {
+            lock.release();
+        }
+        if (length % PAGE_SIZE != 0) {
+            channel.close();
+            throw new IOException(file + " is not a page store");
+        }
+        pages = (int)(length / PAGE_SIZE);
+    }
+
+    /**
+     * Opens the store held in <code>file</code>, creating it if necessary. Opening the same file
+     * twice returns the same instance.
+     * @param file store file
+     * @return the store
+     * @throws IOException if the file cannot be opened or is not a page store
+     */
+    public static PageStore open(File file) throws IOException {
+        synchronized (OPEN) {
+            String key = file.getCanonicalPath();
+            PageStore store = OPEN.get(key);
+            if (store == null) {
+                store = new PageStore(file);
+                OPEN.put(key, store);
+            }
+            return store;
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Returns the number of distinct pages held.
+     * @return page count
+     */
+    public int getPageCount() {
+        return pages;
+    }
+
+    /**
+     * Returns the number of pages passed to {@link #store(byte[])} since this store was opened that
+     * were already present.
+     * @return duplicate page count
+     */
+    public synchronized int getDuplicatePages() {
+        return duplicates;
+    }
+
+    /**
+     * Adds a page to the store unless identical contents are already present.
+     * @param page page contents
+     * @return slot holding the contents
+     * @throws IOException if the store cannot be written or is full
+     */
+    public synchronized int store(byte[] page) throws IOException {
+        if (index == null) {
+            buildIndex();
+        }
+        long hash = hash(page);
+        Integer slot = index.get(hash);
+        if (slot != null && matches(slot, page)) {
+            duplicates++;
+            return slot;
+        }
+
+        FileLock lock = channel.lock();
+        try {
+            // another process may have appended since we last looked, possibly this very page
+            refresh();
+            if (indexed < pages) {
+                indexPages();
+                slot = index.get(hash);
+                if (slot != null && matches(slot, page)) {
+                    duplicates++;
+                    return slot;
+                }
+            }
+            if (pages == MAX_PAGES) {
+                throw new IOException(file + " is full");
+            }
+
+            ByteBuffer buffer = ByteBuffer.wrap(page, 0, PAGE_SIZE);
+            long position = (long)pages * PAGE_SIZE;
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+            if (slot == null) {
+                index.put(hash, pages);
+            }
+            indexed = pages + 1;
+            return pages++;
+        } finally {
+            lock.release();
+        }
+    }
+
+    /**
+     * Reads the page in <code>slot</code>. May be called from any thread.
+     * @param slot slot to read
+     * @param dest array of at least one page to fill
+     */
+    public void read(int slot, byte[] dest) {
+        MappedByteBuffer m = mapped;
+        if (m == null || (long)(slot + 1) * PAGE_SIZE > m.capacity()) {
+            m = remap(slot);
+        }
+        m.get(slot * PAGE_SIZE, dest, 0, PAGE_SIZE);
+    }
+
+    /**
+     * Returns a read-only copy of the page in <code>slot</code> that is shared with every other
+     * caller asking for the same slot while any of them still holds it.
+     * @param slot slot to read
+     * @return shared page contents, not to be modified
+     */
+    public byte[] getShared(int slot) {
+        while (true) {
+            WeakReference<byte[]> ref = shared.computeIfAbsent(slot, s -> {
+                byte[] data = new byte[PAGE_SIZE];
+                read(s, data);
+                return new WeakReference<byte[]>(data);
+            });
+            byte[] data = ref.get();
+            if (data != null) {
+                return data;
+            }
+            shared.remove(slot, ref);
+        }
+    }
+
+    private synchronized MappedByteBuffer remap(int slot) {
+        if (slot >= pages) {
+            try {
+                refresh();
+            } catch (IOException e) {
+                throw new IllegalStateException("unable to read page store " + file, e);
+            }
+        }
+        if (slot >= pages) {
+            throw new IllegalStateException("page store " + file + " has no slot " + slot);
+        }
+        MappedByteBuffer m = mapped;
+        if (m == null || (long)(slot + 1) * PAGE_SIZE > m.capacity()) {
+            try {
+                m = channel.map(FileChannel.MapMode.READ_ONLY, 0, (long)pages * PAGE_SIZE);
+            } catch (IOException e) {
+                throw new IllegalStateException("unable to map page store " + file, e);
+            }
+            mapped = m;
+        }
+        return m;
+    }
+
+    private boolean matches(int slot, byte[] page) {
+        byte[] existing = new byte[PAGE_SIZE];
+        read(slot, existing);
+        return Arrays.equals(existing, page);
+    }
+
+    /**
+     * Picks up pages appended by other processes. A trailing partial page can only be left by a
+     * writer that died mid-append; it belongs to no snapshot and is overwritten by the next append.
+     */
+    private synchronized void refresh() throws IOException {
+        int current = (int)Math.min(channel.size() / PAGE_SIZE, MAX_PAGES);
+        if (current > pages) {
+            pages = current;
+        }
+    }
+
+    private void buildIndex() {
+        index = new HashMap<Long, Integer>();
+        indexed = 0;
+        indexPages();
+    }
+
+    private void indexPages() {
+        byte[] page = new byte[PAGE_SIZE];
+        for (int i = indexed; i < pages; i++) {
+            read(i, page);
+            Long hash = hash(page);
+            if (!index.containsKey(hash)) {
+                index.put(hash, i);
+            }
+        }
+        indexed = pages;
+    }
+
+    private static long hash(byte[] page) {
+        long h = 0x9E3779B97F4A7C15L;
+        for (int i = 0; i < PAGE_SIZE; i += 8) {
+            h = (h ^ (long)LONG_VIEW.get(page, i)) * 0xBF58476D1CE4E5B9L;
+            h ^= h >>> 31;
+        }
+        return h;
+    }
+}
@@ -0,0 +1,387 @@
+/*
+    JPC: An x86 PC Hardware Emulator for a pure Java Virtual Machine
+    Release Version 2.4
+
+    A project from the Physics Dept, The University of Oxford
+
+    Copyright (C) 2007-2010 The University of Oxford
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License version 2 as published by
+    the Free Software Foundation.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License along
+    with this program; if not, write to the Free Software Foundation, Inc.,
+    51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+
+    Details (including contact information) can be found at:
+
+    jpc.sourceforge.net
+    or the developer website
+    sourceforge.net/projects/jpc/
+
+    Conceived and Developed by:
+    Rhys Newman, Ian Preston, Chris Dennis
+
+    End of licence header
+*/
+
+
+package org.jpc.emulator;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import org.jpc.emulator.memory.PhysicalAddressSpace;
+
+/**
+ * A full snapshot followed by zero or more delta snapshots, each taken against the one before it.
+ * <p>
+ * Every snapshot written by {@link PC#saveState(OutputStream)} or
+ * {@link PC#saveDeltaState(OutputStream)} starts with an entry recording its own id and, for a
+ * delta, the id of its parent. A delta holds the complete state of every device but only the RAM
+ * pages modified since its parent was saved or loaded. A chain is loaded, or compacted into a new
+ * full snapshot, by streaming the memory pages of all its members in step, so neither operation
+ * ever holds more than a page of any one snapshot in memory.
+ * <p>
+ * Members may be either bare <code>PC</code> states or the snapshot files saved by
+ * <code>JPCApplication</code>, which hold the state in a <code>pc</code> entry alongside others
+ * such as the display. Compacting a chain whose last member is of the second kind produces the
+ * same kind, carrying that member's other entries over unchanged.
+ * <p>
+ * The leading id entry was introduced with this class and is versioned. Snapshots saved before it
+ * have no id entry; they still load as full snapshots, on their own, but cannot be members of a
+ * longer chain. Older versions of JPC skip the entry as an unknown component.
+ * <p>
+ * Run as an application this class compacts a chain: <code>SnapshotChain out base [delta...]</code>.
+ */
+public class SnapshotChain {
+    private static final Logger LOGGING = Logger.getLogger(SnapshotChain.class.getName());
+
+    static final String INFO_ENTRY = "snapshot";
+    private static final int FORMAT_VERSION = 1;
+    private static final String MEMORY_ENTRY = PhysicalAddressSpace.class.getName() + "#";
+    private static final String WRAPPED_STATE_ENTRY = "pc";
+
+    private final List<File> files;
+
+    /**
+     * Constructs a chain from a full snapshot and its deltas, oldest first.
+     * @param files snapshot files making up the chain
+     */
+    public SnapshotChain(List<File> files) {
+        if (files.isEmpty()) {
+            throw new IllegalArgumentException("empty snapshot chain");
+        }
+        this.files = new ArrayList<File>(files);
+    }
+
+    /**
+     * Constructs a chain from a full snapshot and its deltas given in any order, putting them in
+     * order by their parent links.
+     * @param files snapshot files making up the chain
+     * @return the chain
+     * @throws IOException if the files cannot be read or do not form a single chain
+     */
+    public static SnapshotChain ordered(Collection<File> files) throws IOException {
+        if (files.size() == 1) {
+            return new SnapshotChain(new ArrayList<File>(files));
+        }
+        Map<String, File> byParent = new HashMap<String, File>();
+        Map<File, String> ids = new HashMap<File, String>();
+        for (File file : files) {
+            Info info = readInfo(file);
+            if (info == null) {
+                throw new IOException(file + " has no snapshot id");
+            }
+            if (byParent.put(info.parent, file) != null) {
+                throw new IOException("more than one snapshot in the chain has parent " + (info.parent.isEmpty() ? "none" : info.parent));
+            }
+            ids.put(file, info.id);
+        }
+        List<File> chain = new ArrayList<File>();
+        for (File next = byParent.get(""); next != null; next = byParent.get(ids.get(next))) {
+            chain.add(next);
+        }
+        if (chain.size() != files.size()) {
+            throw new IOException("snapshots do not form a single chain from a full snapshot");
+        }
+        return new SnapshotChain(chain);
+    }
+
+    /**
+     * Returns the last, most recent, member of this chain.
+     * @return last snapshot file
+     */
+    public File getLast() {
+        return files.get(files.size() - 1);
+    }
+
+    /**
+     * Loads the state at the end of this chain into <code>pc</code>.
+     * @param pc machine to load into
+     * @throws IOException if the chain is broken or cannot be read
+     */
+    public void load(PC pc) throws IOException {
+        if (files.size() == 1) {
+            try (InputStream in = openState(files.get(0))) {
+                pc.loadState(in);
+            }
+            return;
+        }
+
+        PipedInputStream in = new PipedInputStream(64 * 1024);
+        final PipedOutputStream out = new PipedOutputStream(in);
+        final IOException[] failure = new IOException[1];
+        Thread writer = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    compactState(out);
+                } catch (IOException e) {
+                    failure[0] = e;
+                } finally {
+                    try {
+                        out.close();
+                    } catch (IOException e) {
+                    }
+                }
+            }
+        }, "Snapshot Chain Merger");
+        writer.setDaemon(true);
+        writer.start();
+        try {
+            pc.loadState(in);
+        } catch (IOException e) {
+            if (failure[0] == null) {
+                throw e;
+            }
+        } finally {
+            in.close();
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+    }
+
+    /**
+     * Writes the state at the end of this chain to <code>out</code> as a single full snapshot. The
+     * result keeps the id of the last member of the chain, so deltas taken after loading it remain
+     * valid children. If the last member wraps its state among other entries, so does the result.
+     * @param out stream to write the full snapshot to
+     * @throws IOException if the chain is broken or cannot be read
+     */
+    public void compact(OutputStream out) throws IOException {
+        File last = getLast();
+        if (!isWrapped(last)) {
+            compactState(out);
+            return;
+        }
+
+        ZipOutputStream zout = new ZipOutputStream(out);
+        zout.putNextEntry(new ZipEntry(WRAPPED_STATE_ENTRY));
+        compactState(zout);
+        zout.closeEntry();
+        try (ZipFile zip = new ZipFile(last)) {
+            for (Enumeration<? extends ZipEntry> e = zip.entries(); e.hasMoreElements();) {
+                ZipEntry entry = e.nextElement();
+                if (entry.getName().equals(WRAPPED_STATE_ENTRY)) {
+                    continue;
+                }
+                zout.putNextEntry(new ZipEntry(entry.getName()));
+                try (InputStream in = zip.getInputStream(entry)) {
+                    in.transferTo(zout);
+                }
+                zout.closeEntry();
+            }
+        }
+        zout.finish();
+    }
+
+    private void compactState(OutputStream out) throws IOException {
+        String parent = "";
+        for (File file : files) {
+            Info info = readInfo(file);
+            if (info == null) {
+                throw new IOException(file + " has no snapshot id");
+            }
+            if (!info.parent.equals(parent)) {
+                throw new IOException(file + " has parent " + (info.parent.isEmpty() ? "none" : info.parent)
+                    + " but follows " + (parent.isEmpty() ? "nothing" : parent));
+            }
+            parent = info.id;
+        }
+
+        try (ZipInputStream last = new ZipInputStream(openState(getLast()))) {
+            ZipOutputStream zout = new ZipOutputStream(out);
+            writeInfo(zout, new Info(parent, ""));
+            for (ZipEntry entry = last.getNextEntry(); entry != null; entry = last.getNextEntry()) {
+                if (entry.getName().equals(INFO_ENTRY)) {
+                    continue;
+                }
+                zout.putNextEntry(new ZipEntry(entry.getName()));
+                if (entry.getName().startsWith(MEMORY_ENTRY)) {
+                    mergeMemory(entry.getName(), last, zout);
+                } else {
+                    last.transferTo(zout);
+                }
+                zout.closeEntry();
+            }
+            zout.finish();
+        }
+    }
+
+    /**
+     * Merges the memory entry <code>name</code> of every member, reading the last member's from
+     * <code>last</code>, which is positioned at it.
+     */
+    private void mergeMemory(String name, InputStream last, OutputStream out) throws IOException {
+        DataInputStream[] states = new DataInputStream[files.size()];
+        try {
+            for (int i = 0; i < states.length - 1; i++) {
+                ZipInputStream zin = new ZipInputStream(openState(files.get(i)));
+                states[i] = new DataInputStream(new BufferedInputStream(zin));
+                ZipEntry entry = zin.getNextEntry();
+                while (entry != null && !entry.getName().equals(name)) {
+                    entry = zin.getNextEntry();
+                }
+                if (entry == null) {
+                    throw new IOException("snapshot " + files.get(i) + " has no " + name);
+                }
+            }
+            states[states.length - 1] = new DataInputStream(new BufferedInputStream(last));
+            DataOutputStream dout = new DataOutputStream(new BufferedOutputStream(out));
+            PhysicalAddressSpace.mergeStates(states, dout);
+            dout.flush();
+        } finally {
+            for (int i = 0; i < states.length - 1; i++) {
+                if (states[i] != null) {
+                    states[i].close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Opens the bare <code>PC</code> state held in <code>file</code>, unwrapping it from the
+     * <code>pc</code> entry of a snapshot saved by <code>JPCApplication</code> if need be.
+     * @param file snapshot file
+     * @return stream of the state, as written by {@link PC#saveState(OutputStream)}
+     * @throws IOException if the file cannot be read
+     */
+    public static InputStream openState(File file) throws IOException {
+        ZipInputStream zin = new ZipInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            ZipEntry first = zin.getNextEntry();
+            if (first != null && first.getName().equals(WRAPPED_STATE_ENTRY)) {
+                return zin;
+            }
+        } catch (IOException e) {
+            zin.close();
+            throw e;
+        }
+        zin.close();
+        return new BufferedInputStream(new FileInputStream(file));
+    }
+
+    private static boolean isWrapped(File file) throws IOException {
+        try (ZipInputStream zin = new ZipInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            ZipEntry first = zin.getNextEntry();
+            return first != null && first.getName().equals(WRAPPED_STATE_ENTRY);
+        }
+    }
+
+    static Info newInfo(String parent) {
+        return new Info(UUID.randomUUID().toString(), parent == null ? "" : parent);
+    }
+
+    static void writeInfo(ZipOutputStream zip, Info info) throws IOException {
+        zip.putNextEntry(new ZipEntry(INFO_ENTRY));
+        DataOutputStream dout = new DataOutputStream(zip);
+        dout.writeInt(FORMAT_VERSION);
+        dout.writeUTF(info.id);
+        dout.writeUTF(info.parent);
+        dout.flush();
+        zip.closeEntry();
+    }
+
+    static Info readInfo(DataInputStream in) throws IOException {
+        int version = in.readInt();
+        if (version != FORMAT_VERSION) {
+            throw new IOException("unsupported snapshot format version " + version);
+        }
+        return new Info(in.readUTF(), in.readUTF());
+    }
+
+    private static Info readInfo(File file) throws IOException {
+        try (ZipInputStream zin = new ZipInputStream(openState(file))) {
+            ZipEntry entry = zin.getNextEntry();
+            if (entry == null || !entry.getName().equals(INFO_ENTRY)) {
+                return null;
+            }
+            return readInfo(new DataInputStream(zin));
+        }
+    }
+
+    static final class Info {
+        final String id;
+        final String parent;
+
+        Info(String id, String parent) {
+            this.id = id;
+            this.parent = parent;
+        }
+
+        boolean isDelta() {
+            return !parent.isEmpty();
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.out.println("usage: SnapshotChain <output> <full snapshot> [delta snapshot...]");
+            System.exit(1);
+        }
+        List<File> chain = new ArrayList<File>();
+        for (String name : Arrays.asList(args).subList(1, args.length)) {
+            chain.add(new File(name));
+        }
+        try (OutputStream out = new FileOutputStream(args[0])) {
+            new SnapshotChain(chain).compact(out);
+        }
+        LOGGING.log(Level.INFO, "compacted {0} snapshots into {1}", new Object[]{chain.size(), args[0]});
+    }
+}
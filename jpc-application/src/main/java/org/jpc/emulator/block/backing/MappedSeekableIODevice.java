@@ -0,0 +1,205 @@
+/*
+    JPC: An x86 PC Hardware Emulator for a pure Java Virtual Machine
+    Release Version 2.4
+
+    A project from the Physics Dept, The University of Oxford
+
+    Copyright (C) 2007-2010 The University of Oxford
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License version 2 as published by
+    the Free Software Foundation.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License along
+    with this program; if not, write to the Free Software Foundation, Inc.,
+    51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+
+    Details (including contact information) can be found at:
+
+    jpc.sourceforge.net
+    or the developer website
+    sourceforge.net/projects/jpc/
+
+    Conceived and Developed by:
+    Rhys Newman, Ian Preston, Chris Dennis
+
+    End of licence header
+*/
+
+package org.jpc.emulator.block.backing;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A read-only <code>SeekableIODevice</code> backed by a memory-mapped image file.
+ * <p>
+ * Mappings are shared between every instance opened on the same file, so several PCs booting
+ * from one ISO image read through a single copy held in the host page cache, and sequential
+ * reads pick up the kernel's read-ahead on the mapping rather than a system call per sector.
+ */
+public class MappedSeekableIODevice implements SeekableIODevice {
+    private static final Logger LOGGING = Logger.getLogger(MappedSeekableIODevice.class.getName());
+
+    private static final int CHUNK_SHIFT = 30;
+    private static final int CHUNK_MASK = (1 << CHUNK_SHIFT) - 1;
+    private static final Map<String, MappedImage> IMAGES = new HashMap<String, MappedImage>();
+
+    private String fileName;
+    private MappedImage image;
+    private ByteBuffer[] chunks;
+    private long position;
+
+    /**
+     * Constructs an unconfigured instance.
+     * <p>
+     * This must be configured by calling <code>configure</code> before first use.
+     */
+    public MappedSeekableIODevice() {
+    }
+
+    /**
+     * Constructs an instance mapping the specified file.
+     * @param file file path
+     * @throws java.io.IOException if the file cannot be mapped
+     */
+    public MappedSeekableIODevice(String file) throws IOException {
+        configure(file);
+    }
+
+    /**
+     * Configures this instance to map the file identified, sharing an existing mapping where one
+     * is already open on the same unmodified file.
+     * @param spec file path
+     * @throws java.io.IOException if the file cannot be mapped
+     */
+    @Override
+    public void configure(String spec) throws IOException {
+        if (image != null)
+            close();
+
+        fileName = spec;
+        image = acquire(new File(spec));
+        chunks = new ByteBuffer[image.chunks.length];
+        for (int i = 0; i < chunks.length; i++)
+            chunks[i] = image.chunks[i].duplicate();
+        position = 0;
+    }
+
+    @Override
+    public void seek(long offset) throws IOException {
+        if (offset < 0)
+            throw new IOException("negative seek offset " + offset);
+        position = offset;
+    }
+
+    @Override
+    public int write(byte[] data, int offset, int length) throws IOException {
+        throw new IOException("mapped image " + fileName + " is read-only");
+    }
+
+    @Override
+    public int read(byte[] data, int offset, int length) throws IOException {
+        if (position >= image.length)
+            return -1;
+
+        length = (int)Math.min(length, image.length - position);
+        int read = 0;
+        while (read < length) {
+            ByteBuffer chunk = chunks[(int)(position >>> CHUNK_SHIFT)];
+            chunk.position((int)position & CHUNK_MASK);
+            int count = Math.min(length - read, chunk.remaining());
+            chunk.get(data, offset + read, count);
+            read += count;
+            position += count;
+        }
+        return read;
+    }
+
+    @Override
+    public long length() {
+        return image == null ? -1L : image.length;
+    }
+
+    @Override
+    public boolean readOnly() {
+        return true;
+    }
+
+    @Override
+    public void close() {
+        if (image == null)
+            return;
+
+        release(image);
+        image = null;
+        chunks = null;
+    }
+
+    @Override
+    public String toString() {
+        return fileName;
+    }
+
+    private static MappedImage acquire(File file) throws IOException {
+        String key = file.getCanonicalPath();
+        synchronized (IMAGES) {
+            MappedImage image = IMAGES.get(key);
+            if (image == null || image.length != file.length() || image.lastModified != file.lastModified()) {
+                image = new MappedImage(key, file);
+                IMAGES.put(key, image);
+            }
+            image.references++;
+            return image;
+        }
+    }
+
+    private static void release(MappedImage image) {
+        synchronized (IMAGES) {
+            if (--image.references == 0 && IMAGES.get(image.key) == image)
+                IMAGES.remove(image.key);
+        }
+    }
+
+    private static final class MappedImage {
+        private final String key;
+        private final long length;
+        private final long lastModified;
+        private final MappedByteBuffer[] chunks;
+        private int references;
+
+        MappedImage(String key, File file) throws IOException {
+            this.key = key;
+            lastModified = file.lastModified();
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                FileChannel channel = raf.getChannel();
+                length = channel.size();
+                chunks = new MappedByteBuffer[(int)((length + CHUNK_MASK) >>> CHUNK_SHIFT)];
+                for (int i = 0; i < chunks.length; i++) {
+                    long start = (long)i << CHUNK_SHIFT;
+                    chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(CHUNK_MASK + 1L, length - start));
+                }
+            } catch (IOException e) {
+                LOGGING.log(Level.WARNING, "failed to map image " + key, e);
+                throw e;
+            } finally {
+                raf.close();
+            }
+            LOGGING.log(Level.INFO, "mapped {0} ({1,number,integer} bytes)", new Object[]{key, Long.valueOf(length)});
+        }
+    }
+}
@@ -0,0 +1,132 @@
+/*
+    JPC: An x86 PC Hardware Emulator for a pure Java Virtual Machine
+    Release Version 2.4
+
+    A project from the Physics Dept, The University of Oxford
+
+    Copyright (C) 2007-2010 The University of Oxford
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License version 2 as published by
+    the Free Software Foundation.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License along
+    with this program; if not, write to the Free Software Foundation, Inc.,
+    51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+
+    Details (including contact information) can be found at:
+
+    jpc.sourceforge.net
+    or the developer website
+    sourceforge.net/projects/jpc/
+
+    Conceived and Developed by:
+    Rhys Newman, Ian Preston, Chris Dennis
+
+    End of licence header
+*/
+
+
+package org.jpc.emulator.memory;
+
+import java.util.Arrays;
+
+/**
+ * Fixed size bitmap of 4 KB page indices, used to record which pages of an address space have been
+ * written since some reference point.
+ * <p>
+ * Marking a page is a single word update with no allocation, so it is cheap enough to sit on the
+ * memory write path.
+ */
+public final class DirtyPageMap {
+
+    private final long[] bits;
+    private final int pages;
+
+    /**
+     * Constructs a map covering <code>pages</code> page indices, all initially clean.
+     * @param pages number of pages tracked
+     */
+    public DirtyPageMap(int pages) {
+        this.pages = pages;
+        bits = new long[(pages + 63) >>> 6];
+    }
+
+    /**
+     * Returns the number of pages this map covers.
+     * @return page count
+     */
+    public int size() {
+        return pages;
+    }
+
+    public void mark(int page) {
+        bits[page >>> 6] |= 1L << page;
+    }
+
+    public void clear(int page) {
+        bits[page >>> 6] &= ~(1L << page);
+    }
+
+    public boolean isMarked(int page) {
+        return (bits[page >>> 6] & (1L << page)) != 0;
+    }
+
+    public void markAll() {
+        Arrays.fill(bits, -1L);
+        if ((pages & 63) != 0) {
+            bits[bits.length - 1] = (1L << pages) - 1;
+        }
+    }
+
+    public void clearAll() {
+        Arrays.fill(bits, 0L);
+    }
+
+    /**
+     * Replaces the marks in <code>dest</code> with those in this map, and clears this map.
+     * @param dest map of the same size to receive the marks
+     */
+    public void moveTo(DirtyPageMap dest) {
+        System.arraycopy(bits, 0, dest.bits, 0, bits.length);
+        clearAll();
+    }
+
+    /**
+     * Returns the index of the first marked page at or after <code>page</code>, or <code>-1</code>
+     * if there is none.
+     * @param page first page index to consider
+     * @return next marked page index or <code>-1</code>
+     */
+    public int nextMarked(int page) {
+        if (page >= pages) {
+            return -1;
+        }
+        int word = page >>> 6;
+        long w = bits[word] & (-1L << page);
+        while (w == 0) {
+            if (++word == bits.length) {
+                return -1;
+            }
+            w = bits[word];
+        }
+        return (word << 6) + Long.numberOfTrailingZeros(w);
+    }
+
+    /**
+     * Returns the number of marked pages.
+     * @return marked page count
+     */
+    public int count() {
+        int total = 0;
+        for (long w : bits) {
+            total += Long.bitCount(w);
+        }
+        return total;
+    }
+}
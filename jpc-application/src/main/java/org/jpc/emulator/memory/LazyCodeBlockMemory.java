@@ -37,6 +37,11 @@ public class LazyCodeBlockMemory extends AbstractMemory {
     private byte[] buffer = null;
     private int nullReadCount = 0;
     private List<SpanningCodeBlock> spanning = new LinkedList();
+    private DirtyPageMap modifiedPages;
+    private int page;
+    private volatile LiveMemoryDump copyOnWrite;
+    private volatile PageSource source;
+    private boolean shared;
 
     /**
      * Constructs an instance <code>size</code> bytes long.
@@ -47,6 +52,78 @@ public class LazyCodeBlockMemory extends AbstractMemory {
         this.codeBlockManager = manager;
     }
 
+    /**
+     * Records every subsequent change to this block's contents as a mark against <code>page</code>
+     * in the given map.
+     * @param map map to mark on modification
+     * @param page index of this block within the map
+     */
+    public void trackModifications(DirtyPageMap map, int page) {
+        this.modifiedPages = map;
+        this.page = page;
+    }
+
+    /**
+     * Returns <code>true</code> if modifications to this block are being recorded.
+     * @return <code>true</code> if tracked
+     */
+    public boolean isModificationTracked() {
+        return modifiedPages != null;
+    }
+
+    /**
+     * Defers loading this block's contents until it is first accessed, at which point they are
+     * read from <code>source</code> using the page index given to
+     * {@link #trackModifications(DirtyPageMap, int)}.
+     * @param source source of this block's initial contents
+     */
+    public void setPageSource(PageSource source) {
+        realCodeBuffer = null;
+        protectedCodeBuffer = null;
+        virtual8086CodeBuffer = null;
+        buffer = null;
+        shared = false;
+        this.source = source;
+    }
+
+    private void beforeWrite() {
+        /* fault in first, so that a shared page is seen as shared and copied before it is written */
+        if (source != null) {
+            fault();
+        }
+        LiveMemoryDump dump = copyOnWrite;
+        if (dump != null) {
+            dump.preserve(page, this);
+        }
+        if (shared) {
+            buffer = buffer.clone();
+            shared = false;
+        }
+    }
+
+    /**
+     * Copies this block's contents without populating it from a pending page source, so that it
+     * is safe to call from a thread other than the one executing the machine.
+     * @return <code>false</code> if the block holds no contents
+     */
+    synchronized boolean copyContentsWithoutFault(byte[] dest) {
+        PageSource s = source;
+        if (s != null) {
+            s.readPage(page, dest);
+            return true;
+        }
+        byte[] b = buffer;
+        if (b == null) {
+            return false;
+        }
+        System.arraycopy(b, 0, dest, 0, size);
+        return true;
+    }
+
+    void setCopyOnWrite(LiveMemoryDump dump) {
+        copyOnWrite = dump;
+    }
+
     protected void constructCodeBlocksArray() {
         realCodeBuffer = new RealModeCodeBlock[(int)getSize()];
         protectedCodeBuffer = new ProtectedModeCodeBlock[(int)getSize()];
@@ -386,6 +463,9 @@ public class LazyCodeBlockMemory extends AbstractMemory {
     }
 
     private void regionAltered(int start, int end) {
+        if (modifiedPages != null) {
+            modifiedPages.mark(page);
+        }
         if (realCodeBuffer != null) {
             for (int i = end; i >= 0; i--) {
                 if (i == 0) {
@@ -464,10 +544,19 @@ public class LazyCodeBlockMemory extends AbstractMemory {
 
     @Override
     public void clear() {
+        LiveMemoryDump dump = copyOnWrite;
+        if (dump != null) {
+            dump.preserve(page, this);
+        }
         realCodeBuffer = null;
         protectedCodeBuffer = null;
         virtual8086CodeBuffer = null;
         buffer = null;
+        shared = false;
+        source = null;
+        if (modifiedPages != null) {
+            modifiedPages.mark(page);
+        }
     }
 
     @Override
@@ -562,17 +651,35 @@ public class LazyCodeBlockMemory extends AbstractMemory {
 
     //begin lazy memory methods
     private final void allocateBuffer() {
-        if (buffer == null) {
+        if (source != null) {
+            fault();
+        } else if (buffer == null) {
             buffer = new byte[size];
         }
     }
 
+    private synchronized void fault() {
+        PageSource s = source;
+        if (s == null) {
+            return;
+        }
+        byte[] contents = s.getSharedPage(page);
+        if (contents != null) {
+            shared = true;
+        } else {
+            contents = new byte[size];
+            s.readPage(page, contents);
+        }
+        buffer = contents;
+        source = null;
+    }
+
     @Override
     public void copyContentsIntoArray(int address, byte[] buf, int off, int len) {
         try {
             System.arraycopy(buffer, address, buf, off, len);
         } catch (NullPointerException e) {
-            if (++nullReadCount == ALLOCATION_THRESHOLD) {
+            if (source != null || ++nullReadCount == ALLOCATION_THRESHOLD) {
                 allocateBuffer();
                 System.arraycopy(buffer, address, buf, off, len);
             } else {
@@ -586,6 +693,13 @@ public class LazyCodeBlockMemory extends AbstractMemory {
 
     @Override
     public void loadInitialContents(int address, byte[] buf, int off, int len) {
+        if (source != null) {
+            fault();
+        }
+        if (shared) {
+            buffer = buffer.clone();
+            shared = false;
+        }
         try {
             System.arraycopy(buf, off, buffer, address, len);
         } catch (NullPointerException e) {
@@ -596,6 +710,7 @@ public class LazyCodeBlockMemory extends AbstractMemory {
 
     @Override
     public void copyArrayIntoContents(int address, byte[] buf, int off, int len) {
+        beforeWrite();
         try {
             System.arraycopy(buf, off, buffer, address, len);
         } catch (NullPointerException e) {
@@ -612,7 +727,7 @@ public class LazyCodeBlockMemory extends AbstractMemory {
 
     @Override
     public boolean isAllocated() {
-        return buffer != null;
+        return buffer != null || source != null;
     }
 
     @Override
@@ -620,7 +735,7 @@ public class LazyCodeBlockMemory extends AbstractMemory {
         try {
             return buffer[offset];
         } catch (NullPointerException e) {
-            if (++nullReadCount == ALLOCATION_THRESHOLD) {
+            if (source != null || ++nullReadCount == ALLOCATION_THRESHOLD) {
                 allocateBuffer();
                 return buffer[offset];
             } else {
@@ -634,6 +749,7 @@ public class LazyCodeBlockMemory extends AbstractMemory {
         if (getByte(offset) == data) {
             return;
         }
+        beforeWrite();
         try {
             buffer[offset] = data;
         } catch (NullPointerException e) {
@@ -651,7 +767,7 @@ public class LazyCodeBlockMemory extends AbstractMemory {
             result |= buffer[offset] << 8;
             return (short)result;
         } catch (NullPointerException e) {
-            if (++nullReadCount == ALLOCATION_THRESHOLD) {
+            if (source != null || ++nullReadCount == ALLOCATION_THRESHOLD) {
                 allocateBuffer();
                 int result = 0xFF & buffer[offset];
                 offset++;
@@ -675,7 +791,7 @@ public class LazyCodeBlockMemory extends AbstractMemory {
             result |= buffer[offset] << 24;
             return result;
         } catch (NullPointerException e) {
-            if (++nullReadCount == ALLOCATION_THRESHOLD) {
+            if (source != null || ++nullReadCount == ALLOCATION_THRESHOLD) {
                 allocateBuffer();
                 int result = 0xFF & buffer[offset];
                 offset++;
@@ -696,6 +812,7 @@ public class LazyCodeBlockMemory extends AbstractMemory {
         if (getWord(offset) == data) {
             return;
         }
+        beforeWrite();
         try {
             buffer[offset] = (byte)data;
             offset++;
@@ -714,6 +831,7 @@ public class LazyCodeBlockMemory extends AbstractMemory {
         if (getDoubleWord(offset) == data) {
             return;
         }
+        beforeWrite();
         try {
             buffer[offset] = (byte)data;
             offset++;
@@ -0,0 +1,262 @@
+/*
+    JPC: An x86 PC Hardware Emulator for a pure Java Virtual Machine
+    Release Version 2.4
+
+    A project from the Physics Dept, The University of Oxford
+
+    Copyright (C) 2007-2010 The University of Oxford
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License version 2 as published by
+    the Free Software Foundation.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License along
+    with this program; if not, write to the Free Software Foundation, Inc.,
+    51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+
+    Details (including contact information) can be found at:
+
+    jpc.sourceforge.net
+    or the developer website
+    sourceforge.net/projects/jpc/
+
+    Conceived and Developed by:
+    Rhys Newman, Ian Preston, Chris Dennis
+
+    End of licence header
+*/
+
+
+package org.jpc.emulator.memory;
+
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Copy-on-write image of physical memory, written out while the machine keeps running.
+ * <p>
+ * When a dump is started every tracked RAM page is logically write protected. The first write to
+ * such a page copies its old contents aside before the write proceeds; the writing thread then
+ * takes the pages in order, using the preserved copy where one exists and the live page where it
+ * does not. The output has exactly the layout of {@link PhysicalAddressSpace#saveState}, so it
+ * loads like any other snapshot.
+ * <p>
+ * At most {@link #MAX_HELD_PAGES} preserved pages are held in memory at once; beyond that they
+ * are spilled to a temporary file until the writer reaches them. If a page cannot be spilled the
+ * dump is abandoned rather than exceed that bound, and {@link #writeTo(DataOutput)} fails.
+ */
+public final class LiveMemoryDump {
+    private static final Logger LOGGING = Logger.getLogger(LiveMemoryDump.class.getName());
+
+    public static final int MAX_HELD_PAGES = 1024;
+
+    private final boolean gateA20;
+    private final Memory[] quick;
+    private final byte[] rest;
+    private final DirtyPageMap pending;
+
+    // per page: 0 nothing held, -1 held as unallocated, n > 0 in memory slot n - 1, n < -1 spill slot -n - 2
+    private final int[] held;
+    private final byte[][] slots = new byte[MAX_HELD_PAGES][];
+    private final int[] freeSlots = new int[MAX_HELD_PAGES];
+    private final byte[] scratch = new byte[AddressSpace.BLOCK_SIZE];
+    private int freeCount, usedSlots;
+    private RandomAccessFile spill;
+    private File spillFile;
+    private int spillCount;
+
+    private int copiedOnWrite;
+    private boolean finished;
+    private IOException failure;
+
+    LiveMemoryDump(boolean gateA20, Memory[] quick, byte[] rest) {
+        this.gateA20 = gateA20;
+        this.quick = quick.clone();
+        this.rest = rest;
+        pending = new DirtyPageMap(quick.length);
+        held = new int[quick.length];
+
+        for (int i = 0; i < this.quick.length && !finished; i++) {
+            Memory block = this.quick[i];
+            if (block instanceof LazyCodeBlockMemory && ((LazyCodeBlockMemory)block).isModificationTracked()) {
+                pending.mark(i);
+                ((LazyCodeBlockMemory)block).setCopyOnWrite(this);
+            } else {
+                hold(i, block);
+            }
+        }
+    }
+
+    /**
+     * Called by a tracked block before its first modification since this dump started.
+     */
+    synchronized void preserve(int page, LazyCodeBlockMemory block) {
+        block.setCopyOnWrite(null);
+        if (!pending.isMarked(page)) {
+            return;
+        }
+        pending.clear(page);
+        hold(page, block);
+        copiedOnWrite++;
+    }
+
+    private void hold(int page, Memory block) {
+        if (!block.isAllocated() || block instanceof PhysicalAddressSpace.MapWrapper) {
+            held[page] = -1;
+            return;
+        }
+
+        int slot = -1;
+        if (freeCount > 0) {
+            slot = freeSlots[--freeCount];
+        } else if (usedSlots < slots.length) {
+            slot = usedSlots++;
+            slots[slot] = new byte[AddressSpace.BLOCK_SIZE];
+        }
+        byte[] data = slot < 0 ? scratch : slots[slot];
+        try {
+            block.copyContentsIntoArray(0, data, 0, AddressSpace.BLOCK_SIZE);
+        } catch (IllegalStateException e) {
+            if (slot >= 0) {
+                freeSlots[freeCount++] = slot;
+            }
+            held[page] = -1;
+            return;
+        }
+
+        if (PhysicalAddressSpace.isZeroPage(data, AddressSpace.BLOCK_SIZE)) {
+            if (slot >= 0) {
+                freeSlots[freeCount++] = slot;
+            }
+            held[page] = -1;
+        } else if (slot >= 0) {
+            held[page] = slot + 1;
+        } else if (!spillPage(page, data)) {
+            abort();
+        }
+    }
+
+    private boolean spillPage(int page, byte[] data) {
+        try {
+            if (spill == null) {
+                spillFile = File.createTempFile("jpc-snapshot", ".pages");
+                spillFile.deleteOnExit();
+                spill = new RandomAccessFile(spillFile, "rw");
+            }
+            spill.seek((long)spillCount * AddressSpace.BLOCK_SIZE);
+            spill.write(data);
+            held[page] = -(spillCount++) - 2;
+            return true;
+        } catch (IOException e) {
+            LOGGING.log(Level.WARNING, "unable to spill snapshot page, abandoning the snapshot", e);
+            failure = new IOException("unable to spill snapshot page " + page, e);
+            return false;
+        }
+    }
+
+    private synchronized int take(int page, byte[] dest) throws IOException {
+        if (failure != null) {
+            throw failure;
+        }
+        if (pending.isMarked(page)) {
+            // copy while the page is still armed, so that a writer waits in preserve() until we are done
+            LazyCodeBlockMemory block = (LazyCodeBlockMemory)quick[page];
+            boolean allocated = block.copyContentsWithoutFault(dest);
+            pending.clear(page);
+            block.setCopyOnWrite(null);
+            if (!allocated) {
+                return 0;
+            }
+            return PhysicalAddressSpace.isZeroPage(dest, AddressSpace.BLOCK_SIZE) ? 0 : AddressSpace.BLOCK_SIZE;
+        }
+
+        int h = held[page];
+        held[page] = 0;
+        if (h == -1) {
+            return 0;
+        } else if (h > 0) {
+            System.arraycopy(slots[h - 1], 0, dest, 0, AddressSpace.BLOCK_SIZE);
+            freeSlots[freeCount++] = h - 1;
+        } else if (h < -1) {
+            spill.seek((long)(-h - 2) * AddressSpace.BLOCK_SIZE);
+            spill.readFully(dest, 0, AddressSpace.BLOCK_SIZE);
+        } else {
+            throw new IllegalStateException("Snapshot page " + page + " was neither pending nor preserved");
+        }
+        return AddressSpace.BLOCK_SIZE;
+    }
+
+    /**
+     * Writes the memory image as it stood when this dump was started. May be called from any
+     * thread, concurrently with the machine executing.
+     * @param output stream to write to
+     * @throws IOException propagated from the supplied stream
+     */
+    public void writeTo(DataOutput output) throws IOException {
+        try {
+            byte[] temp = new byte[AddressSpace.BLOCK_SIZE];
+            output.writeBoolean(gateA20);
+            output.writeInt(quick.length);
+            for (int i = 0; i < quick.length; i++) {
+                int length = take(i, temp);
+                output.writeInt(length);
+                if (length > 0) {
+                    output.write(temp, 0, length);
+                }
+            }
+            output.write(rest);
+        } finally {
+            abort();
+        }
+    }
+
+    /**
+     * Stops protecting the remaining pages and discards any preserved copies.
+     */
+    public synchronized void abort() {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        for (int page = pending.nextMarked(0); page >= 0; page = pending.nextMarked(page + 1)) {
+            ((LazyCodeBlockMemory)quick[page]).setCopyOnWrite(null);
+        }
+        pending.clearAll();
+        Arrays.fill(slots, null);
+        if (spill != null) {
+            try {
+                spill.close();
+            } catch (IOException e) {
+                LOGGING.log(Level.FINE, "failed to close snapshot spill file", e);
+            }
+            spillFile.delete();
+        }
+    }
+
+    /**
+     * Returns the number of pages that had to be copied because the machine wrote to them before
+     * they were written out.
+     * @return copy-on-write page count
+     */
+    public synchronized int getPagesCopiedOnWrite() {
+        return copiedOnWrite;
+    }
+
+    /**
+     * Returns the number of preserved pages that did not fit in memory and went to disk.
+     * @return spilled page count
+     */
+    public synchronized int getPagesSpilled() {
+        return spillCount;
+    }
+}
@@ -0,0 +1,67 @@
+/*
+    JPC: An x86 PC Hardware Emulator for a pure Java Virtual Machine
+    Release Version 2.4
+
+    A project from the Physics Dept, The University of Oxford
+
+    Copyright (C) 2007-2010 The University of Oxford
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License version 2 as published by
+    the Free Software Foundation.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License along
+    with this program; if not, write to the Free Software Foundation, Inc.,
+    51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+
+    Details (including contact information) can be found at:
+
+    jpc.sourceforge.net
+    or the developer website
+    sourceforge.net/projects/jpc/
+
+    Conceived and Developed by:
+    Rhys Newman, Ian Preston, Chris Dennis
+
+    End of licence header
+*/
+
+
+package org.jpc.emulator.memory;
+
+/**
+ * Supplies the initial contents of RAM pages that are populated on first access rather than
+ * when a snapshot is loaded.
+ */
+public interface PageSource {
+
+    /**
+     * Returns <code>true</code> if this source holds contents for <code>page</code>. Pages it
+     * does not hold start out zeroed.
+     * @param page physical page number
+     * @return <code>true</code> if the page is present
+     */
+    public boolean hasPage(int page);
+
+    /**
+     * Reads the contents of <code>page</code> into <code>dest</code>. May be called from any
+     * thread.
+     * @param page physical page number
+     * @param dest array of at least one page to fill
+     */
+    public void readPage(int page, byte[] dest);
+
+    /**
+     * Returns an array holding the contents of <code>page</code> that may also be in use by
+     * other address spaces, or <code>null</code> if this source does not share pages. The
+     * caller must copy the array before modifying it.
+     * @param page physical page number
+     * @return shared read-only page contents, or <code>null</code>
+     */
+    public byte[] getSharedPage(int page);
+}
@@ -33,10 +33,12 @@
 
 package org.jpc.emulator.memory;
 
+import java.io.ByteArrayOutputStream;
 import java.io.DataInput;
+import java.io.DataInputStream;
 import java.io.DataOutput;
+import java.io.DataOutputStream;
 import java.io.IOException;
-import java.util.HashSet;
 import java.util.Set;
 
 import org.jpc.emulator.HardwareComponent;
@@ -75,7 +77,8 @@ public final class PhysicalAddressSpace extends AddressSpace implements Hardware
     private final int ramSize;
     private final int quickIndexSize;
     public static final boolean track_page_writes = Option.track_writes.value();
-    private Set<Integer> dirtyPages = new HashSet();
+    private final DirtyPageMap writeLog = track_page_writes ? new DirtyPageMap(1 << (32 - INDEX_SHIFT)) : null;
+    private final DirtyPageMap modifiedPages;
 
     /**
      * Constructs an address space which is initially empty. All addresses are mapped to an instance of
@@ -92,6 +95,7 @@ public final class PhysicalAddressSpace extends AddressSpace implements Hardware
 
         nonA20MaskedIndex = new Memory[TOP_INDEX_SIZE][];
         a20MaskedIndex = new Memory[TOP_INDEX_SIZE][];
+        modifiedPages = new DirtyPageMap(quickIndexSize);
 
         initialiseMemory();
         setGateA20State(false);
@@ -100,13 +104,124 @@ public final class PhysicalAddressSpace extends AddressSpace implements Hardware
     @Override
     public void saveState(DataOutput output) throws IOException {
         output.writeBoolean(gateA20MaskState);
-        dumpMemory(output, quickNonA20MaskedIndex, nonA20MaskedIndex);
+        dumpMemory(output, quickNonA20MaskedIndex, nonA20MaskedIndex, null);
+        modifiedPages.clearAll();
     }
 
-    private static void dumpMemory(DataOutput output, Memory[] quick, Memory[][] full) throws IOException {
+    /**
+     * Saves only the RAM pages modified since the last save or load of this address space.
+     * <p>
+     * The output has the same layout as {@link #saveState(DataOutput)} except that unmodified RAM
+     * pages are recorded with a length of <code>-1</code>. Blocks outside RAM, and RAM pages not
+     * tracked for modification, are always written in full.
+     * @param output stream to write to
+     * @throws IOException propagated from the supplied stream
+     */
+    public void saveDeltaState(DataOutput output) throws IOException {
+        output.writeBoolean(gateA20MaskState);
+        dumpMemory(output, quickNonA20MaskedIndex, nonA20MaskedIndex, modifiedPages);
+        modifiedPages.clearAll();
+    }
+
+    /**
+     * Saves everything except the contents of tracked RAM pages, which are recorded with a length
+     * of <code>-1</code> and must be saved separately through {@link #copyRAMPage(int, byte[])}.
+     * @param output stream to write to
+     * @throws IOException propagated from the supplied stream
+     */
+    public void saveStateExcludingRAM(DataOutput output) throws IOException {
+        output.writeBoolean(gateA20MaskState);
+        dumpMemory(output, quickNonA20MaskedIndex, nonA20MaskedIndex, new DirtyPageMap(quickIndexSize));
+        modifiedPages.clearAll();
+    }
+
+    /**
+     * Returns the number of pages of RAM in this address space.
+     * @return RAM size in pages
+     */
+    public int getRAMPageCount() {
+        return quickIndexSize;
+    }
+
+    /**
+     * Copies the contents of a tracked RAM page. Safe to call from a thread other than the one
+     * executing the machine, though the copy may then be torn by a concurrent write; such a write
+     * always marks the page in {@link #getModifiedPages()}.
+     * @param page physical page number
+     * @param dest array of at least one page to copy into
+     * @return <code>false</code> if the page is not tracked RAM or has never been allocated, in
+     * which case nothing is copied
+     */
+    public boolean copyRAMPage(int page, byte[] dest) {
+        Memory block = quickNonA20MaskedIndex[page];
+        if (!(block instanceof LazyCodeBlockMemory) || !((LazyCodeBlockMemory)block).isModificationTracked()) {
+            return false;
+        }
+        return ((LazyCodeBlockMemory)block).copyContentsWithoutFault(dest);
+    }
+
+    /**
+     * Arranges for each tracked RAM page held by <code>source</code> to be read from it on first
+     * access instead of starting out zeroed.
+     * @param source source of initial page contents
+     */
+    public void setPageSource(PageSource source) {
+        for (int i = 0; i < quickIndexSize; i++) {
+            Memory block = quickNonA20MaskedIndex[i];
+            if (source.hasPage(i) && block instanceof LazyCodeBlockMemory && ((LazyCodeBlockMemory)block).isModificationTracked()) {
+                ((LazyCodeBlockMemory)block).setPageSource(source);
+            }
+        }
+    }
+
+    /**
+     * Returns the map of RAM pages modified since the last save or load of this address space.
+     * @return modified page map, indexed by physical page number
+     */
+    public DirtyPageMap getModifiedPages() {
+        return modifiedPages;
+    }
+
+    /**
+     * Starts a copy-on-write dump of this address space. Must be called while the machine is
+     * stopped between blocks; the returned dump may then be written from another thread while
+     * execution continues. This counts as a save for the purposes of {@link #getModifiedPages()}.
+     * @return dump of memory as it stands now
+     */
+    public LiveMemoryDump startLiveDump() {
+        try {
+            ByteArrayOutputStream rest = new ByteArrayOutputStream();
+            dumpFull(new DataOutputStream(rest), nonA20MaskedIndex);
+            modifiedPages.clearAll();
+            return new LiveMemoryDump(gateA20MaskState, quickNonA20MaskedIndex, rest.toByteArray());
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Returns <code>true</code> if the first <code>length</code> bytes of <code>data</code> are
+     * all zero.
+     */
+    public static boolean isZeroPage(byte[] data, int length) {
+        for (int i = 0; i < length; i++) {
+            if (data[i] != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void dumpMemory(DataOutput output, Memory[] quick, Memory[][] full, DirtyPageMap changed) throws IOException {
         byte[] temp = {};
         output.writeInt(quick.length);
-        for (Memory block : quick) {
+        for (int i = 0; i < quick.length; i++) {
+            Memory block = quick[i];
+            if (changed != null && !changed.isMarked(i) && block instanceof LazyCodeBlockMemory
+                && ((LazyCodeBlockMemory)block).isModificationTracked()) {
+                output.writeInt(-1);
+                continue;
+            }
             int blockLength = (int)block.getSize();
             if (block.isAllocated()) {
                 try {
@@ -117,8 +232,13 @@ public final class PhysicalAddressSpace extends AddressSpace implements Hardware
                             temp = new byte[blockLength];
                         }
                         block.copyContentsIntoArray(0, temp, 0, blockLength);
-                        output.writeInt(blockLength);
-                        output.write(temp);
+                        if (isZeroPage(temp, blockLength)) {
+                            // loads back identically to a block that was never allocated
+                            output.writeInt(0);
+                        } else {
+                            output.writeInt(blockLength);
+                            output.write(temp);
+                        }
                     }
                 } catch (IllegalStateException e) {
                     output.writeInt(0);
@@ -127,7 +247,11 @@ public final class PhysicalAddressSpace extends AddressSpace implements Hardware
                 output.writeInt(0);
             }
         }
+        dumpFull(output, full);
+    }
 
+    private static void dumpFull(DataOutput output, Memory[][] full) throws IOException {
+        byte[] temp = {};
         output.writeInt(full.length);
         for (Memory[] chunk : full) {
             if (chunk == null) {
@@ -203,9 +327,63 @@ public final class PhysicalAddressSpace extends AddressSpace implements Hardware
         }
     }
 
+    /**
+     * Merges a full state followed by a chain of delta states into a single full state.
+     * <p>
+     * <code>states[0]</code> must be in the format written by {@link #saveState(DataOutput)}, and
+     * each subsequent entry in the format written by {@link #saveDeltaState(DataOutput)} taken
+     * against the state before it. Pages are streamed one at a time, so memory use is independent
+     * of the RAM size.
+     * @param states full state followed by its deltas, oldest first
+     * @param output stream the merged full state is written to
+     * @throws IOException propagated from the supplied streams, or if the states are inconsistent
+     */
+    public static void mergeStates(DataInputStream[] states, DataOutputStream output) throws IOException {
+        DataInputStream last = states[states.length - 1];
+        boolean gateA20 = false;
+        for (DataInputStream state : states) {
+            gateA20 = state.readBoolean();
+        }
+        output.writeBoolean(gateA20);
+
+        int quickLength = states[0].readInt();
+        for (int j = 1; j < states.length; j++) {
+            if (states[j].readInt() != quickLength) {
+                throw new IOException("snapshot chain has inconsistent RAM sizes");
+            }
+        }
+        output.writeInt(quickLength);
+
+        byte[] temp = new byte[BLOCK_SIZE];
+        for (int i = 0; i < quickLength; i++) {
+            int blockLength = -1;
+            for (DataInputStream state : states) {
+                int length = state.readInt();
+                if (length < 0) {
+                    continue;
+                }
+                if (length > temp.length) {
+                    temp = new byte[length];
+                }
+                state.readFully(temp, 0, length);
+                blockLength = length;
+            }
+            if (blockLength < 0) {
+                throw new IOException("snapshot chain has no contents for page " + i);
+            }
+            output.writeInt(blockLength);
+            output.write(temp, 0, blockLength);
+        }
+
+        // the rest of the address space is always written in full
+        last.transferTo(output);
+    }
+
     private void initialiseMemory() {
         for (int i = 0; i < ramSize; i += AddressSpace.BLOCK_SIZE) {
-            mapMemory(i, new LazyCodeBlockMemory(AddressSpace.BLOCK_SIZE, manager));
+            LazyCodeBlockMemory block = new LazyCodeBlockMemory(AddressSpace.BLOCK_SIZE, manager);
+            block.trackModifications(modifiedPages, i >>> INDEX_SHIFT);
+            mapMemory(i, block);
         }
         // memory hole, the last 64 K of this is replaced by BIOS shadow ram if the BIOS ROM is 128 K or greater
         for (int i = 0xD0000; i < 0xF0000; i += AddressSpace.BLOCK_SIZE) {
@@ -267,6 +445,7 @@ public final class PhysicalAddressSpace extends AddressSpace implements Hardware
                 quickA20MaskedIndex[modi] = quickNonA20MaskedIndex[i];
             }
         }
+        modifiedPages.clearAll();
     }
 
     @Override
@@ -336,12 +515,16 @@ public final class PhysicalAddressSpace extends AddressSpace implements Hardware
 
     private void logWrite(int address) {
         if (track_page_writes)
-            dirtyPages.add(address >>> 12);
+            writeLog.mark(address >>> INDEX_SHIFT);
     }
 
     public void getDirtyPages(Set<Integer> res) {
-        res.addAll(dirtyPages);
-        dirtyPages.clear();
+        if (!track_page_writes)
+            return;
+        for (int page = writeLog.nextMarked(0); page >= 0; page = writeLog.nextMarked(page + 1)) {
+            res.add(page);
+        }
+        writeLog.clearAll();
     }
 
     @Override
@@ -459,7 +642,7 @@ public final class PhysicalAddressSpace extends AddressSpace implements Hardware
         }
     }
 
-    private static class MapWrapper implements Memory {
+    static class MapWrapper implements Memory {
 
         private Memory memory;
         private int baseAddress;
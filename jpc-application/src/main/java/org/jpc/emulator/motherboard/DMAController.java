@@ -36,7 +36,6 @@ package org.jpc.emulator.motherboard;
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
-import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.jpc.emulator.AbstractHardwareComponent;
@@ -91,6 +90,7 @@ public class DMAController extends AbstractHardwareComponent implements IODevice
 
     public class DMAChannel implements Hibernatable {
         private static final int MODE_CHANNEL_SELECT = 0x03;
+        private static final int MODE_AUTOINITIALISE = 0x10;
         private static final int MODE_ADDRESS_INCREMENT = 0x20;
         public static final int ADDRESS = 0;
         public static final int COUNT = 1;
@@ -102,6 +102,11 @@ public class DMAController extends AbstractHardwareComponent implements IODevice
         public DMAEventHandler eventHandler;
         public int pageLow, pageHigh;
         private boolean masked = false;
+        private final int number;
+
+        DMAChannel(int number) {
+            this.number = number;
+        }
 
         @Override
         public void saveState(DataOutput output) throws IOException {
@@ -152,22 +157,65 @@ public class DMAController extends AbstractHardwareComponent implements IODevice
          * @param length number of bytes to read.
          */
         public void readMemory(byte[] buffer, int offset, int position, int length) {
-            int address = pageHigh << 24 | pageLow << 16 | currentAddress;
+            int address = address();
 
             if ((mode & DMAChannel.MODE_ADDRESS_INCREMENT) != 0) {
-                LOGGING.log(Level.WARNING, "read in address decrement mode");
-                //This may be broken for 16bit DMA
-                memory.copyContentsIntoArray(address - position - length, buffer, offset, length);
-                //Should have really decremented address with each byte read, so instead just reverse array order
+                //Decrement mode reads address - position downwards, so copy the span below it and reverse
+                memory.copyContentsIntoArray(address - position - length + 1, buffer, offset, length);
                 for (int left = offset, right = offset + length - 1; left < right; left++, right--) {
                     byte temp = buffer[left];
                     buffer[left] = buffer[right];
-                    buffer[right] = temp; // exchange the first and last
+                    buffer[right] = temp;
                 }
             } else
                 memory.copyContentsIntoArray(address + position, buffer, offset, length);
         }
 
+        /**
+         * Reads the next part of this channel's transfer and advances it.
+         * <p>
+         * For devices that pace a transfer themselves, like a sound card playing a buffer, rather
+         * than having it driven through <code>handleTransfer</code>. The memory is read in bulk, at
+         * most up to the end of the programmed block at a time. In autoinitialise mode the transfer
+         * then starts over from the base address, otherwise it stops there and the channel masks
+         * itself. A masked channel transfers nothing.
+         * @param buffer byte[] to save data in.
+         * @param offset offset into <code>buffer</code>.
+         * @param length number of bytes wanted.
+         * @return number of bytes read.
+         */
+        public int read(byte[] buffer, int offset, int length) {
+            int size = baseWordCount + 1 << dShift;
+            int done = 0;
+            while (done < length && !masked) {
+                if (currentWordCount >= size)
+                    currentWordCount = 0;
+                int chunk = Math.min(length - done, size - currentWordCount);
+                readMemory(buffer, offset + done, currentWordCount, chunk);
+                currentWordCount += chunk;
+                done += chunk;
+                if (currentWordCount >= size)
+                    terminalCount();
+            }
+            return done;
+        }
+
+        private void terminalCount() {
+            status |= 1 << number;
+            if ((mode & MODE_AUTOINITIALISE) == 0) {
+                //Stop without a masked event, the device already knows its transfer is over
+                mask |= 1 << number;
+                masked = true;
+            }
+            if (eventHandler != null)
+                eventHandler.handleDMAEvent(DMAEvent.DMA_REACHED_TC);
+        }
+
+        private int address() {
+            //16 bit channels take address bit 16 from the address register, not the page
+            return pageHigh << 24 | (pageLow & ~dShift) << 16 | currentAddress;
+        }
+
         /**
          * Writes data to this channel.
          * <p>
@@ -179,18 +227,16 @@ public class DMAController extends AbstractHardwareComponent implements IODevice
          * @param length number of bytes to write.
          */
         public void writeMemory(byte[] buffer, int offset, int position, int length) {
-            int address = pageHigh << 24 | pageLow << 16 | currentAddress;
+            int address = address();
 
             if ((mode & DMAChannel.MODE_ADDRESS_INCREMENT) != 0) {
-                LOGGING.log(Level.WARNING, "write in address decrement mode");
-                //This may be broken for 16bit DMA
                 //Should really decremented address with each byte write, so instead we reverse the array order now
                 for (int left = offset, right = offset + length - 1; left < right; left++, right--) {
                     byte temp = buffer[left];
                     buffer[left] = buffer[right];
                     buffer[right] = temp; // exchange the first and last
                 }
-                memory.copyArrayIntoContents(address - position - length, buffer, offset, length);
+                memory.copyArrayIntoContents(address - position - length + 1, buffer, offset, length);
             } else
                 memory.copyArrayIntoContents(address + position, buffer, offset, length);
         }
@@ -233,7 +279,7 @@ public class DMAController extends AbstractHardwareComponent implements IODevice
         controllerNumber = primary ? 0 : 1;
         dmaChannels = new DMAChannel[4];
         for (int i = 0; i < 4; i++)
-            dmaChannels[i] = new DMAChannel();
+            dmaChannels[i] = new DMAChannel(i);
         reset();
     }
 
@@ -268,7 +314,7 @@ public class DMAController extends AbstractHardwareComponent implements IODevice
         int len = input.readInt();
         dmaChannels = new DMAChannel[len];
         for (int i = 0; i < dmaChannels.length; i++) {
-            dmaChannels[i] = new DMAChannel();
+            dmaChannels[i] = new DMAChannel(i);
             dmaChannels[i].loadState(input);
         }
 
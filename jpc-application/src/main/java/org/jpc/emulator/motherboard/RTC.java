@@ -36,6 +36,8 @@ package org.jpc.emulator.motherboard;
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
 import java.util.Calendar;
 
 import org.jpc.emulator.AbstractHardwareComponent;
@@ -49,6 +51,10 @@ import org.jpc.support.DriveSet;
 
 /**
  * Emulation of an MC146818 Real-time Clock.
+ * <p>
+ * The clock is kept as a count of seconds anchored to a point in emulated time, and the time
+ * registers are only brought up to date when the guest reads them. Timers are scheduled solely for
+ * the interrupts the guest has enabled, so an idle clock costs nothing.
  * @see <a href="http://courses.ece.uiuc.edu/ece391/references/mc146818.pdf"> MC146818A -
  * Datasheet</a>
  * @author Chris Dennis
@@ -79,26 +85,32 @@ public class RTC extends AbstractHardwareComponent implements IODevice {
     private static final int REG_B_UIE = 0x10;
     private static final int REG_CSUM_HIGH = 0x2e;
     private static final int REG_CSUM_LOW = 0x2f;
+    private static final long NANOS_PER_SECOND = 1000000000L;
+    private static final int SECONDS_PER_DAY = 24 * 60 * 60;
+    /* UIP is raised 244us before the update cycle, which then runs for 1984us */
+    private static final long UPDATE_CYCLE_NANOS = 244000L + 1984000L;
     private byte[] cmosData; //rowa
 
     private byte cmosIndex; //rw
 
     private int irq; //r
 
-    private Calendar currentTime; //rw
+    /* wall clock seconds (local time counted as if it were UTC) at emulated time baseNanos */
+    private long baseSeconds; //rw
+    private long baseNanos; //rw
+    /* second currently held in the time registers */
+    private long registerSeconds;
 
-    /* periodic timer */
+    /* periodic timer, counting in 32 kHz cycles */
     private Timer periodicTimer;
-    private long nextPeriodicTime; //rw
+    private long nextPeriodicClock; //rw
+    private int periodicCycles;
 
-    /* second update */
-    private Timer secondTimer;
-    private Timer delayedSecondTimer;
-    private long nextSecondTime; //ri
+    /* update ended and alarm timer */
+    private Timer updateTimer;
 
     private PeriodicCallback periodicCallback;
-    private SecondCallback secondCallback;
-    private DelayedSecondCallback delayedSecondCallback;
+    private UpdateCallback updateCallback;
     private InterruptController irqDevice;
     private Clock timeSource;
     private int ioPortBase;
@@ -135,8 +147,7 @@ public class RTC extends AbstractHardwareComponent implements IODevice {
         cmosData[RTC_REG_D] = (byte)0x80;
 
         periodicCallback = new PeriodicCallback();
-        secondCallback = new SecondCallback();
-        delayedSecondCallback = new DelayedSecondCallback();
+        updateCallback = new UpdateCallback();
     }
 
     /**
@@ -156,9 +167,11 @@ public class RTC extends AbstractHardwareComponent implements IODevice {
         output.write(cmosData);
         output.writeByte(cmosIndex);
         output.writeInt(irq);
-        //calendar
-
-        output.writeLong(nextSecondTime);
+        output.writeLong(baseSeconds);
+        output.writeLong(baseNanos);
+        output.writeLong(registerSeconds);
+        output.writeLong(nextPeriodicClock);
+        output.writeInt(periodicCycles);
         output.writeInt(ioPortBase);
         output.writeInt(bootType.ordinal());
         output.writeBoolean(ioportRegistered);
@@ -166,8 +179,7 @@ public class RTC extends AbstractHardwareComponent implements IODevice {
         output.writeBoolean(floppiesInited);
         //timers
         periodicTimer.saveState(output);
-        secondTimer.saveState(output);
-        delayedSecondTimer.saveState(output);
+        updateTimer.saveState(output);
     }
 
     @Override
@@ -177,9 +189,11 @@ public class RTC extends AbstractHardwareComponent implements IODevice {
         input.readFully(cmosData, 0, len);
         cmosIndex = input.readByte();
         irq = input.readInt();
-        //calendar
-
-        nextSecondTime = input.readLong();
+        baseSeconds = input.readLong();
+        baseNanos = input.readLong();
+        registerSeconds = input.readLong();
+        nextPeriodicClock = input.readLong();
+        periodicCycles = input.readInt();
         ioPortBase = input.readInt();
         bootType = DriveSet.BootType.values()[input.readInt()];
         ioportRegistered = input.readBoolean();
@@ -187,11 +201,9 @@ public class RTC extends AbstractHardwareComponent implements IODevice {
         floppiesInited = input.readBoolean();
         //timers
         periodicTimer = timeSource.newTimer(periodicCallback);
-        secondTimer = timeSource.newTimer(secondCallback);
-        delayedSecondTimer = timeSource.newTimer(delayedSecondCallback);
+        updateTimer = timeSource.newTimer(updateCallback);
         periodicTimer.loadState(input);
-        secondTimer.loadState(input);
-        delayedSecondTimer.loadState(input);
+        updateTimer.loadState(input);
     }
 
     private static final long scale64(long input, int multiply, int divide) {
@@ -208,12 +220,9 @@ public class RTC extends AbstractHardwareComponent implements IODevice {
 
     private void init() {
         this.setTime(startTime);
-        int val = this.toBCD(startTime.get(Calendar.YEAR) / 100);
-        cmosData[RTC_REG_IBM_CENTURY_BYTE] = (byte)val;
-        cmosData[RTC_REG_IBM_PS2_CENTURY_BYTE] = (byte)val;
 
         /* memory size */
-        val = 640; /* base memory in K */
+        int val = 640; /* base memory in K */
         cmosData[0x15] = (byte)val;
         cmosData[0x16] = (byte)(val >>> 8);
 
@@ -376,74 +385,130 @@ public class RTC extends AbstractHardwareComponent implements IODevice {
         this.ioPortWrite16(address + 2, data >> 16);
     }
 
-    private void periodicUpdate() {
-        this.timerUpdate(nextPeriodicTime);
-        cmosData[RTC_REG_C] |= 0xc0;
-        irqDevice.setIRQ(irq, 1);
-    }
-
-    private void secondUpdate() {
-        if ((cmosData[RTC_REG_A] & 0x70) != 0x20) {
-            nextSecondTime += timeSource.getTickRate();
-            secondTimer.setExpiry(nextSecondTime);
-        } else {
-            this.nextSecond();
 
-            if (0 == (cmosData[RTC_REG_B] & REG_B_SET)) /* update in progress bit */
-                cmosData[RTC_REG_A] |= REG_A_UIP;
+    private boolean clockRunning() {
+        return (cmosData[RTC_REG_A] & 0x70) == 0x20 && 0 == (cmosData[RTC_REG_B] & REG_B_SET);
+    }
 
-            /* should be 244us = 8 / 32768 second, but currently the timers do not have the necessary resolution. */
-            long delay = timeSource.getTickRate() * 1 / 100;
-            if (delay < 1)
-                delay = 1;
-            delayedSecondTimer.setExpiry(nextSecondTime + delay);
-        }
+    private long currentSecond(long nanos) {
+        return baseSeconds + Math.floorDiv(nanos - baseNanos, NANOS_PER_SECOND);
     }
 
-    private void delayedSecondUpdate() {
-        if (0 == (cmosData[RTC_REG_B] & REG_B_SET))
-            this.timeToMemory();
+    private long secondStart(long second) {
+        return baseNanos + (second - baseSeconds) * NANOS_PER_SECOND;
+    }
 
-        /* check alarm */
-        if (0 != (cmosData[RTC_REG_B] & REG_B_AIE))
-            if (((cmosData[RTC_SECONDS_ALARM] & 0xc0) == 0xc0 || cmosData[RTC_SECONDS_ALARM] == currentTime.get(Calendar.SECOND))
-                && ((cmosData[RTC_MINUTES_ALARM] & 0xc0) == 0xc0 || cmosData[RTC_MINUTES_ALARM] == currentTime.get(Calendar.MINUTE))
-                && ((cmosData[RTC_HOURS_ALARM] & 0xc0) == 0xc0 || cmosData[RTC_HOURS_ALARM] == currentTime.get(Calendar.HOUR_OF_DAY))) {
+    private boolean inUpdateCycle(long nanos) {
+        return Math.floorMod(nanos - baseNanos, NANOS_PER_SECOND) >= NANOS_PER_SECOND - UPDATE_CYCLE_NANOS;
+    }
 
-                cmosData[RTC_REG_C] |= 0xa0;
-                irqDevice.setIRQ(irq, 1);
-            }
+    /* bring the time registers up to date, recomputing them only once the second has moved on */
+    private void refreshTime() {
+        if (!clockRunning())
+            return;
+        long second = currentSecond(timeSource.getEmulatedNanos());
+        if (second != registerSeconds)
+            timeToMemory(second);
+    }
 
-        /* update ended interrupt */
-        if (0 != (cmosData[RTC_REG_B] & REG_B_UIE)) {
-            cmosData[RTC_REG_C] |= 0x90;
+    private void periodicUpdate() {
+        cmosData[RTC_REG_C] |= 0xc0;
+        irqDevice.setIRQ(irq, 1);
+        nextPeriodicClock += periodicCycles;
+        periodicTimer.setExpiry(clockToNanos(nextPeriodicClock));
+    }
+
+    private void updateEnded() {
+        /* the second that has just begun is the one this timer was armed for */
+        long second = currentSecond(updateTimer.getExpiry());
+        int flags = 0;
+        if (0 != (cmosData[RTC_REG_B] & REG_B_UIE))
+            flags |= 0x90;
+        if (0 != (cmosData[RTC_REG_B] & REG_B_AIE) && alarmMatches(second))
+            flags |= 0xa0;
+        if (flags != 0) {
+            cmosData[RTC_REG_C] |= flags;
             irqDevice.setIRQ(irq, 1);
         }
-
-        /* clear update in progress bit */
-        cmosData[RTC_REG_A] &= ~REG_A_UIP;
-        nextSecondTime += timeSource.getTickRate();
-        secondTimer.setExpiry(nextSecondTime);
+        updateTimerUpdate(second + 1);
     }
 
-    private void timerUpdate(long currentTime) {
+    private void periodicTimerUpdate(long currentTime) {
         int periodCode = cmosData[RTC_REG_A] & 0x0f;
         if (periodCode != 0 && 0 != (cmosData[RTC_REG_B] & REG_B_PIE)) {
             if (periodCode <= 2)
                 periodCode += 7;
             /* period in 32 kHz cycles */
-            int period = 1 << periodCode - 1;
+            periodicCycles = 1 << periodCode - 1;
             /* compute 32 kHz clock */
             long currentClock = scale64(currentTime, 32768, (int)timeSource.getTickRate());
-            long nextIRQClock = (currentClock & ~(period - 1)) + period;
-            nextPeriodicTime = scale64(nextIRQClock, (int)timeSource.getTickRate(), 32768) + 1;
-            periodicTimer.setExpiry(nextPeriodicTime);
-        } else
+            nextPeriodicClock = (currentClock & ~(periodicCycles - 1)) + periodicCycles;
+            periodicTimer.setExpiry(clockToNanos(nextPeriodicClock));
+        } else if (periodicTimer.enabled())
             periodicTimer.disable();
     }
 
-    private void nextSecond() {
-        currentTime.add(Calendar.SECOND, 1);
+    private long clockToNanos(long clock) {
+        return scale64(clock, (int)timeSource.getTickRate(), 32768) + 1;
+    }
+
+    /* arm the update timer for the first second from the given one that raises an enabled interrupt */
+    private void updateTimerUpdate(long second) {
+        if (clockRunning() && 0 != (cmosData[RTC_REG_B] & REG_B_UIE))
+            updateTimer.setExpiry(secondStart(second));
+        else if (clockRunning() && 0 != (cmosData[RTC_REG_B] & REG_B_AIE) && nextAlarm(second) >= 0)
+            updateTimer.setExpiry(secondStart(nextAlarm(second)));
+        else if (updateTimer.enabled())
+            updateTimer.disable();
+    }
+
+    private void updateTimerUpdate() {
+        updateTimerUpdate(currentSecond(timeSource.getEmulatedNanos()) + 1);
+    }
+
+    /* first second from the given one at which the alarm goes off, or -1 if it never does */
+    private long nextAlarm(long second) {
+        if (nextAlarmField(RTC_HOURS_ALARM, 0, 24) < 0 || nextAlarmField(RTC_MINUTES_ALARM, 0, 60) < 0
+            || nextAlarmField(RTC_SECONDS_ALARM, 0, 60) < 0)
+            return -1;
+
+        /* every field has a match, so only the first hour and minute tried can fall through */
+        long today = Math.floorDiv(second, (long)SECONDS_PER_DAY) * SECONDS_PER_DAY;
+        int now = (int)(second - today);
+        for (int day = 0; day < 2; day++) {
+            boolean first = day == 0;
+            for (int h = nextAlarmField(RTC_HOURS_ALARM, first ? now / 3600 : 0, 24); h >= 0; h = nextAlarmField(RTC_HOURS_ALARM, h + 1, 24)) {
+                boolean thisHour = first && h == now / 3600;
+                for (int m = nextAlarmField(RTC_MINUTES_ALARM, thisHour ? now / 60 % 60 : 0, 60); m >= 0;
+                    m = nextAlarmField(RTC_MINUTES_ALARM, m + 1, 60)) {
+                    boolean thisMinute = thisHour && m == now / 60 % 60;
+                    int s = nextAlarmField(RTC_SECONDS_ALARM, thisMinute ? now % 60 : 0, 60);
+                    if (s >= 0)
+                        return today + day * SECONDS_PER_DAY + h * 3600 + m * 60 + s;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /* smallest value from 'from' below 'limit' accepted by an alarm register, or -1 */
+    private int nextAlarmField(int index, int from, int limit) {
+        for (int v = from; v < limit; v++)
+            if (alarmMatches(index, index == RTC_HOURS_ALARM ? this.encodeHours(v) : this.toBCD(v)))
+                return v;
+        return -1;
+    }
+
+    private boolean alarmMatches(long second) {
+        int time = (int)Math.floorMod(second, (long)SECONDS_PER_DAY);
+        return alarmMatches(RTC_SECONDS_ALARM, this.toBCD(time % 60))
+            && alarmMatches(RTC_MINUTES_ALARM, this.toBCD(time / 60 % 60))
+            && alarmMatches(RTC_HOURS_ALARM, this.encodeHours(time / 3600));
+    }
+
+    private boolean alarmMatches(int index, int value) {
+        int alarm = 0xff & cmosData[index];
+        return (alarm & RTC_ALARM_DONT_CARE) == RTC_ALARM_DONT_CARE || alarm == value;
     }
 
     private void cmosIOPortWrite(int address, int data) {
@@ -454,8 +519,8 @@ public class RTC extends AbstractHardwareComponent implements IODevice {
             case RTC_SECONDS_ALARM:
             case RTC_MINUTES_ALARM:
             case RTC_HOURS_ALARM:
-                /* XXX: not supported */
                 cmosData[this.cmosIndex] = (byte)data;
+                this.updateTimerUpdate();
                 break;
             case RTC_SECONDS:
             case RTC_MINUTES:
@@ -464,28 +529,38 @@ public class RTC extends AbstractHardwareComponent implements IODevice {
             case RTC_DAY_OF_MONTH:
             case RTC_MONTH:
             case RTC_YEAR:
-                cmosData[this.cmosIndex] = (byte)data;
+            case RTC_REG_IBM_CENTURY_BYTE:
                 /* if in set mode, do not update the time */
-                if (0 == (cmosData[RTC_REG_B] & REG_B_SET))
-                    this.memoryToTime();
+                if (clockRunning()) {
+                    long now = timeSource.getEmulatedNanos();
+                    this.refreshTime();
+                    cmosData[this.cmosIndex] = (byte)data;
+                    this.memoryToTime(secondStart(currentSecond(now)));
+                    this.updateTimerUpdate();
+                } else
+                    cmosData[this.cmosIndex] = (byte)data;
                 break;
-            case RTC_REG_A:
+            case RTC_REG_A: {
+                boolean running = clockRunning();
+                this.refreshTime();
                 /* UIP bit is read only */
-                cmosData[RTC_REG_A] = (byte)(data & ~REG_A_UIP | cmosData[RTC_REG_A] & REG_A_UIP);
-                this.timerUpdate(timeSource.getEmulatedNanos());
+                cmosData[RTC_REG_A] = (byte)(data & ~REG_A_UIP);
+                this.clockChanged(running);
+                this.periodicTimerUpdate(timeSource.getEmulatedNanos());
                 break;
-            case RTC_REG_B:
-                if (0 != (data & REG_B_SET)) {
-                    /* set mode: reset UIP mode */
-                    cmosData[RTC_REG_A] &= ~REG_A_UIP;
+            }
+            case RTC_REG_B: {
+                boolean running = clockRunning();
+                this.refreshTime();
+                if (0 != (data & REG_B_SET))
                     data &= ~REG_B_UIE;
-                } else
-                /* if disabling set mode, update the time */
-                if (0 != (cmosData[RTC_REG_B] & REG_B_SET))
-                    this.memoryToTime();
                 cmosData[RTC_REG_B] = (byte)data;
-                this.timerUpdate(timeSource.getEmulatedNanos());
+                /* the data mode and hour format may have changed */
+                registerSeconds = Long.MIN_VALUE;
+                this.clockChanged(running);
+                this.periodicTimerUpdate(timeSource.getEmulatedNanos());
                 break;
+            }
             case RTC_REG_C:
             case RTC_REG_D:
                 /* cannot write to them */
@@ -496,11 +571,33 @@ public class RTC extends AbstractHardwareComponent implements IODevice {
             }
     }
 
+    private void clockChanged(boolean wasRunning) {
+        /* leaving set mode or divider reset restarts the clock from the time registers */
+        if (!wasRunning && clockRunning())
+            this.memoryToTime(timeSource.getEmulatedNanos());
+        this.updateTimerUpdate();
+    }
+
     private int cmosIOPortRead(int address) {
         if ((address & 1) == 0)
             return 0xff;
         else
             switch (this.cmosIndex) {
+            case RTC_SECONDS:
+            case RTC_MINUTES:
+            case RTC_HOURS:
+            case RTC_DAY_OF_WEEK:
+            case RTC_DAY_OF_MONTH:
+            case RTC_MONTH:
+            case RTC_YEAR:
+            case RTC_REG_IBM_CENTURY_BYTE:
+            case RTC_REG_IBM_PS2_CENTURY_BYTE:
+                this.refreshTime();
+                return cmosData[this.cmosIndex];
+            case RTC_REG_A:
+                if (clockRunning() && inUpdateCycle(timeSource.getEmulatedNanos()))
+                    return cmosData[RTC_REG_A] | REG_A_UIP;
+                return cmosData[RTC_REG_A];
             case RTC_REG_C:
                 int ret = cmosData[RTC_REG_C];
                 irqDevice.setIRQ(irq, 0);
@@ -512,40 +609,52 @@ public class RTC extends AbstractHardwareComponent implements IODevice {
     }
 
     private void setTime(Calendar date) {
-        this.currentTime = Calendar.getInstance(date.getTimeZone());
-        this.currentTime.setTime(date.getTime());
-        this.timeToMemory();
+        baseSeconds = LocalDateTime.of(date.get(Calendar.YEAR), date.get(Calendar.MONTH) + 1, date.get(Calendar.DAY_OF_MONTH),
+            date.get(Calendar.HOUR_OF_DAY), date.get(Calendar.MINUTE), date.get(Calendar.SECOND)).toEpochSecond(ZoneOffset.UTC);
+        baseNanos = timeSource.getEmulatedNanos();
+        this.timeToMemory(baseSeconds);
     }
 
-    private void memoryToTime() {
-        currentTime.set(Calendar.SECOND, this.fromBCD(cmosData[RTC_SECONDS]));
-        currentTime.set(Calendar.MINUTE, this.fromBCD(cmosData[RTC_MINUTES]));
-        currentTime.set(Calendar.HOUR_OF_DAY, this.fromBCD(cmosData[RTC_HOURS] & 0x7f));
+    /* restart the clock at the given emulated time from the values in the time registers */
+    private void memoryToTime(long start) {
+        int hours = this.fromBCD(0x7f & cmosData[RTC_HOURS]);
         if (0 == (cmosData[RTC_REG_B] & 0x02) && 0 != (cmosData[RTC_HOURS] & 0x80))
-            currentTime.add(Calendar.HOUR_OF_DAY, 12);
-
-        currentTime.set(Calendar.DAY_OF_WEEK, this.fromBCD(cmosData[RTC_DAY_OF_WEEK]));
-        currentTime.set(Calendar.DAY_OF_MONTH, this.fromBCD(cmosData[RTC_DAY_OF_MONTH]));
-        currentTime.set(Calendar.MONTH, this.fromBCD(cmosData[RTC_MONTH]) - 1);
-        currentTime.set(Calendar.YEAR, this.fromBCD(cmosData[RTC_YEAR]) + 2000); //is this offset correct?
-    }
-
-    private void timeToMemory() {
-        cmosData[RTC_SECONDS] = (byte)this.toBCD(currentTime.get(Calendar.SECOND));
-        cmosData[RTC_MINUTES] = (byte)this.toBCD(currentTime.get(Calendar.MINUTE));
-
+            hours += 12;
+
+        /* out of range fields roll over into the next larger one */
+        int year = this.fromBCD(0xff & cmosData[RTC_REG_IBM_CENTURY_BYTE]) * 100 + this.fromBCD(0xff & cmosData[RTC_YEAR]);
+        LocalDateTime time = LocalDateTime.of(year, 1, 1, 0, 0)
+            .plusMonths(this.fromBCD(0xff & cmosData[RTC_MONTH]) - 1)
+            .plusDays(this.fromBCD(0xff & cmosData[RTC_DAY_OF_MONTH]) - 1)
+            .plusHours(hours)
+            .plusMinutes(this.fromBCD(0xff & cmosData[RTC_MINUTES]))
+            .plusSeconds(this.fromBCD(0xff & cmosData[RTC_SECONDS]));
+        baseSeconds = time.toEpochSecond(ZoneOffset.UTC);
+        baseNanos = start;
+        registerSeconds = baseSeconds;
+    }
+
+    private void timeToMemory(long seconds) {
+        LocalDateTime time = LocalDateTime.ofEpochSecond(seconds, 0, ZoneOffset.UTC);
+        cmosData[RTC_SECONDS] = (byte)this.toBCD(time.getSecond());
+        cmosData[RTC_MINUTES] = (byte)this.toBCD(time.getMinute());
+        cmosData[RTC_HOURS] = (byte)this.encodeHours(time.getHour());
+
+        /* Sunday is day 1 */
+        cmosData[RTC_DAY_OF_WEEK] = (byte)this.toBCD(time.getDayOfWeek().getValue() % 7 + 1);
+        cmosData[RTC_DAY_OF_MONTH] = (byte)this.toBCD(time.getDayOfMonth());
+        cmosData[RTC_MONTH] = (byte)this.toBCD(time.getMonthValue());
+        cmosData[RTC_YEAR] = (byte)this.toBCD(time.getYear() % 100);
+        cmosData[RTC_REG_IBM_CENTURY_BYTE] = (byte)this.toBCD(time.getYear() / 100);
+        cmosData[RTC_REG_IBM_PS2_CENTURY_BYTE] = cmosData[RTC_REG_IBM_CENTURY_BYTE];
+        registerSeconds = seconds;
+    }
+
+    private int encodeHours(int hours) {
         if (0 != (cmosData[RTC_REG_B] & 0x02)) /* 24 hour format */
-            cmosData[RTC_HOURS] = (byte)this.toBCD(currentTime.get(Calendar.HOUR_OF_DAY));
-        else { /* 12 hour format */
-            cmosData[RTC_HOURS] = (byte)this.toBCD(currentTime.get(Calendar.HOUR));
-            if (currentTime.get(Calendar.AM_PM) == Calendar.PM)
-                cmosData[RTC_HOURS] |= 0x80;
-        }
-
-        cmosData[RTC_DAY_OF_WEEK] = (byte)this.toBCD(currentTime.get(Calendar.DAY_OF_WEEK));
-        cmosData[RTC_DAY_OF_MONTH] = (byte)this.toBCD(currentTime.get(Calendar.DAY_OF_MONTH));
-        cmosData[RTC_MONTH] = (byte)this.toBCD(currentTime.get(Calendar.MONTH) + 1);
-        cmosData[RTC_YEAR] = (byte)this.toBCD(currentTime.get(Calendar.YEAR) % 100);
+            return this.toBCD(hours);
+        else /* 12 hour format */
+            return this.toBCD(hours % 12) | (hours >= 12 ? 0x80 : 0);
     }
 
     private int toBCD(int a) //Binary Coded Decimal
@@ -587,8 +696,7 @@ public class RTC extends AbstractHardwareComponent implements IODevice {
         cmosData[RTC_REG_D] = (byte)0x80;
 
         periodicCallback = new PeriodicCallback();
-        secondCallback = new SecondCallback();
-        delayedSecondCallback = new DelayedSecondCallback();
+        updateCallback = new UpdateCallback();
     }
 
     private class PeriodicCallback implements TimerResponsive {
@@ -604,11 +712,11 @@ public class RTC extends AbstractHardwareComponent implements IODevice {
         }
     }
 
-    private class SecondCallback implements TimerResponsive {
+    private class UpdateCallback implements TimerResponsive {
 
         @Override
         public void callback() {
-            RTC.this.secondUpdate();
+            RTC.this.updateEnded();
         }
 
         @Override
@@ -617,19 +725,6 @@ public class RTC extends AbstractHardwareComponent implements IODevice {
         }
     }
 
-    private class DelayedSecondCallback implements TimerResponsive {
-
-        @Override
-        public void callback() {
-            RTC.this.delayedSecondUpdate();
-        }
-
-        @Override
-        public int getType() {
-            return 5;
-        }
-    }
-
     @Override
     public boolean updated() {
         return irqDevice.updated() && timeSource.updated() && ioportRegistered;
@@ -668,15 +763,13 @@ public class RTC extends AbstractHardwareComponent implements IODevice {
             init();
 
             periodicTimer = timeSource.newTimer(periodicCallback);
-            secondTimer = timeSource.newTimer(secondCallback);
-            delayedSecondTimer = timeSource.newTimer(delayedSecondCallback);
-
-            nextSecondTime = timeSource.getEmulatedNanos() + 99 * timeSource.getTickRate() / 100;
-            delayedSecondTimer.setExpiry(nextSecondTime);
+            updateTimer = timeSource.newTimer(updateCallback);
         }
     }
 
     public byte[] getCMOS() {
+        if (timeSource != null)
+            this.refreshTime();
         byte[] res = new byte[128];
         System.arraycopy(cmosData, 0, res, 0, 128);
         return res;
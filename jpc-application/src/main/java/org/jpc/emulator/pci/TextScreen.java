@@ -0,0 +1,138 @@
+/*
+    JPC: An x86 PC Hardware Emulator for a pure Java Virtual Machine
+    Release Version 2.4
+
+    A project from the Physics Dept, The University of Oxford
+
+    Copyright (C) 2007-2010 The University of Oxford
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License version 2 as published by
+    the Free Software Foundation.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License along
+    with this program; if not, write to the Free Software Foundation, Inc.,
+    51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+
+    Details (including contact information) can be found at:
+
+    jpc.sourceforge.net
+    or the developer website
+    sourceforge.net/projects/jpc/
+
+    Conceived and Developed by:
+    Rhys Newman, Ian Preston, Chris Dennis
+
+    End of licence header
+*/
+
+package org.jpc.emulator.pci;
+
+import java.util.Arrays;
+
+/**
+ * An immutable copy of the character cells of a text mode display, as last
+ * drawn by the VGA card.  Each cell holds the character code in its low byte
+ * and the attribute (foreground in bits 0-3, background in bits 4-7) in its
+ * high byte, exactly as they sit in video memory.
+ */
+public final class TextScreen {
+    private final int columns, rows;
+    private final int cursorColumn, cursorRow;
+    private final short[] cells;
+
+    /**
+     * Creates a screen holding a copy of the first <code>columns * rows</code> of
+     * <code>cells</code>, so the caller may go on to reuse the array.
+     */
+    public TextScreen(int columns, int rows, int cursorColumn, int cursorRow, short[] cells) {
+        if (cells.length < columns * rows)
+            throw new IllegalArgumentException("cell array too small for " + columns + "x" + rows + " screen");
+        this.columns = columns;
+        this.rows = rows;
+        this.cursorColumn = cursorColumn;
+        this.cursorRow = cursorRow;
+        this.cells = Arrays.copyOf(cells, columns * rows);
+    }
+
+    public int getColumns() {
+        return columns;
+    }
+
+    public int getRows() {
+        return rows;
+    }
+
+    /**
+     * Returns the cursor column, or -1 if the cursor is disabled or off screen.
+     */
+    public int getCursorColumn() {
+        return cursorColumn;
+    }
+
+    /**
+     * Returns the cursor row, or -1 if the cursor is disabled or off screen.
+     */
+    public int getCursorRow() {
+        return cursorRow;
+    }
+
+    public int getCell(int column, int row) {
+        return 0xffff & cells[row * columns + column];
+    }
+
+    public int getCharacter(int column, int row) {
+        return 0xff & cells[row * columns + column];
+    }
+
+    public int getAttribute(int column, int row) {
+        return 0xff & cells[row * columns + column] >>> 8;
+    }
+
+    public int getForeground(int column, int row) {
+        return getAttribute(column, row) & 0xf;
+    }
+
+    public int getBackground(int column, int row) {
+        return getAttribute(column, row) >>> 4;
+    }
+
+    /**
+     * Returns the characters of one row, without trailing spaces.
+     */
+    public String getRow(int row) {
+        char[] chars = new char[columns];
+        for (int i = 0; i < columns; i++)
+            chars[i] = (char)getCharacter(i, row);
+        int end = columns;
+        while (end > 0 && (chars[end - 1] == ' ' || chars[end - 1] == 0))
+            end--;
+        return new String(chars, 0, end);
+    }
+
+    /**
+     * Returns <code>true</code> if <code>other</code> has the same size and
+     * cell contents, ignoring the cursor.
+     */
+    public boolean sameCells(TextScreen other) {
+        if (other == null || other.columns != columns || other.rows != rows)
+            return false;
+        for (int i = columns * rows - 1; i >= 0; i--)
+            if (cells[i] != other.cells[i])
+                return false;
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder b = new StringBuilder(rows * (columns + 1));
+        for (int i = 0; i < rows; i++)
+            b.append(getRow(i)).append('\n');
+        return b.toString();
+    }
+}
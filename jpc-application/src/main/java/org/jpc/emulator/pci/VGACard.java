@@ -2,6 +2,7 @@ package org.jpc.emulator.pci;
 
 import java.awt.Dimension;
 import java.awt.Graphics2D;
+import java.awt.Rectangle;
 
 import org.jpc.emulator.HardwareComponent;
 import org.jpc.emulator.Monitor;
@@ -12,8 +13,12 @@ public interface VGACard extends HardwareComponent, IODevice, PCIDevice {
 
     Dimension getDisplaySize();
 
+    Rectangle[] getDirtyRegions();
+
     String getText();
 
+    TextScreen getTextScreen();
+
     void paintOnMonitor(Graphics2D g);
 
     void prepareUpdate();
@@ -25,4 +30,6 @@ public interface VGACard extends HardwareComponent, IODevice, PCIDevice {
     void setOriginalDisplaySize();
 
     void updateDisplay();
+
+    void waitForFrame(long timeoutMillis) throws InterruptedException;
 }
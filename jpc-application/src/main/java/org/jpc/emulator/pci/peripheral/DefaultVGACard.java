@@ -35,6 +35,7 @@ package org.jpc.emulator.pci.peripheral;
 
 import java.awt.Dimension;
 import java.awt.Graphics2D;
+import java.awt.Rectangle;
 import java.awt.RenderingHints;
 import java.awt.image.BufferedImage;
 import java.awt.image.DataBufferInt;
@@ -42,6 +43,12 @@ import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.File;
 import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -49,6 +56,8 @@ import javax.imageio.ImageIO;
 
 import org.jpc.emulator.HardwareComponent;
 import org.jpc.emulator.Monitor;
+import org.jpc.emulator.Timer;
+import org.jpc.emulator.TimerResponsive;
 import org.jpc.emulator.execution.codeblock.SpanningCodeBlock;
 import org.jpc.emulator.memory.Memory;
 import org.jpc.emulator.memory.PhysicalAddressSpace;
@@ -57,15 +66,18 @@ import org.jpc.emulator.pci.AbstractPCIDevice;
 import org.jpc.emulator.pci.IORegion;
 import org.jpc.emulator.pci.MemoryMappedIORegion;
 import org.jpc.emulator.pci.PCIBus;
+import org.jpc.emulator.pci.TextScreen;
 import org.jpc.emulator.pci.VGACard;
 import org.jpc.emulator.processor.Processor;
+import org.jpc.j2se.Option;
+import org.jpc.support.Clock;
 
 /**
  * @author Chris Dennis
  * @author Rhys Newman
  * @author Ian Preston
  */
-public class DefaultVGACard extends AbstractPCIDevice implements VGACard {
+public class DefaultVGACard extends AbstractPCIDevice implements VGACard, TimerResponsive {
     private static final Logger LOGGING = Logger.getLogger(DefaultVGACard.class.getName());
 
     //VGA_RAM_SIZE must be a power of two
@@ -73,6 +85,11 @@ public class DefaultVGACard extends AbstractPCIDevice implements VGACard {
     private static final int INIT_VGA_RAM_SIZE = 64 * 1024;
     private static final int PAGE_SHIFT = 12;
 
+    /* little endian views used to read whole groups of pixels out of VGA RAM at once */
+    private static final VarHandle SHORT_VIEW = MethodHandles.byteArrayViewVarHandle(short[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle INT_VIEW = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle LONG_VIEW = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
     private static final int[] expand4 = new int[256];
     static {
         for (int i = 0; i < expand4.length; i++) {
@@ -138,6 +155,12 @@ public class DefaultVGACard extends AbstractPCIDevice implements VGACard {
 
     private static final int CH_ATTR_SIZE = 160 * 100;
     private static final int VGA_MAX_HEIGHT = 1024;
+    // glyph tiles are dropped wholesale once this many have been rendered
+    private static final int MAX_GLYPH_TILES = 4096;
+    // used when the CRTC timings are unprogrammed or describe an implausible mode
+    private static final int DEFAULT_REFRESH_RATE = 60;
+    // beyond this many separate rectangles a frame is reported as one bounding box
+    private static final int MAX_DIRTY_REGIONS = 64;
 
     private static final int GR_INDEX_SETRESET = 0x00;
     private static final int GR_INDEX_ENABLE_SETRESET = 0x01;
@@ -163,6 +186,7 @@ public class DefaultVGACard extends AbstractPCIDevice implements VGACard {
     private static final int AR_INDEX_HORIZ_PIXEL_PANNING = 0x13;
     private static final int AR_INDEX_COLOR_SELECT = 0x14;
 
+    private static final int CR_INDEX_HORZ_TOTAL = 0x00;
     private static final int CR_INDEX_HORZ_DISPLAY_END = 0x01;
     private static final int CR_INDEX_VERT_TOTAL = 0x06;
     private static final int CR_INDEX_OVERFLOW = 0x07;
@@ -325,6 +349,9 @@ public class DefaultVGACard extends AbstractPCIDevice implements VGACard {
     private int cursorOffset;
     private final int[] lastPalette;
     private int[] lastChar;
+    private boolean lastDup9;
+    private int[][] glyphTiles;
+    private int glyphTileCount;
 
     private boolean ioportRegistered;
     private boolean pciRegistered;
@@ -337,11 +364,35 @@ public class DefaultVGACard extends AbstractPCIDevice implements VGACard {
     private VGALowMemoryRegion lowIORegion;
 
     private int[] rawImageData;
+    private int[] displayImageData;
     private int xmin, xmax, ymin, ymax, width, height;
+    private final List<Rectangle> dirtyRegions = new ArrayList<Rectangle>();
+    private boolean dirtyRegionsOverflow;
+    private long[] lineHashes = new long[VGA_MAX_HEIGHT];
     private BufferedImage buffer;
+    private BufferedImage displayImage;
+    private final boolean doubleBuffered;
     private Monitor monitor;
 
+    /*
+     * With frame snapshots enabled all rendering happens on a private shadow
+     * card.  At each emulated vertical retrace the CPU thread copies the
+     * display registers and the VGA RAM pages written since the last frame
+     * into the shadow, so the render thread always draws a consistent frame
+     * and never reads state the guest is half way through changing.
+     */
+    private final DefaultVGACard renderCard;
+    private final Object frameLock = new Object();
+    private boolean frameReady;
+    private boolean frameInvalid;
+    private Clock clock;
+    private Timer retraceTimer;
+
     public DefaultVGACard() {
+        this(Option.frameSnapshots.isSet(), false);
+    }
+
+    private DefaultVGACard(boolean frameSnapshots, boolean doubleBuffered) {
         ioportRegistered = false;
         memoryRegistered = false;
         pciRegistered = false;
@@ -379,10 +430,20 @@ public class DefaultVGACard extends AbstractPCIDevice implements VGACard {
         vbeRegs[VBE_DISPI_INDEX_XRES] = 1600;
         vbeRegs[VBE_DISPI_INDEX_YRES] = 1200;
         vbeRegs[VBE_DISPI_INDEX_BPP] = 32;
+
+        this.doubleBuffered = doubleBuffered;
+        if (frameSnapshots) {
+            renderCard = new DefaultVGACard(false, true);
+            frameInvalid = true;
+        } else
+            renderCard = null;
     }
 
     @Override
     public String getText() {
+        if (renderCard != null)
+            return renderCard.getText();
+
         StringBuilder b = new StringBuilder();
         for (int i = 0; i < lastChar.length / 80; i++) {
             StringBuilder row = new StringBuilder();
@@ -393,6 +454,32 @@ public class DefaultVGACard extends AbstractPCIDevice implements VGACard {
         return b.toString();
     }
 
+    /**
+     * Returns the character cells as of the last display update, or
+     * <code>null</code> if the card is not in a text mode.
+     */
+    @Override
+    public TextScreen getTextScreen() {
+        if (renderCard != null)
+            return renderCard.getTextScreen();
+
+        if (graphicMode != GMODE_TEXT || lastWidth <= 0 || lastHeight <= 0)
+            return null;
+
+        int columns = lastWidth;
+        int rows = lastHeight;
+        short[] cells = new short[columns * rows];
+        for (int i = 0; i < cells.length; i++)
+            cells[i] = (short)lastChar[i];
+
+        int cursorColumn = -1, cursorRow = -1;
+        if ((cursorStart & 0x20) == 0 && cursorOffset >= 0 && cursorOffset < cells.length) {
+            cursorColumn = cursorOffset % columns;
+            cursorRow = cursorOffset / columns;
+        }
+        return new TextScreen(columns, rows, cursorColumn, cursorRow, cells);
+    }
+
     @Override
     public void saveState(DataOutput output) throws IOException {
         super.saveState(output);
@@ -556,12 +643,18 @@ public class DefaultVGACard extends AbstractPCIDevice implements VGACard {
         updatingScreen = input.readBoolean();
         //load ioregion
         ioRegion.loadState(input);
+        invalidateFrame();
     }
 
     public void saveScreenshot() {
+        if (renderCard != null) {
+            renderCard.saveScreenshot();
+            return;
+        }
+
         File out = new File("Screenshot.png");
         try {
-            ImageIO.write(buffer, "png", out);
+            ImageIO.write(displayImage, "png", out);
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -579,12 +672,24 @@ public class DefaultVGACard extends AbstractPCIDevice implements VGACard {
     }
 
     /**
-     * Returns the buffer to which raster information should be copied
-     * @return target for monitor information
+     * Convert a little endian BGR triple, as stored by the 24 and 32 bpp
+     * modes, into this objects packed pixel format.
+     * @param bgr blue in bits 0-7, green in 8-15 and red in 16-23
+     * @return packed pixel value
+     */
+    protected int bgrToPixel(int bgr) {
+        return bgr & 0xFFFFFF;
+    }
+
+    /**
+     * Returns the buffer holding the most recently completed frame
+     * @return source of monitor information
      */
     @Override
     public int[] getDisplayBuffer() {
-        return rawImageData;
+        if (renderCard != null)
+            return renderCard.getDisplayBuffer();
+        return displayImageData;
     }
 
     /**
@@ -599,6 +704,51 @@ public class DefaultVGACard extends AbstractPCIDevice implements VGACard {
         xmax = Math.max(x + w, xmax);
         ymin = Math.min(y, ymin);
         ymax = Math.max(y + h, ymax);
+
+        if (dirtyRegionsOverflow)
+            return;
+
+        if (!dirtyRegions.isEmpty()) {
+            Rectangle last = dirtyRegions.get(dirtyRegions.size() - 1);
+            /* consecutive scanlines and adjacent character cells arrive in order, so merge with the previous region */
+            if (last.x == x && last.width == w && last.y + last.height == y) {
+                last.height += h;
+                return;
+            }
+            if (last.y == y && last.height == h && last.x + last.width == x) {
+                last.width += w;
+                return;
+            }
+            if (last.contains(x, y, w, h))
+                return;
+        }
+
+        if (dirtyRegions.size() == MAX_DIRTY_REGIONS) {
+            dirtyRegionsOverflow = true;
+            dirtyRegions.clear();
+            return;
+        }
+        dirtyRegions.add(new Rectangle(x, y, w, h));
+    }
+
+    /**
+     * Returns the regions of the display buffer that were redrawn by the last
+     * call to <code>updateDisplay</code>.  Regions do not overlap and are in
+     * drawing order (top to bottom for graphics modes).
+     * @return dirty display rectangles, empty if nothing changed
+     */
+    @Override
+    public Rectangle[] getDirtyRegions() {
+        if (renderCard != null)
+            return renderCard.getDirtyRegions();
+
+        if (dirtyRegionsOverflow)
+            return new Rectangle[] { new Rectangle(xmin, ymin, xmax - xmin, ymax - ymin) };
+
+        Rectangle[] result = new Rectangle[dirtyRegions.size()];
+        for (int i = 0; i < result.length; i++)
+            result[i] = new Rectangle(dirtyRegions.get(i));
+        return result;
     }
 
     /**
@@ -608,33 +758,86 @@ public class DefaultVGACard extends AbstractPCIDevice implements VGACard {
      */
     @Override
     public void resizeDisplay(int width, int height) {
+        if (renderCard != null) {
+            renderCard.resizeDisplay(width, height);
+            return;
+        }
+
         if (width == 0 || height == 0)
             return;
         this.width = width;
         this.height = height;
 
-        buffer = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
-        buffer.setAccelerationPriority(1);
-        DataBufferInt buf = (DataBufferInt)buffer.getRaster().getDataBuffer();
-        rawImageData = buf.getData();
+        buffer = createImage(width, height);
+        rawImageData = ((DataBufferInt)buffer.getRaster().getDataBuffer()).getData();
+        if (doubleBuffered) {
+            displayImage = createImage(width, height);
+            displayImageData = ((DataBufferInt)displayImage.getRaster().getDataBuffer()).getData();
+        } else {
+            displayImage = buffer;
+            displayImageData = rawImageData;
+        }
         monitor.resizeDisplay(width, height);
     }
 
+    private static BufferedImage createImage(int width, int height) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        image.setAccelerationPriority(1);
+        return image;
+    }
+
+    /**
+     * Makes the frame just drawn the displayed one.  The regions redrawn this
+     * frame are copied back into the new drawing buffer so that the next
+     * incremental update starts from an up to date image.
+     */
+    private void flipBuffers() {
+        if (!doubleBuffered || xmax <= xmin || ymax <= ymin)
+            return;
+
+        BufferedImage image = buffer;
+        buffer = displayImage;
+        displayImage = image;
+        int[] data = rawImageData;
+        rawImageData = displayImageData;
+        displayImageData = data;
+
+        for (Rectangle r : getDirtyRegions()) {
+            int x = Math.max(r.x, 0);
+            int w = Math.min(r.x + r.width, width) - x;
+            int yLimit = Math.min(r.y + r.height, height);
+            for (int y = Math.max(r.y, 0); y < yLimit && w > 0; y++)
+                System.arraycopy(displayImageData, y * width + x, rawImageData, y * width + x, w);
+        }
+    }
+
     /**
      * Returns the preferred size of the display
      */
     @Override
     public Dimension getDisplaySize() {
+        if (renderCard != null)
+            return renderCard.getDisplaySize();
         return new Dimension(width, height);
     }
 
     public void dirtyScreen() {
+        if (renderCard != null) {
+            renderCard.dirtyScreen();
+            return;
+        }
+
         Dimension size = getDisplaySize();
         dirtyDisplayRegion(0, 0, size.width, size.height);
     }
 
     @Override
     public void setOriginalDisplaySize() {
+        if (renderCard != null) {
+            renderCard.setOriginalDisplaySize();
+            return;
+        }
+
         resizeDisplay(lastScreenWidth, lastScreenHeight);
     }
 
@@ -1497,10 +1700,56 @@ public class DefaultVGACard extends AbstractPCIDevice implements VGACard {
             return dirtyPages[i];
         }
 
+        /**
+         * Returns a 64-bit hash of <code>length</code> bytes starting at
+         * <code>offset</code>.  Bytes beyond the currently allocated VGA RAM
+         * hash as zero, matching what a read would return.
+         */
+        public long hashRange(int offset, int length) {
+            long hash = 0xcbf29ce484222325L ^ length;
+            int limit = Math.min(offset + length, buffer.length);
+            for (int i = offset; i < limit; i++) {
+                hash ^= buffer[i];
+                hash *= 0x100000001b3L;
+            }
+            return hash;
+        }
+
         public void cleanPage(int i) {
             dirtyPages[i] = false;
         }
 
+        /**
+         * Returns the backing array, grown first if necessary so that it
+         * holds at least <code>limit</code> bytes.  Scanline converters index
+         * it directly rather than making a bounds checked call per pixel.
+         */
+        byte[] getBuffer(int limit) {
+            if (limit > buffer.length)
+                increaseVGARAMSize(limit - 1);
+            return buffer;
+        }
+
+        /**
+         * Copies the pages written since the last call (or every page if
+         * <code>all</code> is set) into <code>target</code>.  Copied pages
+         * become dirty in the target and clean here.
+         */
+        public void copyDirtyPagesInto(VGARAMIORegion target, boolean all) {
+            if (target.buffer.length != buffer.length)
+                target.buffer = Arrays.copyOf(target.buffer, buffer.length);
+
+            int pageSize = 1 << PAGE_SHIFT;
+            int pages = buffer.length >>> PAGE_SHIFT;
+            for (int i = 0; i < pages; i++) {
+                if (all || dirtyPages[i]) {
+                    System.arraycopy(buffer, i << PAGE_SHIFT, target.buffer, i << PAGE_SHIFT, pageSize);
+                    target.dirtyPages[i] = true;
+                    dirtyPages[i] = false;
+                }
+            }
+        }
+
         //IORegion Methods
         @Override
         public int getAddress() {
@@ -1648,6 +1897,129 @@ public class DefaultVGACard extends AbstractPCIDevice implements VGACard {
     //Public Methods Used By Output Device
     @Override
     public final void updateDisplay() {
+        if (renderCard == null) {
+            drawFrame();
+            return;
+        }
+
+        synchronized (frameLock) {
+            if (!frameReady)
+                return;
+        }
+        // the CPU thread leaves the shadow alone until frameReady is cleared
+        renderCard.drawFrame();
+        renderCard.flipBuffers();
+        synchronized (frameLock) {
+            frameReady = false;
+        }
+    }
+
+    /**
+     * Waits for the next frame to become available.  With frame snapshots
+     * enabled this returns as soon as the guest reaches vertical retrace,
+     * otherwise there is no retrace to wait on and the full timeout elapses.
+     * @param timeoutMillis maximum time to wait
+     */
+    @Override
+    public void waitForFrame(long timeoutMillis) throws InterruptedException {
+        if (renderCard == null) {
+            Thread.sleep(timeoutMillis);
+            return;
+        }
+
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        synchronized (frameLock) {
+            long remaining = timeoutMillis;
+            while (!frameReady && remaining > 0) {
+                frameLock.wait(remaining);
+                remaining = deadline - System.currentTimeMillis();
+            }
+        }
+    }
+
+    @Override
+    public void callback() {
+        publishFrame();
+
+        long now = clock.getEmulatedNanos();
+        long next = retraceTimer.getExpiry() + getRetracePeriod();
+        retraceTimer.setExpiry(next > now ? next : now + getRetracePeriod());
+    }
+
+    @Override
+    public int getType() {
+        return 6;
+    }
+
+    /**
+     * Hands the current display state to the render thread, unless it is
+     * still busy with the previous frame in which case this frame is dropped
+     * and its changes are carried over to the next one.
+     */
+    private void publishFrame() {
+        synchronized (frameLock) {
+            if (frameReady)
+                return;
+            renderCard.copyDisplayState(this, frameInvalid);
+            frameInvalid = false;
+            frameReady = true;
+            frameLock.notifyAll();
+        }
+    }
+
+    private void invalidateFrame() {
+        if (renderCard == null)
+            return;
+        synchronized (frameLock) {
+            frameInvalid = true;
+        }
+    }
+
+    private void copyDisplayState(DefaultVGACard source, boolean all) {
+        attributeRegisterIndex = source.attributeRegisterIndex;
+        miscellaneousOutputRegister = source.miscellaneousOutputRegister;
+        System.arraycopy(source.sequencerRegister, 0, sequencerRegister, 0, sequencerRegister.length);
+        System.arraycopy(source.graphicsRegister, 0, graphicsRegister, 0, graphicsRegister.length);
+        System.arraycopy(source.attributeRegister, 0, attributeRegister, 0, attributeRegister.length);
+        System.arraycopy(source.crtRegister, 0, crtRegister, 0, crtRegister.length);
+        System.arraycopy(source.palette, 0, palette, 0, palette.length);
+        System.arraycopy(source.vbeRegs, 0, vbeRegs, 0, vbeRegs.length);
+        vbeStartAddress = source.vbeStartAddress;
+        vbeLineOffset = source.vbeLineOffset;
+
+        planeUpdated |= source.planeUpdated;
+        source.planeUpdated = 0;
+
+        if (all)
+            graphicMode = -1;
+        source.ioRegion.copyDirtyPagesInto(ioRegion, all);
+    }
+
+    /**
+     * Returns the length of one emulated frame in clock ticks, derived from
+     * the CRTC totals and the dot clock selected in the miscellaneous output
+     * register.
+     */
+    private long getRetracePeriod() {
+        long tickRate = clock.getTickRate();
+        if ((vbeRegs[VBE_DISPI_INDEX_ENABLE] & VBE_DISPI_ENABLED) != 0)
+            return tickRate / DEFAULT_REFRESH_RATE;
+
+        int charWidth = (sequencerRegister[SR_INDEX_CLOCKING_MODE] & 0x01) != 0 ? 8 : 9;
+        long horizontalTotal = (crtRegister[CR_INDEX_HORZ_TOTAL] + 5) * charWidth;
+        long verticalTotal = (crtRegister[CR_INDEX_VERT_TOTAL] | (crtRegister[CR_INDEX_OVERFLOW] & 0x01) << 8
+            | (crtRegister[CR_INDEX_OVERFLOW] & 0x20) << 4) + 2;
+        long dotClock = (miscellaneousOutputRegister & 0x0c) == 0 ? 25175000 : 28322000;
+        if ((sequencerRegister[SR_INDEX_CLOCKING_MODE] & 0x08) != 0)
+            dotClock >>= 1;
+
+        long refreshRate = dotClock / (horizontalTotal * verticalTotal);
+        if (refreshRate < 24 || refreshRate > 120)
+            return tickRate / DEFAULT_REFRESH_RATE;
+        return tickRate * horizontalTotal * verticalTotal / dotClock;
+    }
+
+    private final void drawFrame() {
         // note this causes NON-deterministic execution because of thread scheduling
         updatingScreen = true;
 
@@ -1680,8 +2052,9 @@ public class DefaultVGACard extends AbstractPCIDevice implements VGACard {
     }
 
     private final void drawText(boolean fullUpdate) {
-        boolean temp = updatePalette16();
-        fullUpdate |= temp;
+        /* anything that changes how a cell looks also invalidates the cached glyph tiles */
+        boolean glyphsChanged = fullUpdate;
+        glyphsChanged |= updatePalette16();
         int[] palette = lastPalette;
 
         /* compute font data address (in plane 2) */
@@ -1690,24 +2063,30 @@ public class DefaultVGACard extends AbstractPCIDevice implements VGACard {
         int offset = (v >>> 4 & 1 | v << 1 & 6) * 8192 * 4 + 2;
         if (offset != this.fontOffset[0]) {
             this.fontOffset[0] = offset;
-            fullUpdate = true;
+            glyphsChanged = true;
         }
 
         offset = (v >>> 5 & 1 | v >>> 1 & 6) * 8192 * 4 + 2;
         if (offset != this.fontOffset[1]) {
             this.fontOffset[1] = offset;
-            fullUpdate = true;
+            glyphsChanged = true;
         }
 
         if ((this.planeUpdated & 1 << 2) != 0) {
             /* if the plane 2 was modified since the last display, it
               indicates the font may have been modified */
             this.planeUpdated = 0;
-            fullUpdate = true;
+            glyphsChanged = true;
         }
 
-        temp = updateBasicParameters();
-        fullUpdate |= temp;
+        boolean dup9 = (attributeRegister[AR_INDEX_ATTR_MODE_CONTROL] & 0x04) != 0;
+        if (dup9 != this.lastDup9) {
+            this.lastDup9 = dup9;
+            glyphsChanged = true;
+        }
+
+        /* cells are compared by screen position, so scrolling by start address needs no full redraw */
+        updateBasicParameters();
 
         int srcIndex = this.startAddress * 4;
 
@@ -1743,7 +2122,12 @@ public class DefaultVGACard extends AbstractPCIDevice implements VGACard {
             this.lastHeight = height;
             this.lastCH = charHeight;
             this.lastCW = charWidth;
+            glyphsChanged = true;
+        }
+
+        if (glyphsChanged) {
             fullUpdate = true;
+            clearGlyphTiles();
         }
 
         int curCursorOffset = (crtRegister[CR_INDEX_CURSOR_LOC_HIGH] << 8 | crtRegister[CR_INDEX_CURSOR_LOC_LOW]) - this.startAddress;
@@ -1765,132 +2149,103 @@ public class DefaultVGACard extends AbstractPCIDevice implements VGACard {
         int cursorIndex = (this.startAddress + this.cursorOffset) * 4;
         int lastCharOffset = 0;
 
-        switch (charWidth) {
-        case 8:
-            for (int charY = 0; charY < height; charY++) {
-                int srcOffset = srcIndex;
-                for (int charX = 0; charX < width; charX++) {
-                    int charShort = 0xffff & ioRegion.getWord(srcOffset);
-                    if (fullUpdate || charShort != this.lastChar[lastCharOffset]) {
-                        this.lastChar[lastCharOffset] = charShort;
-
-                        int character = 0xff & charShort;
-                        int characterAttribute = charShort >>> 8;
-
-                        int glyphOffset = fontOffset[characterAttribute >>> 3 & 1] + 32 * 4 * character;
-                        int backgroundColor = palette[characterAttribute >>> 4];
-                        int foregroundColor = palette[characterAttribute & 0xf];
-
-                        drawGlyph8(getDisplayBuffer(), charY * charHeight * lastScreenWidth + charX * 8, lastScreenWidth, glyphOffset,
-                            charHeight, foregroundColor, backgroundColor);
-                        dirtyDisplayRegion(charX * 8, charY * charHeight, 8, charHeight);
-
-                        if (srcOffset == cursorIndex && (crtRegister[CR_INDEX_CURSOR_START] & 0x20) == 0) {
-                            int lineStart = crtRegister[CR_INDEX_CURSOR_START] & 0x1f;
-                            int lineLast = crtRegister[CR_INDEX_CURSOR_END] & 0x1f;
-                            /* XXX: check that */
-                            if (lineLast > charHeight - 1)
-                                lineLast = charHeight - 1;
-
-                            if (lineLast >= lineStart && lineStart < charHeight) {
-                                int tempHeight = lineLast - lineStart + 1;
-                                drawCursorGlyph8(getDisplayBuffer(), (charY * charHeight + lineStart) * lastScreenWidth + charX * 8,
-                                    lastScreenWidth, tempHeight, foregroundColor, backgroundColor);
-                                dirtyDisplayRegion(charX * 8, charY * charHeight + lineStart, 8, tempHeight);
+        for (int charY = 0; charY < height; charY++) {
+            int srcOffset = srcIndex;
+            for (int charX = 0; charX < width; charX++) {
+                int charShort = 0xffff & ioRegion.getWord(srcOffset);
+                if (fullUpdate || charShort != this.lastChar[lastCharOffset]) {
+                    this.lastChar[lastCharOffset] = charShort;
+
+                    int x = charX * charWidth;
+                    int y = charY * charHeight;
+                    blitTile(getGlyphTile(charShort, charWidth, charHeight), x, y, charWidth, charHeight);
+                    dirtyDisplayRegion(x, y, charWidth, charHeight);
+
+                    if (srcOffset == cursorIndex && (crtRegister[CR_INDEX_CURSOR_START] & 0x20) == 0) {
+                        int lineStart = crtRegister[CR_INDEX_CURSOR_START] & 0x1f;
+                        int lineLast = crtRegister[CR_INDEX_CURSOR_END] & 0x1f;
+                        /* XXX: check that */
+                        if (lineLast > charHeight - 1)
+                            lineLast = charHeight - 1;
+
+                        if (lineLast >= lineStart && lineStart < charHeight) {
+                            int tempHeight = lineLast - lineStart + 1;
+                            int characterAttribute = charShort >>> 8;
+                            int backgroundColor = palette[characterAttribute >>> 4];
+                            int foregroundColor = palette[characterAttribute & 0xf];
+                            int start = (y + lineStart) * lastScreenWidth + x;
+                            switch (charWidth) {
+                            case 8:
+                                drawCursorGlyph8(rawImageData, start, lastScreenWidth, tempHeight, foregroundColor, backgroundColor);
+                                break;
+                            case 9:
+                                drawCursorGlyph9(rawImageData, start, lastScreenWidth, tempHeight, foregroundColor, backgroundColor);
+                                break;
+                            default:
+                                drawCursorGlyph16(rawImageData, start, lastScreenWidth, tempHeight, foregroundColor, backgroundColor);
                             }
+                            dirtyDisplayRegion(x, y + lineStart, charWidth, tempHeight);
                         }
                     }
-                    srcOffset += 4;
-                    lastCharOffset++;
                 }
-                srcIndex += lineOffset;
+                srcOffset += 4;
+                lastCharOffset++;
             }
-            return;
+            srcIndex += lineOffset;
+        }
+    }
+
+    /**
+     * Returns the rendered pixels of one character cell, expanding the glyph
+     * from plane 2 only the first time a character and attribute pair is seen.
+     */
+    private int[] getGlyphTile(int charShort, int charWidth, int charHeight) {
+        int character = 0xff & charShort;
+        int characterAttribute = charShort >>> 8;
+        int font = characterAttribute >>> 3 & 1;
+        int key = font << 16 | charShort;
+
+        if (glyphTiles == null)
+            glyphTiles = new int[2 << 16][];
+        int[] tile = glyphTiles[key];
+        if (tile != null)
+            return tile;
+
+        if (glyphTileCount == MAX_GLYPH_TILES)
+            clearGlyphTiles();
+
+        tile = new int[charWidth * charHeight];
+        int glyphOffset = fontOffset[font] + 32 * 4 * character;
+        int backgroundColor = lastPalette[characterAttribute >>> 4];
+        int foregroundColor = lastPalette[characterAttribute & 0xf];
+        switch (charWidth) {
+        case 8:
+            drawGlyph8(tile, 0, charWidth, glyphOffset, charHeight, foregroundColor, backgroundColor);
+            break;
         case 9:
-            for (int charY = 0; charY < height; charY++) {
-                int srcOffset = srcIndex;
-                for (int charX = 0; charX < width; charX++) {
-                    int charShort = 0xffff & ioRegion.getWord(srcOffset);
-                    if (fullUpdate || charShort != this.lastChar[lastCharOffset]) {
-                        this.lastChar[lastCharOffset] = charShort;
-
-                        int character = 0xff & charShort;
-                        int characterAttribute = charShort >>> 8;
-
-                        int glyphOffset = fontOffset[characterAttribute >>> 3 & 1] + 32 * 4 * character;
-                        int backgroundColor = palette[characterAttribute >>> 4];
-                        int foregroundColor = palette[characterAttribute & 0xf];
-
-                        boolean dup9 = character >= 0xb0 && character <= 0xdf
-                            && (attributeRegister[AR_INDEX_ATTR_MODE_CONTROL] & 0x04) != 0;
-                        drawGlyph9(getDisplayBuffer(), charY * charHeight * lastScreenWidth + charX * 9, lastScreenWidth, glyphOffset,
-                            charHeight, foregroundColor, backgroundColor, dup9);
-                        dirtyDisplayRegion(charX * 9, charY * charHeight, 9, charHeight);
-
-                        if (srcOffset == cursorIndex && (crtRegister[CR_INDEX_CURSOR_START] & 0x20) == 0) {
-                            int lineStart = crtRegister[CR_INDEX_CURSOR_START] & 0x1f;
-                            int lineLast = crtRegister[CR_INDEX_CURSOR_END] & 0x1f;
-                            /* XXX: check that */
-                            if (lineLast > charHeight - 1)
-                                lineLast = charHeight - 1;
-
-                            if (lineLast >= lineStart && lineStart < charHeight) {
-                                int tempHeight = lineLast - lineStart + 1;
-                                drawCursorGlyph9(getDisplayBuffer(), (charY * charHeight + lineStart) * lastScreenWidth + charX * 9,
-                                    lastScreenWidth, tempHeight, foregroundColor, backgroundColor);
-                                dirtyDisplayRegion(charX * 9, charY * charHeight + lineStart, 9, tempHeight);
-                            }
-                        }
-                    }
-                    srcOffset += 4;
-                    lastCharOffset++;
-                }
-                srcIndex += lineOffset;
-            }
-            return;
-        case 16:
-            for (int charY = 0; charY < height; charY++) {
-                int srcOffset = srcIndex;
-                for (int charX = 0; charX < width; charX++) {
-                    int charShort = 0xffff & ioRegion.getWord(srcOffset);
-                    if (fullUpdate || charShort != this.lastChar[lastCharOffset]) {
-                        this.lastChar[lastCharOffset] = charShort;
-
-                        int character = 0xff & charShort;
-                        int characterAttribute = charShort >>> 8;
-
-                        int glyphOffset = fontOffset[characterAttribute >>> 3 & 1] + 32 * 4 * character;
-                        int backgroundColor = palette[characterAttribute >>> 4];
-                        int foregroundColor = palette[characterAttribute & 0xf];
-
-                        drawGlyph16(getDisplayBuffer(), charY * charHeight * lastScreenWidth + charX * 16, lastScreenWidth, glyphOffset,
-                            charHeight, foregroundColor, backgroundColor);
-                        dirtyDisplayRegion(charX * 16, charY * charHeight, 16, charHeight);
-
-                        if (srcOffset == cursorIndex && (crtRegister[CR_INDEX_CURSOR_START] & 0x20) == 0) {
-                            int lineStart = crtRegister[CR_INDEX_CURSOR_START] & 0x1f;
-                            int lineLast = crtRegister[CR_INDEX_CURSOR_END] & 0x1f;
-                            /* XXX: check that */
-                            if (lineLast > charHeight - 1)
-                                lineLast = charHeight - 1;
-
-                            if (lineLast >= lineStart && lineStart < charHeight) {
-                                int tempHeight = lineLast - lineStart + 1;
-                                drawCursorGlyph16(getDisplayBuffer(), (charY * charHeight + lineStart) * lastScreenWidth + charX * 16,
-                                    lastScreenWidth, tempHeight, foregroundColor, backgroundColor);
-                                dirtyDisplayRegion(charX * 16, charY * charHeight + lineStart, 16, tempHeight);
-                            }
-                        }
-                    }
-                    srcOffset += 4;
-                    lastCharOffset++;
-                }
-                srcIndex += lineOffset;
-            }
-            return;
+            drawGlyph9(tile, 0, charWidth, glyphOffset, charHeight, foregroundColor, backgroundColor,
+                lastDup9 && character >= 0xb0 && character <= 0xdf);
+            break;
         default:
-            LOGGING.log(Level.WARNING, "Unknown character width {0}", Integer.valueOf(charWidth));
+            drawGlyph16(tile, 0, charWidth, glyphOffset, charHeight, foregroundColor, backgroundColor);
         }
+
+        glyphTiles[key] = tile;
+        glyphTileCount++;
+        return tile;
+    }
+
+    private void clearGlyphTiles() {
+        if (glyphTiles != null && glyphTileCount != 0)
+            Arrays.fill(glyphTiles, null);
+        glyphTileCount = 0;
+    }
+
+    private void blitTile(int[] tile, int x, int y, int tileWidth, int tileHeight) {
+        int[] dest = rawImageData;
+        int scanSize = lastScreenWidth;
+        for (int row = 0, src = 0, start = y * scanSize + x; row < tileHeight; row++, src += tileWidth, start += scanSize)
+            System.arraycopy(tile, src, dest, start, tileWidth);
     }
 
     abstract class GraphicsUpdater {
@@ -1925,13 +2280,19 @@ public class DefaultVGACard extends AbstractPCIDevice implements VGACard {
                         addr = addr & ~0x8000 | (y1 & 2) << 14;
                 }
 
+                int lineBytes = byteWidth(width);
                 int pageStart = addr >>> PAGE_SHIFT;
-                int pageEnd = addr + byteWidth(width) - 1 >>> PAGE_SHIFT;
+                int pageEnd = addr + lineBytes - 1 >>> PAGE_SHIFT;
                 for (int i = pageStart; i <= pageEnd; i++) {
                     if (fullUpdate || ioRegion.pageIsDirty(i)) {
                         pageMin = Math.min(pageMin, pageStart);
                         pageMax = Math.max(pageMax, pageEnd);
-                        drawLine(addr, width, y, dispWidth);
+                        /* dirty pages are 4K, so most lines on a dirty page have not actually changed */
+                        long hash = ioRegion.hashRange(addr, lineBytes);
+                        if (fullUpdate || hash != lineHashes[y]) {
+                            lineHashes[y] = hash;
+                            drawLine(addr, width, y, dispWidth);
+                        }
                         break;
                     }
                 }
@@ -1962,15 +2323,16 @@ public class DefaultVGACard extends AbstractPCIDevice implements VGACard {
 
         @Override
         void drawLine(int offset, int width, int y, int dispWidth) {
-            int[] dest = getDisplayBuffer();
+            int[] dest = rawImageData;
             int index = y * dispWidth;
+            byte[] src = ioRegion.getBuffer(offset + byteWidth(width));
 
             int[] palette = lastPalette;
             int planeMask = mask16[attributeRegister[AR_INDEX_COLOR_PLANE_ENABLE] & 0xf];
             width >>>= 3;
 
             do {
-                int data = ioRegion.getDoubleWord(offset);
+                int data = (int)INT_VIEW.get(src, offset);
                 data &= planeMask;
 
                 int v = expand2[data & 0xff];
@@ -2001,15 +2363,16 @@ public class DefaultVGACard extends AbstractPCIDevice implements VGACard {
 
         @Override
         void drawLine(int offset, int width, int y, int dispWidth) {
-            int[] dest = getDisplayBuffer();
+            int[] dest = rawImageData;
             int index = y * dispWidth;
+            byte[] src = ioRegion.getBuffer(offset + byteWidth(width));
 
             int[] palette = lastPalette;
             int planeMask = mask16[attributeRegister[AR_INDEX_COLOR_PLANE_ENABLE] & 0xf];
             width >>>= 3;
 
             do {
-                int data = ioRegion.getDoubleWord(offset);
+                int data = (int)INT_VIEW.get(src, offset);
                 data &= planeMask;
 
                 int v = expand2[data & 0xff];
@@ -2040,15 +2403,16 @@ public class DefaultVGACard extends AbstractPCIDevice implements VGACard {
 
         @Override
         void drawLine(int offset, int width, int y, int dispWidth) {
-            int[] dest = getDisplayBuffer();
+            int[] dest = rawImageData;
             int index = y * dispWidth;
+            byte[] src = ioRegion.getBuffer(offset + byteWidth(width));
 
             int[] palette = lastPalette;
             int planeMask = mask16[attributeRegister[AR_INDEX_COLOR_PLANE_ENABLE] & 0xf];
             width >>>= 3;
 
             do {
-                int data = ioRegion.getDoubleWord(offset) & planeMask;
+                int data = (int)INT_VIEW.get(src, offset) & planeMask;
 
                 int v = expand4[data & 0xff];
                 data >>>= 8;
@@ -2081,15 +2445,16 @@ public class DefaultVGACard extends AbstractPCIDevice implements VGACard {
 
         @Override
         void drawLine(int offset, int width, int y, int dispWidth) {
-            int[] dest = getDisplayBuffer();
+            int[] dest = rawImageData;
             int index = y * dispWidth;
+            byte[] src = ioRegion.getBuffer(offset + byteWidth(width));
 
             int[] palette = lastPalette;
             int planeMask = mask16[attributeRegister[AR_INDEX_COLOR_PLANE_ENABLE] & 0xf];
             width >>>= 3;
 
             do {
-                int data = ioRegion.getDoubleWord(offset);
+                int data = (int)INT_VIEW.get(src, offset);
                 data &= planeMask;
 
                 int v = expand4[data & 0xff];
@@ -2120,18 +2485,23 @@ public class DefaultVGACard extends AbstractPCIDevice implements VGACard {
 
         @Override
         void drawLine(int offset, int width, int y, int dispWidth) {
-            int[] dest = getDisplayBuffer();
+            int[] dest = rawImageData;
             int index = y * dispWidth;
+            byte[] src = ioRegion.getBuffer(offset + byteWidth(width));
 
             int[] palette = lastPalette;
-            width >>>= 1;
+            int limit = index + (width & ~1);
 
-            do {
-                int val = palette[0xFF & ioRegion.getByte(offset++)];
+            for (; index + 16 <= limit; index += 16, offset += 8) {
+                long data = (long)LONG_VIEW.get(src, offset);
+                for (int i = 0; i < 16; i += 2, data >>>= 8)
+                    dest[index + i] = dest[index + i + 1] = palette[(int)data & 0xFF];
+            }
+            while (index < limit) {
+                int val = palette[0xFF & src[offset++]];
                 dest[index++] = val;
                 dest[index++] = val;
-                width--;
-            } while (width != 0);
+            }
 
             dirtyDisplayRegion(0, y, dispWidth, 1);
         }
@@ -2145,15 +2515,26 @@ public class DefaultVGACard extends AbstractPCIDevice implements VGACard {
 
         @Override
         void drawLine(int offset, int width, int y, int dispWidth) {
-            int[] dest = getDisplayBuffer();
+            int[] dest = rawImageData;
             int index = y * dispWidth;
+            byte[] src = ioRegion.getBuffer(offset + byteWidth(width));
 
             int[] palette = lastPalette;
-            do {
-                dest[index] = palette[0xFF & ioRegion.getByte(offset++)];
-                index++;
-                width--;
-            } while (width != 0);
+            int limit = index + width;
+
+            for (; index + 8 <= limit; index += 8, offset += 8) {
+                long data = (long)LONG_VIEW.get(src, offset);
+                dest[index] = palette[(int)data & 0xFF];
+                dest[index + 1] = palette[(int)(data >>> 8) & 0xFF];
+                dest[index + 2] = palette[(int)(data >>> 16) & 0xFF];
+                dest[index + 3] = palette[(int)(data >>> 24) & 0xFF];
+                dest[index + 4] = palette[(int)(data >>> 32) & 0xFF];
+                dest[index + 5] = palette[(int)(data >>> 40) & 0xFF];
+                dest[index + 6] = palette[(int)(data >>> 48) & 0xFF];
+                dest[index + 7] = palette[(int)(data >>> 56)];
+            }
+            while (index < limit)
+                dest[index++] = palette[0xFF & src[offset++]];
 
             dirtyDisplayRegion(0, y, dispWidth, 1);
         }
@@ -2167,21 +2548,27 @@ public class DefaultVGACard extends AbstractPCIDevice implements VGACard {
 
         @Override
         void drawLine(int offset, int width, int y, int dispWidth) {
-            int[] dest = getDisplayBuffer();
+            int[] dest = rawImageData;
+            byte[] src = ioRegion.getBuffer(offset + byteWidth(width));
 
             int i = y * dispWidth;
-            do {
-                int v = 0xffff & ioRegion.getWord(offset);
-                int r = v >>> 7 & 0xf8;
-                int g = v >>> 2 & 0xf8;
-                int b = v << 3 & 0xf8;
-                dest[i] = rgbToPixel(r, g, b);
-                offset += 2;
-                i++;
-            } while (--width != 0);
+            int limit = i + width;
+            for (; i + 4 <= limit; i += 4, offset += 8) {
+                long data = (long)LONG_VIEW.get(src, offset);
+                dest[i] = pixel15((int)data);
+                dest[i + 1] = pixel15((int)(data >>> 16));
+                dest[i + 2] = pixel15((int)(data >>> 32));
+                dest[i + 3] = pixel15((int)(data >>> 48));
+            }
+            for (; i < limit; i++, offset += 2)
+                dest[i] = pixel15((short)SHORT_VIEW.get(src, offset));
 
             dirtyDisplayRegion(0, y, dispWidth, 1);
         }
+
+        private int pixel15(int v) {
+            return rgbToPixel(v >>> 7 & 0xf8, v >>> 2 & 0xf8, v << 3 & 0xf8);
+        }
     }
 
     class DrawLine16 extends GraphicsUpdater {
@@ -2192,21 +2579,27 @@ public class DefaultVGACard extends AbstractPCIDevice implements VGACard {
 
         @Override
         void drawLine(int offset, int width, int y, int dispWidth) {
-            int[] dest = getDisplayBuffer();
+            int[] dest = rawImageData;
+            byte[] src = ioRegion.getBuffer(offset + byteWidth(width));
 
             int i = y * dispWidth;
-            do {
-                int v = 0xffff & ioRegion.getWord(offset);
-                int r = v >>> 8 & 0xf8;
-                int g = v >>> 3 & 0xfc;
-                int b = v << 3 & 0xf8;
-                dest[i] = rgbToPixel(r, g, b);
-                offset += 2;
-                i++;
-            } while (--width != 0);
+            int limit = i + width;
+            for (; i + 4 <= limit; i += 4, offset += 8) {
+                long data = (long)LONG_VIEW.get(src, offset);
+                dest[i] = pixel16((int)data);
+                dest[i + 1] = pixel16((int)(data >>> 16));
+                dest[i + 2] = pixel16((int)(data >>> 32));
+                dest[i + 3] = pixel16((int)(data >>> 48));
+            }
+            for (; i < limit; i++, offset += 2)
+                dest[i] = pixel16((short)SHORT_VIEW.get(src, offset));
 
             dirtyDisplayRegion(0, y, dispWidth, 1);
         }
+
+        private int pixel16(int v) {
+            return rgbToPixel(v >>> 8 & 0xf8, v >>> 3 & 0xfc, v << 3 & 0xf8);
+        }
     }
 
     class DrawLine24 extends GraphicsUpdater {
@@ -2217,16 +2610,23 @@ public class DefaultVGACard extends AbstractPCIDevice implements VGACard {
 
         @Override
         void drawLine(int offset, int width, int y, int dispWidth) {
-            int[] dest = getDisplayBuffer();
+            int[] dest = rawImageData;
+            byte[] src = ioRegion.getBuffer(offset + byteWidth(width));
 
             int i = y * dispWidth;
-            do {
-                int b = 0xFF & ioRegion.getByte(offset++);
-                int g = 0xFF & ioRegion.getByte(offset++);
-                int r = 0xFF & ioRegion.getByte(offset++);
-
-                dest[i++] = rgbToPixel(r, g, b);
-            } while (--width != 0);
+            int limit = i + width;
+            /* three words hold four packed BGR pixels */
+            for (; i + 4 <= limit; i += 4, offset += 12) {
+                int w0 = (int)INT_VIEW.get(src, offset);
+                int w1 = (int)INT_VIEW.get(src, offset + 4);
+                int w2 = (int)INT_VIEW.get(src, offset + 8);
+                dest[i] = bgrToPixel(w0);
+                dest[i + 1] = bgrToPixel(w0 >>> 24 | w1 << 8);
+                dest[i + 2] = bgrToPixel(w1 >>> 16 | w2 << 16);
+                dest[i + 3] = bgrToPixel(w2 >>> 8);
+            }
+            for (; i < limit; i++, offset += 3)
+                dest[i] = bgrToPixel(0xFF & src[offset] | (0xFF & src[offset + 1]) << 8 | (0xFF & src[offset + 2]) << 16);
 
             dirtyDisplayRegion(0, y, dispWidth, 1);
         }
@@ -2240,17 +2640,18 @@ public class DefaultVGACard extends AbstractPCIDevice implements VGACard {
 
         @Override
         void drawLine(int offset, int width, int y, int dispWidth) {
-            int[] dest = getDisplayBuffer();
+            int[] dest = rawImageData;
+            byte[] src = ioRegion.getBuffer(offset + byteWidth(width));
 
             int i = y * dispWidth;
-            do {
-                int b = 0xff & ioRegion.getByte(offset++);
-                int g = 0xff & ioRegion.getByte(offset++);
-                int r = 0xff & ioRegion.getByte(offset++);
-                offset++;
-
-                dest[i++] = rgbToPixel(r, g, b);
-            } while (--width != 0);
+            int limit = i + width;
+            for (; i + 2 <= limit; i += 2, offset += 8) {
+                long data = (long)LONG_VIEW.get(src, offset);
+                dest[i] = bgrToPixel((int)data);
+                dest[i + 1] = bgrToPixel((int)(data >>> 32));
+            }
+            if (i < limit)
+                dest[i] = bgrToPixel((int)INT_VIEW.get(src, offset));
 
             dirtyDisplayRegion(0, y, dispWidth, 1);
         }
@@ -2338,6 +2739,8 @@ public class DefaultVGACard extends AbstractPCIDevice implements VGACard {
             lastScreenHeight = lastHeight = height;
             resizeDisplay(lastScreenWidth, lastScreenHeight);
         }
+        if (height > lineHashes.length)
+            lineHashes = new long[height];
 
         graphicUpdater.updateDisplay(width, height, dispWidth, fullUpdate, multiScan);
     }
@@ -2346,7 +2749,7 @@ public class DefaultVGACard extends AbstractPCIDevice implements VGACard {
         if (!fullUpdate || lastScreenWidth <= 0 || lastScreenHeight <= 0)
             return;
 
-        int[] rawBytes = getDisplayBuffer();
+        int[] rawBytes = rawImageData;
         int black = rgbToPixel(0, 0, 0);
         for (int i = rawBytes.length - 1; i >= 0; i--)
             rawBytes[i] = black;
@@ -2595,6 +2998,10 @@ public class DefaultVGACard extends AbstractPCIDevice implements VGACard {
         vbeRegs[VBE_DISPI_INDEX_ID] = VBE_DISPI_ID0;
         vbeBankMask = (VGA_RAM_SIZE >>> 16) - 1;
 
+        if (retraceTimer != null)
+            retraceTimer.disable();
+        clock = null;
+        invalidateFrame();
         super.reset();
     }
 
@@ -2621,6 +3028,11 @@ public class DefaultVGACard extends AbstractPCIDevice implements VGACard {
 
     @Override
     public void acceptComponent(HardwareComponent component) {
+        if (component instanceof Clock && renderCard != null && clock == null) {
+            clock = (Clock)component;
+            retraceTimer = clock.newTimer(this);
+            retraceTimer.setExpiry(clock.getEmulatedNanos() + getRetracePeriod());
+        }
         if (component instanceof PCIBus && component.initialised()) {
             ((PCIBus)component).registerDevice(this);
             pciRegistered = true;
@@ -2638,22 +3050,36 @@ public class DefaultVGACard extends AbstractPCIDevice implements VGACard {
     @Override
     public void setMonitor(Monitor monitor) {
         this.monitor = monitor;
+        if (renderCard != null)
+            renderCard.setMonitor(monitor);
     }
 
     @Override
     public void paintOnMonitor(Graphics2D g) {
+        if (renderCard != null) {
+            renderCard.paintOnMonitor(g);
+            return;
+        }
+
         Dimension s = monitor.getSize();
 
         g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BICUBIC);
-        g.drawImage(buffer, 0, 0, s.width, s.height, 0, 0, width, height, null);
+        g.drawImage(displayImage, 0, 0, s.width, s.height, 0, 0, width, height, null);
     }
 
     @Override
     public void prepareUpdate() {
+        if (renderCard != null) {
+            renderCard.prepareUpdate();
+            return;
+        }
+
         xmin = width;
         xmax = 0;
         ymin = height;
         ymax = 0;
+        dirtyRegions.clear();
+        dirtyRegionsOverflow = false;
     }
 
     @Override
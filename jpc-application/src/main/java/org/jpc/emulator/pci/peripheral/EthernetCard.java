@@ -40,6 +40,8 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -50,6 +52,7 @@ import org.jpc.emulator.pci.IOPortIORegion;
 import org.jpc.emulator.pci.IORegion;
 import org.jpc.support.EthernetOutput;
 import org.jpc.support.EthernetProxy;
+import org.jpc.support.PacketCapture;
 
 /**
  * Realtek 8029 (AS) Emulation based on the Bochs ne2000 emulation
@@ -163,6 +166,22 @@ public class EthernetCard extends AbstractPCIDevice {
     private byte[] memory;
     private EthernetIORegion ioRegion;
 
+    private volatile PacketCapture capture;
+
+    private Executor deliveryExecutor;
+    private final AtomicBoolean deliveryScheduled = new AtomicBoolean();
+    private boolean receiveStalled;
+    private final Runnable deliverPackets = new Runnable() {
+        public void run() {
+            deliverPackets();
+        }
+    };
+    private final Runnable packetsArrived = new Runnable() {
+        public void run() {
+            scheduleDelivery();
+        }
+    };
+
     public EthernetCard() {
         this(null);
     }
@@ -180,6 +199,7 @@ public class EthernetCard extends AbstractPCIDevice {
         outputDevice = output;
         if (outputDevice == null)
             outputDevice = new EthernetProxy();
+        outputDevice.setPacketListener(packetsArrived);
         memory = new byte[NE2000_MEM_SIZE];
         phys = new byte[6];
         mult = new byte[8];
@@ -251,12 +271,78 @@ public class EthernetCard extends AbstractPCIDevice {
         //apparently this is another whole kettle of fish... so let's ignore it
     }
 
-    public void checkForPackets() {
-        receivePacket(outputDevice.getPacket());
+    /**
+     * Sets the executor that runs packet delivery on the thread executing the emulation. Until one
+     * is set, packets from the output device are left queued there.
+     * @param executor executor running tasks between blocks on the emulation thread
+     */
+    public void setDeliveryExecutor(Executor executor) {
+        deliveryExecutor = executor;
+        scheduleDelivery();
+    }
+
+    /**
+     * Taps frames the guest sends and receives into <code>capture</code>, or stops tapping if
+     * <code>null</code>.
+     * @param capture capture to record frames to
+     */
+    public void setPacketCapture(PacketCapture capture) {
+        this.capture = capture;
     }
 
     public void setOutputDevice(EthernetOutput out) {
+        outputDevice.setPacketListener(null);
         this.outputDevice = out;
+        out.setPacketListener(packetsArrived);
+        scheduleDelivery();
+    }
+
+    /**
+     * Called from any thread when packets may be waiting at the output device. Delivery happens
+     * once, later, on the emulation thread, however many packets arrive before it runs.
+     */
+    private void scheduleDelivery() {
+        Executor executor = deliveryExecutor;
+        if (executor != null && deliveryScheduled.compareAndSet(false, true)) {
+            executor.execute(deliverPackets);
+        }
+    }
+
+    /**
+     * Moves every waiting packet that fits into the receive ring and raises a single receive
+     * interrupt for the batch. Packets that do not fit stay at the output device until the guest
+     * frees ring space by moving the boundary pointer.
+     */
+    private void deliverPackets() {
+        deliveryScheduled.set(false);
+        boolean received = false;
+        while (true) {
+            if ((command & E8390_STOP) == 0 && receiveBufferFull()) {
+                receiveStalled = true;
+                break;
+            }
+            byte[] packet = outputDevice.getPacket();
+            if (packet == null)
+                break;
+            received |= receive(packet);
+        }
+        if (received) {
+            isr |= ENISR_RX;
+            updateIRQ();
+        }
+    }
+
+    private boolean receiveBufferFull() {
+        if (stop <= start)
+            return true;
+        int index = (curpag & 0xFF) << 8;
+        int bound = (boundary & 0xFF) << 8;
+        int avail;
+        if (index < bound)
+            avail = bound - index;
+        else
+            avail = (stop - start << 8) - (index - bound);
+        return avail < MAX_ETH_FRAME_SIZE + 4;
     }
 
     public void loadIOPorts(IOPortHandler ioportHandler, DataInput input) throws IOException {
@@ -510,13 +596,16 @@ public class EthernetCard extends AbstractPCIDevice {
             }
             //set start, and page select
             command = (byte)(command & ~0xc2 | data & 0xc2);
+            if (receiveStalled && (command & E8390_START) != 0) {
+                receiveStalled = false;
+                scheduleDelivery();
+            }
 
             //check for send packet command
             if ((command & 0x38) == 0x18) {
                 //setup dma read from receive ring
                 rsar = boundary << 8;
                 rcnt = (short)2;
-                System.out.println("After send packet command, setting rcnt to " + 2);
             }
 
             //check for start tx
@@ -542,6 +631,9 @@ public class EthernetCard extends AbstractPCIDevice {
                 //now send the packet
                 command |= 0x4;
                 int index = (tpsr & 0xFF) << 8;
+                PacketCapture tap = capture;
+                if (tap != null)
+                    tap.capture(PacketCapture.SENT, memory, index, tcnt);
                 outputDevice.sendPacket(memory, index, tcnt);
                 /* signal end of transfer */
                 tsr = ENTSR_PTX;
@@ -567,6 +659,10 @@ public class EthernetCard extends AbstractPCIDevice {
                 break;
             case EN0_BOUNDARY:
                 boundary = data;
+                if (receiveStalled) {
+                    receiveStalled = false;
+                    scheduleDelivery();
+                }
                 break;
             case EN0_TPSR:
                 tpsr = data;
@@ -889,49 +985,40 @@ public class EthernetCard extends AbstractPCIDevice {
         return crc >>> 26;
     }
 
-    public static void printPacket(byte[] oldpacket, int offset, int length) {
-        byte[] packet = new byte[length];
-        System.arraycopy(oldpacket, offset, packet, 0, length);
-        for (int j = 0; j < packet.length / 16; j++) {
-            for (int i = 0; i < 16; i++)
-                System.out.print(Integer.toHexString(packet[16 * j + i] & 0xFF));
-            System.out.println();
-        }
-        int remainder = packet.length % 16;
-        if (remainder != 0) {
-            for (int i = packet.length - remainder; i < packet.length; i++)
-                System.out.print(Integer.toHexString(packet[i] & 0xFF));
-            System.out.println();
+    public void receivePacket(byte[] packet) {
+        if (packet != null && receive(packet)) {
+            isr |= ENISR_RX;
+            updateIRQ();
         }
     }
 
-    public void receivePacket(byte[] packet) {
-        if (packet == null)
-            return;
+    /**
+     * Copies <code>packet</code> into the receive ring if the card accepts it, without raising
+     * the receive interrupt.
+     * @return <code>true</code> if the packet was accepted
+     */
+    private boolean receive(byte[] packet) {
         int totalLen, index, mcastIdx;
 
         if ((command & E8390_STOP) == 1) {
-            System.out.print("ETH told to stop");
-            return;
+            return false;
         }
 
         //check this
         if ((rxcr & 0x10) != 0) {
-            System.out.println("Receiving packet in prom mode");
             //promiscuous: receive all
         } else if (packet[0] == 0xFF && packet[1] == 0xFF && packet[2] == 0xFF && packet[3] == 0xFF && packet[4] == 0xFF
             && packet[5] == 0xFF) {
             //broadcast address
             if ((rxcr & 0x04) == 0)
-                return;
+                return false;
         } else if ((packet[0] & 1) != 0) {
         } else if (memory[0] == packet[0] && memory[2] == packet[1] && memory[4] == packet[2] && memory[6] == packet[3]
             && memory[8] == packet[4] && memory[10] == packet[5]) {
             //this is us!
         } else {
-            System.out.println("Weird ETH packet recieved");
-            printPacket(packet, 0, packet.length);
-            return;
+            //not for us
+            return false;
         }
 
         //if buffer is too small expand it!!!!!!!!!!!!
@@ -969,9 +1056,10 @@ public class EthernetCard extends AbstractPCIDevice {
             System.arraycopy(packet, endSize - 4, memory, startIndex, packet.length + 4 - (endSize - 4));
         }
         curpag = (byte)next;
-        //signal that we have a packet
-        isr |= ENISR_RX;
-        updateIRQ();
+        PacketCapture tap = capture;
+        if (tap != null)
+            tap.capture(PacketCapture.RECEIVED, packet, 0, packet.length);
+        return true;
     }
 
     private class DefaultOutput extends EthernetOutput {
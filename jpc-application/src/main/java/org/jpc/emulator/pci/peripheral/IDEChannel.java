@@ -909,6 +909,8 @@ class IDEChannel extends AbstractHardwareComponent implements IODevice {
 
         /* set to 1 set disable mult support */
         public static final int MAX_MULT_SECTORS = 16;
+        /* cd sectors buffered per drive read on ATAPI READ commands */
+        public static final int MAX_CD_SECTORS = 32;
 
         /* ATAPI defines */
         public static final int ATAPI_PACKET_SIZE = 12;
@@ -1061,7 +1063,11 @@ class IDEChannel extends AbstractHardwareComponent implements IODevice {
                     this.isCDROM = true;
                 }
             }
-            ioBuffer = new byte[MAX_MULT_SECTORS * 512 + 4];
+            if (isCDROM) {
+                ioBuffer = new byte[MAX_CD_SECTORS * 2352];
+            } else {
+                ioBuffer = new byte[MAX_MULT_SECTORS * 512 + 4];
+            }
             identifyData = new byte[512];
             identifySet = false;
             lba48 = false;
@@ -1810,6 +1816,7 @@ class IDEChannel extends AbstractHardwareComponent implements IODevice {
             packetTransferSize = size;
             elementaryTransferSize = 0;
             ioBufferIndex = 0;
+            ioBufferSize = size;
 
             status = READY_STAT;
             atapiCommandReplyEnd();
@@ -1826,7 +1833,8 @@ class IDEChannel extends AbstractHardwareComponent implements IODevice {
         private void atapiCommandReadDMA(int lba, int numSectors, int sectorSize) {
             this.lba = lba;
             packetTransferSize = numSectors * sectorSize;
-            ioBufferIndex = sectorSize;
+            ioBufferIndex = 0;
+            ioBufferSize = 0;
             cdSectorSize = sectorSize;
 
             status = READY_STAT | DRQ_STAT;
@@ -1837,7 +1845,8 @@ class IDEChannel extends AbstractHardwareComponent implements IODevice {
             this.lba = lba;
             packetTransferSize = numSectors * sectorSize;
             elementaryTransferSize = 0;
-            ioBufferIndex = sectorSize;
+            ioBufferIndex = 0;
+            ioBufferSize = 0;
             cdSectorSize = sectorSize;
 
             status = READY_STAT;
@@ -1851,14 +1860,12 @@ class IDEChannel extends AbstractHardwareComponent implements IODevice {
                 nSector = nSector & ~7 | ATAPI_INT_REASON_IO | ATAPI_INT_REASON_CD;
                 setIRQ();
             } else {
-                /* see if a new sector must be read */
-                if (lba != -1 && ioBufferIndex >= cdSectorSize) {
-                    cdReadSector(lba, ioBuffer, cdSectorSize);
-                    lba++;
-                    ioBufferIndex = 0;
+                /* see if new sectors must be read */
+                if (lba != -1 && ioBufferIndex >= ioBufferSize) {
+                    cdFillBuffer();
                 }
                 if (elementaryTransferSize > 0) { // there is some data left to transmit in this elementary transfer
-                    int size = Math.min(cdSectorSize - ioBufferIndex, elementaryTransferSize);
+                    int size = Math.min(ioBufferSize - ioBufferIndex, elementaryTransferSize);
                     transferStart(ioBuffer, ioBufferIndex, size, ETF_ATAPI_COMMAND_REPLY_END);
                     packetTransferSize -= size;
                     elementaryTransferSize -= size;
@@ -1881,10 +1888,8 @@ class IDEChannel extends AbstractHardwareComponent implements IODevice {
                     lcyl = (byte)size;
                     hcyl = (byte)(size >>> 8);
                     elementaryTransferSize = size;
-                    /* we cannot transmit more than one sector at a time */
-                    if (lba != -1) {
-                        size = Math.min(cdSectorSize - ioBufferIndex, size);
-                    }
+                    /* we cannot transmit more than is buffered at a time */
+                    size = Math.min(ioBufferSize - ioBufferIndex, size);
                     transferStart(ioBuffer, ioBufferIndex, size, ETF_ATAPI_COMMAND_REPLY_END);
                     packetTransferSize -= size;
                     elementaryTransferSize -= size;
@@ -1928,22 +1933,15 @@ class IDEChannel extends AbstractHardwareComponent implements IODevice {
         }
 
         private int atapiCommandReadDMACallback(int address, int size) {
-            System.out.println("CD DMA callback read");
             int originalSize = size;
             while (size > 0) {
                 if (packetTransferSize <= 0) {
                     break;
                 }
-                int length = cdSectorSize - ioBufferIndex;
-                if (length <= 0) {
-                    lba++;
-                    ioBufferIndex = 0;
-                    length = cdSectorSize;
+                if (ioBufferIndex >= ioBufferSize) {
+                    cdFillBuffer();
                 }
-                if (length > size) {
-                    length = size;
-                }
-                cdReadSector(lba, ioBuffer, length);
+                int length = Math.min(ioBufferSize - ioBufferIndex, size);
                 bmdma.writeMemory(address, ioBuffer, ioBufferIndex, length);
                 packetTransferSize -= length;
                 ioBufferIndex += length;
@@ -2074,26 +2072,43 @@ class IDEChannel extends AbstractHardwareComponent implements IODevice {
             System.out.println("DMA reading sector: " + sector);
         }
 
-        private void cdReadSector(int lba, byte[] buffer, int sectorSize) {
+        /**
+         * Refills <code>ioBuffer</code> with as many of the remaining sectors of the current
+         * ATAPI read as it will hold, using a single read of the underlying drive.
+         */
+        private void cdFillBuffer() {
+            int remaining = (packetTransferSize + cdSectorSize - 1) / cdSectorSize;
+            int count = Math.max(1, Math.min(remaining, ioBuffer.length / cdSectorSize));
+            cdReadSectors(lba, count, ioBuffer, cdSectorSize);
+            lba += count;
+            ioBufferIndex = 0;
+            ioBufferSize = count * cdSectorSize;
+        }
+
+        private void cdReadSectors(int lba, int count, byte[] buffer, int sectorSize) {
             switch (sectorSize) {
             case 2048:
-                drive.read((0xffffffffL & lba) << 2, buffer, 4);
+                drive.read((0xffffffffL & lba) << 2, buffer, 4 * count);
                 break;
             case 2352:
-                drive.read((0xffffffffL & lba) << 2, buffer, 4);
-                System.arraycopy(buffer, 0, buffer, 16, 2048);
-
-                /* sync bytes */
-                buffer[0] = 0x00;
-                for (int i = 1; i < 11; i++) {
-                    buffer[i] = (byte)0xff;
-                }
-                buffer[11] = 0x00;
-                lbaToMSF(buffer, 12, lba); // MSF
-                buffer[12 + 3] = 0x01; // mode 1 data
+                drive.read((0xffffffffL & lba) << 2, buffer, 4 * count);
+                /* spread the user data out from the back so no sector is overwritten before it moves */
+                for (int s = count - 1; s >= 0; s--) {
+                    int offset = s * 2352;
+                    System.arraycopy(buffer, s * 2048, buffer, offset + 16, 2048);
+
+                    /* sync bytes */
+                    buffer[offset] = 0x00;
+                    for (int i = 1; i < 11; i++) {
+                        buffer[offset + i] = (byte)0xff;
+                    }
+                    buffer[offset + 11] = 0x00;
+                    lbaToMSF(buffer, offset + 12, lba + s); // MSF
+                    buffer[offset + 12 + 3] = 0x01; // mode 1 data
 
-                for (int i = 2064; i < 2352; i++) {
-                    buffer[i] = 0;
+                    for (int i = 2064; i < 2352; i++) {
+                        buffer[offset + i] = 0;
+                    }
                 }
                 break;
             default:
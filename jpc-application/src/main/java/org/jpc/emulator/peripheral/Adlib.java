@@ -388,6 +388,10 @@ public class Adlib extends AbstractHardwareComponent implements IODevice {
     private final Mixer.MIXER_Handler OPL_CallBack = new Mixer.MIXER_Handler() {
         @Override
         public void call(/*Bitu*/int len) {
+            if (Mixer.MIXER_Discarding()) {
+                module.mixerChan.AddSilence();
+                return;
+            }
             module.handler.Generate(module.mixerChan, len);
             //Disable the sound generation after 30 seconds of silence
             if (timeSource.getEmulatedMicros() - module.lastUsed > 30000000) {
@@ -1,63 +1,84 @@
 package org.jpc.emulator.peripheral;
 
-import javax.sound.sampled.AudioFormat;
-import javax.sound.sampled.AudioSystem;
-import javax.sound.sampled.DataLine;
-import javax.sound.sampled.SourceDataLine;
+import java.io.IOException;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.jpc.j2se.Option;
 
 /*
  * Handle the Music output, i.e. Midi Sound
  */
 public class AudioLayer {
+    private static final Logger Log = Logger.getLogger(AudioLayer.class.getName());
     private static byte[] audioBuffer;
-    public static SourceDataLine line;
-    private static boolean audioThreadExit = false;
+    private static AudioSink sink;
+    private static volatile boolean audioThreadExit = false;
 
     private static Thread audioThread;
 
+    /* Returns whether -sounddevice selects the Sound Blaster, with any audio sink */
+    public static boolean isSoundBlaster(String device) {
+        return AudioSink.isSink(device);
+    }
+
     public static boolean open(int bufferSize, int freq) {
-        AudioFormat format = new AudioFormat(freq, 16, 2, true, false);
-        try {
-            DataLine.Info info = new DataLine.Info(SourceDataLine.class, format);
-            line = (SourceDataLine)AudioSystem.getLine(info);
-            line.open(format, bufferSize);
-            line.start();
-            audioThreadExit = false;
-            audioThread = new Thread() {
-                @Override
-                public void run() {
-                    while (!audioThreadExit) {
-                        boolean result;
-                        synchronized (Mixer.audioMutex) {
-                            result = Mixer.MIXER_CallBack(audioBuffer, audioBuffer.length);
-                        }
-                        if (result)
-                            line.write(audioBuffer, 0, audioBuffer.length);
-                        else {
-                            try {
-                                Thread.sleep(20);
-                            } catch (Exception e) {
-                            }
-                        }
-                    }
-                }
-            };
-            audioBuffer = new byte[512]; // this needs to be smaller than buffer size passed into open other line.write will block
-            audioThread.start();
+        String device = Option.sounddevice.value(AudioSink.DEFAULT);
+        if (!AudioSink.isSink(device) || device.equals("null"))
             return true;
+        try {
+            if (sink == null)
+                sink = AudioSink.open(device, bufferSize, freq);
         } catch (Exception e) {
-            e.printStackTrace();
+            Log.log(Level.WARNING, "cannot open sound device " + device, e);
             return false;
         }
+        final AudioSink out = sink;
+        final boolean realTime = out.isRealTime();
+        Mixer.MIXER_SetRealTime(realTime);
+        out.start();
+        audioThreadExit = false;
+        final PcmRing ring = Mixer.MIXER_GetOutput();
+        audioThread = new Thread("Audio Output") {
+            @Override
+            public void run() {
+                // only drains what the emulation thread has mixed, so never holds it up
+                try {
+                    while (!audioThreadExit) {
+                        // an empty ring only counts as an underrun when the sink is playing in real time
+                        int frames = realTime || ring.available() > 0 ? ring.read(audioBuffer, audioBuffer.length / 4) : 0;
+                        if (frames > 0)
+                            out.write(audioBuffer, frames * 4);
+                        else
+                            LockSupport.parkNanos(1000000);
+                    }
+                } catch (IOException e) {
+                    Log.log(Level.WARNING, "audio output failed", e);
+                }
+            }
+        };
+        audioThread.setDaemon(true);
+        audioBuffer = new byte[512]; // this needs to be smaller than buffer size passed into open other line.write will block
+        audioThread.start();
+        return true;
     }
 
     public static void stop() {
+        if (audioThread == null)
+            return;
         audioThreadExit = true;
         try {
             audioThread.join(2000);
         } catch (Exception e) {
         }
-        line.drain();
-        line.stop();
+        audioThread = null;
+        try {
+            sink.stop();
+        } catch (IOException e) {
+            Log.log(Level.WARNING, "audio output failed", e);
+        }
+        Log.log(Level.INFO, String.format("AUDIO: %d underruns, %d overruns, latency %d ms", Mixer.MIXER_GetUnderruns(),
+            Mixer.MIXER_GetOverruns(), Mixer.MIXER_GetLatency()));
     }
 }
@@ -0,0 +1,167 @@
+package org.jpc.emulator.peripheral;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.DataLine;
+import javax.sound.sampled.LineUnavailableException;
+import javax.sound.sampled.SourceDataLine;
+
+/*
+ * Somewhere for mixed 16 bit signed little endian stereo audio to go, chosen by -sounddevice:
+ *
+ *   sb16              the host's audio line through javax.sound
+ *   wav:$file         a WAV file
+ *   raw:$file         headerless PCM
+ *   tcp:$host:$port   headerless PCM streamed to a listening socket
+ *   null              nowhere; the mixer skips mixing altogether
+ *
+ * Sinks other than the audio line are not real time: they take audio as fast as the emulation
+ * produces it, so the recording follows emulated time exactly.
+ */
+abstract class AudioSink {
+    static final String DEFAULT = "sb16";
+
+    /* Returns whether device names the Sound Blaster with any of the sinks */
+    static boolean isSink(String device) {
+        return device.equals(DEFAULT) || device.equals("null") || device.startsWith("wav:") || device.startsWith("raw:")
+            || device.startsWith("tcp:");
+    }
+
+    /* Returns the sink named by device, or null for the discarding sink */
+    static AudioSink open(String device, int bufferSize, int freq) throws IOException, LineUnavailableException {
+        if (device.equals("null"))
+            return null;
+        if (device.startsWith("wav:"))
+            return new StreamSink(new FileOutputStream(device.substring(4)).getChannel(), freq, true);
+        if (device.startsWith("raw:"))
+            return new StreamSink(new FileOutputStream(device.substring(4)).getChannel(), freq, false);
+        if (device.startsWith("tcp:")) {
+            int colon = device.lastIndexOf(':');
+            if (colon <= 4)
+                throw new IOException("tcp sound device needs a port: " + device);
+            InetSocketAddress address = new InetSocketAddress(device.substring(4, colon), Integer.parseInt(device.substring(colon + 1)));
+            SocketChannel channel = SocketChannel.open(address);
+            channel.socket().setTcpNoDelay(true);
+            return new StreamSink(channel, freq, false);
+        }
+        return new LineSink(bufferSize, freq);
+    }
+
+    /* Whether the sink consumes audio at the host's playback rate */
+    abstract boolean isRealTime();
+
+    abstract void start();
+
+    /* Called while playback is paused; flushes anything buffered */
+    abstract void stop() throws IOException;
+
+    abstract void write(byte[] data, int length) throws IOException;
+
+    static class LineSink extends AudioSink {
+        private final SourceDataLine line;
+
+        LineSink(int bufferSize, int freq) throws LineUnavailableException {
+            AudioFormat format = new AudioFormat(freq, 16, 2, true, false);
+            DataLine.Info info = new DataLine.Info(SourceDataLine.class, format);
+            line = (SourceDataLine)AudioSystem.getLine(info);
+            line.open(format, bufferSize);
+        }
+
+        @Override
+        boolean isRealTime() {
+            return true;
+        }
+
+        @Override
+        void start() {
+            line.start();
+        }
+
+        @Override
+        void stop() {
+            line.drain();
+            line.stop();
+        }
+
+        @Override
+        void write(byte[] data, int length) {
+            line.write(data, 0, length);
+        }
+    }
+
+    /* Writes to a file or socket from the audio thread through a buffer, keeping any WAV header
+     * up to date on each flush so the file is playable even if JPC never exits cleanly */
+    static class StreamSink extends AudioSink {
+        private static final int WAV_HEADER = 44;
+
+        private final WritableByteChannel channel;
+        private final boolean wav;
+        private final ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        private final ByteBuffer sizes = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+        private long dataBytes;
+
+        StreamSink(WritableByteChannel channel, int freq, boolean wav) throws IOException {
+            this.channel = channel;
+            this.wav = wav;
+            if (wav) {
+                ByteBuffer header = ByteBuffer.allocate(WAV_HEADER).order(ByteOrder.LITTLE_ENDIAN);
+                header.put(new byte[]{'R', 'I', 'F', 'F'}).putInt(36).put(new byte[]{'W', 'A', 'V', 'E'});
+                header.put(new byte[]{'f', 'm', 't', ' '}).putInt(16).putShort((short)1).putShort((short)2);
+                header.putInt(freq).putInt(freq * 4).putShort((short)4).putShort((short)16);
+                header.put(new byte[]{'d', 'a', 't', 'a'}).putInt(0);
+                header.flip();
+                while (header.hasRemaining())
+                    channel.write(header);
+            }
+        }
+
+        @Override
+        boolean isRealTime() {
+            return false;
+        }
+
+        @Override
+        void start() {
+        }
+
+        @Override
+        void stop() throws IOException {
+            flush();
+        }
+
+        @Override
+        void write(byte[] data, int length) throws IOException {
+            if (buffer.remaining() < length)
+                flush();
+            buffer.put(data, 0, length);
+        }
+
+        private void flush() throws IOException {
+            buffer.flip();
+            dataBytes += buffer.remaining();
+            while (buffer.hasRemaining())
+                channel.write(buffer);
+            buffer.clear();
+            if (wav) {
+                FileChannel file = (FileChannel)channel;
+                writeSize(file, 4, 36 + dataBytes);
+                writeSize(file, 40, dataBytes);
+            }
+        }
+
+        private void writeSize(FileChannel file, long position, long size) throws IOException {
+            sizes.clear();
+            sizes.putInt((int)Math.min(size, 0xFFFFFFFFL)).flip();
+            file.write(sizes, position);
+        }
+    }
+}
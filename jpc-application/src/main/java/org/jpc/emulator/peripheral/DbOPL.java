@@ -535,6 +535,142 @@ public class DbOPL {
             }
         }
 
+        //Run the envelope for a whole block, storing the attenuation of every sample in env
+        //Returns false when all of them are silent
+        public boolean Envelope( /*Bitu*/int samples, /*Bit32s*/int[] env) {
+            int s = state;
+            if (s == OFF) {
+                return false;
+            }
+            /*Bit32u*/int level = currentLevel;
+            /*Bit32s*/int vol = volume;
+            /*Bit32u*/long rate = rateIndex;
+            boolean sustaining = (reg20 & MASK_SUSTAIN) != 0;
+            if (s == SUSTAIN && sustaining || s == ATTACK && attackAdd == 0) {
+                //Held notes keep the same volume for the whole block
+                java.util.Arrays.fill(env, 0, samples, level + vol);
+                return !ENV_SILENT(level + vol);
+            }
+            boolean audible = false;
+            for ( /*Bitu*/int i = 0; i < samples; i++) {
+                switch (s) {
+                case ATTACK:
+                    rate += attackAdd;
+                    /*Bit32s*/int change = (int)(rate >> RATE_SH);
+                    rate &= RATE_MASK;
+                    if (change != 0) {
+                        vol += ~vol * change >> 3;
+                        if (vol < ENV_MIN) {
+                            vol = ENV_MIN;
+                            rate = 0;
+                            s = DECAY;
+                        }
+                    }
+                    break;
+                case DECAY:
+                    rate += decayAdd;
+                    vol += (int)(rate >> RATE_SH);
+                    rate &= RATE_MASK;
+                    if (vol >= sustainLevel) {
+                        if (vol >= ENV_MAX) {
+                            vol = ENV_MAX;
+                            s = OFF;
+                        } else {
+                            rate = 0;
+                            s = SUSTAIN;
+                        }
+                    }
+                    break;
+                case SUSTAIN:
+                    if (sustaining) {
+                        break;
+                    }
+                case RELEASE:
+                    rate += releaseAdd;
+                    vol += (int)(rate >> RATE_SH);
+                    rate &= RATE_MASK;
+                    if (vol >= ENV_MAX) {
+                        vol = ENV_MAX;
+                        s = OFF;
+                    }
+                    break;
+                }
+                /*Bitu*/int total = level + vol;
+                env[i] = total;
+                audible |= !ENV_SILENT(total);
+            }
+            volume = vol;
+            rateIndex = rate;
+            if (s != state) {
+                SetState(s);
+            }
+            return audible;
+        }
+
+        //Generate a block of samples from the attenuations Envelope produced, modulated by mod unless
+        //that is null, either storing into or adding onto dest
+        public void Wave( /*Bitu*/int samples, /*Bit32s*/int[] env, boolean audible, /*Bit32s*/int[] mod, /*Bit32s*/int[] dest, boolean accumulate) {
+            /*Bit32u*/long index = waveIndex;
+            /*Bit32u*/int add = waveCurrent;
+            if (!audible) {
+                //Simply forward the wave
+                waveIndex = index + (long)add * samples;
+                if (!accumulate) {
+                    java.util.Arrays.fill(dest, 0, samples, 0);
+                }
+                return;
+            }
+            //Only the multiply table routine is used, so it is the only one done in blocks
+            /*Bit16s*/short[] wave = waveBase;
+            int base = waveBaseOff;
+            /*Bit32u*/int mask = waveMask;
+            for ( /*Bitu*/int i = 0; i < samples; i++) {
+                index += add;
+                /*Bitu*/int vol = env[i];
+                /*Bits*/int sample = 0;
+                if (!ENV_SILENT(vol)) {
+                    /*Bitu*/int w = (int)(index >> WAVE_SH);
+                    if (mod != null) {
+                        w += mod[i];
+                    }
+                    sample = wave[base + (w & mask)] * MulTable[vol >> ENV_EXTRA] >> MUL_SH;
+                }
+                if (accumulate) {
+                    dest[i] += sample;
+                } else {
+                    dest[i] = sample;
+                }
+            }
+            waveIndex = index;
+        }
+
+        //Generate a block for the first operator of a channel, modulated by its own feedback
+        //dest gets the output delayed by one sample, which is what modulates the following operators
+        public void Feedback( /*Bitu*/int samples, /*Bit32s*/int[] env, boolean audible, /*Bit32s*/int[] old, /*Bit8u*/int feedback, /*Bit32s*/int[] dest) {
+            /*Bit32u*/long index = waveIndex;
+            /*Bit32u*/int add = waveCurrent;
+            /*Bit16s*/short[] wave = waveBase;
+            int base = waveBaseOff;
+            /*Bit32u*/int mask = waveMask;
+            /*Bit32s*/int old0 = old[0];
+            /*Bit32s*/int old1 = old[1];
+            for ( /*Bitu*/int i = 0; i < samples; i++) {
+                //Do unsigned shift so we can shift out all bits but still stay in 10 bit range otherwise
+                /*Bit32s*/int mod = old0 + old1 >>> feedback;
+                old0 = old1;
+                index += add;
+                old1 = 0;
+                if (audible && !ENV_SILENT(env[i])) {
+                    /*Bitu*/int w = (int)(index >> WAVE_SH) + mod;
+                    old1 = wave[base + (w & mask)] * MulTable[env[i] >> ENV_EXTRA] >> MUL_SH;
+                }
+                dest[i] = old0;
+            }
+            old[0] = old0;
+            old[1] = old1;
+            waveIndex = index;
+        }
+
         public /*Bits*/int GetWave(/*Bitu*/int index, /*Bitu*/int vol) {
             if (DBOPL_WAVE == WAVE_HANDLER)
                 return waveHandler.call(index, vol << 3 - ENV_EXTRA);
@@ -877,59 +1013,67 @@ public class DbOPL {
                 Op(4).Prepare(chip);
                 Op(5).Prepare(chip);
             }
-            for ( /*Bitu*/int i = 0; i < samples; i++) {
-                //Early out for percussion handlers
-                if (mode == sm2Percussion) {
-                    GeneratePercussion(false, chip, output, offset + i);
-                    continue; //Prevent some unitialized value bitching
-                } else if (mode == sm3Percussion) {
-                    GeneratePercussion(true, chip, output, offset + i * 2);
-                    continue; //Prevent some unitialized value bitching
+            if (mode == sm2Percussion || mode == sm3Percussion) {
+                for ( /*Bitu*/int i = 0; i < samples; i++) {
+                    if (mode == sm2Percussion) {
+                        GeneratePercussion(false, chip, output, offset + i);
+                    } else {
+                        GeneratePercussion(true, chip, output, offset + i * 2);
+                    }
                 }
+                return chip.chan[index + 3];
+            }
 
-                //Do unsigned shift so we can shift out all bits but still stay in 10 bit range otherwise
-                /*Bit32s*/int mod = old[0] + old[1] >>> feedback;
-                old[0] = old[1];
-                old[1] = Op(0).GetSample(mod);
-                /*Bit32s*/int sample = 0;
-                /*Bit32s*/int out0 = old[0];
-                if (mode == sm2AM || mode == sm3AM) {
-                    sample = out0 + Op(1).GetSample(0);
-                } else if (mode == sm2FM || mode == sm3FM) {
-                    sample = Op(1).GetSample(out0);
-                } else if (mode == sm3FMFM) {
-                    /*Bits*/int next = Op(1).GetSample(out0);
-                    next = Op(2).GetSample(next);
-                    sample = Op(3).GetSample(next);
-                } else if (mode == sm3AMFM) {
-                    sample = out0;
-                    /*Bits*/int next = Op(1).GetSample(0);
-                    next = Op(2).GetSample(next);
-                    sample += Op(3).GetSample(next);
-                } else if (mode == sm3FMAM) {
-                    sample = Op(1).GetSample(out0);
-                    /*Bits*/int next = Op(2).GetSample(0);
-                    sample += Op(3).GetSample(next);
-                } else if (mode == sm3AMAM) {
-                    sample = out0;
-                    /*Bits*/int next = Op(1).GetSample(0);
-                    sample += Op(2).GetSample(next);
-                    sample += Op(3).GetSample(0);
+            //Every other mode is done an operator at a time over the whole block, in the order
+            //the samples flow, with the result of the channel ending up in mod
+            /*Bitu*/int count = (int)samples;
+            /*Bit32s*/int[] env = chip.blockEnvelope;
+            /*Bit32s*/int[] mod = chip.blockModulator;
+            /*Bit32s*/int[] carrier = chip.blockCarrier;
+            Operator op0 = Op(0);
+            op0.Feedback(count, env, op0.Envelope(count, env), old, feedback, mod);
+            Operator op1 = Op(1);
+            switch (mode) {
+            case sm2AM:
+            case sm3AM:
+                op1.Wave(count, env, op1.Envelope(count, env), null, mod, true);
+                break;
+            case sm2FM:
+            case sm3FM:
+                op1.Wave(count, env, op1.Envelope(count, env), mod, mod, false);
+                break;
+            case sm3FMFM:
+                op1.Wave(count, env, op1.Envelope(count, env), mod, mod, false);
+                Op(2).Wave(count, env, Op(2).Envelope(count, env), mod, mod, false);
+                Op(3).Wave(count, env, Op(3).Envelope(count, env), mod, mod, false);
+                break;
+            case sm3AMFM:
+                op1.Wave(count, env, op1.Envelope(count, env), null, carrier, false);
+                Op(2).Wave(count, env, Op(2).Envelope(count, env), carrier, carrier, false);
+                Op(3).Wave(count, env, Op(3).Envelope(count, env), carrier, mod, true);
+                break;
+            case sm3FMAM:
+                op1.Wave(count, env, op1.Envelope(count, env), mod, mod, false);
+                Op(2).Wave(count, env, Op(2).Envelope(count, env), null, carrier, false);
+                Op(3).Wave(count, env, Op(3).Envelope(count, env), carrier, mod, true);
+                break;
+            case sm3AMAM:
+                op1.Wave(count, env, op1.Envelope(count, env), null, carrier, false);
+                Op(2).Wave(count, env, Op(2).Envelope(count, env), carrier, mod, true);
+                Op(3).Wave(count, env, Op(3).Envelope(count, env), null, mod, true);
+                break;
+            }
+            if (mode == sm2AM || mode == sm2FM) {
+                for ( /*Bitu*/int i = 0; i < count; i++) {
+                    output[offset + i] += mod[i];
                 }
-                switch (mode) {
-                case sm2AM:
-                case sm2FM:
-                    output[offset + i] += sample;
-                    break;
-                case sm3AM:
-                case sm3FM:
-                case sm3FMFM:
-                case sm3AMFM:
-                case sm3FMAM:
-                case sm3AMAM:
-                    output[offset + i * 2 + 0] += sample & maskLeft;
-                    output[offset + i * 2 + 1] += sample & maskRight;
-                    break;
+            } else {
+                /*Bit32s*/int left = maskLeft;
+                /*Bit32s*/int right = maskRight;
+                for ( /*Bitu*/int i = 0; i < count; i++) {
+                    /*Bit32s*/int sample = mod[i];
+                    output[offset + i * 2 + 0] += sample & left;
+                    output[offset + i * 2 + 1] += sample & right;
                 }
             }
             switch (mode) {
@@ -981,6 +1125,11 @@ public class DbOPL {
         //18 channels with 2 operators each
         Channel[] chan = new Channel[19]; // last one is null
 
+        //Scratch blocks the channels generate their operators into, a Handler never asks for more than 512
+        /*Bit32s*/int[] blockEnvelope = new int[512];
+        /*Bit32s*/int[] blockModulator = new int[512];
+        /*Bit32s*/int[] blockCarrier = new int[512];
+
         /*Bit8u*/short reg104;
         /*Bit8u*/short reg08;
         /*Bit8u*/short reg04;
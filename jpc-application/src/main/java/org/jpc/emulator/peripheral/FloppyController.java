@@ -96,6 +96,7 @@ public class FloppyController implements IODevice, DMATransferCapable, HardwareC
     private static final int IOPORT_BASE = 0x3f0;
     private boolean drivesUpdated;
     private Timer resultTimer;
+    private Timer irqTimer, dmaTimer;
     private Clock clock;
     private int state;
     private boolean dmaEnabled;
@@ -104,6 +105,7 @@ public class FloppyController implements IODevice, DMATransferCapable, HardwareC
 
     /* Command FIFO */
     private byte[] fifo;
+    private byte[] trackBuffer = new byte[0];
     private int dataOffset;
     private int dataLength;
     private int dataState;
@@ -672,7 +674,7 @@ public class FloppyController implements IODevice, DMATransferCapable, HardwareC
                 drive.recalibrate();
                 resetFIFO();
                 if (Option.useBochs.isSet()) // time to read one sector at 300RPM, T = 200_000_000/sectorsPerTrack nS - only works with 150M Mhz IPS (32 milli S)
-                    clock.newTimer(new IRQTimer()).setExpiry(clock.getEmulatedNanos() + 32000000);
+                    irqTimer.setExpiry(clock.getEmulatedNanos() + 32000000);
                 else
                     raiseIRQ(0x20);
                 break;
@@ -903,9 +905,8 @@ public class FloppyController implements IODevice, DMATransferCapable, HardwareC
                 state |= CONTROL_BUSY;
                 // simulate a data transfer rate of a spinning platter at 300 rpm (each sector should take 200,000/sectorPerTrack micro seconds
                 if (Option.useBochs.isSet())
-                    clock.newTimer(new DMATimer())
-                        .setExpiry(clock.getEmulatedNanos() + 1000 * (200000 / drive.sectorCount)
-                            + 1000000000 / clock.getTickRate()/*make it trigger the instruction after this (round up)*/);
+                    dmaTimer.setExpiry(clock.getEmulatedNanos() + 1000 * (200000 / drive.sectorCount)
+                        + 1000000000 / clock.getTickRate()/*make it trigger the instruction after this (round up)*/);
                 else
                     dma.holdDmaRequest(DMA_CHANNEL & 3);
                 return;
@@ -973,6 +974,21 @@ public class FloppyController implements IODevice, DMATransferCapable, HardwareC
         int relativeOffset = dataOffset % SECTOR_LENGTH;
         int startOffset;
         for (startOffset = dataOffset; dataOffset < size;) {
+            if (relativeOffset == 0 && (dataDirection == DIRECTION_READ || dataDirection == DIRECTION_WRITE)) {
+                /* Whole sectors to the end of this side of the track go through in one block */
+                int sectors = Math.min((size - dataOffset) / SECTOR_LENGTH, lastSector(drive) - drive.sector + 1);
+                if (sectors > 1) {
+                    int length = transferSectors(channel, drive, sectors);
+                    if (length < 0)
+                        return sectors * SECTOR_LENGTH;
+                    if (length > 0) {
+                        dataOffset += length;
+                        drive.sector += sectors - 1;
+                        nextSector(drive);
+                        continue;
+                    }
+                }
+            }
             int length = Math.min(size - dataOffset, SECTOR_LENGTH - relativeOffset);
             if (dataDirection != DIRECTION_WRITE || length < SECTOR_LENGTH || relativeOffset != 0)
                 /* READ & SCAN commands and realign to a sector for WRITE */
@@ -1030,22 +1046,7 @@ public class FloppyController implements IODevice, DMATransferCapable, HardwareC
             dataOffset += length;
             relativeOffset = dataOffset % SECTOR_LENGTH;
             if (relativeOffset == 0)
-                /* Seek to next sector */
-                /* XXX: drive.sect >= drive.last_sect should be an
-                error in fact */
-                if (drive.sector >= drive.sectorCount || drive.sector == eot) {
-                    drive.sector = 1;
-                    if ((dataState & STATE_MULTI) != 0)
-                        if (drive.head == 0 && drive.headCount > 0)
-                            drive.head = 1;
-                        else {
-                            drive.head = 0;
-                            drive.track++;
-                        }
-                    else
-                        drive.track++;
-                } else
-                    drive.sector++;
+                nextSector(drive);
         }
 
         int length = dataOffset - startOffset;
@@ -1059,6 +1060,56 @@ public class FloppyController implements IODevice, DMATransferCapable, HardwareC
         return length;
     }
 
+    /* Last sector this side of the track that a transfer reaches before moving on */
+    private int lastSector(FloppyDrive drive) {
+        int last = 0xff & eot;
+        if (last < drive.sector || last > drive.sectorCount)
+            return drive.sectorCount;
+        return last;
+    }
+
+    /*
+     * Moves whole sectors between the drive and memory in one block, from the drive's current
+     * sector on. Returns the byte count, zero if the read failed so the sectors go one at a time, or
+     * -1 if a write failed and the transfer has been stopped.
+     */
+    private int transferSectors(DMAController.DMAChannel channel, FloppyDrive drive, int sectors) {
+        int length = sectors * SECTOR_LENGTH;
+        if (trackBuffer.length < length)
+            trackBuffer = new byte[length];
+        if (dataDirection == DIRECTION_READ) {
+            if (drive.read(drive.currentSector(), trackBuffer, sectors) < 0)
+                return 0;
+            channel.writeMemory(trackBuffer, 0, dataOffset, length);
+        } else {
+            channel.readMemory(trackBuffer, 0, dataOffset, length);
+            if (drive.write(drive.currentSector(), trackBuffer, sectors) < 0) {
+                stopTransfer((byte)0x60, (byte)0x00, (byte)0x00);
+                return -1;
+            }
+        }
+        return length;
+    }
+
+    private void nextSector(FloppyDrive drive) {
+        /* Seek to next sector */
+        /* XXX: drive.sect >= drive.last_sect should be an
+        error in fact */
+        if (drive.sector >= drive.sectorCount || drive.sector == eot) {
+            drive.sector = 1;
+            if ((dataState & STATE_MULTI) != 0)
+                if (drive.head == 0 && drive.headCount > 0)
+                    drive.head = 1;
+                else {
+                    drive.head = 0;
+                    drive.track++;
+                }
+            else
+                drive.track++;
+        } else
+            drive.sector++;
+    }
+
     static class FloppyDrive implements Hibernatable {
         static final int MOTOR_ON = 0x01; // motor on/off
 
@@ -1253,6 +1304,7 @@ public class FloppyController implements IODevice, DMATransferCapable, HardwareC
         irqDevice = null;
         clock = null;
         resultTimer = null;
+        irqTimer = dmaTimer = null;
         dma = null;
         //Really Empty?
         ioportRegistered = false;
@@ -1275,6 +1327,8 @@ public class FloppyController implements IODevice, DMATransferCapable, HardwareC
         if (component instanceof Clock && component.initialised()) {
             clock = (Clock)component;
             resultTimer = clock.newTimer(this);
+            irqTimer = clock.newTimer(new IRQTimer());
+            dmaTimer = clock.newTimer(new DMATimer());
         }
 
         if (component instanceof IOPortHandler && component.initialised()) {
@@ -161,6 +161,7 @@ public class Keyboard extends AbstractHardwareComponent implements IODevice {
     private int mouseButtons;
 
     private boolean ioportRegistered;
+    private Runnable outputBufferListener;
 
     private InterruptController irqDevice;
     private Processor cpu;
@@ -315,8 +316,11 @@ public class Keyboard extends AbstractHardwareComponent implements IODevice {
     }
 
     private byte readData() {
+        boolean wasFull = queue.length != 0;
         byte val = queue.readData();
         updateIRQ();
+        if (wasFull && outputBufferListener != null && queue.length == 0)
+            outputBufferListener.run();
         return val;
     }
 
@@ -806,6 +810,35 @@ public class Keyboard extends AbstractHardwareComponent implements IODevice {
         }
     }
 
+    /**
+     * Returns <code>true</code> if a key event passed in now would reach the guest straight away:
+     * the output buffer is empty, and neither the controller nor the keyboard has keys switched off.
+     */
+    public boolean isReadyForKeys() {
+        synchronized (queue) {
+            return queue.length == 0 && keyboardScanEnabled && 0 == (mode & KBD_MODE_DISABLE_KBD);
+        }
+    }
+
+    /**
+     * Returns <code>true</code> if the output buffer is empty and the controller has the mouse
+     * interface enabled.
+     */
+    public boolean isReadyForMouse() {
+        synchronized (queue) {
+            return queue.length == 0 && 0 == (mode & KBD_MODE_DISABLE_MOUSE);
+        }
+    }
+
+    /**
+     * Sets a task to run, on the emulation thread, each time the guest reads the last byte
+     * out of the output buffer.
+     * @param listener task to run, or <code>null</code>
+     */
+    public void setOutputBufferListener(Runnable listener) {
+        outputBufferListener = listener;
+    }
+
     @Override
     public boolean initialised() {
         return ioportRegistered && irqDevice != null && cpu != null && physicalAddressSpace != null && linearAddressSpace != null;
@@ -18,7 +18,6 @@ public class Mixer extends AbstractHardwareComponent {
     private static InterruptController irqDevice;
     private static long nextExpiry;
     private static Timer mix;
-    private static Timer mix_nosound;
 
     public interface MIXER_MixHandler {
         void call(/*Bit8u*/short[] sampdate, /*Bit32u*/int len);
@@ -92,257 +91,157 @@ public class Mixer extends AbstractHardwareComponent {
         }
 
         public void AddSamples(/*Bitu*/int len, Ptr data, boolean stereo, boolean signeddata, boolean nativeorder) {
-            /*Bits*/int[] diff = new int[2];
-            /*Bitu*/int mixpos = mixer.pos + done;
-            freq_index &= MIXER_REMAIN;
-            /*Bitu*/int pos = 0;
-            /*Bitu*/int new_pos = 0;
-
-            boolean starting = true;
-            for (;;) {
-                if (!starting)
-                    new_pos = freq_index >> MIXER_SHIFT;
-                if (starting || pos < new_pos) {
-                    if (!starting) {
-                        last[0] += diff[0];
-                        if (stereo)
-                            last[1] += diff[1];
-                        pos = new_pos;
-                    } else {
-                        starting = false;
-                    }
-                    if (pos >= len)
-                        return;
-                    if (data.dataWidth() == 1) {
-                        if (!signeddata) {
-                            if (stereo) {
-                                diff[0] = ((/*Bit8s*/byte)(data.get(pos * 2 + 0) ^ 0x80) << 8) - last[0];
-                                diff[1] = ((/*Bit8s*/byte)(data.get(pos * 2 + 1) ^ 0x80) << 8) - last[1];
-                            } else {
-                                diff[0] = ((/*Bit8s*/byte)(data.get(pos) ^ 0x80) << 8) - last[0];
-                            }
-                        } else {
-                            if (stereo) {
-                                diff[0] = (data.get(pos * 2 + 0) << 8) - last[0];
-                                diff[1] = (data.get(pos * 2 + 1) << 8) - last[1];
-                            } else {
-                                diff[0] = (data.get(pos) << 8) - last[0];
-                            }
-                        }
-                        //16bit and 32bit both contain 16bit data internally
-                    } else {
-                        if (signeddata) {
-                            if (stereo) {
-                                if (nativeorder) {
-                                    diff[0] = (short)data.get(pos * 2 + 0) - last[0];
-                                    diff[1] = (short)data.get(pos * 2 + 1) - last[1];
-                                } else {
-                                    // :TODO: ?
-                                    diff[0] = data.get(pos * 2) - last[0];
-                                    diff[1] = data.get(pos * 2 + 1) - last[1];
-                                }
-                            } else {
-                                if (nativeorder) {
-                                    diff[0] = (short)data.get(pos) - last[0];
-                                } else {
-                                    // :TODO: ?
-                                    diff[0] = data.get(pos) - last[0];
-                                }
-                            }
-                        } else {
-                            if (stereo) {
-                                if (nativeorder) {
-                                    diff[0] = data.get(pos * 2 + 0) - 32768 - last[0];
-                                    diff[1] = data.get(pos * 2 + 1) - 32768 - last[1];
-                                } else {
-                                    // :TODO: ?
-                                    diff[0] = data.get(pos * 2) - 32768 - last[0];
-                                    diff[1] = data.get(pos * 2 + 1) - 32768 - last[1];
-                                }
-                            } else {
-                                if (nativeorder) {
-                                    diff[0] = data.get(pos) - 32768 - last[0];
-                                } else {
-                                    // :TODO: ?
-                                    diff[0] = data.get(pos) - 32768 - last[0];
-                                }
-                            }
-                        }
-                    }
+            if (mixer.nosound) {
+                skip(len);
+                return;
+            }
+            int[] src = convertBuffer(len, stereo);
+            /*Bitu*/int count = stereo ? len * 2 : len;
+            if (data.dataWidth() == 1) {
+                for (int i = 0; i < count; i++)
+                    src[i] = signeddata ? data.get(i) << 8 : (/*Bit8s*/byte)(data.get(i) ^ 0x80) << 8;
+            } else {
+                //16bit and 32bit both contain 16bit data internally
+                for (int i = 0; i < count; i++) {
+                    if (!signeddata)
+                        src[i] = data.get(i) - 32768;
+                    else if (nativeorder)
+                        src[i] = (short)data.get(i);
+                    else
+                        src[i] = data.get(i); // :TODO: ?
                 }
-                /*Bits*/int diff_mul = freq_index & MIXER_REMAIN;
-                freq_index += freq_add;
-                mixpos &= MIXER_BUFMASK;
-                /*Bits*/int sample = last[0] + (diff[0] * diff_mul >> MIXER_SHIFT);
-                mixer.work[mixpos][0] += sample * volmul[0];
-                if (stereo)
-                    sample = last[1] + (diff[1] * diff_mul >> MIXER_SHIFT);
-                mixer.work[mixpos][1] += sample * volmul[1];
-                mixpos++;
-                done++;
             }
-        }
-
-        private interface getSample {
-            int call(int pos);
-
+            resample(len, src, stereo);
         }
 
         public void AddSamples(/*Bitu*/int len, short[] data, boolean stereo, boolean signeddata) {
-            /*Bits*/int[] diff = new int[2];
-            /*Bitu*/int mixpos = mixer.pos + done;
-            freq_index &= MIXER_REMAIN;
-            /*Bitu*/int pos = 0;
-            /*Bitu*/int new_pos = 0;
-
-            boolean starting = true;
-            for (;;) {
-                if (!starting)
-                    new_pos = freq_index >> MIXER_SHIFT;
-                if (starting || pos < new_pos) {
-                    if (!starting) {
-                        last[0] += diff[0];
-                        if (stereo)
-                            last[1] += diff[1];
-                        pos = new_pos;
-                    } else {
-                        starting = false;
-                    }
-                    if (pos >= len)
-                        return;
-                    if (signeddata) {
-                        if (stereo) {
-                            diff[0] = data[pos * 2 + 0] - last[0];
-                            diff[1] = data[pos * 2 + 1] - last[1];
-                        } else {
-                            diff[0] = data[pos] - last[0];
-                        }
-                    } else {
-                        if (stereo) {
-                            diff[0] = data[pos * 2 + 0] - 32768 - last[0];
-                            diff[1] = data[pos * 2 + 1] - 32768 - last[1];
-                        } else {
-                            diff[0] = data[pos] - 32768 - last[0];
-                        }
-                    }
-                }
-                /*Bits*/int diff_mul = freq_index & MIXER_REMAIN;
-                freq_index += freq_add;
-                mixpos &= MIXER_BUFMASK;
-                /*Bits*/int sample = last[0] + (diff[0] * diff_mul >> MIXER_SHIFT);
-                mixer.work[mixpos][0] += sample * volmul[0];
-                if (stereo)
-                    sample = last[1] + (diff[1] * diff_mul >> MIXER_SHIFT);
-                mixer.work[mixpos][1] += sample * volmul[1];
-                mixpos++;
-                done++;
+            if (mixer.nosound) {
+                skip(len);
+                return;
+            }
+            int[] src = convertBuffer(len, stereo);
+            /*Bitu*/int count = stereo ? len * 2 : len;
+            if (signeddata) {
+                for (int i = 0; i < count; i++)
+                    src[i] = data[i];
+            } else {
+                for (int i = 0; i < count; i++)
+                    src[i] = (data[i] & 0xFFFF) - 32768;
             }
+            resample(len, src, stereo);
         }
 
         public void AddSamples(/*Bitu*/int len, int[] data, boolean stereo, boolean signeddata) {
-            /*Bits*/int[] diff = new int[2];
-            /*Bitu*/int mixpos = mixer.pos + done;
-            freq_index &= MIXER_REMAIN;
-            /*Bitu*/int pos = 0;
-            /*Bitu*/int new_pos = 0;
-
-            boolean starting = true;
-            for (;;) {
-                if (!starting)
-                    new_pos = freq_index >> MIXER_SHIFT;
-                if (starting || pos < new_pos) {
-                    if (!starting) {
-                        last[0] += diff[0];
-                        if (stereo)
-                            last[1] += diff[1];
-                        pos = new_pos;
-                    } else {
-                        starting = false;
-                    }
-                    if (pos >= len)
-                        return;
-                    if (signeddata) {
-                        if (stereo) {
-                            diff[0] = data[pos * 2 + 0] - last[0];
-                            diff[1] = data[pos * 2 + 1] - last[1];
-                        } else {
-                            diff[0] = data[pos] - last[0];
-                        }
-                    } else {
-                        if (stereo) {
-                            diff[0] = data[pos * 2 + 0] - 32768 - last[0];
-                            diff[1] = data[pos * 2 + 1] - 32768 - last[1];
-                        } else {
-                            diff[0] = data[pos] - 32768 - last[0];
-                        }
-                    }
-                }
-                /*Bits*/int diff_mul = freq_index & MIXER_REMAIN;
-                freq_index += freq_add;
-                mixpos &= MIXER_BUFMASK;
-                /*Bits*/int sample = last[0] + (diff[0] * diff_mul >> MIXER_SHIFT);
-                mixer.work[mixpos][0] += sample * volmul[0];
-                if (stereo)
-                    sample = last[1] + (diff[1] * diff_mul >> MIXER_SHIFT);
-                mixer.work[mixpos][1] += sample * volmul[1];
-                mixpos++;
-                done++;
+            if (mixer.nosound) {
+                skip(len);
+                return;
+            }
+            if (signeddata) {
+                resample(len, data, stereo);
+                return;
             }
+            int[] src = convertBuffer(len, stereo);
+            /*Bitu*/int count = stereo ? len * 2 : len;
+            for (int i = 0; i < count; i++)
+                src[i] = data[i] - 32768;
+            resample(len, src, stereo);
         }
 
         public void AddSamples(/*Bitu*/int len, byte[] data, boolean stereo, boolean signeddata) {
-            /*Bits*/int[] diff = new int[2];
+            if (mixer.nosound) {
+                skip(len);
+                return;
+            }
+            int[] src = convertBuffer(len, stereo);
+            /*Bitu*/int count = stereo ? len * 2 : len;
+            if (signeddata) {
+                for (int i = 0; i < count; i++)
+                    src[i] = data[i] << 8;
+            } else {
+                for (int i = 0; i < count; i++)
+                    src[i] = (/*Bit8s*/byte)(data[i] ^ 0x80) << 8;
+            }
+            resample(len, src, stereo);
+        }
+
+        /* Account for the samples that resampling len input samples would produce, without
+         * producing them */
+        private void skip(/*Bitu*/int len) {
+            if (len <= 0)
+                return;
+            /*Bitu*/int index = freq_index & MIXER_REMAIN;
+            /*Bitu*/int count = (int)((((long)len << MIXER_SHIFT) - index + freq_add - 1) / freq_add);
+            freq_index = index + count * freq_add;
+            done += count;
+        }
+
+        /* Reusable block that incoming samples of any format are widened into before resampling */
+        private int[] convertBuffer(/*Bitu*/int len, boolean stereo) {
+            /*Bitu*/int count = stereo ? len * 2 : len;
+            if (convert.length < count)
+                convert = new int[Integer.highestOneBit(count - 1) << 1];
+            return convert;
+        }
+
+        /* Linearly interpolate a block of 16 bit samples from the channel rate to the mixer rate,
+         * scale by the channel volume and add into the work buffer */
+        private void resample(/*Bitu*/int len, int[] src, boolean stereo) {
+            if (len <= 0)
+                return;
+            int[] work = mixer.work;
             /*Bitu*/int mixpos = mixer.pos + done;
-            freq_index &= MIXER_REMAIN;
+            /*Bitu*/int index = freq_index & MIXER_REMAIN;
+            /*Bitu*/int add = freq_add;
+            /*Bits*/int vol0 = volmul[0], vol1 = volmul[1];
+            /*Bits*/int last0 = last[0], last1 = last[1];
             /*Bitu*/int pos = 0;
-            /*Bitu*/int new_pos = 0;
-
-            boolean starting = true;
-            for (;;) {
-                if (!starting)
-                    new_pos = freq_index >> MIXER_SHIFT;
-                if (starting || pos < new_pos) {
-                    if (!starting) {
-                        last[0] += diff[0];
-                        if (stereo)
-                            last[1] += diff[1];
+            /*Bitu*/int count = 0;
+            /*Bits*/int diff0, diff1;
+            if (stereo) {
+                diff0 = src[0] - last0;
+                diff1 = src[1] - last1;
+                for (;;) {
+                    /*Bitu*/int new_pos = index >> MIXER_SHIFT;
+                    if (pos < new_pos) {
+                        last0 += diff0;
+                        last1 += diff1;
                         pos = new_pos;
-                    } else {
-                        starting = false;
-                    }
-                    if (pos >= len)
-                        return;
-                    if (!signeddata) {
-                        if (stereo) {
-                            diff[0] = ((/*Bit8s*/byte)(data[pos * 2 + 0] ^ 0x80) << 8) - last[0];
-                            diff[1] = ((/*Bit8s*/byte)(data[pos * 2 + 1] ^ 0x80) << 8) - last[1];
-                        } else {
-                            diff[0] = ((/*Bit8s*/byte)(data[pos] ^ 0x80) << 8) - last[0];
-                        }
-                    } else {
-                        if (stereo) {
-                            diff[0] = (data[pos * 2 + 0] << 8) - last[0];
-                            diff[1] = (data[pos * 2 + 1] << 8) - last[1];
-                        } else {
-                            diff[0] = (data[pos] << 8) - last[0];
-                        }
+                        if (pos >= len)
+                            break;
+                        diff0 = src[pos * 2] - last0;
+                        diff1 = src[pos * 2 + 1] - last1;
                     }
+                    /*Bits*/int diff_mul = index & MIXER_REMAIN;
+                    index += add;
+                    /*Bitu*/int w = (mixpos + count & MIXER_BUFMASK) << 1;
+                    work[w] += (last0 + (diff0 * diff_mul >> MIXER_SHIFT)) * vol0;
+                    work[w + 1] += (last1 + (diff1 * diff_mul >> MIXER_SHIFT)) * vol1;
+                    count++;
                 }
-                /*Bits*/int diff_mul = freq_index & MIXER_REMAIN;
-                freq_index += freq_add;
-                mixpos &= MIXER_BUFMASK;
-                /*Bits*/int sample = last[0] + (diff[0] * diff_mul >> MIXER_SHIFT);
-                if (mixpos < 10) {
-                    System.out.printf("last[0]=%d diff[0]=%d diff_mull=%d \n", last[0], diff[0], diff_mul);
-                    System.out.printf("mixpos=%d 0=%d sample=%d volmul=%d\n", mixpos, mixer.work[mixpos][0], sample, volmul[0]);
+                last[1] = last1;
+            } else {
+                diff0 = src[0] - last0;
+                for (;;) {
+                    /*Bitu*/int new_pos = index >> MIXER_SHIFT;
+                    if (pos < new_pos) {
+                        last0 += diff0;
+                        pos = new_pos;
+                        if (pos >= len)
+                            break;
+                        diff0 = src[pos] - last0;
+                    }
+                    /*Bits*/int diff_mul = index & MIXER_REMAIN;
+                    index += add;
+                    /*Bits*/int sample = last0 + (diff0 * diff_mul >> MIXER_SHIFT);
+                    /*Bitu*/int w = (mixpos + count & MIXER_BUFMASK) << 1;
+                    work[w] += sample * vol0;
+                    work[w + 1] += sample * vol1;
+                    count++;
                 }
-                mixer.work[mixpos][0] += sample * volmul[0];
-                if (stereo)
-                    sample = last[1] + (diff[1] * diff_mul >> MIXER_SHIFT);
-                mixer.work[mixpos][1] += sample * volmul[1];
-                mixpos++;
-                done++;
             }
+            last[0] = last0;
+            freq_index = index;
+            done += count;
         }
 
         public void AddSamples_m8(/*Bitu*/int len, /*Bit8u*/byte[] data) {
@@ -409,6 +308,10 @@ public class Mixer extends AbstractHardwareComponent {
                 Log.log(Level.SEVERE, "Can't add, buffer full");
                 return;
             }
+            if (mixer.nosound) {
+                done = needed;
+                return;
+            }
             /*Bitu*/int outlen = needed - done;
             /*Bits*/int diff;
             freq_index = 0;
@@ -416,33 +319,34 @@ public class Mixer extends AbstractHardwareComponent {
             /*Bitu*/int mixpos = mixer.pos + done;
             done = needed;
             /*Bitu*/int pos = 0;
-            diff = data[0] - last[0];
+            int[] work = mixer.work;
+            /*Bits*/int vol0 = volmul[0], vol1 = volmul[1];
+            /*Bits*/int last0 = last[0];
+            diff = data[0] - last0;
             while (outlen-- != 0) {
                 /*Bitu*/int new_pos = freq_index >> MIXER_SHIFT;
                 if (pos < new_pos) {
                     pos = new_pos;
-                    last[0] += diff;
-                    diff = data[pos] - last[0];
+                    last0 += diff;
+                    diff = data[pos] - last0;
                 }
                 /*Bits*/int diff_mul = freq_index & MIXER_REMAIN;
                 freq_index += temp_add;
-                mixpos &= MIXER_BUFMASK;
-                /*Bits*/int sample = last[0] + (diff * diff_mul >> MIXER_SHIFT);
-                mixer.work[mixpos][0] += sample * volmul[0];
-                mixer.work[mixpos][1] += sample * volmul[1];
-                mixpos++;
+                /*Bits*/int sample = last0 + (diff * diff_mul >> MIXER_SHIFT);
+                /*Bitu*/int w = (mixpos++ & MIXER_BUFMASK) << 1;
+                work[w] += sample * vol0;
+                work[w + 1] += sample * vol1;
             }
+            last[0] = last0;
         }
 
         public void FillUp() {
-            synchronized (audioMutex) {
-                if (!enabled || done < mixer.done) {
-                    return;
-                }
-                // scale the sound so it is the right speed
-                float index = 1.0f;//set this to not scale for now. Pic.PIC_TickIndex();
-                Mix((/*Bitu*/int)(index * mixer.needed));
+            if (!enabled || done < mixer.done) {
+                return;
             }
+            // scale the sound so it is the right speed
+            float index = 1.0f;//set this to not scale for now. Pic.PIC_TickIndex();
+            Mix((/*Bitu*/int)(index * mixer.needed));
         }
 
         public void Enable(boolean _yesno) {
@@ -451,10 +355,8 @@ public class Mixer extends AbstractHardwareComponent {
             enabled = _yesno;
             if (enabled) {
                 freq_index = MIXER_REMAIN;
-                synchronized (audioMutex) {
-                    if (done < mixer.done)
-                        done = mixer.done;
-                }
+                if (done < mixer.done)
+                    done = mixer.done;
             }
         }
 
@@ -465,6 +367,7 @@ public class Mixer extends AbstractHardwareComponent {
         public /*Bitu*/int freq_add, freq_index;
         public /*Bitu*/int done, needed;
         public /*Bits*/int[] last = new int[2];
+        private int[] convert = new int[1024];
         public String name;
         public boolean enabled;
         public MixerChannel next;
@@ -531,18 +434,23 @@ public class Mixer extends AbstractHardwareComponent {
             }
         }
 
-        /*Bit32s*/int[][] work = new int[MIXER_BUFSIZE][2];
+        /* interleaved left/right samples, scaled up by the channel volumes */
+        /*Bit32s*/int[] work = new int[MIXER_BUFSIZE * 2];
         /*Bitu*/int pos, done;
         /*Bitu*/int needed, min_needed, max_needed;
         /*Bit32u*/long tick_add, tick_remain;
+        /*Bitu*/int latency, quiet_ticks;
+        long underruns_seen;
         FloatRef[] mastervol = new FloatRef[2];
         MixerChannel channels;
         boolean nosound;
+        boolean realtime = true;
         /*Bit32u*/int freq;
         /*Bit32u*/int blocksize;
     }
 
     private static _Mixer mixer;
+    private static PcmRing output;
 
     public static /*Bit8u*/byte[] MixTemp8 = new byte[MIXER_BUFSIZE];
     public static short[] MixTemp16 = new short[MIXER_BUFSIZE >> 1];
@@ -604,49 +512,20 @@ public class Mixer extends AbstractHardwareComponent {
         mixer.done = needed;
     }
 
+    /* All mixing happens on the emulation thread: every millisecond of emulated time the channels
+     * are mixed and the result handed to the output ring, which the audio thread drains. */
     private static TimerResponsive MIXER_Mix = new TimerResponsive() {
-        @Override
-        public void callback() {
-            synchronized (audioMutex) {
-                MIXER_MixData(mixer.needed);
-                mixer.tick_remain += mixer.tick_add;
-                mixer.needed += mixer.tick_remain >> MIXER_SHIFT;
-                mixer.tick_remain &= MIXER_REMAIN;
-                nextExpiry += 1000000;
-                mix.setExpiry(nextExpiry);
-            }
-        }
-
-        @Override
-        public int getType() {
-            return -1;
-        }
-    };
-
-    private static TimerResponsive MIXER_Mix_NoSound = new TimerResponsive() {
         @Override
         public void callback() {
             MIXER_MixData(mixer.needed);
-            /* Clear piece we've just generated */
-            for (/*Bitu*/int i = 0; i < mixer.needed; i++) {
-                mixer.work[mixer.pos][0] = 0;
-                mixer.work[mixer.pos][1] = 0;
-                mixer.pos = mixer.pos + 1 & MIXER_BUFMASK;
-            }
-            /* Reduce count in channels */
-            for (MixerChannel chan = mixer.channels; chan != null; chan = chan.next) {
-                if (chan.done > mixer.needed)
-                    chan.done -= mixer.needed;
-                else
-                    chan.done = 0;
-            }
+            MIXER_Output(mixer.needed);
             /* Set values for next tick */
             mixer.tick_remain += mixer.tick_add;
             mixer.needed = (int)(mixer.tick_remain >> MIXER_SHIFT);
             mixer.tick_remain &= MIXER_REMAIN;
             mixer.done = 0;
             nextExpiry += 1000000;
-            mix_nosound.setExpiry(nextExpiry);
+            mix.setExpiry(nextExpiry);
         }
 
         @Override
@@ -655,119 +534,112 @@ public class Mixer extends AbstractHardwareComponent {
         }
     };
 
-    static boolean MIXER_CallBack(byte[] stream, int len) {
-        /*Bitu*/int need = len / MIXER_SSIZE;
-        /*Bit16s*/ShortPtr output = new ShortPtr(stream, 0);
-        /*Bitu*/int reduce;
-        /*Bitu*/int pos, index, index_add;
-        /*Bits*/int sample;
-        /* Enough room in the buffer ? */
-        if (mixer.done < need) {
-            if (LOG_BUFFERS)
-                Log.log(Level.INFO, String.format("Full underrun need %d, have %d, min %d", need, mixer.done, mixer.min_needed));
-            if (need - mixer.done > need >> 7) //Max 1 percent stretch.
-                return false;
-            reduce = mixer.done;
-            index_add = (reduce << MIXER_SHIFT) / need;
-            mixer.tick_add = (mixer.freq + mixer.min_needed << MIXER_SHIFT) / 1000;
-        } else if (mixer.done < mixer.max_needed) {
-            /*Bitu*/int left = mixer.done - need;
-            if (left < mixer.min_needed) {
-                if (!Mixer_irq_important()) {
-                    /*Bitu*/int needed = mixer.needed - need;
-                    /*Bitu*/int diff = (mixer.min_needed > needed ? mixer.min_needed : needed) - left;
-                    mixer.tick_add = (mixer.freq + diff * 3 << MIXER_SHIFT) / 1000;
-                    left = 0; //No stretching as we compensate with the tick_add value
-                } else {
-                    left = mixer.min_needed - left;
-                    left = 1 + 2 * left / mixer.min_needed; //left=1,2,3
-                }
-                if (LOG_BUFFERS)
-                    Log.log(Level.INFO,
-                        String.format("needed underrun need %d, have %d, min %d, left %d", need, mixer.done, mixer.min_needed, left));
-                reduce = need - left;
-                index_add = (reduce << MIXER_SHIFT) / need;
-            } else {
-                reduce = need;
-                index_add = 1 << MIXER_SHIFT;
-                if (LOG_BUFFERS)
-                    Log.log(Level.INFO,
-                        String.format("regular run need %d, have %d, min %d, left %d", need, mixer.done, mixer.min_needed, left));
-
-                /* Mixer tick value being updated:
-                 * 3 cases:
-                 * 1) A lot too high. >division by 5. but maxed by 2* min to prevent too fast drops.
-                 * 2) A little too high > division by 8
-                 * 3) A little to nothing above the min_needed buffer > go to default value
-                 */
-                /*Bitu*/int diff = left - mixer.min_needed;
-                if (diff > mixer.min_needed << 1)
-                    diff = mixer.min_needed << 1;
-                if (diff > mixer.min_needed >> 1)
-                    mixer.tick_add = (mixer.freq - diff / 5 << MIXER_SHIFT) / 1000;
-                else if (diff > mixer.min_needed >> 4)
-                    mixer.tick_add = (mixer.freq - (diff >> 3) << MIXER_SHIFT) / 1000;
-                else
-                    mixer.tick_add = (mixer.freq << MIXER_SHIFT) / 1000;
-            }
+    /* Move freshly mixed samples out of the work buffer into the output ring */
+    private static void MIXER_Output(/*Bitu*/int len) {
+        if (mixer.nosound) {
+            /* nothing was mixed, so there is nothing to send or clear */
+            mixer.pos = mixer.pos + len & MIXER_BUFMASK;
         } else {
-            /* There is way too much data in the buffer */
-            if (LOG_BUFFERS)
-                Log.log(Level.INFO, String.format("overflow run need %d, have %d, min %d", need, mixer.done, mixer.min_needed));
-            if (mixer.done > MIXER_BUFSIZE)
-                index_add = MIXER_BUFSIZE - 2 * mixer.min_needed;
-            else
-                index_add = mixer.done - 2 * mixer.min_needed;
-            index_add = (index_add << MIXER_SHIFT) / need;
-            reduce = mixer.done - 2 * mixer.min_needed;
-            mixer.tick_add = (mixer.freq - mixer.min_needed / 5 << MIXER_SHIFT) / 1000;
+            MIXER_Send(len);
         }
-        /* Reduce done count in all channels */
+        /* Reduce count in channels */
         for (MixerChannel chan = mixer.channels; chan != null; chan = chan.next) {
-            if (chan.done > reduce)
-                chan.done -= reduce;
+            if (chan.done > len)
+                chan.done -= len;
             else
                 chan.done = 0;
         }
+        if (!mixer.nosound && mixer.realtime)
+            MIXER_Adapt();
+    }
 
-        // Reset mixer.tick_add when irqs are important
-        if (Mixer_irq_important())
-            mixer.tick_add = (mixer.freq << MIXER_SHIFT) / 1000;
+    private static void MIXER_Send(/*Bitu*/int len) {
+        /*Bitu*/int room = Math.min(output.free(), len);
+        if (room < len)
+            output.overrun();
+        int[] work = mixer.work;
+        for (/*Bitu*/int i = 0; i < len; i++) {
+            /*Bitu*/int w = mixer.pos << 1;
+            if (i < room)
+                output.put(i, MIXER_CLIP(work[w] >> MIXER_VOLSHIFT), MIXER_CLIP(work[w + 1] >> MIXER_VOLSHIFT));
+            work[w] = 0;
+            work[w + 1] = 0;
+            mixer.pos = mixer.pos + 1 & MIXER_BUFMASK;
+        }
+        if (room > 0)
+            output.publish(room);
+    }
 
-        mixer.done -= reduce;
-        mixer.needed -= reduce;
-        pos = mixer.pos;
-        mixer.pos = mixer.pos + reduce & MIXER_BUFMASK;
-        index = 0;
-        if (need != reduce) {
-            while (need-- != 0) {
-                /*Bitu*/int i = pos + (index >> MIXER_SHIFT) & MIXER_BUFMASK;
-                index += index_add;
-                sample = mixer.work[i][0] >> MIXER_VOLSHIFT;
-                output.setInc(MIXER_CLIP(sample));
-                sample = mixer.work[i][1] >> MIXER_VOLSHIFT;
-                output.setInc(MIXER_CLIP(sample));
-            }
-            /* Clean the used buffer */
-            while (reduce-- != 0) {
-                pos &= MIXER_BUFMASK;
-                mixer.work[pos][0] = 0;
-                mixer.work[pos][1] = 0;
-                pos++;
-            }
+    /* Keep the output ring near the target latency. Underruns at the audio thread raise the
+     * target, and it decays back after ten seconds without any. Around the target the mixing rate
+     * is nudged, as DOSBox does from its audio callback, so that emulated and host time drifting
+     * apart does not starve or flood the line. */
+    private static void MIXER_Adapt() {
+        long underruns = output.getUnderruns();
+        if (underruns != mixer.underruns_seen) {
+            mixer.underruns_seen = underruns;
+            mixer.latency = Math.min(mixer.latency + (mixer.latency >> 1), mixer.max_needed);
+            mixer.quiet_ticks = 0;
+            output.setTargetLatency(mixer.latency);
+            if (LOG_BUFFERS)
+                Log.log(Level.INFO, String.format("underrun, latency now %d samples", mixer.latency));
+        } else if (++mixer.quiet_ticks >= 10000 && mixer.latency > mixer.min_needed) {
+            mixer.latency = Math.max(mixer.min_needed, mixer.latency - (mixer.latency >> 3));
+            mixer.quiet_ticks = 0;
+            output.setTargetLatency(mixer.latency);
+        }
+
+        /*Bitu*/int have = output.available();
+        /*Bitu*/int target = mixer.latency;
+        if (have < target) {
+            mixer.tick_add = (mixer.freq + (target - have) * 3 << MIXER_SHIFT) / 1000;
         } else {
-            while (reduce-- != 0) {
-                pos &= MIXER_BUFMASK;
-                sample = mixer.work[pos][0] >> MIXER_VOLSHIFT;
-                output.setInc(MIXER_CLIP(sample));
-                sample = mixer.work[pos][1] >> MIXER_VOLSHIFT;
-                output.setInc(MIXER_CLIP(sample));
-                mixer.work[pos][0] = 0;
-                mixer.work[pos][1] = 0;
-                pos++;
-            }
+            /* 3 cases:
+             * 1) A lot too high. >division by 5. but maxed by 2* target to prevent too fast drops.
+             * 2) A little too high > division by 8
+             * 3) A little to nothing above the target > go to default value
+             */
+            /*Bitu*/int diff = Math.min(have - target, target << 1);
+            if (diff > target >> 1)
+                mixer.tick_add = (mixer.freq - diff / 5 << MIXER_SHIFT) / 1000;
+            else if (diff > target >> 4)
+                mixer.tick_add = (mixer.freq - (diff >> 3) << MIXER_SHIFT) / 1000;
+            else
+                mixer.tick_add = (mixer.freq << MIXER_SHIFT) / 1000;
+        }
+    }
+
+    /* Whether mixed audio goes nowhere, so channels may skip producing it */
+    public static boolean MIXER_Discarding() {
+        return mixer.nosound;
+    }
+
+    /* Sinks that are not real time take samples at exactly the mixer rate, without adapting the
+     * rate to keep the ring at a target latency */
+    static void MIXER_SetRealTime(boolean realtime) {
+        mixer.realtime = realtime;
+        if (!realtime) {
+            mixer.tick_add = (mixer.freq << MIXER_SHIFT) / 1000;
+            output.setTargetLatency(Integer.MAX_VALUE);
         }
-        return true;
+    }
+
+    /* The ring the audio thread plays from */
+    static PcmRing MIXER_GetOutput() {
+        return output;
+    }
+
+    public static long MIXER_GetUnderruns() {
+        return output == null ? 0 : output.getUnderruns();
+    }
+
+    public static long MIXER_GetOverruns() {
+        return output == null ? 0 : output.getOverruns();
+    }
+
+    /* Current target output latency in milliseconds */
+    public static int MIXER_GetLatency() {
+        return mixer == null ? 0 : mixer.latency * 1000 / mixer.freq;
     }
 
     public void MakeVolume(String scan, FloatRef vol0, FloatRef vol1) {
@@ -819,14 +691,12 @@ public class Mixer extends AbstractHardwareComponent {
         mixer = null;
     }
 
-    public static final Object audioMutex = new Object();
-
     public static void MIXER_Init() {
         mixer = new _Mixer();
 
         /* Read out config section */
         mixer.freq = Option.mixer_rate.intValue(SBlaster.OPL_RATE);
-        mixer.nosound = Option.mixer_nosound.value();
+        mixer.nosound = Option.mixer_nosound.value() || Option.sounddevice.value("").equals("null");
         mixer.blocksize = Option.mixer_blocksize.intValue(512);
 
         /* Initialize the internal stuff */
@@ -841,33 +711,15 @@ public class Mixer extends AbstractHardwareComponent {
         if (mixer.min_needed > 100)
             mixer.min_needed = 100;
         mixer.min_needed = mixer.freq * mixer.min_needed / 1000;
-        mixer.max_needed = mixer.blocksize * 2 + 2 * mixer.min_needed;
+        mixer.max_needed = mixer.freq / 4;
         mixer.needed = mixer.min_needed + 1;
+        mixer.latency = mixer.min_needed;
+        output = new PcmRing(mixer.freq);
+        output.setTargetLatency(mixer.latency);
 
-        if (mixer.nosound) {
+        if (mixer.nosound)
             Log.log(Level.INFO, "MIXER:No Sound Mode Selected.");
-            mixer.tick_add = (mixer.freq << MIXER_SHIFT) / 1000;
-            //Timer.TIMER_AddTickHandler(MIXER_Mix_NoSound);
-            mix_nosound = timeSource.newTimer(MIXER_Mix_NoSound);
-            nextExpiry = timeSource.getEmulatedNanos();
-            mix_nosound.setExpiry(nextExpiry);
-//        }
-//        else if (!AudioLayer.open(Option.mixer_javabuffer.intValue(8820), mixer.freq)) {
-//            else if (SDL_OpenAudio(&spec, &obtained) <0 ) {
-//                mixer.nosound = true;
-//                Log.log_msg("MIXER:Can't open audio: %s , running in nosound mode.",SDL_GetError());
-//                mixer.tick_add=((mixer.freq) << MIXER_SHIFT)/1000;
-//                Timer.TIMER_AddTickHandler(MIXER_Mix_NoSound);
-        } else {
-//                if((mixer.freq != obtained.freq) || (mixer.blocksize != obtained.samples))
-//                    Log.log_msg("MIXER:Got different values from SDL: freq %d, blocksize %d",obtained.freq,obtained.samples);
-//                mixer.freq=obtained.freq;
-//                mixer.blocksize=obtained.samples;
-            mixer.tick_add = (mixer.freq << MIXER_SHIFT) / 1000;
-            //Timer.TIMER_AddTickHandler(MIXER_Mix);
-
-//                SDL_PauseAudio(0);
-        }
+        mixer.tick_add = (mixer.freq << MIXER_SHIFT) / 1000;
     }
 
     @Override
@@ -0,0 +1,113 @@
+package org.jpc.emulator.peripheral;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Single producer, single consumer ring of 16 bit stereo frames between the mixer, which runs on
+ * the emulation thread, and the thread feeding the host audio device. Neither side locks; each
+ * owns one index and publishes it with an ordered write.
+ */
+final class PcmRing {
+    private final short[] samples;
+    private final int capacity;
+    private final int mask;
+    private final AtomicLong writeIndex = new AtomicLong();
+    private final AtomicLong readIndex = new AtomicLong();
+    private long writePosition; // producer's private copy of writeIndex
+    private volatile int targetLatency;
+    private boolean starved = true;
+
+    private volatile long underruns, overruns, skips;
+
+    PcmRing(int minFrames) {
+        capacity = Integer.highestOneBit(Math.max(minFrames, 256) - 1) << 1;
+        mask = capacity - 1;
+        samples = new short[capacity * 2];
+        targetLatency = capacity / 4;
+    }
+
+    int capacity() {
+        return capacity;
+    }
+
+    /* Frames written but not yet read, from either side */
+    int available() {
+        return (int)(writeIndex.get() - readIndex.get());
+    }
+
+    /* Producer side */
+
+    int free() {
+        return capacity - (int)(writePosition - readIndex.get());
+    }
+
+    /* Stores a frame offset frames past the last published one */
+    void put(int offset, short left, short right) {
+        int p = ((int)writePosition + offset & mask) << 1;
+        samples[p] = left;
+        samples[p + 1] = right;
+    }
+
+    void publish(int frames) {
+        writePosition += frames;
+        writeIndex.lazySet(writePosition);
+    }
+
+    void overrun() {
+        overruns++;
+    }
+
+    /* The latency the producer is aiming for; the consumer drops the oldest frames to get back to
+     * it if the backlog grows to several times as much */
+    void setTargetLatency(int frames) {
+        targetLatency = Math.min(frames, capacity / 4);
+    }
+
+    /* Consumer side */
+
+    /*
+     * Reads up to maxFrames frames into dest as 16 bit signed little
+     * endian stereo, returning the number of frames read.
+     */
+    int read(byte[] dest, int maxFrames) {
+        long r = readIndex.get();
+        long w = writeIndex.get();
+        int available = (int)(w - r);
+        if (available == 0) {
+            if (!starved) {
+                starved = true;
+                underruns++;
+            }
+            return 0;
+        }
+        starved = false;
+        int target = targetLatency;
+        if (available > 4 * target) {
+            r = w - target;
+            available = target;
+            skips++;
+        }
+        int frames = Math.min(available, maxFrames);
+        for (int i = 0, d = 0; i < frames; i++, d += 4) {
+            int p = ((int)r + i & mask) << 1;
+            short left = samples[p];
+            short right = samples[p + 1];
+            dest[d] = (byte)left;
+            dest[d + 1] = (byte)(left >> 8);
+            dest[d + 2] = (byte)right;
+            dest[d + 3] = (byte)(right >> 8);
+        }
+        readIndex.lazySet(r + frames);
+        return frames;
+    }
+
+    /* Number of times the consumer found the ring empty after it had been playing */
+    long getUnderruns() {
+        return underruns;
+    }
+
+    /* Number of times the producer found the ring full, or the consumer had to drop a backlog */
+    long getOverruns() {
+        return overruns + skips;
+    }
+}
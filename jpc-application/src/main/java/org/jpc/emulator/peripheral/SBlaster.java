@@ -1,5 +1,8 @@
 package org.jpc.emulator.peripheral;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -110,13 +113,16 @@ public class SBlaster extends AbstractHardwareComponent implements IODevice {
                 /*Bit8u*/ byte[] b8 = new byte[DMA_BUFSIZE];
                 /*Bit16s*/ short[] b16 = new short[DMA_BUFSIZE];
                 byte[] b16tmp = new byte[2 * DMA_BUFSIZE];
+                //Little endian view of b16tmp, so 16 bit data is converted with one bulk copy
+                ShortBuffer b16view = ByteBuffer.wrap(b16tmp).order(ByteOrder.LITTLE_ENDIAN).asShortBuffer();
             }
 
             Buf buf = new Buf();
             /*Bitu*/int bits;
             DMAController.DMAChannel chan;
-            int position;
             /*Bitu*/int remain_size;
+            //How far ahead of the mixer transfers are read, in samples at the dsp rate
+            /*Bitu*/int readahead;
         }
 
         Dma dma = new Dma();
@@ -186,6 +192,8 @@ public class SBlaster extends AbstractHardwareComponent implements IODevice {
             /*Bitu*/int base;
             /*Bitu*/int irq;
             /*Bit8u*/short dma8, dma16;
+            //Milliseconds of DMA data kept ahead of the mixer
+            /*Bitu*/int readahead;
         }
 
         Hw hw = new Hw();
@@ -1116,9 +1124,13 @@ public class SBlaster extends AbstractHardwareComponent implements IODevice {
         } else if (sb.dma.left <= sb.dma.min)
             size = sb.dma.left;
 
+        //The work buffers hold DMA_BUFSIZE units, the mixer asks again if it needs more
+        if (size >= DMA_BUFSIZE)
+            size = DMA_BUFSIZE - 1;
+
         switch (sb.dma.mode) {
         case DSP_DMA_2:
-            sb.dma.chan.readMemory(sb.dma.buf.b8, 0, sb.dma.position, size);
+            read = sb.dma.chan.read(sb.dma.buf.b8, 0, size);
             if (read != 0 && sb.adpcm.haveref) {
                 sb.adpcm.haveref = false;
                 sb.adpcm.reference.value = (short)(sb.dma.buf.b8[0] & 0xFF);
@@ -1134,8 +1146,7 @@ public class SBlaster extends AbstractHardwareComponent implements IODevice {
             sb.chan.AddSamples_m8(done, Mixer.MixTemp8);
             break;
         case DSP_DMA_3:
-            sb.dma.chan.readMemory(sb.dma.buf.b8, 0, sb.dma.position, size);
-            read = size;
+            read = sb.dma.chan.read(sb.dma.buf.b8, 0, size);
             if (read != 0 && sb.adpcm.haveref) {
                 sb.adpcm.haveref = false;
                 sb.adpcm.reference.value = (short)(sb.dma.buf.b8[0] & 0xFF);
@@ -1150,8 +1161,7 @@ public class SBlaster extends AbstractHardwareComponent implements IODevice {
             sb.chan.AddSamples_m8(done, Mixer.MixTemp8);
             break;
         case DSP_DMA_4:
-            sb.dma.chan.readMemory(sb.dma.buf.b8, 0, sb.dma.position, size);
-            read = size;
+            read = sb.dma.chan.read(sb.dma.buf.b8, 0, size);
             if (read != 0 && sb.adpcm.haveref) {
                 sb.adpcm.haveref = false;
                 sb.adpcm.reference.value = (short)(sb.dma.buf.b8[0] & 0xFF);
@@ -1166,8 +1176,7 @@ public class SBlaster extends AbstractHardwareComponent implements IODevice {
             break;
         case DSP_DMA_8:
             if (sb.dma.stereo) {
-                sb.dma.chan.readMemory(sb.dma.buf.b8, sb.dma.remain_size, sb.dma.position, size);
-                read = size;
+                read = sb.dma.chan.read(sb.dma.buf.b8, sb.dma.remain_size, size);
                 /*Bitu*/int total = read + sb.dma.remain_size;
                 if (!sb.dma.sign)
                     sb.chan.AddSamples_s8(total >> 1, sb.dma.buf.b8);
@@ -1179,8 +1188,7 @@ public class SBlaster extends AbstractHardwareComponent implements IODevice {
                 } else
                     sb.dma.remain_size = 0;
             } else {
-                sb.dma.chan.readMemory(sb.dma.buf.b8, 0, sb.dma.position, size);
-                read = size;
+                read = sb.dma.chan.read(sb.dma.buf.b8, 0, size);
                 if (!sb.dma.sign)
                     sb.chan.AddSamples_m8(read, sb.dma.buf.b8);
                 else
@@ -1188,17 +1196,16 @@ public class SBlaster extends AbstractHardwareComponent implements IODevice {
             }
             break;
         case DSP_DMA_16:
-        case DSP_DMA_16_ALIASED:
+        case DSP_DMA_16_ALIASED: {
+            /* size counts in DMA channel units, words on a 16-bit channel but bytes on the 8-bit
+               channel DSP_DMA_16_ALIASED plays through, and read is returned in the same units */
+            boolean aliased = sb.dma.mode == DSP_DMA_16_ALIASED;
+            /*Bitu*/int bytes = sb.dma.chan.read(sb.dma.buf.b16tmp, 0, aliased ? size : size << 1);
+            /*Bitu*/int samples = bytes >> 1;
+            read = aliased ? bytes : samples;
             if (sb.dma.stereo) {
-                /* In DSP_DMA_16_ALIASED mode temporarily divide by 2 to get number of 16-bit
-                   samples, because 8-bit DMA Read returns byte size, while in DSP_DMA_16 mode
-                   16-bit DMA Read returns word size */
-                sb.dma.chan.readMemory(sb.dma.buf.b16tmp, sb.dma.remain_size, sb.dma.position, 2 * size);//read=sb.dma.chan.Read(size,sb.dma.buf.b16, sb.dma.remain_size)
-                for (int j = 0; j < size; j++)
-                    sb.dma.buf.b16[j + sb.dma.remain_size] = (short)(sb.dma.buf.b16tmp[sb.dma.remain_size + 2 * j] & 0xff
-                        | sb.dma.buf.b16tmp[sb.dma.remain_size + 2 * j + 1] << 8);
-                read = size >> (sb.dma.mode == DSP_DMA_16_ALIASED ? 1 : 0);
-                /*Bitu*/int total = read + sb.dma.remain_size;
+                sb.dma.buf.b16view.get(0, sb.dma.buf.b16, sb.dma.remain_size, samples);
+                /*Bitu*/int total = samples + sb.dma.remain_size;
                 if (sb.dma.sign)
                     sb.chan.AddSamples_s16(total >>> 1, sb.dma.buf.b16);
                 else
@@ -1209,24 +1216,24 @@ public class SBlaster extends AbstractHardwareComponent implements IODevice {
                 } else
                     sb.dma.remain_size = 0;
             } else {
-                sb.dma.chan.readMemory(sb.dma.buf.b16tmp, 0, sb.dma.position, 2 * size);
-                for (int j = 0; j < size; j++)
-                    sb.dma.buf.b16[j] = (short)(sb.dma.buf.b16tmp[2 * j] & 0xff | sb.dma.buf.b16tmp[2 * j + 1] << 8);
-                read = size >> (sb.dma.mode == DSP_DMA_16_ALIASED ? 1 : 0);
+                sb.dma.buf.b16view.get(0, sb.dma.buf.b16, 0, samples);
                 if (sb.dma.sign)
-                    sb.chan.AddSamples_m16(read, sb.dma.buf.b16);
+                    sb.chan.AddSamples_m16(samples, sb.dma.buf.b16);
                 else
-                    sb.chan.AddSamples_m16u(read, sb.dma.buf.b16);
+                    sb.chan.AddSamples_m16u(samples, sb.dma.buf.b16);
             }
-            //restore buffer length value to byte size in aliased mode
-            if (sb.dma.mode == DSP_DMA_16_ALIASED)
-                read = read << 1;
             break;
+        }
         default:
             Log.log(Level.SEVERE, "Unhandled dma mode " + sb.dma.mode);
             sb.mode = MODE_NONE;
             return;
         }
+        if (read == 0) {
+            //The channel has nothing to give, masked or past its end, so don't let the mixer spin on us
+            sb.chan.AddSilence();
+            return;
+        }
         sb.dma.left -= read;
         if (sb.dma.left == 0) {
             if (sb.dma.mode >= DSP_DMA_16)
@@ -1250,8 +1257,7 @@ public class SBlaster extends AbstractHardwareComponent implements IODevice {
     private static void DMA_Silent_Event(/*Bitu*/int val) {
         if (sb.dma.left < val)
             val = sb.dma.left;
-        sb.dma.chan.readMemory(sb.dma.buf.b8, 0, sb.dma.position, val);
-        int read = val;
+        int read = sb.dma.chan.read(sb.dma.buf.b8, 0, Math.min(val, DMA_BUFSIZE));
         sb.dma.left -= read;
         if (sb.dma.left == 0) {
             if (sb.dma.mode >= DSP_DMA_16)
@@ -1340,6 +1346,7 @@ public class SBlaster extends AbstractHardwareComponent implements IODevice {
         sb.dma.rate = sb.freq * sb.dma.mul >> SB_SH;
         sb.dma.min = sb.dma.rate * 3 / 1000;
         sb.chan.SetFreq(freq);
+        sb.dma.readahead = freq * sb.hw.readahead / 1000;
         sb.dma.mode = mode;
         sb.dma.chan.registerEventHandler(DSP_DMA_CallBack);
         if (DEBUG) {
@@ -1441,7 +1448,6 @@ public class SBlaster extends AbstractHardwareComponent implements IODevice {
         @Override
         public int handleTransfer(DMAController.DMAChannel c, int position, int size) {
             sb.dma.chan = c;
-            sb.dma.position = position;
             throw new IllegalStateException("Figure this out bitch...");
         }
     };
@@ -1450,7 +1456,6 @@ public class SBlaster extends AbstractHardwareComponent implements IODevice {
         @Override
         public int handleTransfer(DMAController.DMAChannel chan, int position, int size) {
             sb.dma.chan = chan;
-            sb.dma.position = position;
             int total = sb.dma.left;
             throw new IllegalStateException("Figure this out too, bitch...");
         }
@@ -2237,6 +2242,7 @@ public class SBlaster extends AbstractHardwareComponent implements IODevice {
                 sb.dac.used = 0;
                 break;
             case MODE_DMA:
+                len += sb.dma.readahead;
                 len *= sb.dma.mul;
                 if ((len & SB_SH_MASK) != 0)
                     len += 1 << SB_SH;
@@ -2432,6 +2438,7 @@ public class SBlaster extends AbstractHardwareComponent implements IODevice {
         if (dma16bit > 0xff)
             dma16bit = 0xff;
         sb.hw.dma16 = (/*Bit8u*/short)(dma16bit & 0xff);
+        sb.hw.readahead = Math.max(0, Math.min(Option.sb_readahead.intValue(2), 50));
 
         sb.mixer.enabled = Option.sbmixer.isSet();
         sb.mixer.stereo = false;
@@ -36,25 +36,32 @@ package org.jpc.emulator.peripheral;
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
-import java.nio.charset.Charset;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.jpc.emulator.AbstractHardwareComponent;
 import org.jpc.emulator.HardwareComponent;
+import org.jpc.emulator.Timer;
+import org.jpc.emulator.TimerResponsive;
 import org.jpc.emulator.motherboard.IODevice;
 import org.jpc.emulator.motherboard.IOPortHandler;
 import org.jpc.emulator.motherboard.InterruptController;
+import org.jpc.support.Clock;
+import org.jpc.support.SerialBackend;
 
 /**
- * Emulates a standard 16450 UART.
+ * Emulates a 16550A UART.
+ * <p>
+ * Transmitted data passes straight from the transmit FIFO to the port's {@link SerialBackend}, and
+ * received data is pulled from it into the receive FIFO whenever there is room, so the line runs
+ * as fast as the guest drives it rather than at the programmed baud rate. The divisor only sets
+ * the character time used for the receive timeout interrupt. Without the FIFOs enabled the port
+ * behaves as a 16450, with a single byte in each direction.
  * @author Chris Dennis
  */
-public class SerialPort extends AbstractHardwareComponent implements IODevice {
+public class SerialPort extends AbstractHardwareComponent implements IODevice, TimerResponsive {
     private static final Logger LOGGING = Logger.getLogger(SerialPort.class.getName());
 
-    private static final Charset US_ASCII = Charset.forName("US-ASCII");
-
     private static final byte UART_LCR_DLAB = (byte)0x80; /* Divisor latch access bit */
 
     private static final byte UART_IER_MSI = 0x08; /* Enable Modem status interrupt */
@@ -69,6 +76,17 @@ public class SerialPort extends AbstractHardwareComponent implements IODevice {
     private static final byte UART_IIR_THRI = 0x02; /* Transmitter holding register empty */
     private static final byte UART_IIR_RDI = 0x04; /* Receiver data interrupt */
     private static final byte UART_IIR_RLSI = 0x06; /* Receiver line status interrupt */
+    private static final byte UART_IIR_CTI = 0x0C; /* Character timeout indication */
+    private static final byte UART_IIR_FIFO = (byte)0xC0; /* FIFOs enabled */
+
+    /*
+     * These are the definitions for the FIFO Control Register
+     */
+    private static final byte UART_FCR_ENABLE_FIFO = 0x01; /* Enable the FIFOs */
+    private static final byte UART_FCR_CLEAR_RCVR = 0x02; /* Clear the receive FIFO */
+    private static final byte UART_FCR_CLEAR_XMIT = 0x04; /* Clear the transmit FIFO */
+    private static final byte UART_FCR_DMA_SELECT = 0x08; /* DMA mode, no effect here */
+    private static final byte UART_FCR_TRIGGER_MASK = (byte)0xC0; /* Mask for the receive trigger level */
 
     /*
      * These are the definitions for the Modem Control Register
@@ -99,32 +117,48 @@ public class SerialPort extends AbstractHardwareComponent implements IODevice {
     private static final byte UART_LSR_PE = 0x04; /* Parity error indicator */
     private static final byte UART_LSR_OE = 0x02; /* Overrun error indicator */
     private static final byte UART_LSR_DR = 0x01; /* Receiver data ready */
+    private static final byte UART_LSR_ERRORS = UART_LSR_BI | UART_LSR_FE | UART_LSR_PE | UART_LSR_OE;
 
     private static final int[] ioPorts = { 0x3f8, 0x2f8, 0x3e8, 0x2e8 };
     private static final int[] irqLines = { 4, 3, 4, 3 };
 
-    private short divider;
+    private static final int FIFO_SIZE = 16;
+    private static final int FIFO_MASK = FIFO_SIZE - 1;
+    private static final int[] triggerLevels = { 1, 4, 8, 14 };
+    /* how often the backend is checked for input, and the FIFOs for timeouts, while there is any */
+    private static final long POLL_NANOS = 1000000L;
+    private static final long UART_CLOCK = 1843200L;
 
-    private byte receiverBufferRegister; /* receiver buffer register */
+    private short divider;
 
     private byte interruptEnableRegister; /* interrupt enable register */
     private byte interruptIORegister; /* interrupt I/O register */ /* read only */
+    private byte fifoControlRegister; /* FIFO control register */ /* write only */
 
     private byte lineControlRegister; /* line control register */
-    private byte lineStatusRegister; /* line status register */ /* read only */
+    private byte lineStatusRegister; /* line status register, error bits only */ /* read only */
 
     private byte modemControlRegister; /* modem control register */
     private byte modemStatusRegister; /* modem status register */
 
     private byte scratchRegister; /* scratch register */
 
+    private final byte[] receiveFifo = new byte[FIFO_SIZE];
+    private int receiveHead, receiveCount;
+    private final byte[] transmitFifo = new byte[FIFO_SIZE];
+    private int transmitHead, transmitCount;
+
     private boolean thrIPending; /* transmitter holding register interrupt */
+    private boolean timeoutPending; /* character timeout interrupt */
+    private long lastReceiveActivity;
+    private int irqLevel = -1;
     private int irq; /* irq channel */
     private int baseAddress; /* base I/O Port Pointer */
     private InterruptController irqDevice;
+    private Clock clock;
+    private Timer pollTimer;
 
-    private final StringBuilder serialOutputBuffer = new StringBuilder();
-    private final Logger serialOutput;
+    private SerialBackend backend;
 
     public SerialPort(int portNumber) {
         ioportRegistered = false;
@@ -135,76 +169,228 @@ public class SerialPort extends AbstractHardwareComponent implements IODevice {
         this.irq = SerialPort.irqLines[portNumber];
         this.baseAddress = SerialPort.ioPorts[portNumber];
 
-        this.lineStatusRegister = UART_LSR_TEMT | UART_LSR_THRE;
+        this.lineStatusRegister = 0;
         this.interruptIORegister = UART_IIR_NO_INT;
+        this.thrIPending = false;
 
-        serialOutput = Logger.getLogger(SerialPort.class.getName() + ".port" + portNumber);
+        backend = SerialBackend.log(Logger.getLogger(SerialPort.class.getName() + ".port" + portNumber));
+    }
+
+    /**
+     * Connects this port to <code>backend</code> in place of logging its output.
+     * @param backend host end of the line
+     */
+    public void setBackend(SerialBackend backend) {
+        this.backend = backend;
+        schedule();
+    }
+
+    public SerialBackend getBackend() {
+        return backend;
     }
 
     @Override
     public void saveState(DataOutput output) throws IOException {
         output.writeShort(divider);
-        output.writeByte(receiverBufferRegister);
         output.writeByte(interruptEnableRegister);
         output.writeByte(interruptIORegister);
+        output.writeByte(fifoControlRegister);
         output.writeByte(lineControlRegister);
         output.writeByte(modemControlRegister);
         output.writeByte(lineStatusRegister);
         output.writeByte(modemStatusRegister);
         output.writeByte(scratchRegister);
         output.writeBoolean(thrIPending);
+        output.writeBoolean(timeoutPending);
         output.writeInt(irq);
         output.writeInt(baseAddress);
+        output.writeInt(receiveCount);
+        for (int i = 0; i < receiveCount; i++)
+            output.writeByte(receiveFifo[receiveHead + i & FIFO_MASK]);
+        output.writeInt(transmitCount);
+        for (int i = 0; i < transmitCount; i++)
+            output.writeByte(transmitFifo[transmitHead + i & FIFO_MASK]);
+        pollTimer.saveState(output);
     }
 
     @Override
     public void loadState(DataInput input) throws IOException {
         ioportRegistered = false;
         divider = input.readShort();
-        receiverBufferRegister = input.readByte();
         interruptEnableRegister = input.readByte();
         interruptIORegister = input.readByte();
+        fifoControlRegister = input.readByte();
         lineControlRegister = input.readByte();
         modemControlRegister = input.readByte();
         lineStatusRegister = input.readByte();
         modemStatusRegister = input.readByte();
         scratchRegister = input.readByte();
         thrIPending = input.readBoolean();
+        timeoutPending = input.readBoolean();
         irq = input.readInt();
         baseAddress = input.readInt();
+        receiveHead = 0;
+        receiveCount = input.readInt();
+        for (int i = 0; i < receiveCount; i++)
+            receiveFifo[i] = input.readByte();
+        transmitHead = 0;
+        transmitCount = input.readInt();
+        for (int i = 0; i < transmitCount; i++)
+            transmitFifo[i] = input.readByte();
+        pollTimer.loadState(input);
+        irqLevel = -1;
+    }
+
+    private boolean fifoEnabled() {
+        return (fifoControlRegister & UART_FCR_ENABLE_FIFO) != 0;
+    }
+
+    private int fifoCapacity() {
+        return fifoEnabled() ? FIFO_SIZE : 1;
+    }
+
+    private int triggerLevel() {
+        return fifoEnabled() ? triggerLevels[(fifoControlRegister & 0xff) >>> 6] : 1;
+    }
+
+    private boolean loopback() {
+        return (modemControlRegister & UART_MCR_LOOP) != 0;
+    }
+
+    /* time on the line for one character at the programmed divisor and framing */
+    private long characterNanos() {
+        int divisor = divider & 0xffff;
+        if (divisor == 0)
+            divisor = 0x10000;
+        int bits = 1 + 5 + (lineControlRegister & 0x03) + ((lineControlRegister & 0x08) != 0 ? 1 : 0)
+            + ((lineControlRegister & 0x04) != 0 ? 2 : 1);
+        return divisor * 16L * bits * 1000000000L / UART_CLOCK;
     }
 
-    public int canReceive() {
-        if (0 == (lineStatusRegister & UART_LSR_DR))
-            return 1;
-        else
-            return 0;
+    /* Pull as much as fits from the backend into the receive FIFO */
+    private void fillReceiveFifo() {
+        if (loopback())
+            return;
+        int room = fifoCapacity() - receiveCount;
+        while (room > 0) {
+            int tail = receiveHead + receiveCount & FIFO_MASK;
+            int count = backend.read(receiveFifo, tail, Math.min(room, FIFO_SIZE - tail));
+            if (count == 0)
+                break;
+            receiveCount += count;
+            room -= count;
+            lastReceiveActivity = clock.getEmulatedNanos();
+        }
+    }
+
+    /* Push the transmit FIFO out to the backend, or back round to the receiver in loopback */
+    private void drainTransmitFifo() {
+        while (transmitCount > 0) {
+            int count = Math.min(transmitCount, FIFO_SIZE - transmitHead);
+            if (loopback())
+                count = loop(transmitFifo, transmitHead, count);
+            else
+                count = backend.write(transmitFifo, transmitHead, count);
+            if (count == 0)
+                break;
+            transmitHead = transmitHead + count & FIFO_MASK;
+            transmitCount -= count;
+        }
+        if (transmitCount == 0)
+            transmitHead = 0;
     }
 
-    public void recieve(byte data) {
-        receiverBufferRegister = data;
-        if (0 == data)
-            lineStatusRegister = (byte)(lineStatusRegister | UART_LSR_DR);
-        else
-            lineStatusRegister = (byte)(lineStatusRegister | UART_LSR_BI | UART_LSR_DR);
+    private int loop(byte[] data, int offset, int length) {
+        for (int i = 0; i < length; i++) {
+            if (receiveCount < fifoCapacity()) {
+                receiveFifo[receiveHead + receiveCount & FIFO_MASK] = data[offset + i];
+                receiveCount++;
+            } else
+                lineStatusRegister |= UART_LSR_OE;
+        }
+        lastReceiveActivity = clock.getEmulatedNanos();
+        return length;
+    }
+
+    private void transmit(int data) {
+        if (thrIPending) {
+            thrIPending = false;
+            this.updateIRQ();
+        }
+        if (transmitCount < fifoCapacity()) {
+            transmitFifo[transmitHead + transmitCount & FIFO_MASK] = (byte)data;
+            transmitCount++;
+        }
+        drainTransmitFifo();
+        if (transmitCount == 0) {
+            thrIPending = true;
+            this.updateIRQ();
+        } else
+            schedule();
+    }
+
+    private int receive() {
+        int data = 0;
+        if (receiveCount > 0) {
+            data = receiveFifo[receiveHead] & 0xff;
+            receiveHead = receiveHead + 1 & FIFO_MASK;
+            receiveCount--;
+        }
+        timeoutPending = false;
+        lastReceiveActivity = clock.getEmulatedNanos();
+        fillReceiveFifo();
         this.updateIRQ();
+        schedule();
+        return data;
     }
 
     private void updateIRQ() {
-        if (0 != (lineStatusRegister & UART_LSR_DR) && 0 != (interruptEnableRegister & UART_IER_RDI)) {
+        if ((lineStatusRegister & (UART_LSR_OE | UART_LSR_BI)) != 0 && 0 != (interruptEnableRegister & UART_IER_RLSI)) {
+            interruptIORegister = UART_IIR_RLSI;
+        } else if (receiveCount >= triggerLevel() && 0 != (interruptEnableRegister & UART_IER_RDI)) {
             interruptIORegister = UART_IIR_RDI;
+        } else if (timeoutPending && 0 != (interruptEnableRegister & UART_IER_RDI)) {
+            interruptIORegister = UART_IIR_CTI;
         } else if (thrIPending && 0 != (interruptEnableRegister & UART_IER_THRI)) {
             interruptIORegister = UART_IIR_THRI;
         } else {
             interruptIORegister = UART_IIR_NO_INT;
         }
-        if (interruptIORegister != UART_IIR_NO_INT) {
-            irqDevice.setIRQ(irq, 1);
-        } else {
-            irqDevice.setIRQ(irq, 0);
+        int level = interruptIORegister != UART_IIR_NO_INT ? 1 : 0;
+        if (level != irqLevel) {
+            irqLevel = level;
+            irqDevice.setIRQ(irq, level);
         }
     }
 
+    /* Keep polling while the backend may deliver data or either FIFO holds any */
+    private void schedule() {
+        if (pollTimer == null || pollTimer.enabled())
+            return;
+        if (backend.hasInput() || receiveCount > 0 || transmitCount > 0)
+            pollTimer.setExpiry(clock.getEmulatedNanos() + POLL_NANOS);
+    }
+
+    @Override
+    public void callback() {
+        long now = clock.getEmulatedNanos();
+        if (transmitCount > 0) {
+            drainTransmitFifo();
+            if (transmitCount == 0)
+                thrIPending = true;
+        }
+        fillReceiveFifo();
+        if (fifoEnabled() && receiveCount > 0 && receiveCount < triggerLevel() && now - lastReceiveActivity >= 4 * characterNanos())
+            timeoutPending = true;
+        this.updateIRQ();
+        schedule();
+    }
+
+    @Override
+    public int getType() {
+        return 0;
+    }
+
     @Override
     public void ioPortWrite8(int address, int data) {
         this.ioportWrite(address, data);
@@ -255,14 +441,7 @@ public class SerialPort extends AbstractHardwareComponent implements IODevice {
             if (0 != (lineControlRegister & UART_LCR_DLAB)) {
                 divider = (short)(divider & 0xff00 | data);
             } else {
-                thrIPending = false;
-                lineStatusRegister = (byte)(lineStatusRegister & ~UART_LSR_THRE);
-                this.updateIRQ();
-                print(new String(new byte[] { (byte)data }, US_ASCII));
-                //output data
-                thrIPending = true;
-                lineStatusRegister = (byte)(lineStatusRegister | UART_LSR_THRE | UART_LSR_TEMT);
-                this.updateIRQ();
+                transmit(data);
             }
             break;
         case 1:
@@ -270,13 +449,26 @@ public class SerialPort extends AbstractHardwareComponent implements IODevice {
                 divider = (short)(divider & 0x00ff | data << 8);
             } else {
                 interruptEnableRegister = (byte)(data & 0x0f);
-                if (0 != (lineStatusRegister & UART_LSR_THRE)) {
+                if (transmitCount == 0) {
                     thrIPending = true;
                 }
                 this.updateIRQ();
             }
             break;
         case 2:
+            if (((data ^ fifoControlRegister) & UART_FCR_ENABLE_FIFO) != 0)
+                data |= UART_FCR_CLEAR_RCVR | UART_FCR_CLEAR_XMIT;
+            if (0 != (data & UART_FCR_CLEAR_RCVR)) {
+                receiveHead = receiveCount = 0;
+                timeoutPending = false;
+            }
+            if (0 != (data & UART_FCR_CLEAR_XMIT)) {
+                transmitHead = transmitCount = 0;
+                thrIPending = true;
+            }
+            fifoControlRegister = (byte)(data & (UART_FCR_ENABLE_FIFO | UART_FCR_DMA_SELECT | UART_FCR_TRIGGER_MASK));
+            fillReceiveFifo();
+            this.updateIRQ();
             break;
         case 3:
             lineControlRegister = (byte)data;
@@ -304,10 +496,7 @@ public class SerialPort extends AbstractHardwareComponent implements IODevice {
             if (0 != (lineControlRegister & UART_LCR_DLAB)) {
                 return divider & 0xff;
             } else {
-                lineStatusRegister = (byte)(lineStatusRegister & ~(UART_LSR_DR | UART_LSR_BI));
-                ret = receiverBufferRegister;
-                this.updateIRQ();
-                return ret;
+                return receive();
             }
         case 1:
             if (0 != (lineControlRegister & UART_LCR_DLAB)) {
@@ -320,13 +509,25 @@ public class SerialPort extends AbstractHardwareComponent implements IODevice {
             if ((ret & 0x7) == UART_IIR_THRI)
                 thrIPending = false;
             this.updateIRQ();
-            return ret;
+            return fifoEnabled() ? (ret | UART_IIR_FIFO) & 0xff : ret;
         case 3:
             return lineControlRegister;
         case 4:
             return modemControlRegister;
         case 5:
-            return lineStatusRegister;
+            //Polling drivers check here before reading, so look for data now rather than at the next poll
+            if (receiveCount == 0)
+                fillReceiveFifo();
+            ret = lineStatusRegister;
+            if (receiveCount > 0)
+                ret |= UART_LSR_DR;
+            if (transmitCount == 0)
+                ret |= UART_LSR_THRE | UART_LSR_TEMT;
+            if ((lineStatusRegister & UART_LSR_ERRORS) != 0) {
+                lineStatusRegister &= ~UART_LSR_ERRORS;
+                this.updateIRQ();
+            }
+            return ret;
         case 6:
             if (0 != (modemControlRegister & UART_MCR_LOOP)) {
                 /* in loopback, the modem output pins are connected to the inputs */
@@ -347,15 +548,22 @@ public class SerialPort extends AbstractHardwareComponent implements IODevice {
     @Override
     public void reset() {
         irqDevice = null;
+        clock = null;
+        pollTimer = null;
         ioportRegistered = false;
 
-        this.lineStatusRegister = UART_LSR_TEMT | UART_LSR_THRE;
+        this.lineStatusRegister = 0;
         this.interruptIORegister = UART_IIR_NO_INT;
+        this.fifoControlRegister = 0;
+        receiveHead = receiveCount = 0;
+        transmitHead = transmitCount = 0;
+        thrIPending = timeoutPending = false;
+        irqLevel = -1;
     }
 
     @Override
     public boolean initialised() {
-        return ioportRegistered && irqDevice != null;
+        return ioportRegistered && irqDevice != null && clock != null;
     }
 
     @Override
@@ -376,22 +584,14 @@ public class SerialPort extends AbstractHardwareComponent implements IODevice {
         if (component instanceof InterruptController && component.initialised()) {
             irqDevice = (InterruptController)component;
         }
+        if (component instanceof Clock && component.initialised() && clock == null) {
+            clock = (Clock)component;
+            pollTimer = clock.newTimer(this);
+            schedule();
+        }
         if (component instanceof IOPortHandler && component.initialised()) {
             ((IOPortHandler)component).registerIOPortCapable(this);
             ioportRegistered = true;
         }
     }
-
-    private void print(String data) {
-        synchronized (serialOutputBuffer) {
-            int newline;
-            while ((newline = data.indexOf('\n') + 1) > 0) {
-                serialOutputBuffer.append(data.substring(0, newline));
-                serialOutput.log(Level.INFO, serialOutputBuffer.toString());
-                serialOutputBuffer.delete(0, serialOutputBuffer.length());
-                data = data.substring(newline);
-            }
-            serialOutputBuffer.append(data);
-        }
-    }
 }
@@ -33,145 +33,471 @@
 
 package org.jpc.j2se;
 
+import java.io.BufferedInputStream;
 import java.io.DataInputStream;
-import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
-import java.net.ServerSocket;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
- * Forwards packets between pairs of connections
+ * Learning ethernet switch connecting any number of {@link org.jpc.support.EthernetHub} clients.
+ * <p>
+ * Each connection is a switch port carrying frames of a four byte big endian length followed by
+ * the packet. The switch learns which port each source MAC address lives behind, forwards unicast
+ * packets to the port that owns the destination and floods broadcast, multicast and unknown
+ * destinations to every other port. Addresses not seen for five minutes are forgotten, and at most
+ * {@link #MAX_MAC_ENTRIES} are remembered, so clients forging source addresses cannot grow the
+ * table without bound; beyond that, frames to unlearnt addresses are flooded. A single selector thread serves all ports, copying frames
+ * straight from the source port's read buffer into a bounded write buffer per destination port,
+ * so a slow client only loses its own packets and nothing is allocated per packet.
+ * <p>
+ * Run with <code>-bench $clients [$seconds]</code> to measure throughput over loopback with the
+ * given number of simulated clients.
  * @author Ian Preston
  */
 public class EthernetHubServer implements Runnable {
+    private static final Logger LOGGING = Logger.getLogger(EthernetHubServer.class.getName());
 
-    private List<Client> clients = new ArrayList<Client>();
-    private ServerSocket sock;
+    private static final int MAX_FRAME = 64 * 1024;
+    private static final int BUFFER_SIZE = 256 * 1024;
+    private static final long MAC_AGEING_NANOS = 300 * 1000000000L;
+    private static final long MAC_SWEEP_NANOS = 1000000000L;
+    private static final int MAX_MAC_ENTRIES = 4096;
+    private static final long STATS_INTERVAL_NANOS = 60 * 1000000000L;
 
-    public EthernetHubServer(int port) {
-        try {
-            sock = new ServerSocket(port);
-        } catch (IOException ex) {
-            Logger.getLogger(EthernetHubServer.class.getName()).log(Level.SEVERE, null, ex);
-        }
-        new Thread(this).start();
-        System.out.println("Started EthernetHub Server on port " + port);
+    private final Selector selector;
+    private final ServerSocketChannel server;
+    private final List<Port> ports = new ArrayList<Port>();
+    private final List<Port> flushing = new ArrayList<Port>();
+    private final MacTable macs = new MacTable();
+    private volatile boolean closed;
+    private int nextId = 1;
+
+    public EthernetHubServer(int port) throws IOException {
+        selector = Selector.open();
+        server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(port));
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+        new Thread(this, "Ethernet Hub Server").start();
+        LOGGING.log(Level.INFO, "started EthernetHub server on port {0,number,#}", getPort());
+    }
+
+    /**
+     * @return the port this server accepts connections on
+     */
+    public int getPort() {
+        return server.socket().getLocalPort();
+    }
+
+    /**
+     * Disconnects every client and stops the server.
+     */
+    public void close() {
+        closed = true;
+        selector.wakeup();
     }
 
     @Override
     public void run() {
-        //wait for connections
-        Socket client;
-        int count = 1;
-        while (true) {
-            try {
-                client = sock.accept();
-                synchronized (clients) {
-                    Client c = new Client(client, count++);
-                    if (clients.size() % 2 == 1) {
-                        clients.get(clients.size() - 1).setPartner(c);
-                        c.setPartner(clients.get(clients.size() - 1));
+        long nextStats = System.nanoTime() + STATS_INTERVAL_NANOS;
+        try {
+            while (!closed) {
+                selector.select(1000);
+                for (Iterator<SelectionKey> it = selector.selectedKeys().iterator(); it.hasNext();) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    Port port = (Port)key.attachment();
+                    try {
+                        if (key.isReadable()) {
+                            port.read();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            port.flush();
+                        }
+                    } catch (IOException e) {
+                        disconnect(port, e);
+                    }
+                }
+
+                for (int i = 0; i < flushing.size(); i++) {
+                    Port port = flushing.get(i);
+                    port.queued = false;
+                    try {
+                        port.flush();
+                    } catch (IOException e) {
+                        disconnect(port, e);
+                    }
+                }
+                flushing.clear();
+
+                long now = System.nanoTime();
+                if (now - nextStats >= 0) {
+                    nextStats = now + STATS_INTERVAL_NANOS;
+                    for (Port port : ports) {
+                        LOGGING.log(Level.INFO, "{0}", port);
                     }
-                    clients.add(c);
-                    new Thread(new Forwarder(c)).start();
                 }
-                System.out.println("Accepted Connection from client " + (count - 1));
-            } catch (IOException ex) {
-                Logger.getLogger(EthernetHubServer.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        } catch (IOException e) {
+            LOGGING.log(Level.SEVERE, "EthernetHub server failed", e);
+        } finally {
+            for (Port port : new ArrayList<Port>(ports)) {
+                disconnect(port, null);
+            }
+            try {
+                server.close();
+                selector.close();
+            } catch (IOException e) {
             }
         }
     }
 
-    public class Forwarder implements Runnable {
-        DataInputStream in;
-        DataOutputStream out;
-        Client us;
-        Client them = null;
+    private void accept() throws IOException {
+        SocketChannel channel = server.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.socket().setTcpNoDelay(true);
+        channel.socket().setPerformancePreferences(0, 2, 1);
+        channel.configureBlocking(false);
+        Port port = new Port(channel, nextId++);
+        port.key = channel.register(selector, SelectionKey.OP_READ, port);
+        ports.add(port);
+        LOGGING.log(Level.INFO, "accepted connection from {0} as port {1}", new Object[]{channel.getRemoteAddress(), port.id});
+    }
+
+    private void disconnect(Port port, IOException cause) {
+        if (!ports.remove(port)) {
+            return;
+        }
+        port.key.cancel();
+        try {
+            port.channel.close();
+        } catch (IOException e) {
+        }
+        macs.removePort(port);
+        if (cause != null) {
+            LOGGING.log(Level.INFO, "port " + port.id + " disconnected: " + cause);
+        }
+        LOGGING.log(Level.INFO, "{0}", port);
+    }
+
+    private void forward(Port source, byte[] frame, int offset, int length) {
+        long now = System.nanoTime();
+        if (length >= 12 && (frame[offset + 6] & 1) == 0) {
+            macs.learn(mac(frame, offset + 6), source, now);
+        }
+        if (length < 6 || (frame[offset] & 1) != 0) {
+            flood(source, frame, offset, length);
+            return;
+        }
+        Port dest = macs.lookup(mac(frame, offset), now);
+        if (dest == null) {
+            flood(source, frame, offset, length);
+        } else if (dest != source) {
+            dest.queue(frame, offset, length);
+        } else {
+            source.filtered++;
+        }
+    }
+
+    private void flood(Port source, byte[] frame, int offset, int length) {
+        source.flooded++;
+        for (int i = 0; i < ports.size(); i++) {
+            Port dest = ports.get(i);
+            if (dest != source) {
+                dest.queue(frame, offset, length);
+            }
+        }
+    }
+
+    private static long mac(byte[] frame, int offset) {
+        long mac = 0;
+        for (int i = 0; i < 6; i++) {
+            mac = (mac << 8) | (frame[offset + i] & 0xFF);
+        }
+        return mac;
+    }
+
+    private class Port {
+        final SocketChannel channel;
+        final int id;
+        final ByteBuffer in = ByteBuffer.allocate(BUFFER_SIZE);
+        final ByteBuffer out = ByteBuffer.allocate(BUFFER_SIZE);
+        SelectionKey key;
+        boolean queued;
+        long rxPackets, rxBytes, txPackets, txBytes, drops, flooded, filtered;
+
+        Port(SocketChannel channel, int id) {
+            this.channel = channel;
+            this.id = id;
+        }
+
+        void read() throws IOException {
+            if (channel.read(in) < 0) {
+                throw new EOFException("closed by client");
+            }
+            byte[] frames = in.array();
+            int position = 0;
+            int limit = in.position();
+            while (limit - position >= 4) {
+                int length = ByteBuffer.wrap(frames, position, 4).getInt();
+                if (length <= 0 || length > MAX_FRAME) {
+                    throw new IOException("invalid frame length " + length);
+                }
+                if (limit - position < 4 + length) {
+                    break;
+                }
+                rxPackets++;
+                rxBytes += length;
+                forward(this, frames, position + 4, length);
+                position += 4 + length;
+            }
+            in.limit(limit).position(position);
+            in.compact();
+        }
 
-        Forwarder(Client us) {
-            this.us = us;
-            in = us.getIn();
+        void queue(byte[] frame, int offset, int length) {
+            if (out.remaining() < 4 + length) {
+                drops++;
+                return;
+            }
+            out.putInt(length);
+            out.put(frame, offset, length);
+            txPackets++;
+            txBytes += length;
+            if (!queued) {
+                queued = true;
+                flushing.add(this);
+            }
+        }
+
+        void flush() throws IOException {
+            if (out.position() == 0) {
+                return;
+            }
+            out.flip();
+            channel.write(out);
+            out.compact();
+            key.interestOps(out.position() == 0 ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
         }
 
         @Override
-        public void run() {
-            while (them == null)
-                if (us.getPartner() != null)
-                    them = us.getPartner();
-                else
-                    try {
-                        Thread.sleep(1000);
-                    } catch (InterruptedException ex) {
-                        Logger.getLogger(EthernetHubServer.class.getName()).log(Level.SEVERE, null, ex);
+        public String toString() {
+            return "port " + id + ": received " + rxPackets + " packets/" + rxBytes + " bytes (" + flooded + " flooded, " + filtered
+                + " filtered), sent " + txPackets + " packets/" + txBytes + " bytes (" + drops + " dropped)";
+        }
+    }
+
+    /**
+     * Open addressed map from MAC address to the port it was last seen on.
+     */
+    private static final class MacTable {
+        private long[] keys = new long[256];
+        private Port[] ports = new Port[256];
+        private long[] seen = new long[256];
+        private int size;
+        private long lastSweep;
+
+        Port lookup(long mac, long now) {
+            int i = find(mac);
+            if (keys[i] == 0 || now - seen[i] > MAC_AGEING_NANOS) {
+                return null;
+            }
+            return ports[i];
+        }
+
+        void learn(long mac, Port port, long now) {
+            int i = find(mac);
+            if (keys[i] == 0) {
+                if (2 * (size + 1) > keys.length) {
+                    // drop aged entries before growing, though not so often that spoofing makes every frame a sweep
+                    if (now - lastSweep >= MAC_SWEEP_NANOS) {
+                        lastSweep = now;
+                        rehash(keys.length, null, now);
                     }
-            out = them.getOut();
-            try {
-                while (true) {
-                    long start = System.currentTimeMillis();
-                    long total = 0;
-                    for (int i = 0; i < 1000; i++) {
-                        int size = in.readInt();
-                        total += size;
-                        byte[] packet = new byte[size];
-                        in.readFully(packet);
-                        try {
-                            out.writeInt(packet.length);
-                            out.write(packet);
-                            out.flush();
-                        } catch (IOException e) {
-                            System.out.println("Client " + us.id + " couldn't contact partner.");
+                    if (2 * (size + 1) > keys.length) {
+                        if (keys.length >= 2 * MAX_MAC_ENTRIES) {
+                            return;
                         }
+                        rehash(keys.length * 2, null, now);
                     }
-                    long end = System.currentTimeMillis();
-                    System.out.println("Bandwith " + total * 1000 / (end - start) + " bytes/second");
+                    i = find(mac);
+                }
+                keys[i] = mac | (1L << 48);
+                size++;
+            }
+            ports[i] = port;
+            seen[i] = now;
+        }
+
+        void removePort(Port port) {
+            rehash(keys.length, port, System.nanoTime());
+        }
+
+        private int find(long mac) {
+            long key = mac | (1L << 48);
+            int mask = keys.length - 1;
+            int i = (int)(key ^ (key >>> 17) ^ (key >>> 31)) * 0x9E3779B9 >>> 8 & mask;
+            while (keys[i] != 0 && keys[i] != key) {
+                i = (i + 1) & mask;
+            }
+            return i;
+        }
+
+        private void rehash(int capacity, Port without, long now) {
+            long[] oldKeys = keys;
+            Port[] oldPorts = ports;
+            long[] oldSeen = seen;
+            keys = new long[capacity];
+            ports = new Port[capacity];
+            seen = new long[capacity];
+            size = 0;
+            for (int j = 0; j < oldKeys.length; j++) {
+                if (oldKeys[j] != 0 && oldPorts[j] != without && now - oldSeen[j] <= MAC_AGEING_NANOS) {
+                    int i = find(oldKeys[j]);
+                    keys[i] = oldKeys[j];
+                    ports[i] = oldPorts[j];
+                    seen[i] = oldSeen[j];
+                    size++;
                 }
-            } catch (IOException e) {
-                Logger.getLogger(EthernetHubServer.class.getName()).log(Level.SEVERE, null, e);
             }
         }
     }
 
-    public static void main(String[] args) {
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("-bench")) {
+            benchmark(Integer.parseInt(args[1]), args.length > 2 ? Integer.parseInt(args[2]) : 10);
+            return;
+        }
         int port = Integer.parseInt(args[0]);
         new EthernetHubServer(port);
     }
 
-    private class Client {
-        DataOutputStream out;
-        DataInputStream in;
-        public int id;
-        private Client partner;
-
-        Client(Socket sock, int id) {
-            this.id = id;
-            try {
-                sock.setTcpNoDelay(true);
-                sock.setPerformancePreferences(0, 2, 1);
-                out = new DataOutputStream(sock.getOutputStream());
-                in = new DataInputStream(sock.getInputStream());
-            } catch (IOException ex) {
-                Logger.getLogger(EthernetHubServer.class.getName()).log(Level.SEVERE, null, ex);
-            }
+    /**
+     * Connects <code>clients</code> simulated clients over loopback, each sending minimum size
+     * unicast packets to the next as fast as it can, and reports the aggregate rate at which
+     * packets are delivered.
+     */
+    private static void benchmark(int clients, int seconds) throws Exception {
+        final int packetSize = 64;
+        final int batch = 64;
+        EthernetHubServer hub = new EthernetHubServer(0);
+        final Socket[] sockets = new Socket[clients];
+        final AtomicLong delivered = new AtomicLong();
+        final AtomicLong sent = new AtomicLong();
+        final AtomicBoolean stop = new AtomicBoolean();
+        for (int i = 0; i < clients; i++) {
+            sockets[i] = new Socket("localhost", hub.getPort());
+            sockets[i].setTcpNoDelay(true);
         }
 
-        public void setPartner(Client partner) {
-            this.partner = partner;
+        // announce every client with a broadcast so the switch learns where each one lives
+        for (int i = 0; i < clients; i++) {
+            byte[] frame = new byte[4 + packetSize];
+            ByteBuffer.wrap(frame).putInt(packetSize);
+            writeFrame(frame, i + 1, -1);
+            sockets[i].getOutputStream().write(frame);
         }
 
-        public Client getPartner() {
-            return partner;
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < clients; i++) {
+            final int index = i;
+            Thread reader = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        DataInputStream in = new DataInputStream(new BufferedInputStream(sockets[index].getInputStream(), 64 * 1024));
+                        byte[] packet = new byte[MAX_FRAME];
+                        while (true) {
+                            int length = in.readInt();
+                            in.readFully(packet, 0, length);
+                            if ((packet[0] & 1) == 0) {
+                                delivered.incrementAndGet();
+                            }
+                        }
+                    } catch (IOException e) {
+                    }
+                }
+            }, "Bench Reader " + i);
+            reader.setDaemon(true);
+            reader.start();
+
+            Thread writer = new Thread(new Runnable() {
+                public void run() {
+                    byte[] frames = new byte[batch * (4 + packetSize)];
+                    for (int j = 0; j < batch; j++) {
+                        System.arraycopy(frameTo(index, clients, packetSize), 0, frames, j * (4 + packetSize), 4 + packetSize);
+                    }
+                    try {
+                        OutputStream out = sockets[index].getOutputStream();
+                        while (!stop.get()) {
+                            out.write(frames);
+                            sent.addAndGet(batch);
+                        }
+                    } catch (IOException e) {
+                    }
+                }
+            }, "Bench Writer " + i);
+            writer.setDaemon(true);
+            threads.add(writer);
         }
 
-        public DataOutputStream getOut() {
-            return out;
+        Thread.sleep(500);
+        delivered.set(0);
+        sent.set(0);
+        for (Thread t : threads) {
+            t.start();
         }
+        long start = System.nanoTime();
+        Thread.sleep(seconds * 1000L);
+        long count = delivered.get();
+        long offered = sent.get();
+        long nanos = System.nanoTime() - start;
+        stop.set(true);
+        hub.close();
+
+        System.out.println(clients + " clients: " + (count * 1000000000L / nanos) + " packets/s delivered, " + (offered * 1000000000L / nanos)
+            + " packets/s offered");
+        System.exit(0);
+    }
+
+    private static byte[] frameTo(int index, int clients, int packetSize) {
+        byte[] frame = new byte[4 + packetSize];
+        ByteBuffer.wrap(frame).putInt(packetSize);
+        writeFrame(frame, index + 1, (index + 1) % clients + 1);
+        return frame;
+    }
 
-        public DataInputStream getIn() {
-            return in;
+    private static void writeFrame(byte[] frame, int source, int dest) {
+        ByteBuffer packet = ByteBuffer.wrap(frame, 4, frame.length - 4);
+        if (dest < 0) {
+            packet.putShort((short)0xFFFF).putInt(0xFFFFFFFF);
+        } else {
+            packet.putShort((short)0x0200).putInt(dest);
         }
+        packet.putShort((short)0x0200).putInt(source);
+        packet.putShort((short)0x0800);
     }
 }
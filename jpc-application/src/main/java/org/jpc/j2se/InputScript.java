@@ -0,0 +1,340 @@
+/*
+    JPC: An x86 PC Hardware Emulator for a pure Java Virtual Machine
+    Release Version 2.4
+
+    A project from the Physics Dept, The University of Oxford
+
+    Copyright (C) 2007-2010 The University of Oxford
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License version 2 as published by
+    the Free Software Foundation.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License along
+    with this program; if not, write to the Free Software Foundation, Inc.,
+    51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+
+    Details (including contact information) can be found at:
+
+    jpc.sourceforge.net
+    or the developer website
+    sourceforge.net/projects/jpc/
+
+    Conceived and Developed by:
+    Rhys Newman, Ian Preston, Chris Dennis
+
+    End of licence header
+*/
+package org.jpc.j2se;
+
+import java.awt.event.KeyEvent;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.jpc.emulator.PC;
+import org.jpc.emulator.Timer;
+import org.jpc.emulator.TimerResponsive;
+import org.jpc.emulator.peripheral.Keyboard;
+import org.jpc.support.Clock;
+
+/**
+ * Scripted keyboard and mouse input for driving a headless PC.
+ * <p>
+ * Text, key combinations, mouse movements and pauses are queued from any thread and played
+ * into the guest on the emulation thread.  Each key or mouse event goes into the keyboard
+ * controller as soon as the guest has read the previous one out of the output buffer, so
+ * input arrives as fast as the guest takes it without overflowing the controller.  Pauses,
+ * and the optional gap between keys, are in emulated time.
+ * <p>
+ * Scripts given to {@link #load(Reader)} have one command per line:
+ * <pre>
+ * type $text        types the rest of the line
+ * line $text        types the rest of the line and presses enter
+ * key ctrl+alt+delete  presses the keys in turn and releases them in reverse
+ * down $key / up $key  holds or releases one key
+ * mouse $dx $dy [$buttons [$dz]]  moves the mouse, buttons 1 = left, 2 = right, 4 = middle
+ * wait $ms          pauses
+ * </pre>
+ * Key names are the <code>KeyEvent.VK_</code> names, case insensitive, or ctrl, del and esc.  Blank lines and lines starting with # are ignored.
+ */
+public class InputScript implements TimerResponsive {
+    /* how often to look again while the guest has the keyboard or mouse switched off */
+    private static final long POLL_NANOS = 1000000L;
+
+    private static final int KEY_DOWN = 0;
+    private static final int KEY_UP = 1;
+    private static final int MOUSE = 2;
+    private static final int WAIT = 3;
+
+    private static final class Event {
+        final int type;
+        final int a, b, c, d;
+        final long nanos;
+
+        Event(int type, int a, int b, int c, int d, long nanos) {
+            this.type = type;
+            this.a = a;
+            this.b = b;
+            this.c = c;
+            this.d = d;
+            this.nanos = nanos;
+        }
+    }
+
+    private final PC pc;
+    private final Keyboard keyboard;
+    private final Clock clock;
+    private final Timer timer;
+    private final Queue<Event> events = new ConcurrentLinkedQueue<Event>();
+    private final Runnable pump = new Runnable() {
+        public void run() {
+            pump();
+        }
+    };
+
+    private volatile long keyInterval;
+    private long waitUntil = -1;
+    private long nextKeyTime;
+    private volatile boolean idle = true;
+
+    public InputScript(PC pc) {
+        this.pc = pc;
+        keyboard = (Keyboard)pc.getComponent(Keyboard.class);
+        clock = (Clock)pc.getComponent(Clock.class);
+        timer = clock.newTimer(this);
+        keyboard.setOutputBufferListener(pump);
+    }
+
+    /**
+     * Sets a minimum gap between key events, for guests that drain the controller faster than
+     * their own key buffer.  The default of zero paces keys only by the guest reading them.
+     * @param nanos emulated nanoseconds between key events
+     */
+    public void setKeyInterval(long nanos) {
+        keyInterval = nanos;
+    }
+
+    public InputScript type(CharSequence text) {
+        List<Event> keys = new ArrayList<Event>(text.length() * 2);
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '\r')
+                continue;
+            byte[] scancodes = KeyMapping.getScancodes(c);
+            for (int j = 0; j < scancodes.length; j++)
+                keys.add(new Event(KEY_DOWN, scancodes[j], 0, 0, 0, 0));
+            for (int j = scancodes.length - 1; j >= 0; j--)
+                keys.add(new Event(KEY_UP, scancodes[j], 0, 0, 0, 0));
+        }
+        return submit(keys);
+    }
+
+    /**
+     * Presses the given keys in order, then releases them in reverse.
+     * @param keyCodes <code>KeyEvent.VK_</code> codes
+     */
+    public InputScript press(int... keyCodes) {
+        List<Event> keys = new ArrayList<Event>(keyCodes.length * 2);
+        for (int i = 0; i < keyCodes.length; i++)
+            keys.add(new Event(KEY_DOWN, getScancode(keyCodes[i]), 0, 0, 0, 0));
+        for (int i = keyCodes.length - 1; i >= 0; i--)
+            keys.add(new Event(KEY_UP, getScancode(keyCodes[i]), 0, 0, 0, 0));
+        return submit(keys);
+    }
+
+    public InputScript keyDown(int keyCode) {
+        return submit(new Event(KEY_DOWN, getScancode(keyCode), 0, 0, 0, 0));
+    }
+
+    public InputScript keyUp(int keyCode) {
+        return submit(new Event(KEY_UP, getScancode(keyCode), 0, 0, 0, 0));
+    }
+
+    /**
+     * Moves the mouse, with y increasing down the screen, and sets the buttons held.
+     * @param buttons 1 = left, 2 = right, 4 = middle
+     */
+    public InputScript mouse(int dx, int dy, int dz, int buttons) {
+        return submit(new Event(MOUSE, dx, dy, dz, buttons, 0));
+    }
+
+    /**
+     * Pauses before the following events for the given emulated time.
+     */
+    public InputScript pause(long time, TimeUnit unit) {
+        return submit(new Event(WAIT, 0, 0, 0, 0, unit.toNanos(time)));
+    }
+
+    /**
+     * Queues the commands in <code>script</code>, as described above.
+     * @throws IOException on a read error, or a line that cannot be understood
+     */
+    public InputScript load(Reader script) throws IOException {
+        BufferedReader in = new BufferedReader(script);
+        int lineNumber = 0;
+        for (String line = in.readLine(); line != null; line = in.readLine()) {
+            lineNumber++;
+            String trimmed = line.trim();
+            if (trimmed.length() == 0 || trimmed.startsWith("#"))
+                continue;
+            int space = trimmed.indexOf(' ');
+            String command = space < 0 ? trimmed : trimmed.substring(0, space);
+            String rest = space < 0 ? "" : line.substring(line.indexOf(command) + command.length() + 1);
+            String[] args = rest.trim().length() == 0 ? new String[0] : rest.trim().split("\\s+");
+            try {
+                if (command.equals("type"))
+                    type(rest);
+                else if (command.equals("line"))
+                    type(rest + "\n");
+                else if (command.equals("key")) {
+                    String[] names = rest.trim().split("\\+");
+                    int[] codes = new int[names.length];
+                    for (int i = 0; i < names.length; i++)
+                        codes[i] = getKeyCode(names[i].trim());
+                    press(codes);
+                } else if (command.equals("down"))
+                    keyDown(getKeyCode(rest.trim()));
+                else if (command.equals("up"))
+                    keyUp(getKeyCode(rest.trim()));
+                else if (command.equals("mouse"))
+                    mouse(Integer.parseInt(args[0]), Integer.parseInt(args[1]), args.length > 3 ? Integer.parseInt(args[3]) : 0,
+                        args.length > 2 ? Integer.parseInt(args[2]) : 0);
+                else if (command.equals("wait"))
+                    pause(Long.parseLong(args[0]), TimeUnit.MILLISECONDS);
+                else
+                    throw new IllegalArgumentException("unknown command " + command);
+            } catch (RuntimeException e) {
+                throw new IOException("input script line " + lineNumber + ": " + e.getMessage(), e);
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Returns <code>true</code> once every queued event has reached the guest.
+     */
+    public boolean isIdle() {
+        return idle && events.isEmpty();
+    }
+
+    /**
+     * Blocks until every queued event has reached the guest.  Some other thread has to be
+     * running the PC meanwhile.
+     */
+    public synchronized void waitUntilIdle() throws InterruptedException {
+        while (!isIdle())
+            wait();
+    }
+
+    private InputScript submit(Event event) {
+        idle = false;
+        events.add(event);
+        pc.runAtSafePoint(pump);
+        return this;
+    }
+
+    private InputScript submit(List<Event> list) {
+        idle = false;
+        events.addAll(list);
+        pc.runAtSafePoint(pump);
+        return this;
+    }
+
+    /* Runs on the emulation thread: passes on events until the guest has to catch up */
+    private void pump() {
+        long now = clock.getEmulatedNanos();
+        for (Event event = events.peek(); event != null; event = events.peek()) {
+            switch (event.type) {
+            case WAIT:
+                if (waitUntil < 0)
+                    waitUntil = now + event.nanos;
+                if (now < waitUntil) {
+                    timer.setExpiry(waitUntil);
+                    return;
+                }
+                waitUntil = -1;
+                break;
+            case KEY_DOWN:
+            case KEY_UP:
+                if (!keyboard.isReadyForKeys()) {
+                    timer.setExpiry(now + POLL_NANOS);
+                    return;
+                }
+                if (now < nextKeyTime) {
+                    timer.setExpiry(nextKeyTime);
+                    return;
+                }
+                if (event.type == KEY_DOWN)
+                    keyboard.keyPressed((byte)event.a);
+                else
+                    keyboard.keyReleased((byte)event.a);
+                nextKeyTime = now + keyInterval;
+                break;
+            case MOUSE:
+                if (!keyboard.isReadyForMouse()) {
+                    timer.setExpiry(now + POLL_NANOS);
+                    return;
+                }
+                keyboard.putMouseEvent(event.a, event.b, event.c, event.d);
+                break;
+            default:
+                break;
+            }
+            events.poll();
+        }
+        timer.disable();
+        idle = true;
+        synchronized (this) {
+            notifyAll();
+        }
+    }
+
+    @Override
+    public void callback() {
+        pump();
+    }
+
+    @Override
+    public int getType() {
+        return 0;
+    }
+
+    private static byte getScancode(int keyCode) {
+        int[] locations = { KeyEvent.KEY_LOCATION_UNKNOWN, KeyEvent.KEY_LOCATION_LEFT, KeyEvent.KEY_LOCATION_NUMPAD };
+        for (int location : locations) {
+            byte scancode = KeyMapping.getScancode(Locale.US, new KeyboardKey(location, keyCode));
+            if (scancode != 0)
+                return scancode;
+        }
+        throw new IllegalArgumentException("no scancode for " + KeyEvent.getKeyText(keyCode));
+    }
+
+    private static int getKeyCode(String name) {
+        String upper = name.toUpperCase(Locale.US);
+        if (upper.equals("CTRL"))
+            upper = "CONTROL";
+        else if (upper.equals("DEL"))
+            upper = "DELETE";
+        else if (upper.equals("ESC"))
+            upper = "ESCAPE";
+        try {
+            return KeyEvent.class.getField("VK_" + upper).getInt(null);
+        } catch (NoSuchFieldException e) {
+            throw new IllegalArgumentException("unknown key " + name);
+        } catch (IllegalAccessException e) {
+            throw new IllegalArgumentException("unknown key " + name);
+        }
+    }
+}
@@ -41,10 +41,10 @@ import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.ComponentAdapter;
 import java.awt.event.ComponentEvent;
+import java.io.ByteArrayOutputStream;
 import java.io.DataOutput;
 import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -55,6 +55,7 @@ import java.net.URI;
 import java.net.URL;
 import java.net.URLClassLoader;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
 import java.util.jar.JarInputStream;
@@ -62,7 +63,7 @@ import java.util.jar.Manifest;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
+import java.util.zip.ZipFile;
 import java.util.zip.ZipOutputStream;
 
 import javax.swing.JEditorPane;
@@ -75,7 +76,12 @@ import javax.swing.JOptionPane;
 import javax.swing.JScrollPane;
 import javax.swing.UIManager;
 
+import org.jpc.emulator.LiveMigration;
+import org.jpc.emulator.LiveSnapshot;
+import org.jpc.emulator.MappedSnapshot;
 import org.jpc.emulator.PC;
+import org.jpc.emulator.PageStore;
+import org.jpc.emulator.SnapshotChain;
 import org.jpc.emulator.block.BlockDevice;
 import org.jpc.emulator.block.FloppyBlockDevice;
 import org.jpc.emulator.block.HDBlockDevice;
@@ -89,6 +95,7 @@ import org.jpc.support.ArgProcessor;
 import org.jpc.support.DriveSet;
 import org.jpc.support.EthernetHub;
 import org.jpc.support.EthernetOutput;
+import org.jpc.support.UserNetwork;
 
 public class JPCApplication extends PCMonitorFrame implements PCControl {
     private static final Logger LOGGING = Logger.getLogger(JPCApplication.class.getName());
@@ -126,8 +133,13 @@ public class JPCApplication extends PCMonitorFrame implements PCControl {
         snapshotFileChooser = new JFileChooser(System.getProperty("user.dir"));
 
         String snapShot = ArgProcessor.findVariable(args, "ss", null);
-        if (snapShot != null)
-            loadSnapshot(new File(snapShot));
+        if (snapShot != null) {
+            // a full snapshot may be followed by its deltas
+            List<File> chain = new ArrayList<File>();
+            for (String name : snapShot.split(File.pathSeparator))
+                chain.add(new File(name));
+            loadSnapshot(chain);
+        }
         JMenuBar bar = getJMenuBar();
 
         JMenu snap = new JMenu("Snapshot");
@@ -138,7 +150,7 @@ public class JPCApplication extends PCMonitorFrame implements PCControl {
 
                 if (snapshotFileChooser.showDialog(JPCApplication.this, "Save JPC Snapshot") == JFileChooser.APPROVE_OPTION) {
                     try {
-                        saveSnapshot(snapshotFileChooser.getSelectedFile());
+                        saveSnapshot(snapshotFileChooser.getSelectedFile(), false);
                     } catch (IOException e) {
                         LOGGING.log(Level.WARNING, "Exception saving snapshot.", e);
                     }
@@ -146,6 +158,62 @@ public class JPCApplication extends PCMonitorFrame implements PCControl {
                 start();
             }
         });
+        snap.add("Save Delta Snapshot").addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent ev) {
+                stop();
+
+                if (snapshotFileChooser.showDialog(JPCApplication.this, "Save JPC Delta Snapshot") == JFileChooser.APPROVE_OPTION) {
+                    try {
+                        saveSnapshot(snapshotFileChooser.getSelectedFile(), true);
+                    } catch (IllegalStateException e) {
+                        JOptionPane.showMessageDialog(JPCApplication.this, "Save or load a full snapshot first", "Delta Snapshot",
+                            JOptionPane.ERROR_MESSAGE);
+                    } catch (IOException e) {
+                        LOGGING.log(Level.WARNING, "Exception saving snapshot.", e);
+                    }
+                }
+                start();
+            }
+        });
+        snap.add("Save Live Snapshot").addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent ev) {
+                if (snapshotFileChooser.showDialog(JPCApplication.this, "Save JPC Snapshot") == JFileChooser.APPROVE_OPTION) {
+                    try {
+                        saveLiveSnapshot(snapshotFileChooser.getSelectedFile());
+                    } catch (IOException e) {
+                        LOGGING.log(Level.WARNING, "Exception saving snapshot.", e);
+                    }
+                }
+            }
+        });
+        snap.add("Save Mapped Snapshot").addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent ev) {
+                stop();
+
+                if (snapshotFileChooser.showDialog(JPCApplication.this, "Save JPC Snapshot") == JFileChooser.APPROVE_OPTION) {
+                    try {
+                        PageStore store = Option.pageStore.isSet() ? PageStore.open(new File(Option.pageStore.value())) : null;
+                        MappedSnapshot.save(pc, snapshotFileChooser.getSelectedFile(), store);
+                    } catch (IOException e) {
+                        LOGGING.log(Level.WARNING, "Exception saving snapshot.", e);
+                    }
+                }
+                start();
+            }
+        });
+        snap.add("Migrate").addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent ev) {
+                String target = JOptionPane.showInputDialog(JPCApplication.this, "Enter host:port of a JPC started with -incoming $port",
+                    "Migrate", JOptionPane.QUESTION_MESSAGE);
+                if (target != null) {
+                    migrate(target.trim());
+                }
+            }
+        });
         snap.add("Load Snapshot").addActionListener(new ActionListener() {
 
             @Override
@@ -158,9 +226,13 @@ public class JPCApplication extends PCMonitorFrame implements PCControl {
                 if (cancel == 0) {
                     stop();
 
-                    if (snapshotFileChooser.showDialog(JPCApplication.this, "Load Snapshot") == JFileChooser.APPROVE_OPTION) {
+                    // select a full snapshot together with any of its deltas to load the latest
+                    snapshotFileChooser.setMultiSelectionEnabled(true);
+                    int choice = snapshotFileChooser.showDialog(JPCApplication.this, "Load Snapshot");
+                    snapshotFileChooser.setMultiSelectionEnabled(false);
+                    if (choice == JFileChooser.APPROVE_OPTION) {
                         try {
-                            loadSnapshot(snapshotFileChooser.getSelectedFile());
+                            loadSnapshot(Arrays.asList(snapshotFileChooser.getSelectedFiles()));
                         } catch (IOException e) {
                             LOGGING.log(Level.SEVERE, "Exception during snapshot load", e);
                         }
@@ -324,24 +396,40 @@ public class JPCApplication extends PCMonitorFrame implements PCControl {
         return super.isRunning();
     }
 
-    private void loadSnapshot(File file) throws IOException {
-        ZipInputStream zin = new ZipInputStream(new FileInputStream(file));
-        zin.getNextEntry();
-        pc.loadState(zin);
-        zin.closeEntry();
+    private void loadSnapshot(List<File> files) throws IOException {
+        if (files.size() == 1 && MappedSnapshot.isMappedSnapshot(files.get(0))) {
+            MappedSnapshot.restore(pc, files.get(0));
+            ((VGACard)pc.getComponent(VGACard.class)).setOriginalDisplaySize();
+            return;
+        }
+        SnapshotChain chain = SnapshotChain.ordered(files);
+        chain.load(pc);
         VGACard card = (VGACard)pc.getComponent(VGACard.class);
         card.setOriginalDisplaySize();
-        zin.getNextEntry();
-        monitor.loadState(zin);
-        zin.closeEntry();
-        zin.close();
+        try (ZipFile zip = new ZipFile(chain.getLast())) {
+            ZipEntry entry = zip.getEntry("monitor");
+            if (entry != null) {
+                try (InputStream in = zip.getInputStream(entry)) {
+                    monitor.loadState(in);
+                }
+            }
+        }
     }
 
-    private void saveSnapshot(File file) throws IOException {
+    private void saveSnapshot(File file, boolean delta) throws IOException {
         ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(file));
 
         zip.putNextEntry(new ZipEntry("pc"));
-        pc.saveState(zip);
+        try {
+            if (delta)
+                pc.saveDeltaState(zip);
+            else
+                pc.saveState(zip);
+        } catch (IllegalStateException e) {
+            zip.close();
+            file.delete();
+            throw e;
+        }
         zip.closeEntry();
 
         zip.putNextEntry(new ZipEntry("monitor"));
@@ -352,6 +440,78 @@ public class JPCApplication extends PCMonitorFrame implements PCControl {
         zip.close();
     }
 
+    private void saveLiveSnapshot(File file) throws IOException {
+        if (!isRunning()) {
+            saveSnapshot(file, false);
+            return;
+        }
+
+        final ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(file));
+        zip.putNextEntry(new ZipEntry("pc"));
+        // the display is saved as of the same safe point as the devices, not once RAM is written
+        final ByteArrayOutputStream monitorState = new ByteArrayOutputStream();
+        final LiveSnapshot live = pc.saveStateLive(zip, new Runnable() {
+            public void run() {
+                try {
+                    monitor.saveState(monitorState);
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        });
+        Thread finisher = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    live.await();
+                    zip.closeEntry();
+
+                    zip.putNextEntry(new ZipEntry("monitor"));
+                    monitorState.writeTo(zip);
+                    zip.closeEntry();
+
+                    zip.finish();
+                    zip.close();
+                    LOGGING.log(Level.INFO, "live snapshot saved, paused for {0} ms", live.getPauseNanos() / 1000000);
+                } catch (IOException e) {
+                    LOGGING.log(Level.WARNING, "Exception saving snapshot.", e);
+                } catch (InterruptedException e) {
+                    LOGGING.log(Level.WARNING, "Interrupted saving snapshot.", e);
+                }
+            }
+        }, "Live Snapshot Finisher");
+        finisher.setDaemon(true);
+        finisher.start();
+    }
+
+    private void migrate(String target) {
+        int colon = target.lastIndexOf(':');
+        final String host;
+        final int port;
+        try {
+            host = target.substring(0, colon);
+            port = Integer.parseInt(target.substring(colon + 1));
+        } catch (RuntimeException e) {
+            JOptionPane.showMessageDialog(this, "Expected host:port, not " + target, "Migrate", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+
+        start();
+        Thread sender = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    LiveMigration.Report report = LiveMigration.send(pc, host, port);
+                    // the machine is already halted, this just retires the execute thread
+                    stop();
+                    LOGGING.log(Level.INFO, "migrated to {0}: {1}", new Object[]{host + ":" + port, report});
+                } catch (IOException e) {
+                    LOGGING.log(Level.WARNING, "Exception migrating, carrying on here.", e);
+                }
+            }
+        }, "Live Migration Sender");
+        sender.setDaemon(true);
+        sender.start();
+    }
+
     private void createBlankDisk() {
         try {
             JFileChooser chooser = diskImageChooser;
@@ -625,6 +785,10 @@ public class JPCApplication extends PCMonitorFrame implements PCControl {
         }
 
         PC pc = new PC(new VirtualClock(), args);
+        if (Option.incoming.isSet()) {
+            LiveMigration.receive(pc, Option.incoming.intValue(0));
+            ((VGACard)pc.getComponent(VGACard.class)).setOriginalDisplaySize();
+        }
 
         String net = ArgProcessor.findVariable(args, "net", "no");
         if (net.startsWith("hub:")) {
@@ -639,6 +803,9 @@ public class JPCApplication extends PCMonitorFrame implements PCControl {
             EthernetOutput hub = new EthernetHub(server, port);
             EthernetCard card = (EthernetCard)pc.getComponent(EthernetCard.class);
             card.setOutputDevice(hub);
+        } else if (net.equals("user")) {
+            EthernetCard card = (EthernetCard)pc.getComponent(EthernetCard.class);
+            card.setOutputDevice(new UserNetwork());
         }
         final JPCApplication app = new JPCApplication(args, pc);
 
@@ -196,6 +196,32 @@ public class KeyMapping {
         return ScanCodeSet1.getScancode(lang, key.getLocation(), key.getCode());
     }
 
+    static final String SHIFTED_CHARS = "~!@#$%^&*()_+{}|:\"<>?";
+    static final String UNSHIFTED_CHARS = "`1234567890-=[]\\;',./";
+
+    /**
+     * Returns the scancodes of the keys held down, in order, to type <code>c</code> on a US
+     * keyboard: left shift first for upper case and shifted characters, then the key itself.
+     * @param c printable ASCII character, tab or newline
+     * @return scancodes to press, and release in reverse order
+     * @throws IllegalArgumentException if <code>c</code> cannot be typed
+     */
+    public static byte[] getScancodes(char c) {
+        boolean shift = c >= 'A' && c <= 'Z';
+        int shifted = SHIFTED_CHARS.indexOf(c);
+        if (shifted >= 0) {
+            shift = true;
+            c = UNSHIFTED_CHARS.charAt(shifted);
+        }
+        int[] codes = getJavaKeycodes(Character.toLowerCase(c));
+        byte scancode = ScanCodeSet1.getScancode(Locale.US, KeyEvent.KEY_LOCATION_UNKNOWN, codes[codes.length - 1]);
+        if (scancode == 0)
+            throw new IllegalArgumentException("Cannot type character " + c);
+        if (shift)
+            return new byte[] { ScanCodeSet1.SC1_LSHIFT.scancode, scancode };
+        return new byte[] { scancode };
+    }
+
     public static int[] getJavaKeycodes(char c) {
         switch (c) {
         case 'a':
@@ -74,8 +74,13 @@ public abstract class Option {
     public static final Switch deterministic = createSwitch("deterministic");
     public static final Opt startTime = opt("start-time");
     public static final Switch noScreen = createSwitch("no-screen");
+    public static final Opt vnc = opt("vnc");
+    public static final Switch frameSnapshots = createSwitch("frame-snapshots");
 
     public static final Opt ss = opt("ss");
+    public static final Opt pageStore = opt("page-store");
+    public static final Switch sharePages = createSwitch("share-pages");
+    public static final Opt incoming = opt("incoming");
     public static final Opt ram = opt("ram");
     public static final Opt ips = opt("ips");
     public static final Opt cpulevel = opt("cpulevel");
@@ -92,6 +97,15 @@ public abstract class Option {
     public static final Opt cdrom = opt("cdrom");
     public static final Opt bios = opt("bios");
     public static final Switch ethernet = createSwitch("ethernet");
+    public static final Opt pcap = opt("pcap");
+    public static final Opt pcap_snaplen = opt("pcap-snaplen");
+    public static final Opt pcap_rotate = opt("pcap-rotate");
+    public static final Opt pcap_files = opt("pcap-files");
+    public static final Opt com1 = opt("com1");
+    public static final Opt com2 = opt("com2");
+    public static final Opt com3 = opt("com3");
+    public static final Opt com4 = opt("com4");
+    public static final Opt inputscript = opt("input-script");
 
     public static final Switch sound = createSwitch("sound");
     public static final Opt sounddevice = opt("sounddevice");
@@ -109,6 +123,7 @@ public abstract class Option {
     public static final Opt sb_irq = opt("sb_irq");
     public static final Opt sb_dma = opt("sb_dma");
     public static final Opt sb_hdma = opt("sb_hdma");
+    public static final Opt sb_readahead = opt("sb_read-ahead");
     public static final Switch sbmixer = createSwitch("sbmixer");
     public static final Opt sbtype = opt("sbtype");
     public static final Opt oplemu = opt("oplemu");
@@ -125,13 +140,29 @@ public abstract class Option {
         System.out.println("-fda $file - floppy image file");
         System.out.println("-hda $file - hard disk image file");
         System.out.println("-hda dir:$dir - directory to mount as a FAT32 hard disk");
-        System.out.println("-ss $file - snapshot file to load");
+        System.out.println("-ss $file - snapshot file to load, either a saved snapshot or a mapped snapshot restored with RAM paged in on demand; a full snapshot may be followed by its delta snapshots, separated by the path separator");
+        System.out.println("-page-store $file - page store that mapped snapshots keep their RAM pages in, shared and deduplicated between snapshots");
+        System.out.println("-share-pages - share identical read-only RAM pages, copy on write, between machines restored from the same page store");
+        System.out.println("-incoming $port - wait for a running JPC to be migrated in on $port before starting (Snapshot > Migrate on the sender)");
         System.out.println("-ram $megabytes - the amount RAM the virtual machine should have");
         System.out.println(
             "-ips $number - number of emulated instructions per emulated second - a larger value will cause a slower apparent time in the VM");
         System.out.println("-cpulevel $number - 4 = 486, 5 = Pentium, 6 = Pentium Pro");
         System.out.println();
         System.out.println("-sound - enable sound");
+        System.out.println("-sounddevice $device - where sound goes: sb16 (the host's audio line, default), wav:$file, raw:$file, tcp:$host:$port (raw 16 bit stereo PCM) or null (no mixing)");
+        System.out.println("-sb_read-ahead $ms - how far ahead of playback Sound Blaster DMA is read into the mixer, up to 50 (default 2)");
+        System.out.println("-net user - with -ethernet, NAT the guest onto host sockets (DHCP, DNS and 10.0.2.2 as the host's loopback)");
+        System.out.println("-net hub:$host[:$port] - with -ethernet, connect the network card to an EthernetHubServer");
+        System.out.println("-pcap $file - with -ethernet, capture network traffic to $file (pcapng if it ends in .pcapng, otherwise pcap)");
+        System.out.println("-pcap-snaplen $bytes - bytes kept from each captured frame (default 65535)");
+        System.out.println("-pcap-rotate $megabytes - start a new numbered capture file each time one reaches this size");
+        System.out.println("-pcap-files $count - number of rotated capture files to keep (default all)");
+        System.out.println("-com1 $backend (to -com4) - connect a serial port to tcp:$port (listen on loopback), tcp-listen:$host:$port (listen on $host, unauthenticated), tcp:$host:$port, pipe:$path ($path.in and $path.out), mem or log (default)");
+        System.out.println("-input-script $file - type the keys and mouse moves listed in $file into the guest as fast as it reads them (see org.jpc.j2se.InputScript)");
+        System.out.println("-vnc [$host:]$port - where the headless VNC server org.jpc.j2se.RFBServer listens (default port 5900 on loopback only; viewers are not authenticated, so give a $host only on a trusted network)");
+        System.out.println(
+            "-frame-snapshots - render from a copy of the VGA state taken at each emulated vertical retrace, paced to the guest refresh rate");
         System.out.println();
         System.out.println("Advanced Options:");
         System.out.println("-bios - specify an alternate bios image");
@@ -36,9 +36,13 @@ package org.jpc.j2se;
 import java.awt.Color;
 import java.awt.Component;
 import java.awt.Dimension;
+import java.awt.DisplayMode;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
+import java.awt.GraphicsEnvironment;
+import java.awt.HeadlessException;
 import java.awt.LayoutManager;
+import java.awt.Rectangle;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
@@ -169,6 +173,7 @@ public class PCMonitor extends KeyHandlingPanel implements Monitor {
 
     class Updater extends Thread {
         private volatile boolean running = !Option.noScreen.isSet();
+        private final long framePeriod = getHostFramePeriod();
 
         public Updater() {
             super("PC Monitor Updater Task");
@@ -176,16 +181,22 @@ public class PCMonitor extends KeyHandlingPanel implements Monitor {
 
         @Override
         public void run() {
+            long lastFrame = System.nanoTime();
             while (running) {
                 try {
-                    Thread.sleep(20);
+                    vgaCard.waitForFrame(20);
+                    // never draw faster than the host display can show the frames
+                    long idle = lastFrame + framePeriod - System.nanoTime();
+                    if (idle > 0)
+                        Thread.sleep(idle / 1000000, (int)(idle % 1000000));
                 } catch (InterruptedException e) {
                 }
+                lastFrame = System.nanoTime();
 
                 vgaCard.prepareUpdate();
                 vgaCard.updateDisplay();
 
-                repaint();
+                repaintDirtyRegions();
             }
         }
 
@@ -198,6 +209,40 @@ public class PCMonitor extends KeyHandlingPanel implements Monitor {
         }
     }
 
+    private static long getHostFramePeriod() {
+        int refreshRate = DisplayMode.REFRESH_RATE_UNKNOWN;
+        try {
+            if (!GraphicsEnvironment.isHeadless())
+                refreshRate = GraphicsEnvironment.getLocalGraphicsEnvironment().getDefaultScreenDevice().getDisplayMode()
+                    .getRefreshRate();
+        } catch (HeadlessException e) {
+        }
+        if (refreshRate <= 0)
+            refreshRate = 60;
+        return 1000000000L / refreshRate;
+    }
+
+    private void repaintDirtyRegions() {
+        if (clearBackground) {
+            repaint();
+            return;
+        }
+
+        Dimension display = vgaCard.getDisplaySize();
+        if (display.width <= 0 || display.height <= 0)
+            return;
+        double sx = getWidth() / (double)display.width;
+        double sy = getHeight() / (double)display.height;
+        for (Rectangle r : vgaCard.getDirtyRegions()) {
+            // round outwards so that scaled and interpolated edge pixels are included
+            int x = (int)Math.floor(r.x * sx) - 1;
+            int y = (int)Math.floor(r.y * sy) - 1;
+            int w = (int)Math.ceil((r.x + r.width) * sx) + 1 - x;
+            int h = (int)Math.ceil((r.y + r.height) * sy) + 1 - y;
+            repaint(x, y, w, h);
+        }
+    }
+
     @Override
     public void resizeDisplay(int width, int height) {
         resizeDisplayCommon((int)(width * scaleX), (int)(height * scaleY));
@@ -0,0 +1,1033 @@
+/*
+    JPC: An x86 PC Hardware Emulator for a pure Java Virtual Machine
+    Release Version 2.4
+
+    A project from the Physics Dept, The University of Oxford
+
+    Copyright (C) 2007-2010 The University of Oxford
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License version 2 as published by
+    the Free Software Foundation.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License along
+    with this program; if not, write to the Free Software Foundation, Inc.,
+    51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+
+    Details (including contact information) can be found at:
+
+    jpc.sourceforge.net
+    or the developer website
+    sourceforge.net/projects/jpc/
+
+    Conceived and Developed by:
+    Rhys Newman, Ian Preston, Chris Dennis
+
+    End of licence header
+*/
+
+package org.jpc.j2se;
+
+import java.awt.Dimension;
+import java.awt.Rectangle;
+import java.awt.event.KeyEvent;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.Deflater;
+
+import org.jpc.emulator.Monitor;
+import org.jpc.emulator.PC;
+import org.jpc.emulator.pci.VGACard;
+import org.jpc.emulator.peripheral.Keyboard;
+
+/**
+ * Headless RFB (VNC) server exporting the display, keyboard and mouse of a PC.
+ * <p>
+ * One selector thread accepts viewers and performs all socket I/O without blocking.  A
+ * separate updater thread redraws the VGA display, encodes the dirty regions for every
+ * viewer with an outstanding update request and queues the result for the selector.  A
+ * viewer whose previous update has not yet drained just accumulates dirty regions, so slow
+ * viewers never hold up the emulation or each other.
+ * <p>
+ * Viewers are not authenticated, so by default the server only listens on the loopback
+ * interface; anyone able to reach an address it is explicitly bound to has the guest's display
+ * and keyboard.
+ */
+public class RFBServer implements Monitor {
+    private static final Logger LOGGING = Logger.getLogger(RFBServer.class.getName());
+
+    public static final int DEFAULT_PORT = 5900;
+
+    private static final byte[] PROTOCOL_VERSION = "RFB 003.008\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] DESKTOP_NAME = "JPC".getBytes(StandardCharsets.US_ASCII);
+    private static final int UPDATE_INTERVAL = 20;
+    private static final int MAX_CLIENT_REGIONS = 32;
+
+    private static final int ENCODING_RAW = 0;
+    private static final int ENCODING_HEXTILE = 5;
+    private static final int ENCODING_ZRLE = 16;
+    private static final int ENCODING_DESKTOP_SIZE = -223;
+
+    private static final int HEXTILE_RAW = 1;
+    private static final int HEXTILE_BACKGROUND_SPECIFIED = 2;
+    private static final int HEXTILE_FOREGROUND_SPECIFIED = 4;
+    private static final int HEXTILE_ANY_SUBRECTS = 8;
+
+    private static final int STATE_VERSION = 0;
+    private static final int STATE_SECURITY = 1;
+    private static final int STATE_CLIENT_INIT = 2;
+    private static final int STATE_NORMAL = 3;
+
+    private final VGACard vgaCard;
+    private final Keyboard keyboard;
+    private final InetSocketAddress address;
+    private final List<Client> clients = new CopyOnWriteArrayList<Client>();
+
+    private Selector selector;
+    private ServerSocketChannel serverChannel;
+    private volatile boolean running;
+    private Thread ioThread, updaterThread;
+
+    /**
+     * Creates a server listening on <code>port</code> of the loopback interface.
+     * @param pc machine to export
+     * @param port TCP port
+     */
+    public RFBServer(PC pc, int port) {
+        this(pc, new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+    }
+
+    /**
+     * Creates a server listening on <code>address</code>, which any viewer that can reach it may
+     * connect to without authentication.
+     * @param pc machine to export
+     * @param address local address to listen on
+     */
+    public RFBServer(PC pc, InetSocketAddress address) {
+        this.address = address;
+        vgaCard = (VGACard)pc.getComponent(VGACard.class);
+        vgaCard.setMonitor(this);
+        vgaCard.resizeDisplay(720, 400);
+        keyboard = (Keyboard)pc.getComponent(Keyboard.class);
+    }
+
+    public synchronized void start() throws IOException {
+        if (running)
+            return;
+
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(address);
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+        running = true;
+        ioThread = new Thread(new IOHandler(), "RFB Server I/O");
+        ioThread.setDaemon(true);
+        ioThread.start();
+        updaterThread = new Thread(new Updater(), "RFB Updater Task");
+        updaterThread.setDaemon(true);
+        updaterThread.start();
+        LOGGING.log(Level.INFO, "RFB server listening on {0}", address);
+    }
+
+    public synchronized void stop() {
+        if (!running)
+            return;
+
+        running = false;
+        updaterThread.interrupt();
+        selector.wakeup();
+        try {
+            ioThread.join();
+        } catch (InterruptedException e) {
+        }
+        for (Client c : clients)
+            c.close();
+        try {
+            serverChannel.close();
+            selector.close();
+        } catch (IOException e) {
+            LOGGING.log(Level.INFO, "Exception closing RFB server", e);
+        }
+    }
+
+    public int getClientCount() {
+        return clients.size();
+    }
+
+    //Monitor Methods
+    @Override
+    public Dimension getSize() {
+        return vgaCard.getDisplaySize();
+    }
+
+    @Override
+    public void resizeDisplay(int width, int height) {
+        for (Client c : clients)
+            c.displayResized(width, height);
+    }
+
+    class Updater implements Runnable {
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    vgaCard.waitForFrame(UPDATE_INTERVAL);
+                } catch (InterruptedException e) {
+                    continue;
+                }
+
+                vgaCard.prepareUpdate();
+                vgaCard.updateDisplay();
+
+                Rectangle[] dirty = vgaCard.getDirtyRegions();
+                Dimension size = vgaCard.getDisplaySize();
+                int[] pixels = vgaCard.getDisplayBuffer();
+
+                boolean queued = false;
+                for (Client c : clients) {
+                    c.addDirtyRegions(dirty);
+                    try {
+                        queued |= c.encodeUpdate(pixels, size.width, size.height);
+                    } catch (IOException e) {
+                        LOGGING.log(Level.INFO, "Error encoding update for " + c, e);
+                        c.close();
+                    }
+                }
+                if (queued)
+                    selector.wakeup();
+            }
+        }
+    }
+
+    class IOHandler implements Runnable {
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    for (Client c : clients)
+                        c.updateInterest();
+
+                    selector.select();
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        if (!key.isValid())
+                            continue;
+
+                        if (key.isAcceptable()) {
+                            accept();
+                            continue;
+                        }
+
+                        Client c = (Client)key.attachment();
+                        try {
+                            if (key.isReadable())
+                                c.read();
+                            if (key.isValid() && key.isWritable())
+                                c.write();
+                        } catch (IOException e) {
+                            LOGGING.log(Level.FINE, "RFB client disconnected " + c, e);
+                            c.close();
+                        }
+                    }
+                } catch (IOException e) {
+                    LOGGING.log(Level.WARNING, "RFB server I/O error", e);
+                }
+            }
+        }
+
+        private void accept() throws IOException {
+            SocketChannel channel = serverChannel.accept();
+            if (channel == null)
+                return;
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+
+            Client c = new Client(channel);
+            c.key = channel.register(selector, SelectionKey.OP_READ, c);
+            clients.add(c);
+            c.queue(ByteBuffer.wrap(PROTOCOL_VERSION));
+            LOGGING.log(Level.INFO, "Accepted RFB connection from {0}", channel.socket().getRemoteSocketAddress());
+        }
+    }
+
+    static class PixelFormat {
+        int bitsPerPixel = 32, depth = 24;
+        boolean bigEndian, trueColour = true;
+        int redMax = 255, greenMax = 255, blueMax = 255;
+        int redShift = 16, greenShift = 8, blueShift = 0;
+
+        void write(ByteBuffer out) {
+            out.put((byte)bitsPerPixel);
+            out.put((byte)depth);
+            out.put((byte)(bigEndian ? 1 : 0));
+            out.put((byte)(trueColour ? 1 : 0));
+            out.putShort((short)redMax);
+            out.putShort((short)greenMax);
+            out.putShort((short)blueMax);
+            out.put((byte)redShift);
+            out.put((byte)greenShift);
+            out.put((byte)blueShift);
+            out.put(new byte[3]);
+        }
+
+        void read(ByteBuffer in) {
+            bitsPerPixel = 0xff & in.get();
+            depth = 0xff & in.get();
+            bigEndian = in.get() != 0;
+            trueColour = in.get() != 0;
+            redMax = 0xffff & in.getShort();
+            greenMax = 0xffff & in.getShort();
+            blueMax = 0xffff & in.getShort();
+            redShift = 0xff & in.get();
+            greenShift = 0xff & in.get();
+            blueShift = 0xff & in.get();
+            in.position(in.position() + 3);
+        }
+
+        boolean isSupported() {
+            return trueColour && (bitsPerPixel == 8 || bitsPerPixel == 16 || bitsPerPixel == 32);
+        }
+
+        int convert(int rgb) {
+            int r = (rgb >>> 16 & 0xff) * redMax / 255;
+            int g = (rgb >>> 8 & 0xff) * greenMax / 255;
+            int b = (rgb & 0xff) * blueMax / 255;
+            return r << redShift | g << greenShift | b << blueShift;
+        }
+
+        int bytesPerPixel() {
+            return bitsPerPixel >>> 3;
+        }
+
+        /**
+         * Returns the number of bytes in a ZRLE compressed pixel.
+         */
+        int compressedBytesPerPixel() {
+            if (bitsPerPixel != 32)
+                return bytesPerPixel();
+            if (depth > 24)
+                return 4;
+            int all = redMax << redShift | greenMax << greenShift | blueMax << blueShift;
+            if ((all & 0xff000000) == 0 || (all & 0xff) == 0)
+                return 3;
+            return 4;
+        }
+
+        void writePixel(ByteArrayOutputStream out, int pixel, int bytes) {
+            switch (bytes) {
+            case 1:
+                out.write(pixel);
+                return;
+            case 2:
+                if (bigEndian) {
+                    out.write(pixel >>> 8);
+                    out.write(pixel);
+                } else {
+                    out.write(pixel);
+                    out.write(pixel >>> 8);
+                }
+                return;
+            case 3:
+                // compressed pixel, drop whichever end byte is unused
+                int all = redMax << redShift | greenMax << greenShift | blueMax << blueShift;
+                if ((all & 0xff000000) != 0)
+                    pixel >>>= 8;
+                if (bigEndian) {
+                    out.write(pixel >>> 16);
+                    out.write(pixel >>> 8);
+                    out.write(pixel);
+                } else {
+                    out.write(pixel);
+                    out.write(pixel >>> 8);
+                    out.write(pixel >>> 16);
+                }
+                return;
+            default:
+                if (bigEndian) {
+                    out.write(pixel >>> 24);
+                    out.write(pixel >>> 16);
+                    out.write(pixel >>> 8);
+                    out.write(pixel);
+                } else {
+                    out.write(pixel);
+                    out.write(pixel >>> 8);
+                    out.write(pixel >>> 16);
+                    out.write(pixel >>> 24);
+                }
+            }
+        }
+    }
+
+    class Client {
+        private final SocketChannel channel;
+        private SelectionKey key;
+        private final ByteBuffer in = ByteBuffer.allocate(8192);
+        private final Queue<ByteBuffer> out = new ConcurrentLinkedQueue<ByteBuffer>();
+        private volatile int state = STATE_VERSION;
+        private int minorVersion;
+        private int clientWidth, clientHeight;
+
+        // guarded by this
+        private final PixelFormat format = new PixelFormat();
+        private final List<Rectangle> regions = new ArrayList<Rectangle>();
+        private int encoding = ENCODING_RAW;
+        private boolean desktopSize;
+        private boolean updateRequested;
+        private boolean resized;
+
+        private final ByteArrayOutputStream buffer = new ByteArrayOutputStream(64 * 1024);
+        private final ByteArrayOutputStream tileBuffer = new ByteArrayOutputStream(16 * 1024);
+        private final Deflater zrleStream = new Deflater(Deflater.BEST_SPEED);
+        private final byte[] deflateBuffer = new byte[32 * 1024];
+        private final int[] tilePalette = new int[16];
+
+        private int lastPointerX, lastPointerY, lastPointerButtons;
+
+        Client(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        void queue(ByteBuffer data) {
+            out.add(data);
+        }
+
+        void updateInterest() {
+            if (key.isValid())
+                key.interestOps(out.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+
+        void write() throws IOException {
+            ByteBuffer next;
+            while ((next = out.peek()) != null) {
+                channel.write(next);
+                if (next.hasRemaining())
+                    return;
+                out.poll();
+            }
+            key.interestOps(SelectionKey.OP_READ);
+        }
+
+        void close() {
+            clients.remove(this);
+            try {
+                channel.close();
+            } catch (IOException e) {
+            }
+            synchronized (this) {
+                zrleStream.end();
+            }
+        }
+
+        void read() throws IOException {
+            if (channel.read(in) < 0)
+                throw new ClosedChannelException();
+
+            in.flip();
+            while (processMessage()) {
+            }
+            in.compact();
+        }
+
+        /**
+         * Consumes one complete message from the input buffer.
+         * @return false if more data is needed
+         */
+        private boolean processMessage() throws IOException {
+            int start = in.position();
+            switch (state) {
+            case STATE_VERSION:
+                if (in.remaining() < PROTOCOL_VERSION.length)
+                    return false;
+                byte[] version = new byte[PROTOCOL_VERSION.length];
+                in.get(version);
+                try {
+                    minorVersion = Math.min(8, Integer.parseInt(new String(version, 8, 3, StandardCharsets.US_ASCII)));
+                } catch (NumberFormatException e) {
+                    throw new IOException("Bad RFB protocol version");
+                }
+                // offer only the "None" security type, 3.3 viewers are told rather than asked
+                if (minorVersion < 7) {
+                    queue(ByteBuffer.wrap(new byte[] { 0, 0, 0, 1 }));
+                    state = STATE_CLIENT_INIT;
+                } else {
+                    queue(ByteBuffer.wrap(new byte[] { 1, 1 }));
+                    state = STATE_SECURITY;
+                }
+                return true;
+            case STATE_SECURITY:
+                if (in.remaining() < 1)
+                    return false;
+                in.get();
+                if (minorVersion >= 8)
+                    queue(ByteBuffer.wrap(new byte[] { 0, 0, 0, 0 }));
+                state = STATE_CLIENT_INIT;
+                return true;
+            case STATE_CLIENT_INIT:
+                if (in.remaining() < 1)
+                    return false;
+                in.get();
+                sendServerInit();
+                state = STATE_NORMAL;
+                return true;
+            default:
+                break;
+            }
+
+            if (in.remaining() < 1)
+                return false;
+            int type = 0xff & in.get();
+            switch (type) {
+            case 0: // SetPixelFormat
+                if (in.remaining() < 19)
+                    break;
+                in.position(in.position() + 3);
+                synchronized (this) {
+                    format.read(in);
+                    if (!format.isSupported())
+                        throw new IOException("Unsupported pixel format requested");
+                    resetRegions(vgaCard.getDisplaySize());
+                }
+                return true;
+            case 2: // SetEncodings
+                if (in.remaining() < 3)
+                    break;
+                in.get();
+                int count = 0xffff & in.getShort();
+                if (in.remaining() < 4 * count)
+                    break;
+                int preferred = -1;
+                boolean size = false;
+                for (int i = 0; i < count; i++) {
+                    int e = in.getInt();
+                    if (e == ENCODING_DESKTOP_SIZE)
+                        size = true;
+                    else if (preferred < 0 && (e == ENCODING_RAW || e == ENCODING_HEXTILE || e == ENCODING_ZRLE))
+                        preferred = e;
+                }
+                synchronized (this) {
+                    encoding = preferred < 0 ? ENCODING_RAW : preferred;
+                    desktopSize = size;
+                }
+                return true;
+            case 3: // FramebufferUpdateRequest
+                if (in.remaining() < 9)
+                    break;
+                boolean incremental = in.get() != 0;
+                Rectangle r = new Rectangle(0xffff & in.getShort(), 0xffff & in.getShort(), 0xffff & in.getShort(), 0xffff & in.getShort());
+                synchronized (this) {
+                    if (!incremental)
+                        addRegion(r);
+                    updateRequested = true;
+                }
+                return true;
+            case 4: // KeyEvent
+                if (in.remaining() < 7)
+                    break;
+                boolean down = in.get() != 0;
+                in.getShort();
+                keyEvent(down, in.getInt());
+                return true;
+            case 5: // PointerEvent
+                if (in.remaining() < 5)
+                    break;
+                int buttons = 0xff & in.get();
+                pointerEvent(buttons, 0xffff & in.getShort(), 0xffff & in.getShort());
+                return true;
+            case 6: // ClientCutText
+                if (in.remaining() < 7)
+                    break;
+                in.position(in.position() + 3);
+                int length = in.getInt();
+                if (length < 0 || length > in.capacity() - 8)
+                    throw new IOException("Client cut text too long");
+                if (in.remaining() < length)
+                    break;
+                in.position(in.position() + length);
+                return true;
+            default:
+                throw new IOException("Unknown RFB message type " + type);
+            }
+
+            in.position(start);
+            return false;
+        }
+
+        private void sendServerInit() {
+            Dimension size = vgaCard.getDisplaySize();
+            ByteBuffer init = ByteBuffer.allocate(24 + DESKTOP_NAME.length);
+            init.putShort((short)size.width);
+            init.putShort((short)size.height);
+            synchronized (this) {
+                clientWidth = size.width;
+                clientHeight = size.height;
+                format.write(init);
+            }
+            init.putInt(DESKTOP_NAME.length);
+            init.put(DESKTOP_NAME);
+            init.flip();
+            queue(init);
+        }
+
+        private void keyEvent(boolean down, int keysym) {
+            int vk = keysymToKeyCode(keysym);
+            if (vk == KeyEvent.VK_UNDEFINED)
+                return;
+            int location = KeyEvent.KEY_LOCATION_UNKNOWN;
+            if (keysym == 0xffe1)
+                location = KeyEvent.KEY_LOCATION_LEFT;
+            else if (keysym == 0xffe2)
+                location = KeyEvent.KEY_LOCATION_RIGHT;
+
+            byte scancode = KeyMapping.getScancode(Locale.US, new KeyboardKey(location, vk));
+            if (scancode == 0)
+                return;
+            if (down)
+                keyboard.keyPressed(scancode);
+            else
+                keyboard.keyReleased(scancode);
+        }
+
+        private void pointerEvent(int rfbButtons, int x, int y) {
+            // rfb: 1 = left, 2 = middle, 4 = right, 8/16 = wheel; ps/2: 1 = left, 2 = right, 4 = middle
+            int buttons = rfbButtons & 1 | (rfbButtons & 4) >>> 1 | (rfbButtons & 2) << 1;
+            int dz = 0;
+            int pressed = rfbButtons & ~lastPointerButtons;
+            if ((pressed & 8) != 0)
+                dz--;
+            if ((pressed & 16) != 0)
+                dz++;
+
+            keyboard.putMouseEvent(x - lastPointerX, y - lastPointerY, dz, buttons);
+            lastPointerX = x;
+            lastPointerY = y;
+            lastPointerButtons = rfbButtons;
+        }
+
+        synchronized void displayResized(int width, int height) {
+            resized = true;
+            resetRegions(new Dimension(width, height));
+        }
+
+        private void resetRegions(Dimension size) {
+            regions.clear();
+            regions.add(new Rectangle(0, 0, size.width, size.height));
+        }
+
+        synchronized void addDirtyRegions(Rectangle[] dirty) {
+            if (state != STATE_NORMAL)
+                return;
+            for (Rectangle r : dirty)
+                addRegion(r);
+        }
+
+        private void addRegion(Rectangle r) {
+            if (r.isEmpty())
+                return;
+            for (Rectangle existing : regions)
+                if (existing.contains(r))
+                    return;
+            if (regions.size() < MAX_CLIENT_REGIONS) {
+                regions.add(new Rectangle(r));
+                return;
+            }
+            Rectangle union = new Rectangle(r);
+            for (Rectangle existing : regions)
+                union.add(existing);
+            regions.clear();
+            regions.add(union);
+        }
+
+        /**
+         * Encodes a framebuffer update if one has been requested and the previous update has
+         * been written.
+         * @return true if an update was queued
+         */
+        synchronized boolean encodeUpdate(int[] pixels, int width, int height) throws IOException {
+            if (!updateRequested || !out.isEmpty() || !channel.isOpen())
+                return false;
+
+            boolean sendSize = resized && desktopSize;
+            if (sendSize) {
+                clientWidth = width;
+                clientHeight = height;
+            }
+            // viewers that cannot resize only ever see the framebuffer size they were given
+            Rectangle screen = new Rectangle(0, 0, width, height);
+            Rectangle visible = screen.intersection(new Rectangle(0, 0, clientWidth, clientHeight));
+            List<Rectangle> rects = new ArrayList<Rectangle>(regions.size());
+            for (Rectangle r : regions) {
+                Rectangle clipped = r.intersection(visible);
+                if (!clipped.isEmpty())
+                    rects.add(clipped);
+            }
+            if (rects.isEmpty() && !sendSize)
+                return false;
+
+            regions.clear();
+            updateRequested = false;
+            resized = false;
+
+            buffer.reset();
+            buffer.write(0);
+            buffer.write(0);
+            int count = rects.size() + (sendSize ? 1 : 0);
+            buffer.write(count >>> 8);
+            buffer.write(count);
+            if (sendSize)
+                writeRectangleHeader(screen, ENCODING_DESKTOP_SIZE);
+            for (Rectangle r : rects) {
+                writeRectangleHeader(r, encoding);
+                switch (encoding) {
+                case ENCODING_HEXTILE:
+                    encodeHextile(pixels, width, r);
+                    break;
+                case ENCODING_ZRLE:
+                    encodeZRLE(pixels, width, r);
+                    break;
+                default:
+                    encodeRaw(pixels, width, r);
+                }
+            }
+
+            queue(ByteBuffer.wrap(buffer.toByteArray()));
+            return true;
+        }
+
+        private void writeRectangleHeader(Rectangle r, int encodingType) {
+            buffer.write(r.x >>> 8);
+            buffer.write(r.x);
+            buffer.write(r.y >>> 8);
+            buffer.write(r.y);
+            buffer.write(r.width >>> 8);
+            buffer.write(r.width);
+            buffer.write(r.height >>> 8);
+            buffer.write(r.height);
+            buffer.write(encodingType >>> 24);
+            buffer.write(encodingType >>> 16);
+            buffer.write(encodingType >>> 8);
+            buffer.write(encodingType);
+        }
+
+        private void encodeRaw(int[] pixels, int scan, Rectangle r) {
+            int bytes = format.bytesPerPixel();
+            for (int y = r.y; y < r.y + r.height; y++) {
+                int offset = y * scan;
+                for (int x = r.x; x < r.x + r.width; x++)
+                    format.writePixel(buffer, format.convert(pixels[offset + x]), bytes);
+            }
+        }
+
+        private void encodeHextile(int[] pixels, int scan, Rectangle r) throws IOException {
+            int bytes = format.bytesPerPixel();
+            boolean validBackground = false, validForeground = false;
+            int lastBackground = 0, lastForeground = 0;
+
+            for (int ty = r.y; ty < r.y + r.height; ty += 16) {
+                int th = Math.min(16, r.y + r.height - ty);
+                for (int tx = r.x; tx < r.x + r.width; tx += 16) {
+                    int tw = Math.min(16, r.x + r.width - tx);
+
+                    int background = pixels[ty * scan + tx];
+                    int foreground = background;
+                    boolean twoColour = true;
+                    for (int y = ty; y < ty + th && twoColour; y++) {
+                        int offset = y * scan;
+                        for (int x = tx; x < tx + tw; x++) {
+                            int p = pixels[offset + x];
+                            if (p == background || p == foreground)
+                                continue;
+                            if (foreground == background)
+                                foreground = p;
+                            else {
+                                twoColour = false;
+                                break;
+                            }
+                        }
+                    }
+
+                    if (twoColour) {
+                        tileBuffer.reset();
+                        int subrects = 0;
+                        if (foreground != background) {
+                            for (int y = ty; y < ty + th; y++) {
+                                int offset = y * scan;
+                                for (int x = tx; x < tx + tw; x++) {
+                                    if (pixels[offset + x] != foreground)
+                                        continue;
+                                    int run = x;
+                                    while (run + 1 < tx + tw && pixels[offset + run + 1] == foreground)
+                                        run++;
+                                    tileBuffer.write(x - tx << 4 | y - ty);
+                                    tileBuffer.write(run - x << 4);
+                                    subrects++;
+                                    x = run;
+                                }
+                            }
+                        }
+
+                        int header = 0;
+                        int size = 1 + tileBuffer.size();
+                        if (!validBackground || background != lastBackground) {
+                            header |= HEXTILE_BACKGROUND_SPECIFIED;
+                            size += bytes;
+                        }
+                        if (subrects > 0) {
+                            header |= HEXTILE_ANY_SUBRECTS;
+                            size++;
+                            if (!validForeground || foreground != lastForeground) {
+                                header |= HEXTILE_FOREGROUND_SPECIFIED;
+                                size += bytes;
+                            }
+                        }
+
+                        if (subrects < 256 && size < tw * th * bytes) {
+                            buffer.write(header);
+                            if ((header & HEXTILE_BACKGROUND_SPECIFIED) != 0)
+                                format.writePixel(buffer, format.convert(background), bytes);
+                            if ((header & HEXTILE_FOREGROUND_SPECIFIED) != 0)
+                                format.writePixel(buffer, format.convert(foreground), bytes);
+                            if (subrects > 0) {
+                                buffer.write(subrects);
+                                tileBuffer.writeTo(buffer);
+                            }
+                            lastBackground = background;
+                            validBackground = true;
+                            if ((header & HEXTILE_FOREGROUND_SPECIFIED) != 0) {
+                                lastForeground = foreground;
+                                validForeground = true;
+                            }
+                            continue;
+                        }
+                    }
+
+                    buffer.write(HEXTILE_RAW);
+                    for (int y = ty; y < ty + th; y++) {
+                        int offset = y * scan;
+                        for (int x = tx; x < tx + tw; x++)
+                            format.writePixel(buffer, format.convert(pixels[offset + x]), bytes);
+                    }
+                    // colours following a raw tile must be specified again
+                    validBackground = validForeground = false;
+                }
+            }
+        }
+
+        private void encodeZRLE(int[] pixels, int scan, Rectangle r) throws IOException {
+            int bytes = format.compressedBytesPerPixel();
+            tileBuffer.reset();
+            for (int ty = r.y; ty < r.y + r.height; ty += 64) {
+                int th = Math.min(64, r.y + r.height - ty);
+                for (int tx = r.x; tx < r.x + r.width; tx += 64) {
+                    int tw = Math.min(64, r.x + r.width - tx);
+
+                    int colours = 0;
+                    scan: for (int y = ty; y < ty + th; y++) {
+                        int offset = y * scan;
+                        for (int x = tx; x < tx + tw; x++) {
+                            int p = pixels[offset + x];
+                            int i = 0;
+                            while (i < colours && tilePalette[i] != p)
+                                i++;
+                            if (i == colours) {
+                                if (colours == tilePalette.length) {
+                                    colours = Integer.MAX_VALUE;
+                                    break scan;
+                                }
+                                tilePalette[colours++] = p;
+                            }
+                        }
+                    }
+
+                    if (colours == 1) {
+                        tileBuffer.write(1);
+                        format.writePixel(tileBuffer, format.convert(tilePalette[0]), bytes);
+                    } else if (colours <= tilePalette.length) {
+                        tileBuffer.write(colours);
+                        for (int i = 0; i < colours; i++)
+                            format.writePixel(tileBuffer, format.convert(tilePalette[i]), bytes);
+                        int bits = colours == 2 ? 1 : colours <= 4 ? 2 : 4;
+                        for (int y = ty; y < ty + th; y++) {
+                            int offset = y * scan;
+                            int packed = 0, used = 0;
+                            for (int x = tx; x < tx + tw; x++) {
+                                int p = pixels[offset + x];
+                                int index = 0;
+                                while (tilePalette[index] != p)
+                                    index++;
+                                packed = packed << bits | index;
+                                used += bits;
+                                if (used == 8) {
+                                    tileBuffer.write(packed);
+                                    packed = used = 0;
+                                }
+                            }
+                            if (used > 0)
+                                tileBuffer.write(packed << 8 - used);
+                        }
+                    } else {
+                        tileBuffer.write(0);
+                        for (int y = ty; y < ty + th; y++) {
+                            int offset = y * scan;
+                            for (int x = tx; x < tx + tw; x++)
+                                format.writePixel(tileBuffer, format.convert(pixels[offset + x]), bytes);
+                        }
+                    }
+                }
+            }
+
+            byte[] raw = tileBuffer.toByteArray();
+            zrleStream.setInput(raw);
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream(raw.length / 4 + 64);
+            int n;
+            do {
+                n = zrleStream.deflate(deflateBuffer, 0, deflateBuffer.length, Deflater.SYNC_FLUSH);
+                compressed.write(deflateBuffer, 0, n);
+            } while (n == deflateBuffer.length);
+
+            int length = compressed.size();
+            buffer.write(length >>> 24);
+            buffer.write(length >>> 16);
+            buffer.write(length >>> 8);
+            buffer.write(length);
+            compressed.writeTo(buffer);
+        }
+
+        @Override
+        public String toString() {
+            return "RFB Client " + channel.socket().getRemoteSocketAddress();
+        }
+    }
+
+    /**
+     * Maps an X11 keysym, as sent by RFB viewers, to the Java key code of the physical key
+     * on a US keyboard.  Shifted characters map to their unshifted key since viewers send
+     * the shift key separately.
+     */
+    static int keysymToKeyCode(int keysym) {
+        if (keysym >= 0x20 && keysym < 0x7f) {
+            char c = (char)keysym;
+            int shifted = KeyMapping.SHIFTED_CHARS.indexOf(c);
+            if (shifted >= 0)
+                c = KeyMapping.UNSHIFTED_CHARS.charAt(shifted);
+            c = Character.toLowerCase(c);
+            int[] codes = KeyMapping.getJavaKeycodes(c);
+            return codes[codes.length - 1];
+        }
+        if (keysym >= 0xffbe && keysym <= 0xffc7)
+            return KeyEvent.VK_F1 + keysym - 0xffbe;
+
+        switch (keysym) {
+        case 0xff08:
+            return KeyEvent.VK_BACK_SPACE;
+        case 0xff09:
+            return KeyEvent.VK_TAB;
+        case 0xff0d:
+        case 0xff8d:
+            return KeyEvent.VK_ENTER;
+        case 0xff13:
+            return KeyEvent.VK_PAUSE;
+        case 0xff14:
+            return KeyEvent.VK_SCROLL_LOCK;
+        case 0xff1b:
+            return KeyEvent.VK_ESCAPE;
+        case 0xff50:
+            return KeyEvent.VK_HOME;
+        case 0xff51:
+            return KeyEvent.VK_LEFT;
+        case 0xff52:
+            return KeyEvent.VK_UP;
+        case 0xff53:
+            return KeyEvent.VK_RIGHT;
+        case 0xff54:
+            return KeyEvent.VK_DOWN;
+        case 0xff55:
+            return KeyEvent.VK_PAGE_UP;
+        case 0xff56:
+            return KeyEvent.VK_PAGE_DOWN;
+        case 0xff57:
+            return KeyEvent.VK_END;
+        case 0xff63:
+            return KeyEvent.VK_INSERT;
+        case 0xff7f:
+            return KeyEvent.VK_NUM_LOCK;
+        case 0xffaa:
+            return KeyEvent.VK_MULTIPLY;
+        case 0xffc8:
+            return KeyEvent.VK_F11;
+        case 0xffc9:
+            return KeyEvent.VK_F12;
+        case 0xffe1:
+        case 0xffe2:
+            return KeyEvent.VK_SHIFT;
+        case 0xffe3:
+        case 0xffe4:
+            return KeyEvent.VK_CONTROL;
+        case 0xffe5:
+            return KeyEvent.VK_CAPS_LOCK;
+        case 0xffe9:
+            return KeyEvent.VK_ALT;
+        case 0xffea:
+        case 0xfe03:
+            return KeyEvent.VK_ALT_GRAPH;
+        case 0xffff:
+            return KeyEvent.VK_DELETE;
+        default:
+            return KeyEvent.VK_UNDEFINED;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        args = Option.parse(args);
+        if (Option.help.isSet()) {
+            Option.printHelp();
+            System.exit(0);
+        }
+
+        PC pc = new PC(new VirtualClock(), args);
+        String spec = Option.vnc.value(Integer.toString(DEFAULT_PORT));
+        int colon = spec.lastIndexOf(':');
+        RFBServer server;
+        if (colon < 0)
+            server = new RFBServer(pc, Integer.parseInt(spec));
+        else
+            server = new RFBServer(pc, new InetSocketAddress(spec.substring(0, colon), Integer.parseInt(spec.substring(colon + 1))));
+        server.start();
+
+        pc.start();
+        try {
+            while (true)
+                pc.execute();
+        } finally {
+            pc.stop();
+            server.stop();
+            LOGGING.log(Level.INFO, "PC Stopped");
+        }
+    }
+}
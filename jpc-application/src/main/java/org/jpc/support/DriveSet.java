@@ -49,6 +49,7 @@ import org.jpc.emulator.block.TreeBlockDevice;
 import org.jpc.emulator.block.backing.ArrayBackedSeekableIODevice;
 import org.jpc.emulator.block.backing.CachingSeekableIODevice;
 import org.jpc.emulator.block.backing.FileBackedSeekableIODevice;
+import org.jpc.emulator.block.backing.MappedSeekableIODevice;
 import org.jpc.emulator.block.backing.RemoteSeekableIODevice;
 import org.jpc.emulator.block.backing.SeekableIODevice;
 
@@ -67,6 +68,7 @@ public class DriveSet extends AbstractHardwareComponent {
         DEFAULT(FileBackedSeekableIODevice.class),
 
         dir(TreeBlockDevice.class), //
+        iso(MappedSeekableIODevice.class), //
         mem(ArrayBackedSeekableIODevice.class), //
         net(RemoteSeekableIODevice.class);
 
@@ -185,6 +187,10 @@ public class DriveSet extends AbstractHardwareComponent {
     }
 
     private static Object createDevice(String spec) {
+        return createDevice(spec, Devices.DEFAULT);
+    }
+
+    private static Object createDevice(String spec, Devices defaultDevice) {
         if (spec == null) {
             return null;
         }
@@ -193,7 +199,7 @@ public class DriveSet extends AbstractHardwareComponent {
             spec = spec.substring(1, spec.length() - 2);
 
         int colon = spec.indexOf(':');
-        String deviceKey = "DEFAULT";
+        String deviceKey = defaultDevice.name();
         String deviceSpec = spec;
         if (colon >= 0 && spec.indexOf("\\") != colon + 1) {
             deviceKey = spec.substring(0, colon);
@@ -202,7 +208,7 @@ public class DriveSet extends AbstractHardwareComponent {
 
         Object device;
         if (deviceKey.startsWith("caching")) {
-            deviceKey = "DEFAULT";
+            deviceKey = defaultDevice.name();
             int secondcolon = deviceSpec.indexOf(':');
             if (secondcolon > 0 && deviceSpec.indexOf("\\") != secondcolon + 1) {
                 deviceSpec = deviceSpec.substring(secondcolon + 1);
@@ -251,7 +257,10 @@ public class DriveSet extends AbstractHardwareComponent {
     }
 
     private static BlockDevice createCdRomBlockDevice(String spec) {
-        Object device = createDevice(spec);
+        // plain image files are mapped so that every PC reading the same ISO shares one copy
+        Object device = createDevice(spec, Devices.iso);
+        if (device == null)
+            device = createDevice(spec);
 
         if (device instanceof SeekableIODevice)
             return new CDROMBlockDevice((SeekableIODevice)device);
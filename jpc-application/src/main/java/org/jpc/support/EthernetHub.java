@@ -33,123 +33,322 @@
 
 package org.jpc.support;
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
-import java.net.Socket;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
 import java.util.Queue;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
+ * Connects the emulated ethernet card to an {@link org.jpc.j2se.EthernetHubServer} over TCP.
+ * <p>
+ * Packets travel as frames of a four byte big endian length followed by the packet. A single
+ * selector thread does all the socket work. Outgoing frames are appended to a staging buffer which
+ * the selector thread swaps with a second buffer and writes, so everything queued since the last
+ * write goes out in one call and no buffer is allocated per packet. Incoming frames are parsed out
+ * of a single read buffer. Both directions are bounded: a packet that does not fit is dropped and
+ * counted rather than stalling the emulation or queueing without limit.
  * @author Ian Preston
  */
 public class EthernetHub extends EthernetOutput {
-    private int errorDelay, port;
-    private String serverHost;
-    private volatile DataOutputStream out;
-    private volatile DataInputStream in;
-    private int packetSize;
-    private Queue<byte[]> inQueue = new ConcurrentLinkedQueue<byte[]>();
-    private Queue<byte[]> outQueue = new ConcurrentLinkedQueue<byte[]>();
+    private static final Logger LOGGING = Logger.getLogger(EthernetHub.class.getName());
+
+    private static final int MAX_FRAME = 64 * 1024;
+    private static final int BUFFER_SIZE = 256 * 1024;
+    private static final int MAX_QUEUED_PACKETS = 256;
+
+    private final String serverHost;
+    private final int port;
+    private final Selector selector;
+    private final AtomicBoolean wakeupPending = new AtomicBoolean();
+
+    private final Object sendLock = new Object();
+    private ByteBuffer pending = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private int pendingFrames;
+    private long pendingSince;
+    private ByteBuffer writing = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private int writingFrames;
+    private long writingSince;
+    private final ByteBuffer reading = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+    private final Queue<byte[]> inQueue = new ConcurrentLinkedQueue<byte[]>();
+    private final AtomicInteger inQueueSize = new AtomicInteger();
+
+    private volatile long packetsSent, bytesSent, sendDrops, writeCalls;
+    private volatile long batchLatencyNanos, maxBatchLatencyNanos, batches;
+    private volatile long packetsReceived, bytesReceived, receiveDrops;
 
     public EthernetHub(String host, int port) {
-        packetSize = -1;
         serverHost = host;
         this.port = port;
-        errorDelay = 10000;
-        System.out.println("Connecting to remote EthernetHub at: " + host + ":" + port);
+        writing.limit(0);
+        try {
+            selector = Selector.open();
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot open selector for ethernet hub", e);
+        }
+        LOGGING.log(Level.INFO, "connecting to remote EthernetHub at {0}:{1,number,#}", new Object[]{host, port});
 
-        new Thread(new Reader()).start();
-        new Thread(new Writer()).start();
+        Thread relay = new Thread(new Relay(), "Ethernet Hub " + host + ":" + port);
+        relay.setDaemon(true);
+        relay.start();
     }
 
-    private synchronized void reconnect() {
-        notifyAll();
-        if (in != null)
-            return;
+    class Relay implements Runnable {
+        @Override
+        public void run() {
+            int errorDelay = 1000;
+            while (true) {
+                SocketChannel channel = null;
+                try {
+                    channel = SocketChannel.open(new InetSocketAddress(serverHost, port));
+                    channel.socket().setTcpNoDelay(true);
+                    channel.socket().setPerformancePreferences(0, 2, 1);
+                    channel.configureBlocking(false);
+                    LOGGING.log(Level.INFO, "connected to ethernet hub at {0}:{1,number,#}", new Object[]{serverHost, port});
+                    errorDelay = 1000;
+                    relay(channel);
+                } catch (IOException e) {
+                    LOGGING.log(Level.WARNING, "ethernet hub connection to {0}:{1,number,#} failed, retrying in {2} ms: {3}",
+                        new Object[]{serverHost, port, errorDelay, e});
+                } finally {
+                    disconnect(channel);
+                }
 
-        in = null;
-        out = null;
+                try {
+                    Thread.sleep(errorDelay);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                errorDelay = Math.min(errorDelay + 2000, 30000);
+            }
+        }
+    }
+
+    private void relay(SocketChannel channel) throws IOException {
+        SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
         while (true) {
+            if (!writing.hasRemaining()) {
+                swapBuffers();
+            }
+            if (writing.hasRemaining()) {
+                write(channel);
+            }
+            key.interestOps(writing.hasRemaining() ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+
+            wakeupPending.set(false);
+            if (hasPending() && !writing.hasRemaining()) {
+                selector.selectNow();
+            } else {
+                selector.select();
+            }
+            if (selector.selectedKeys().remove(key) && key.isReadable()) {
+                read(channel);
+            }
+        }
+    }
+
+    private void disconnect(SocketChannel channel) {
+        if (channel != null) {
             try {
-                Socket server = new Socket(serverHost, port);
-                server.setTcpNoDelay(true);
-                server.setPerformancePreferences(0, 2, 1);
+                channel.close();
+                selector.selectNow();
+            } catch (IOException e) {
+            }
+        }
+        reading.clear();
+        if (writing.hasRemaining()) {
+            // the rest of a partially written batch cannot be resumed on a new connection
+            synchronized (sendLock) {
+                sendDrops += writingFrames;
+            }
+            writing.limit(0);
+        }
+        LOGGING.log(Level.INFO, "ethernet hub disconnected: {0}", this);
+    }
 
-                out = new DataOutputStream(server.getOutputStream());
-                in = new DataInputStream(server.getInputStream());
-                errorDelay = 1000;
+    private boolean hasPending() {
+        synchronized (sendLock) {
+            return pending.position() != 0;
+        }
+    }
+
+    private void swapBuffers() {
+        synchronized (sendLock) {
+            if (pending.position() == 0) {
                 return;
-            } catch (Exception e) {
-                errorDelay = Math.min(errorDelay + 2000, 30000);
-                System.out.println("Error connecting to ethernet hub: " + e);
-                try {
-                    wait(errorDelay);
-                } catch (Exception ee) {
-                }
             }
+            ByteBuffer drained = writing;
+            writing = pending;
+            pending = drained;
+            pending.clear();
+            writingFrames = pendingFrames;
+            writingSince = pendingSince;
+            pendingFrames = 0;
         }
+        writing.flip();
     }
 
-    class Reader implements Runnable {
-        @Override
-        public void run() {
-            while (true) {
-                if (inQueue.size() > 100) {
-                    System.out.println("Clearing ETH0 packet queue");
-                    inQueue.clear();
-                }
+    private void write(SocketChannel channel) throws IOException {
+        int bytes = channel.write(writing);
+        writeCalls++;
+        bytesSent += bytes;
+        if (writing.hasRemaining()) {
+            return;
+        }
 
-                try {
-                    int size = in.readInt();
-                    System.out.println(">>> " + size);
-                    byte[] packet = new byte[size];
-                    in.readFully(packet);
-                    inQueue.add(packet);
-                } catch (Exception ex) {
-                    in = null;
-                    out = null;
-                    reconnect();
-                }
-            }
+        long latency = System.nanoTime() - writingSince;
+        packetsSent += writingFrames;
+        batches++;
+        batchLatencyNanos += latency;
+        if (latency > maxBatchLatencyNanos) {
+            maxBatchLatencyNanos = latency;
         }
     }
 
-    class Writer implements Runnable {
-        @Override
-        public void run() {
-            while (true) {
-                try {
-                    synchronized (outQueue) {
-                        while (outQueue.size() == 0)
-                            outQueue.wait();
-                    }
-
-                    byte[] packet = outQueue.poll();
-                    out.writeInt(packet.length);
-                    out.write(packet);
-                    out.flush();
-                } catch (Exception ex) {
-                    in = null;
-                    out = null;
-                    reconnect();
-                }
+    private void read(SocketChannel channel) throws IOException {
+        if (channel.read(reading) < 0) {
+            throw new EOFException("ethernet hub closed the connection");
+        }
+        reading.flip();
+        long received = packetsReceived;
+        while (reading.remaining() >= 4) {
+            int size = reading.getInt(reading.position());
+            if (size <= 0 || size > MAX_FRAME) {
+                throw new IOException("invalid frame length " + size + " from ethernet hub");
+            }
+            if (reading.remaining() < 4 + size) {
+                break;
             }
+            reading.position(reading.position() + 4);
+            bytesReceived += 4 + size;
+            if (inQueueSize.get() >= MAX_QUEUED_PACKETS) {
+                receiveDrops++;
+                reading.position(reading.position() + size);
+                continue;
+            }
+            byte[] packet = new byte[size];
+            reading.get(packet);
+            inQueue.add(packet);
+            inQueueSize.incrementAndGet();
+            packetsReceived++;
+        }
+        reading.compact();
+        if (packetsReceived != received) {
+            packetsAvailable();
         }
     }
 
     @Override
     public byte[] getPacket() {
-        return inQueue.poll();
+        byte[] packet = inQueue.poll();
+        if (packet != null) {
+            inQueueSize.decrementAndGet();
+        }
+        return packet;
     }
 
     @Override
     public void sendPacket(byte[] data, int offset, int length) {
-        byte[] p = new byte[length];
-        System.arraycopy(data, offset, p, 0, length);
-
-        synchronized (outQueue) {
-            outQueue.add(p);
-            outQueue.notify();
+        if (length <= 0 || length > MAX_FRAME) {
+            return;
+        }
+        synchronized (sendLock) {
+            if (pending.remaining() < 4 + length) {
+                sendDrops++;
+                return;
+            }
+            if (pending.position() == 0) {
+                pendingSince = System.nanoTime();
+            }
+            pending.putInt(length);
+            pending.put(data, offset, length);
+            pendingFrames++;
+        }
+        if (wakeupPending.compareAndSet(false, true)) {
+            selector.wakeup();
         }
     }
+
+    /**
+     * @return number of packets written to the hub
+     */
+    public long getPacketsSent() {
+        return packetsSent;
+    }
+
+    /**
+     * @return number of bytes written to the hub, including framing
+     */
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    /**
+     * @return number of outgoing packets dropped because the send buffer was full or the
+     * connection was lost
+     */
+    public long getSendDrops() {
+        return sendDrops;
+    }
+
+    /**
+     * @return number of socket writes, each carrying every packet queued since the previous one
+     */
+    public long getWriteCalls() {
+        return writeCalls;
+    }
+
+    /**
+     * @return mean time in nanoseconds from the first packet of a batch being queued to the batch
+     * being completely written
+     */
+    public long getAverageSendLatencyNanos() {
+        long n = batches;
+        return n == 0 ? 0 : batchLatencyNanos / n;
+    }
+
+    /**
+     * @return longest time in nanoseconds from the first packet of a batch being queued to the
+     * batch being completely written
+     */
+    public long getMaxSendLatencyNanos() {
+        return maxBatchLatencyNanos;
+    }
+
+    /**
+     * @return number of packets received from the hub and queued for the card
+     */
+    public long getPacketsReceived() {
+        return packetsReceived;
+    }
+
+    /**
+     * @return number of bytes read from the hub, including framing and dropped packets
+     */
+    public long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    /**
+     * @return number of incoming packets dropped because the card had not taken earlier ones
+     */
+    public long getReceiveDrops() {
+        return receiveDrops;
+    }
+
+    @Override
+    public String toString() {
+        return "sent " + packetsSent + " packets/" + bytesSent + " bytes in " + writeCalls + " writes ("
+            + sendDrops + " dropped, latency avg " + getAverageSendLatencyNanos() / 1000 + " us max " + maxBatchLatencyNanos / 1000
+            + " us), received " + packetsReceived + " packets/" + bytesReceived + " bytes (" + receiveDrops + " dropped)";
+    }
 }
@@ -37,7 +37,28 @@ package org.jpc.support;
  * @author Ian Preston
  */
 public abstract class EthernetOutput {
+    private volatile Runnable packetListener;
+
     public abstract void sendPacket(byte[] data, int offset, int length);
 
     public abstract byte[] getPacket();
+
+    /**
+     * Sets the callback run whenever packets become available from {@link #getPacket()}, in
+     * place of the card polling for them.
+     * @param listener callback, which may be run on any thread, or <code>null</code>
+     */
+    public void setPacketListener(Runnable listener) {
+        packetListener = listener;
+    }
+
+    /**
+     * Notifies the listener that packets are waiting. Implementations that receive packets call
+     * this after queueing one or more of them.
+     */
+    protected void packetsAvailable() {
+        Runnable listener = packetListener;
+        if (listener != null)
+            listener.run();
+    }
 }
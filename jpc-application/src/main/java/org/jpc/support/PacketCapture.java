@@ -0,0 +1,324 @@
+/*
+    JPC: An x86 PC Hardware Emulator for a pure Java Virtual Machine
+    Release Version 2.4
+
+    A project from the Physics Dept, The University of Oxford
+
+    Copyright (C) 2007-2010 The University of Oxford
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License version 2 as published by
+    the Free Software Foundation.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License along
+    with this program; if not, write to the Free Software Foundation, Inc.,
+    51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+
+    Details (including contact information) can be found at:
+
+    jpc.sourceforge.net
+    or the developer website
+    sourceforge.net/projects/jpc/
+
+    Conceived and Developed by:
+    Rhys Newman, Ian Preston, Chris Dennis
+
+    End of licence header
+*/
+
+package org.jpc.support;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Captures ethernet frames to pcap files for standard tools such as Wireshark and tcpdump.
+ * <p>
+ * The emulation thread copies each frame, cut to the snap length, into a lock-free ring and
+ * carries on; a background thread drains the ring to disk. If the writer falls behind, frames are
+ * dropped and counted rather than stalling the guest. Files ending in <code>.pcapng</code> are
+ * written as pcapng with the direction of each frame recorded, anything else as classic pcap.
+ * Optionally the capture rotates to a new numbered file once the current one reaches a size,
+ * keeping only the most recent files.
+ */
+public class PacketCapture implements Runnable {
+    private static final Logger LOGGING = Logger.getLogger(PacketCapture.class.getName());
+
+    /** Direction of a frame received by the guest. */
+    public static final int RECEIVED = 1;
+    /** Direction of a frame sent by the guest. */
+    public static final int SENT = 2;
+
+    public static final int DEFAULT_SNAPLEN = 65535;
+
+    private static final int RING_SIZE = 4 * 1024 * 1024;
+    private static final int RECORD_HEADER = 20;
+    private static final int LINKTYPE_ETHERNET = 1;
+    private static final long IDLE_PARK_NANOS = 5 * 1000000L;
+
+    private final byte[] ring = new byte[RING_SIZE];
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+
+    private final String fileName;
+    private final boolean pcapng;
+    private final int snaplen;
+    private final long rotateBytes;
+    private final int maxFiles;
+    private final long epochNanos = System.currentTimeMillis() * 1000000L;
+    private final long startNanos = System.nanoTime();
+
+    private final ByteBuffer out = ByteBuffer.allocate(256 * 1024);
+    private FileChannel channel;
+    private long fileBytes;
+    private int fileIndex;
+
+    private final Thread writer;
+    private volatile boolean closed;
+    private volatile long captured, drops;
+    private volatile long written;
+
+    /**
+     * Starts capturing into <code>fileName</code>.
+     * @param fileName file to write, numbered before its extension if rotating
+     * @param snaplen maximum number of bytes kept from each frame
+     * @param rotateBytes size at which to start a new file, or zero to write a single file
+     * @param maxFiles number of rotated files to keep, or zero to keep them all
+     * @throws IOException if the first file cannot be created
+     */
+    public PacketCapture(String fileName, int snaplen, long rotateBytes, int maxFiles) throws IOException {
+        if (snaplen <= 0 || snaplen > RING_SIZE / 4)
+            throw new IllegalArgumentException("bad snap length " + snaplen);
+        this.fileName = fileName;
+        this.pcapng = fileName.endsWith(".pcapng");
+        this.snaplen = snaplen;
+        this.rotateBytes = rotateBytes;
+        this.maxFiles = maxFiles;
+        openFile();
+
+        writer = new Thread(this, "Packet Capture " + fileName);
+        writer.setDaemon(true);
+        writer.setPriority(Thread.MIN_PRIORITY);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            public void run() {
+                close();
+            }
+        }));
+    }
+
+    /**
+     * Records a frame. Called from the emulation thread only; never blocks.
+     * @param direction {@link #SENT} or {@link #RECEIVED}
+     * @return <code>false</code> if the ring was full and the frame was dropped
+     */
+    public boolean capture(int direction, byte[] frame, int offset, int length) {
+        int caught = Math.min(length, snaplen);
+        int size = RECORD_HEADER + (caught + 3 & ~3);
+        long h = head.get();
+        if (closed || RING_SIZE - (h - tail.get()) < size) {
+            drops++;
+            return false;
+        }
+        int p = (int)h & (RING_SIZE - 1);
+        p = putInt(p, caught);
+        p = putInt(p, length);
+        p = putInt(p, direction);
+        long nanos = System.nanoTime();
+        p = putInt(p, (int)(nanos >>> 32));
+        p = putInt(p, (int)nanos);
+        int first = Math.min(caught, RING_SIZE - p);
+        System.arraycopy(frame, offset, ring, p, first);
+        System.arraycopy(frame, offset + first, ring, 0, caught - first);
+        captured++;
+        head.lazySet(h + size);
+        return true;
+    }
+
+    private int putInt(int p, int value) {
+        ring[p] = (byte)(value >>> 24);
+        ring[p + 1] = (byte)(value >>> 16);
+        ring[p + 2] = (byte)(value >>> 8);
+        ring[p + 3] = (byte)value;
+        return p + 4 & (RING_SIZE - 1);
+    }
+
+    private int getInt(int p) {
+        return (ring[p] & 0xFF) << 24 | (ring[p + 1] & 0xFF) << 16 | (ring[p + 2] & 0xFF) << 8 | ring[p + 3] & 0xFF;
+    }
+
+    public void run() {
+        try {
+            while (true) {
+                long t = tail.get();
+                long h = head.get();
+                if (t == h) {
+                    flush();
+                    if (closed && head.get() == h)
+                        break;
+                    LockSupport.parkNanos(IDLE_PARK_NANOS);
+                    continue;
+                }
+                while (t != h) {
+                    t += writeRecord((int)t & (RING_SIZE - 1));
+                    tail.lazySet(t);
+                }
+            }
+        } catch (IOException e) {
+            LOGGING.log(Level.WARNING, "packet capture to " + fileName + " failed", e);
+            closed = true;
+        } finally {
+            try {
+                channel.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    private int writeRecord(int p) throws IOException {
+        int caught = getInt(p);
+        int length = getInt(p + 4 & (RING_SIZE - 1));
+        int direction = getInt(p + 8 & (RING_SIZE - 1));
+        long nanos = (long)getInt(p + 12 & (RING_SIZE - 1)) << 32 | getInt(p + 16 & (RING_SIZE - 1)) & 0xFFFFFFFFL;
+        long micros = (epochNanos + nanos - startNanos) / 1000;
+        int data = p + RECORD_HEADER & (RING_SIZE - 1);
+        int padded = caught + 3 & ~3;
+
+        int recordLength = pcapng ? 32 + padded + 12 : 16 + caught;
+        if (rotateBytes > 0 && fileBytes > 0 && fileBytes + recordLength > rotateBytes)
+            rotate();
+        if (out.remaining() < recordLength)
+            flush();
+
+        if (pcapng) {
+            out.putInt(6);
+            out.putInt(recordLength);
+            out.putInt(0);
+            out.putInt((int)(micros >>> 32));
+            out.putInt((int)micros);
+            out.putInt(caught);
+            out.putInt(length);
+            copyOut(data, caught);
+            for (int i = caught; i < padded; i++)
+                out.put((byte)0);
+            out.putShort((short)2); // epb_flags
+            out.putShort((short)4);
+            out.putInt(direction == RECEIVED ? 1 : 2);
+            out.putInt(0); // opt_endofopt
+            out.putInt(recordLength);
+        } else {
+            out.putInt((int)(micros / 1000000));
+            out.putInt((int)(micros % 1000000));
+            out.putInt(caught);
+            out.putInt(length);
+            copyOut(data, caught);
+        }
+        fileBytes += recordLength;
+        written++;
+        return RECORD_HEADER + padded;
+    }
+
+    private void copyOut(int p, int length) {
+        int first = Math.min(length, RING_SIZE - p);
+        out.put(ring, p, first);
+        out.put(ring, 0, length - first);
+    }
+
+    private void flush() throws IOException {
+        out.flip();
+        while (out.hasRemaining())
+            channel.write(out);
+        out.clear();
+    }
+
+    private File file(int index) {
+        if (rotateBytes <= 0)
+            return new File(fileName);
+        int dot = fileName.lastIndexOf('.');
+        if (dot <= fileName.lastIndexOf(File.separatorChar))
+            dot = fileName.length();
+        return new File(fileName.substring(0, dot) + "." + index + fileName.substring(dot));
+    }
+
+    private void openFile() throws IOException {
+        channel = new FileOutputStream(file(fileIndex)).getChannel();
+        fileBytes = 0;
+        if (pcapng) {
+            out.putInt(0x0A0D0D0A); // section header block
+            out.putInt(28);
+            out.putInt(0x1A2B3C4D);
+            out.putShort((short)1);
+            out.putShort((short)0);
+            out.putLong(-1);
+            out.putInt(28);
+            out.putInt(1); // interface description block
+            out.putInt(20);
+            out.putShort((short)LINKTYPE_ETHERNET);
+            out.putShort((short)0);
+            out.putInt(snaplen);
+            out.putInt(20);
+            fileBytes += 48;
+        } else {
+            out.putInt(0xA1B2C3D4);
+            out.putShort((short)2);
+            out.putShort((short)4);
+            out.putInt(0);
+            out.putInt(0);
+            out.putInt(snaplen);
+            out.putInt(LINKTYPE_ETHERNET);
+            fileBytes += 24;
+        }
+    }
+
+    private void rotate() throws IOException {
+        flush();
+        channel.close();
+        fileIndex++;
+        if (maxFiles > 0 && fileIndex >= maxFiles)
+            file(fileIndex - maxFiles).delete();
+        openFile();
+    }
+
+    /**
+     * Stops capturing, writing out any frames still in the ring.
+     */
+    public void close() {
+        closed = true;
+        if (Thread.currentThread() == writer)
+            return;
+        try {
+            writer.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public long getPacketsCaptured() {
+        return captured;
+    }
+
+    public long getPacketsWritten() {
+        return written;
+    }
+
+    public long getDrops() {
+        return drops;
+    }
+
+    @Override
+    public String toString() {
+        return "packet capture to " + file(fileIndex) + ": " + captured + " captured, " + written + " written, " + drops + " dropped";
+    }
+}
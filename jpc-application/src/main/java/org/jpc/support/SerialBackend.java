@@ -0,0 +1,491 @@
+/*
+    JPC: An x86 PC Hardware Emulator for a pure Java Virtual Machine
+    Release Version 2.4
+
+    A project from the Physics Dept, The University of Oxford
+
+    Copyright (C) 2007-2010 The University of Oxford
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License version 2 as published by
+    the Free Software Foundation.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License along
+    with this program; if not, write to the Free Software Foundation, Inc.,
+    51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+
+    Details (including contact information) can be found at:
+
+    jpc.sourceforge.net
+    or the developer website
+    sourceforge.net/projects/jpc/
+
+    Conceived and Developed by:
+    Rhys Newman, Ian Preston, Chris Dennis
+
+    End of licence header
+*/
+
+package org.jpc.support;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The host end of an emulated serial port, a byte stream in each direction.
+ * <p>
+ * Ports move data through a backend in bulk, straight between their FIFOs and the backend's
+ * buffers, and a backend never blocks the emulation thread: <code>read</code> returns whatever has
+ * arrived and <code>write</code> takes what fits, leaving the port to hold the rest back as a busy
+ * line would. Backends talking to the host do their I/O on background threads.
+ * <p>
+ * {@link #open(String)} understands:
+ * <ul>
+ * <li><code>tcp:$port</code> - listen on <code>$port</code> of the loopback interface, one client
+ * at a time</li>
+ * <li><code>tcp-listen:$host:$port</code> - listen on <code>$port</code> of the local address
+ * <code>$host</code>, such as <code>0.0.0.0</code>; clients are not authenticated, and the guest's
+ * console is often a root shell, so only on a trusted network</li>
+ * <li><code>tcp:$host:$port</code> - connect out to <code>$host:$port</code></li>
+ * <li><code>pipe:$path</code> - read <code>$path.in</code> and write <code>$path.out</code>, which
+ * may be named pipes</li>
+ * <li><code>mem</code> - a {@link Memory} backend the host drives itself</li>
+ * <li><code>log</code> - output logged a line at a time, no input</li>
+ * </ul>
+ */
+public abstract class SerialBackend {
+    private static final Logger LOGGING = Logger.getLogger(SerialBackend.class.getName());
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final long IDLE_PARK_NANOS = 1000000L;
+
+    /**
+     * Copies data received from the host into <code>buffer</code>. Never blocks.
+     * @return number of bytes copied, possibly zero
+     */
+    public abstract int read(byte[] buffer, int offset, int length);
+
+    /**
+     * Passes data sent by the guest on to the host. Never blocks.
+     * @return number of bytes taken, less than <code>length</code> if the backend is full
+     */
+    public abstract int write(byte[] buffer, int offset, int length);
+
+    /**
+     * Returns <code>true</code> if data may ever arrive from this backend, so the port needs to keep
+     * checking for it.
+     */
+    public boolean hasInput() {
+        return true;
+    }
+
+    public void close() {
+    }
+
+    /**
+     * Creates the backend described by <code>spec</code>.
+     * @throws IOException if a listening socket cannot be bound
+     * @throws IllegalArgumentException if <code>spec</code> is not understood
+     */
+    public static SerialBackend open(String spec) throws IOException {
+        if (spec.equals("mem"))
+            return new Memory(BUFFER_SIZE);
+        if (spec.equals("log"))
+            return new Log(Logger.getLogger(SerialBackend.class.getName() + ".log"));
+        if (spec.startsWith("pipe:"))
+            return new Pipe(spec.substring(5));
+        if (spec.startsWith("tcp:")) {
+            String address = spec.substring(4);
+            int colon = address.lastIndexOf(':');
+            if (colon < 0)
+                return new TcpServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(address)));
+            return new TcpClient(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)));
+        }
+        if (spec.startsWith("tcp-listen:")) {
+            String address = spec.substring(11);
+            int colon = address.lastIndexOf(':');
+            if (colon < 0)
+                return new TcpServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(address)));
+            return new TcpServer(new InetSocketAddress(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1))));
+        }
+        throw new IllegalArgumentException("unknown serial backend " + spec);
+    }
+
+    /**
+     * Creates a backend logging each line the guest sends to <code>logger</code>, which is what a
+     * port does with its output when no other backend is given.
+     */
+    public static SerialBackend log(Logger logger) {
+        return new Log(logger);
+    }
+
+    /**
+     * A single producer, single consumer byte ring.
+     */
+    static final class Ring {
+        private final byte[] data;
+        private final int mask;
+        private final AtomicLong head = new AtomicLong();
+        private final AtomicLong tail = new AtomicLong();
+
+        Ring(int capacity) {
+            if (Integer.bitCount(capacity) != 1)
+                throw new IllegalArgumentException("ring capacity must be a power of two");
+            data = new byte[capacity];
+            mask = capacity - 1;
+        }
+
+        int available() {
+            return (int)(head.get() - tail.get());
+        }
+
+        int put(byte[] buffer, int offset, int length) {
+            long h = head.get();
+            int count = Math.min(length, data.length - (int)(h - tail.get()));
+            int p = (int)h & mask;
+            int first = Math.min(count, data.length - p);
+            System.arraycopy(buffer, offset, data, p, first);
+            System.arraycopy(buffer, offset + first, data, 0, count - first);
+            head.lazySet(h + count);
+            return count;
+        }
+
+        int take(byte[] buffer, int offset, int length) {
+            long t = tail.get();
+            int count = Math.min(length, (int)(head.get() - t));
+            int p = (int)t & mask;
+            int first = Math.min(count, data.length - p);
+            System.arraycopy(data, p, buffer, offset, first);
+            System.arraycopy(data, 0, buffer, offset + first, count - first);
+            tail.lazySet(t + count);
+            return count;
+        }
+    }
+
+    /**
+     * A backend the host reads and writes directly, for tests and automation. The host side may
+     * be driven from one thread other than the emulation thread.
+     */
+    public static class Memory extends SerialBackend {
+        private final Ring toGuest, fromGuest;
+
+        public Memory(int capacity) {
+            toGuest = new Ring(capacity);
+            fromGuest = new Ring(capacity);
+        }
+
+        /**
+         * Queues data for the guest to receive.
+         * @return number of bytes queued, less than <code>length</code> if the buffer is full
+         */
+        public int send(byte[] buffer, int offset, int length) {
+            return toGuest.put(buffer, offset, length);
+        }
+
+        /**
+         * Takes data the guest has sent.
+         * @return number of bytes copied, possibly zero
+         */
+        public int receive(byte[] buffer, int offset, int length) {
+            return fromGuest.take(buffer, offset, length);
+        }
+
+        /**
+         * Returns the number of bytes the guest has sent that are waiting to be received.
+         */
+        public int available() {
+            return fromGuest.available();
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) {
+            return toGuest.take(buffer, offset, length);
+        }
+
+        @Override
+        public int write(byte[] buffer, int offset, int length) {
+            return fromGuest.put(buffer, offset, length);
+        }
+    }
+
+    private static class Log extends SerialBackend {
+        private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+        private final Logger logger;
+        private byte[] line = new byte[256];
+        private int used;
+
+        Log(Logger logger) {
+            this.logger = logger;
+        }
+
+        @Override
+        public boolean hasInput() {
+            return false;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) {
+            return 0;
+        }
+
+        @Override
+        public int write(byte[] buffer, int offset, int length) {
+            for (int i = offset; i < offset + length; i++) {
+                if (used == line.length) {
+                    byte[] longer = new byte[line.length * 2];
+                    System.arraycopy(line, 0, longer, 0, used);
+                    line = longer;
+                }
+                line[used++] = buffer[i];
+                if (buffer[i] == '\n') {
+                    logger.log(Level.INFO, new String(line, 0, used, US_ASCII));
+                    used = 0;
+                }
+            }
+            return length;
+        }
+    }
+
+    /**
+     * Pumps a pair of host channels through two rings on a reader and a writer thread. Whatever the
+     * guest sends while nothing is connected is dropped, so a missing peer never stalls it.
+     */
+    private abstract static class Stream extends SerialBackend {
+        private final Ring toGuest = new Ring(BUFFER_SIZE);
+        private final Ring fromGuest = new Ring(BUFFER_SIZE);
+        private final String name;
+        private volatile ReadableByteChannel input;
+        private volatile WritableByteChannel output;
+        private volatile boolean closed;
+        private Thread reader, writer;
+
+        Stream(String name) {
+            this.name = name;
+        }
+
+        void start() {
+            reader = new Thread(new Runnable() {
+                public void run() {
+                    readLoop();
+                }
+            }, "Serial " + name + " Reader");
+            writer = new Thread(new Runnable() {
+                public void run() {
+                    writeLoop();
+                }
+            }, "Serial " + name + " Writer");
+            reader.setDaemon(true);
+            writer.setDaemon(true);
+            reader.start();
+            writer.start();
+        }
+
+        /**
+         * Blocks until the host end is available and installs its channels with
+         * {@link #connected}. Throwing ends the backend.
+         */
+        abstract void connect() throws IOException;
+
+        /**
+         * Returns <code>true</code> if <code>connect</code> should be called again after the host
+         * end goes away.
+         */
+        abstract boolean reconnects();
+
+        void connected(ReadableByteChannel in, WritableByteChannel out) {
+            input = in;
+            output = out;
+            LOGGING.log(Level.INFO, "serial {0} connected", name);
+        }
+
+        private void readLoop() {
+            byte[] chunk = new byte[8192];
+            ByteBuffer wrapped = ByteBuffer.wrap(chunk);
+            try {
+                while (!closed) {
+                    connect();
+                    try {
+                        while (!closed) {
+                            wrapped.clear();
+                            int count = input.read(wrapped);
+                            if (count < 0)
+                                break;
+                            for (int done = 0; done < count && !closed;) {
+                                int put = toGuest.put(chunk, done, count - done);
+                                done += put;
+                                if (put == 0)
+                                    LockSupport.parkNanos(IDLE_PARK_NANOS);
+                            }
+                        }
+                    } catch (IOException e) {
+                        if (!closed)
+                            LOGGING.log(Level.INFO, "serial " + name + " read failed", e);
+                        disconnect();
+                    }
+                    //Without a reconnect, output carries on after the input has ended
+                    if (!reconnects())
+                        return;
+                    disconnect();
+                }
+            } catch (IOException e) {
+                if (!closed)
+                    LOGGING.log(Level.WARNING, "serial " + name + " could not connect", e);
+            }
+        }
+
+        private void writeLoop() {
+            byte[] chunk = new byte[8192];
+            ByteBuffer wrapped = ByteBuffer.wrap(chunk);
+            while (!closed) {
+                int count = fromGuest.take(chunk, 0, chunk.length);
+                if (count == 0) {
+                    LockSupport.parkNanos(IDLE_PARK_NANOS);
+                    continue;
+                }
+                WritableByteChannel out = output;
+                if (out == null)
+                    continue;
+                wrapped.clear().limit(count);
+                try {
+                    while (wrapped.hasRemaining())
+                        out.write(wrapped);
+                } catch (IOException e) {
+                    if (!closed)
+                        LOGGING.log(Level.INFO, "serial " + name + " write failed", e);
+                    disconnect();
+                }
+            }
+        }
+
+        private synchronized void disconnect() {
+            try {
+                if (input != null)
+                    input.close();
+                if (output != null)
+                    output.close();
+            } catch (IOException e) {
+            }
+            input = null;
+            output = null;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) {
+            return toGuest.take(buffer, offset, length);
+        }
+
+        @Override
+        public int write(byte[] buffer, int offset, int length) {
+            boolean idle = fromGuest.available() == 0;
+            int count = fromGuest.put(buffer, offset, length);
+            if (idle && count > 0)
+                LockSupport.unpark(writer);
+            return count;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+            disconnect();
+            reader.interrupt();
+            LockSupport.unpark(writer);
+        }
+    }
+
+    private static class TcpServer extends Stream {
+        private final ServerSocketChannel server;
+
+        TcpServer(InetSocketAddress address) throws IOException {
+            super("tcp-listen:" + address.getHostString() + ":" + address.getPort());
+            server = ServerSocketChannel.open();
+            server.socket().setReuseAddress(true);
+            server.socket().bind(address);
+            start();
+        }
+
+        @Override
+        void connect() throws IOException {
+            SocketChannel client = server.accept();
+            client.socket().setTcpNoDelay(true);
+            connected(client, client);
+        }
+
+        @Override
+        boolean reconnects() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+            super.close();
+            try {
+                server.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    private static class TcpClient extends Stream {
+        private final InetSocketAddress address;
+
+        TcpClient(String host, int port) {
+            super("tcp:" + host + ":" + port);
+            address = new InetSocketAddress(host, port);
+            start();
+        }
+
+        @Override
+        void connect() throws IOException {
+            SocketChannel client = SocketChannel.open(address);
+            client.socket().setTcpNoDelay(true);
+            connected(client, client);
+        }
+
+        @Override
+        boolean reconnects() {
+            return false;
+        }
+    }
+
+    private static class Pipe extends Stream {
+        private final String path;
+
+        Pipe(String path) {
+            super("pipe:" + path);
+            this.path = path;
+            start();
+        }
+
+        @Override
+        void connect() throws IOException {
+            //Opening a named pipe waits for the other end, which is why this is on the reader thread
+            WritableByteChannel out = Channels.newChannel(new FileOutputStream(path + ".out"));
+            connected(Channels.newChannel(new FileInputStream(path + ".in")), out);
+        }
+
+        @Override
+        boolean reconnects() {
+            return false;
+        }
+    }
+}
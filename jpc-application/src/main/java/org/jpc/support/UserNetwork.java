@@ -0,0 +1,1048 @@
+/*
+    JPC: An x86 PC Hardware Emulator for a pure Java Virtual Machine
+    Release Version 2.4
+
+    A project from the Physics Dept, The University of Oxford
+
+    Copyright (C) 2007-2010 The University of Oxford
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License version 2 as published by
+    the Free Software Foundation.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License along
+    with this program; if not, write to the Free Software Foundation, Inc.,
+    51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+
+    Details (including contact information) can be found at:
+
+    jpc.sourceforge.net
+    or the developer website
+    sourceforge.net/projects/jpc/
+
+    Conceived and Developed by:
+    Rhys Newman, Ian Preston, Chris Dennis
+
+    End of licence header
+*/
+
+package org.jpc.support;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Userspace network backend giving the guest outbound access through the host's own sockets,
+ * with no privileges or tap devices, in the manner of slirp.
+ * <p>
+ * The guest sees a private 10.0.2.0/24 network behind a router at 10.0.2.2 which answers ARP,
+ * hands out 10.0.2.15 by DHCP and serves DNS at 10.0.2.3 by forwarding queries to the host's
+ * nameserver, or answering address lookups through the host resolver if none is configured.
+ * Guest UDP and TCP traffic is translated onto host datagram and stream sockets, with the router
+ * address standing for the host's loopback interface. TCP connections are terminated here: each
+ * guest connection gets its own host socket and a minimal TCP endpoint with retransmission,
+ * advertising only as much window as it has buffer for. One selector thread serves every flow.
+ */
+public class UserNetwork extends EthernetOutput implements Runnable {
+    private static final Logger LOGGING = Logger.getLogger(UserNetwork.class.getName());
+
+    private static final int GATEWAY = 0x0a000202;
+    private static final int NAMESERVER = 0x0a000203;
+    private static final int GUEST = 0x0a00020f;
+    private static final int NETMASK = 0xffffff00;
+    private static final byte[] GATEWAY_MAC = { 0x52, 0x55, 0x0a, 0x00, 0x02, 0x02 };
+    private static final byte[] BROADCAST_MAC = { -1, -1, -1, -1, -1, -1 };
+
+    private static final int ETH_HEADER = 14;
+    private static final int IP_HEADER = 20;
+    private static final int UDP_HEADER = 8;
+    private static final int TCP_HEADER = 20;
+    private static final int MTU = 1500;
+    private static final int MSS = MTU - IP_HEADER - TCP_HEADER;
+
+    private static final int PROTOCOL_ICMP = 1;
+    private static final int PROTOCOL_TCP = 6;
+    private static final int PROTOCOL_UDP = 17;
+
+    private static final int TCP_FIN = 0x01;
+    private static final int TCP_SYN = 0x02;
+    private static final int TCP_RST = 0x04;
+    private static final int TCP_PSH = 0x08;
+    private static final int TCP_ACK = 0x10;
+
+    private static final int MAX_QUEUED_PACKETS = 1024;
+    private static final int TCP_BUFFER = 64 * 1024;
+    private static final long TCP_INITIAL_RTO_NANOS = 200 * 1000000L;
+    private static final long TCP_MAX_RTO_NANOS = 10 * 1000000000L;
+    private static final long UDP_IDLE_NANOS = 60 * 1000000000L;
+    private static final int DHCP_LEASE_SECONDS = 24 * 60 * 60;
+
+    private final Selector selector;
+    private final AtomicBoolean wakeupPending = new AtomicBoolean();
+    private final Queue<byte[]> fromGuest = new ConcurrentLinkedQueue<byte[]>();
+    /** work handed to the selector thread by others, such as answers from resolver threads */
+    private final Queue<Runnable> selectorTasks = new ConcurrentLinkedQueue<Runnable>();
+    private final Queue<byte[]> toGuest = new ConcurrentLinkedQueue<byte[]>();
+    private final AtomicInteger toGuestSize = new AtomicInteger();
+    private final AtomicInteger ipIdentification = new AtomicInteger();
+    private final InetSocketAddress nameserver;
+    private ExecutorService resolver;
+
+    private final Map<Long, UdpFlow> udpFlows = new HashMap<Long, UdpFlow>();
+    private final Map<Long, TcpConnection> tcpConnections = new HashMap<Long, TcpConnection>();
+    private final ByteBuffer datagram = ByteBuffer.allocate(UDP_HEADER + 65536);
+    private volatile byte[] guestMac = BROADCAST_MAC;
+    private volatile int guestIp = GUEST;
+    private long nextSweep;
+
+    private volatile long framesFromGuest, framesToGuest, drops;
+
+    public UserNetwork() throws IOException {
+        selector = Selector.open();
+        nameserver = findNameserver();
+        LOGGING.log(Level.INFO, "user network started, forwarding DNS to {0}", nameserver == null ? "the host resolver" : nameserver);
+        Thread thread = new Thread(this, "User Network");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static InetSocketAddress findNameserver() {
+        File conf = new File("/etc/resolv.conf");
+        if (!conf.canRead())
+            return null;
+        try (BufferedReader in = new BufferedReader(new FileReader(conf))) {
+            for (String line = in.readLine(); line != null; line = in.readLine()) {
+                String[] words = line.trim().split("\\s+");
+                if (words.length >= 2 && words[0].equals("nameserver"))
+                    return new InetSocketAddress(InetAddress.getByName(words[1]), 53);
+            }
+        } catch (IOException e) {
+            LOGGING.log(Level.INFO, "cannot read /etc/resolv.conf", e);
+        }
+        return null;
+    }
+
+    @Override
+    public void sendPacket(byte[] data, int offset, int length) {
+        if (length < ETH_HEADER)
+            return;
+        byte[] frame = new byte[length];
+        System.arraycopy(data, offset, frame, 0, length);
+        fromGuest.add(frame);
+        wakeup();
+    }
+
+    private void wakeup() {
+        if (wakeupPending.compareAndSet(false, true))
+            selector.wakeup();
+    }
+
+    @Override
+    public byte[] getPacket() {
+        byte[] frame = toGuest.poll();
+        if (frame != null)
+            toGuestSize.decrementAndGet();
+        return frame;
+    }
+
+    /** Queues a frame for the guest. Called only on the selector thread. */
+    private void toGuest(byte[] frame) {
+        if (toGuestSize.get() >= MAX_QUEUED_PACKETS) {
+            drops++;
+            return;
+        }
+        toGuest.add(frame);
+        toGuestSize.incrementAndGet();
+        framesToGuest++;
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                long before = framesToGuest;
+                wakeupPending.set(false);
+                if (fromGuest.isEmpty() && selectorTasks.isEmpty())
+                    selector.select(selectTimeoutMillis());
+                else
+                    selector.selectNow();
+
+                for (byte[] frame = fromGuest.poll(); frame != null; frame = fromGuest.poll()) {
+                    framesFromGuest++;
+                    handleFrame(frame);
+                }
+                for (Runnable task = selectorTasks.poll(); task != null; task = selectorTasks.poll())
+                    task.run();
+
+                for (Iterator<SelectionKey> it = selector.selectedKeys().iterator(); it.hasNext();) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    if (key.isValid())
+                        ((Flow)key.attachment()).ready(key);
+                }
+
+                long now = System.nanoTime();
+                for (TcpConnection connection : new ArrayList<TcpConnection>(tcpConnections.values()))
+                    connection.checkRetransmit(now);
+                if (now - nextSweep >= 0) {
+                    nextSweep = now + UDP_IDLE_NANOS / 4;
+                    sweepUdpFlows(now);
+                }
+
+                if (framesToGuest != before)
+                    packetsAvailable();
+            } catch (IOException e) {
+                // failures on a single flow are handled by that flow, so this is the selector itself
+                LOGGING.log(Level.WARNING, "user network selector failed", e);
+                return;
+            } catch (RuntimeException e) {
+                LOGGING.log(Level.WARNING, "user network dropped a malformed packet", e);
+            }
+        }
+    }
+
+    private long selectTimeoutMillis() {
+        long now = System.nanoTime();
+        long next = nextSweep;
+        for (TcpConnection connection : tcpConnections.values())
+            if (connection.retransmitAt != 0 && connection.retransmitAt - next < 0)
+                next = connection.retransmitAt;
+        return Math.max(1, (next - now) / 1000000 + 1);
+    }
+
+    private void handleFrame(byte[] frame) {
+        if ((frame[6] & 1) == 0 && !matches(frame, 6, guestMac)) {
+            byte[] mac = new byte[6];
+            System.arraycopy(frame, 6, mac, 0, 6);
+            guestMac = mac;
+        }
+        int type = u16(frame, 12);
+        if (type == 0x0806)
+            arp(frame);
+        else if (type == 0x0800)
+            ip(frame);
+    }
+
+    private void arp(byte[] frame) {
+        int a = ETH_HEADER;
+        if (frame.length < a + 28 || u16(frame, a + 6) != 1)
+            return;
+        int target = i32(frame, a + 24);
+        if (target != GATEWAY && target != NAMESERVER)
+            return;
+
+        byte[] reply = new byte[60];
+        System.arraycopy(frame, a + 8, reply, 0, 6);
+        System.arraycopy(GATEWAY_MAC, 0, reply, 6, 6);
+        put16(reply, 12, 0x0806);
+        put16(reply, a, 1);
+        put16(reply, a + 2, 0x0800);
+        reply[a + 4] = 6;
+        reply[a + 5] = 4;
+        put16(reply, a + 6, 2);
+        System.arraycopy(GATEWAY_MAC, 0, reply, a + 8, 6);
+        put32(reply, a + 14, target);
+        System.arraycopy(frame, a + 8, reply, a + 18, 10);
+        toGuest(reply);
+    }
+
+    private void ip(byte[] frame) {
+        int i = ETH_HEADER;
+        if (frame.length < i + IP_HEADER || (frame[i] & 0xF0) != 0x40)
+            return;
+        int headerLength = (frame[i] & 0xF) * 4;
+        int totalLength = u16(frame, i + 2);
+        if (totalLength < headerLength || frame.length < i + totalLength)
+            return;
+        if ((u16(frame, i + 6) & 0x3FFF) != 0)
+            return; // fragments are not reassembled
+        int protocol = frame[i + 9] & 0xFF;
+        int src = i32(frame, i + 12);
+        int dst = i32(frame, i + 16);
+        if (src != 0 && (src & NETMASK) == (GUEST & NETMASK))
+            guestIp = src;
+
+        int payload = i + headerLength;
+        int length = totalLength - headerLength;
+        switch (protocol) {
+        case PROTOCOL_ICMP:
+            icmp(frame, payload, length, src, dst);
+            break;
+        case PROTOCOL_UDP:
+            udp(frame, payload, length, src, dst);
+            break;
+        case PROTOCOL_TCP:
+            tcp(frame, payload, length, dst);
+            break;
+        }
+    }
+
+    private void icmp(byte[] frame, int offset, int length, int src, int dst) {
+        if (length < 8 || frame[offset] != 8 || (dst != GATEWAY && dst != NAMESERVER))
+            return;
+        byte[] reply = newIpFrame(PROTOCOL_ICMP, dst, src, length, nextIdentification());
+        int r = ETH_HEADER + IP_HEADER;
+        System.arraycopy(frame, offset, reply, r, length);
+        reply[r] = 0;
+        put16(reply, r + 2, 0);
+        put16(reply, r + 2, fold(sum(reply, r, length, 0)));
+        toGuest(reply);
+    }
+
+    /**
+     * Returns the host address standing for guest visible address <code>ip</code>, or
+     * <code>null</code> if it is another address on the virtual network.
+     */
+    private InetSocketAddress hostAddress(int ip, int port) {
+        if (ip == GATEWAY)
+            return new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+        if (ip == NAMESERVER)
+            return port == 53 && nameserver != null ? nameserver : null;
+        if ((ip & NETMASK) == (GUEST & NETMASK) || ip == -1 || (ip & 0xF0000000) == 0xE0000000)
+            return null;
+        byte[] address = new byte[4];
+        put32(address, 0, ip);
+        try {
+            return new InetSocketAddress(InetAddress.getByAddress(address), port);
+        } catch (UnknownHostException e) {
+            return null;
+        }
+    }
+
+    private interface Flow {
+        void ready(SelectionKey key);
+    }
+
+    // UDP
+
+    private void udp(byte[] frame, int offset, int length, int src, int dst) {
+        if (length < UDP_HEADER)
+            return;
+        int srcPort = u16(frame, offset);
+        int dstPort = u16(frame, offset + 2);
+        int udpLength = Math.min(u16(frame, offset + 4), length);
+        int data = offset + UDP_HEADER;
+        int dataLength = udpLength - UDP_HEADER;
+        if (dataLength < 0)
+            return;
+
+        if (dstPort == 67) {
+            dhcp(frame, data, dataLength);
+            return;
+        }
+        if (dst == NAMESERVER && dstPort == 53 && nameserver == null) {
+            resolve(frame, data, dataLength, srcPort);
+            return;
+        }
+
+        long key = flowKey(srcPort, dst, dstPort);
+        UdpFlow flow = udpFlows.get(key);
+        if (flow == null) {
+            InetSocketAddress target = hostAddress(dst, dstPort);
+            if (target == null)
+                return;
+            flow = new UdpFlow(key, srcPort, dst, dstPort);
+            try {
+                flow.open(target);
+            } catch (IOException e) {
+                LOGGING.log(Level.FINE, "cannot open UDP flow to " + target, e);
+                flow.close();
+                return;
+            }
+            udpFlows.put(key, flow);
+        }
+        flow.lastUsed = System.nanoTime();
+        try {
+            flow.channel.write(ByteBuffer.wrap(frame, data, dataLength));
+        } catch (IOException e) {
+            flow.close();
+        }
+    }
+
+    private void sweepUdpFlows(long now) {
+        for (UdpFlow flow : new ArrayList<UdpFlow>(udpFlows.values()))
+            if (now - flow.lastUsed > UDP_IDLE_NANOS)
+                flow.close();
+    }
+
+    private final class UdpFlow implements Flow {
+        final long key;
+        final int guestPort, remoteIp, remotePort;
+        DatagramChannel channel;
+        long lastUsed;
+
+        UdpFlow(long key, int guestPort, int remoteIp, int remotePort) {
+            this.key = key;
+            this.guestPort = guestPort;
+            this.remoteIp = remoteIp;
+            this.remotePort = remotePort;
+        }
+
+        void open(InetSocketAddress target) throws IOException {
+            channel = DatagramChannel.open();
+            channel.configureBlocking(false);
+            channel.connect(target);
+            channel.register(selector, SelectionKey.OP_READ, this);
+        }
+
+        public void ready(SelectionKey key) {
+            try {
+                while (true) {
+                    datagram.clear().position(UDP_HEADER);
+                    if (channel.read(datagram) <= 0)
+                        break;
+                    lastUsed = System.nanoTime();
+                    sendUdp(remoteIp, remotePort, guestIp, guestPort, datagram.array(), datagram.position() - UDP_HEADER);
+                }
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        void close() {
+            udpFlows.remove(key);
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Sends a UDP datagram to the guest, fragmenting it if it exceeds the MTU.
+     * @param datagram array holding the payload after <code>UDP_HEADER</code> bytes of space for
+     * the header, which is filled in
+     * @param length payload length
+     */
+    private void sendUdp(int src, int srcPort, int dst, int dstPort, byte[] datagram, int length) {
+        int udpLength = UDP_HEADER + length;
+        put16(datagram, 0, srcPort);
+        put16(datagram, 2, dstPort);
+        put16(datagram, 4, udpLength);
+        put16(datagram, 6, 0);
+        int checksum = fold(sum(datagram, 0, udpLength, pseudoHeaderSum(src, dst, PROTOCOL_UDP, udpLength)));
+        put16(datagram, 6, checksum == 0 ? 0xFFFF : checksum);
+
+        int identification = nextIdentification();
+        int maxFragment = (MTU - IP_HEADER) & ~7;
+        for (int offset = 0; offset < udpLength; offset += maxFragment) {
+            int fragment = Math.min(maxFragment, udpLength - offset);
+            byte[] frame = newIpFrame(PROTOCOL_UDP, src, dst, fragment, identification);
+            if (udpLength > maxFragment)
+                setFragment(frame, offset, offset + fragment < udpLength);
+            System.arraycopy(datagram, offset, frame, ETH_HEADER + IP_HEADER, fragment);
+            toGuest(frame);
+        }
+    }
+
+    // DHCP
+
+    private void dhcp(byte[] frame, int offset, int length) {
+        if (length < 240 || frame[offset] != 1 || i32(frame, offset + 236) != 0x63825363)
+            return;
+        int type = 0;
+        for (int o = offset + 240; o < offset + length && frame[o] != (byte)0xFF;) {
+            int code = frame[o] & 0xFF;
+            if (code == 0) {
+                o++;
+                continue;
+            }
+            if (o + 1 >= offset + length)
+                break;
+            int optionLength = frame[o + 1] & 0xFF;
+            if (code == 53 && optionLength >= 1)
+                type = frame[o + 2];
+            o += 2 + optionLength;
+        }
+        int replyType;
+        if (type == 1)
+            replyType = 2; // DISCOVER -> OFFER
+        else if (type == 3)
+            replyType = 5; // REQUEST -> ACK
+        else
+            return;
+
+        byte[] reply = new byte[UDP_HEADER + 300];
+        int r = UDP_HEADER;
+        reply[r] = 2;
+        reply[r + 1] = 1;
+        reply[r + 2] = 6;
+        System.arraycopy(frame, offset + 4, reply, r + 4, 4); // xid
+        System.arraycopy(frame, offset + 10, reply, r + 10, 2); // flags
+        put32(reply, r + 16, GUEST);
+        put32(reply, r + 20, GATEWAY);
+        System.arraycopy(frame, offset + 28, reply, r + 28, 16); // chaddr
+        put32(reply, r + 236, 0x63825363);
+        int o = r + 240;
+        reply[o++] = 53;
+        reply[o++] = 1;
+        reply[o++] = (byte)replyType;
+        o = putAddressOption(reply, o, 54, GATEWAY);
+        o = putAddressOption(reply, o, 51, DHCP_LEASE_SECONDS);
+        o = putAddressOption(reply, o, 1, NETMASK);
+        o = putAddressOption(reply, o, 3, GATEWAY);
+        o = putAddressOption(reply, o, 6, NAMESERVER);
+        reply[o] = (byte)0xFF;
+
+        guestIp = GUEST;
+        sendUdp(GATEWAY, 67, -1, 68, reply, 300);
+    }
+
+    private static int putAddressOption(byte[] b, int o, int code, int value) {
+        b[o] = (byte)code;
+        b[o + 1] = 4;
+        put32(b, o + 2, value);
+        return o + 6;
+    }
+
+    // DNS through the host resolver, when no nameserver is configured
+
+    private void resolve(byte[] frame, int offset, int length, final int guestPort) {
+        if (length < 12)
+            return;
+        final byte[] query = new byte[length];
+        System.arraycopy(frame, offset, query, 0, length);
+        if (resolver == null) {
+            resolver = Executors.newFixedThreadPool(4, new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "User Network Resolver");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        resolver.execute(new Runnable() {
+            public void run() {
+                byte[] response = answer(query);
+                if (response != null) {
+                    final byte[] datagram = new byte[UDP_HEADER + response.length];
+                    System.arraycopy(response, 0, datagram, UDP_HEADER, response.length);
+                    selectorTasks.add(new Runnable() {
+                        public void run() {
+                            sendUdp(NAMESERVER, 53, guestIp, guestPort, datagram, datagram.length - UDP_HEADER);
+                        }
+                    });
+                    wakeup();
+                }
+            }
+        });
+    }
+
+    /**
+     * Answers a single question DNS query, resolving A records through
+     * {@link InetAddress#getAllByName(String)} and answering any other type with no records.
+     */
+    private static byte[] answer(byte[] query) {
+        if (u16(query, 4) != 1)
+            return null;
+        StringBuilder name = new StringBuilder();
+        int o = 12;
+        while (o < query.length && query[o] != 0) {
+            int label = query[o] & 0xFF;
+            if (label > 63 || o + 1 + label > query.length)
+                return null;
+            if (name.length() > 0)
+                name.append('.');
+            name.append(new String(query, o + 1, label, java.nio.charset.StandardCharsets.US_ASCII));
+            o += 1 + label;
+        }
+        int questionEnd = o + 5;
+        if (questionEnd > query.length)
+            return null;
+        int type = u16(query, o + 1);
+
+        List<byte[]> addresses = new ArrayList<byte[]>();
+        int rcode = 0;
+        if (type == 1) {
+            try {
+                for (InetAddress address : InetAddress.getAllByName(name.toString()))
+                    if (address instanceof Inet4Address)
+                        addresses.add(address.getAddress());
+            } catch (UnknownHostException e) {
+                rcode = 3;
+            }
+        }
+
+        byte[] response = new byte[questionEnd + 16 * addresses.size()];
+        System.arraycopy(query, 0, response, 0, questionEnd);
+        put16(response, 2, 0x8180 | rcode | (query[2] & 0x01) << 8);
+        put16(response, 6, addresses.size());
+        put16(response, 8, 0);
+        put16(response, 10, 0);
+        int r = questionEnd;
+        for (byte[] address : addresses) {
+            put16(response, r, 0xC00C);
+            put16(response, r + 2, 1);
+            put16(response, r + 4, 1);
+            put32(response, r + 6, 60);
+            put16(response, r + 10, 4);
+            System.arraycopy(address, 0, response, r + 12, 4);
+            r += 16;
+        }
+        return response;
+    }
+
+    // TCP
+
+    private void tcp(byte[] frame, int offset, int length, int dst) {
+        if (length < TCP_HEADER)
+            return;
+        int srcPort = u16(frame, offset);
+        int dstPort = u16(frame, offset + 2);
+        int seq = i32(frame, offset + 4);
+        int ack = i32(frame, offset + 8);
+        int dataOffset = (frame[offset + 12] >> 4 & 0xF) * 4;
+        int flags = frame[offset + 13] & 0x3F;
+        int window = u16(frame, offset + 14);
+        if (dataOffset < TCP_HEADER || dataOffset > length)
+            return;
+        int data = offset + dataOffset;
+        int dataLength = length - dataOffset;
+
+        long key = flowKey(srcPort, dst, dstPort);
+        TcpConnection connection = tcpConnections.get(key);
+        if (connection == null) {
+            if ((flags & (TCP_SYN | TCP_ACK | TCP_RST)) == TCP_SYN) {
+                connection = new TcpConnection(key, srcPort, dst, dstPort, seq + 1, window, mssOption(frame, offset + TCP_HEADER, data));
+                tcpConnections.put(key, connection);
+                connection.connect(hostAddress(dst, dstPort));
+            } else if ((flags & TCP_RST) == 0) {
+                int rstSeq = (flags & TCP_ACK) != 0 ? ack : 0;
+                int synFin = ((flags & TCP_SYN) != 0 ? 1 : 0) + ((flags & TCP_FIN) != 0 ? 1 : 0);
+                sendReset(dst, dstPort, srcPort, rstSeq, seq + dataLength + synFin);
+            }
+            return;
+        }
+        try {
+            connection.segment(frame, seq, ack, flags, window, data, dataLength);
+        } catch (IOException e) {
+            // a reset or broken host connection only ends this flow
+            LOGGING.log(Level.FINE, "host connection for guest port " + srcPort + " failed", e);
+            connection.reset();
+        }
+    }
+
+    private static int mssOption(byte[] frame, int o, int end) {
+        while (o < end) {
+            int kind = frame[o] & 0xFF;
+            if (kind == 0)
+                break;
+            if (kind == 1) {
+                o++;
+                continue;
+            }
+            if (o + 1 >= end)
+                break;
+            int length = frame[o + 1] & 0xFF;
+            if (kind == 2 && length == 4 && o + 4 <= end)
+                return u16(frame, o + 2);
+            if (length < 2)
+                break;
+            o += length;
+        }
+        return 536;
+    }
+
+    private void sendReset(int src, int srcPort, int dstPort, int seq, int ack) {
+        byte[] frame = newIpFrame(PROTOCOL_TCP, src, guestIp, TCP_HEADER, nextIdentification());
+        writeTcpHeader(frame, src, guestIp, srcPort, dstPort, seq, ack, TCP_RST | TCP_ACK, 0, TCP_HEADER, 0);
+        toGuest(frame);
+    }
+
+    private final class TcpConnection implements Flow {
+        final long key;
+        final int guestPort, remoteIp, remotePort;
+        final int guestMss;
+        SocketChannel channel;
+        SelectionKey selectionKey;
+
+        boolean established;
+        final int iss;
+        int sndUna, sndNxt;
+        int rcvNxt;
+        int guestWindow;
+        /** data from the guest waiting to be written to the host, in write mode */
+        final ByteBuffer toHost = ByteBuffer.allocate(TCP_BUFFER);
+        /** data from the host starting at sndUna, sent or not, that the guest has not acknowledged */
+        final ByteBuffer unacked = ByteBuffer.allocate(TCP_BUFFER);
+        boolean hostEof, finSent, finAcked;
+        boolean guestFin, outputShutdown;
+        long rto = TCP_INITIAL_RTO_NANOS;
+        long retransmitAt;
+        int duplicateAcks;
+
+        TcpConnection(long key, int guestPort, int remoteIp, int remotePort, int rcvNxt, int window, int mss) {
+            this.key = key;
+            this.guestPort = guestPort;
+            this.remoteIp = remoteIp;
+            this.remotePort = remotePort;
+            this.rcvNxt = rcvNxt;
+            this.guestWindow = window;
+            this.guestMss = Math.min(mss, MSS);
+            iss = (int)System.nanoTime();
+            sndUna = iss;
+            sndNxt = iss;
+        }
+
+        void connect(InetSocketAddress target) {
+            if (target == null) {
+                reset();
+                return;
+            }
+            try {
+                channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                boolean connected = channel.connect(target);
+                selectionKey = channel.register(selector, connected ? 0 : SelectionKey.OP_CONNECT, this);
+                if (connected)
+                    connected();
+            } catch (IOException e) {
+                LOGGING.log(Level.FINE, "cannot connect to " + target, e);
+                reset();
+            }
+        }
+
+        private void connected() {
+            sendSegment(iss, TCP_SYN | TCP_ACK, 0, 0);
+            sndNxt = iss + 1;
+            retransmitAt = System.nanoTime() + rto;
+            updateInterest();
+        }
+
+        public void ready(SelectionKey key) {
+            try {
+                if (key.isConnectable()) {
+                    channel.finishConnect();
+                    connected();
+                    return;
+                }
+                if (key.isWritable())
+                    flushToHost();
+                if (key.isValid() && key.isReadable())
+                    readFromHost();
+            } catch (IOException e) {
+                reset();
+            }
+        }
+
+        void segment(byte[] frame, int seq, int ack, int flags, int window, int data, int dataLength) throws IOException {
+            if ((flags & TCP_RST) != 0) {
+                close();
+                return;
+            }
+            if ((flags & TCP_SYN) != 0) {
+                // retransmitted SYN while the host connection is still in progress
+                if (channel != null && channel.isConnected() && !established)
+                    sendSegment(iss, TCP_SYN | TCP_ACK, 0, 0);
+                return;
+            }
+
+            if ((flags & TCP_ACK) != 0) {
+                guestWindow = window;
+                int acked = ack - sndUna;
+                if (acked > 0 && ack - sndNxt <= 0) {
+                    if (!established) {
+                        established = true;
+                        sndUna++;
+                        acked--;
+                    }
+                    int dataAcked = Math.min(acked, unacked.position());
+                    if (dataAcked > 0) {
+                        unacked.flip();
+                        unacked.position(dataAcked);
+                        unacked.compact();
+                        sndUna += dataAcked;
+                    }
+                    if (finSent && acked > dataAcked) {
+                        finAcked = true;
+                        sndUna++;
+                    }
+                    rto = TCP_INITIAL_RTO_NANOS;
+                    retransmitAt = sndNxt != sndUna ? System.nanoTime() + rto : 0;
+                    duplicateAcks = 0;
+                } else if (acked == 0 && dataLength == 0 && sndNxt != sndUna && established && ++duplicateAcks == 3) {
+                    // fast retransmit
+                    sndNxt = sndUna;
+                    finSent = false;
+                    retransmitAt = 0;
+                }
+            }
+            if (!established)
+                return;
+
+            boolean ackNeeded = false;
+            if (dataLength > 0) {
+                ackNeeded = true;
+                if (seq == rcvNxt) {
+                    int take = Math.min(dataLength, toHost.remaining());
+                    toHost.put(frame, data, take);
+                    rcvNxt += take;
+                    dataLength = take;
+                    flushToHost();
+                }
+            }
+            if ((flags & TCP_FIN) != 0 && seq + dataLength == rcvNxt && !guestFin) {
+                guestFin = true;
+                rcvNxt++;
+                ackNeeded = true;
+                flushToHost();
+            } else if ((flags & TCP_FIN) != 0) {
+                ackNeeded = true;
+            }
+
+            readFromHost();
+            if (ackNeeded && sndNxt == sndUna + unacked.position() + (finSent && !finAcked ? 1 : 0))
+                sendSegment(sndNxt, TCP_ACK, 0, 0);
+            closeIfDone();
+        }
+
+        private void flushToHost() throws IOException {
+            if (toHost.position() > 0) {
+                boolean windowWasClosed = toHost.remaining() < guestMss;
+                toHost.flip();
+                channel.write(toHost);
+                toHost.compact();
+                if (windowWasClosed && toHost.remaining() >= guestMss && established)
+                    sendSegment(sndNxt, TCP_ACK, 0, 0);
+            }
+            if (guestFin && toHost.position() == 0 && !outputShutdown) {
+                outputShutdown = true;
+                channel.shutdownOutput();
+            }
+            updateInterest();
+        }
+
+        private void readFromHost() throws IOException {
+            while (established && !hostEof && unacked.hasRemaining()) {
+                int n = channel.read(unacked);
+                if (n < 0)
+                    hostEof = true;
+                if (n <= 0)
+                    break;
+            }
+            sendFromHost();
+            updateInterest();
+            closeIfDone();
+        }
+
+        private void sendFromHost() {
+            if (!established)
+                return;
+            int inFlight = sndNxt - sndUna;
+            int available = unacked.position() - inFlight;
+            while (available > 0 && inFlight < guestWindow) {
+                int n = Math.min(available, Math.min(guestMss, guestWindow - inFlight));
+                sendSegment(sndNxt, TCP_ACK | TCP_PSH, inFlight, n);
+                sndNxt += n;
+                inFlight += n;
+                available -= n;
+            }
+            if (hostEof && !finSent && available == 0) {
+                sendSegment(sndNxt, TCP_FIN | TCP_ACK, 0, 0);
+                sndNxt++;
+                finSent = true;
+            }
+            if (sndNxt != sndUna && retransmitAt == 0)
+                retransmitAt = System.nanoTime() + rto;
+        }
+
+        void checkRetransmit(long now) {
+            if (retransmitAt == 0 || now - retransmitAt < 0)
+                return;
+            rto = Math.min(rto * 2, TCP_MAX_RTO_NANOS);
+            retransmitAt = now + rto;
+            if (!established) {
+                sendSegment(iss, TCP_SYN | TCP_ACK, 0, 0);
+                return;
+            }
+            // go back to the oldest unacknowledged byte
+            sndNxt = sndUna;
+            finSent = false;
+            sendFromHost();
+        }
+
+        private void sendSegment(int seq, int flags, int unackedOffset, int length) {
+            int options = (flags & TCP_SYN) != 0 ? 4 : 0;
+            int tcpLength = TCP_HEADER + options + length;
+            byte[] frame = newIpFrame(PROTOCOL_TCP, remoteIp, guestIp, tcpLength, nextIdentification());
+            int t = ETH_HEADER + IP_HEADER;
+            if (options != 0) {
+                frame[t + TCP_HEADER] = 2;
+                frame[t + TCP_HEADER + 1] = 4;
+                put16(frame, t + TCP_HEADER + 2, MSS);
+            }
+            if (length > 0)
+                System.arraycopy(unacked.array(), unackedOffset, frame, t + TCP_HEADER + options, length);
+            writeTcpHeader(frame, remoteIp, guestIp, remotePort, guestPort, seq, rcvNxt, flags, Math.min(toHost.remaining(), 0xFFFF),
+                TCP_HEADER + options, length);
+            toGuest(frame);
+        }
+
+        private void updateInterest() {
+            if (selectionKey == null || !selectionKey.isValid() || !established && !channel.isConnected())
+                return;
+            int ops = 0;
+            if (established && !hostEof && unacked.hasRemaining())
+                ops |= SelectionKey.OP_READ;
+            if (toHost.position() > 0)
+                ops |= SelectionKey.OP_WRITE;
+            selectionKey.interestOps(ops);
+        }
+
+        private void closeIfDone() {
+            if (guestFin && outputShutdown && finAcked)
+                close();
+        }
+
+        void reset() {
+            sendReset(remoteIp, remotePort, guestPort, established ? sndNxt : 0, rcvNxt);
+            close();
+        }
+
+        void close() {
+            tcpConnections.remove(key);
+            retransmitAt = 0;
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    // packet construction
+
+    private int nextIdentification() {
+        return ipIdentification.incrementAndGet() & 0xFFFF;
+    }
+
+    private byte[] newIpFrame(int protocol, int src, int dst, int payloadLength, int identification) {
+        byte[] frame = new byte[ETH_HEADER + IP_HEADER + payloadLength];
+        System.arraycopy(guestMac, 0, frame, 0, 6);
+        System.arraycopy(GATEWAY_MAC, 0, frame, 6, 6);
+        put16(frame, 12, 0x0800);
+        int i = ETH_HEADER;
+        frame[i] = 0x45;
+        put16(frame, i + 2, IP_HEADER + payloadLength);
+        put16(frame, i + 4, identification);
+        frame[i + 8] = 64;
+        frame[i + 9] = (byte)protocol;
+        put32(frame, i + 12, src);
+        put32(frame, i + 16, dst);
+        put16(frame, i + 10, fold(sum(frame, i, IP_HEADER, 0)));
+        return frame;
+    }
+
+    private static void setFragment(byte[] frame, int offset, boolean more) {
+        int i = ETH_HEADER;
+        put16(frame, i + 6, (more ? 0x2000 : 0) | offset >> 3);
+        put16(frame, i + 10, 0);
+        put16(frame, i + 10, fold(sum(frame, i, IP_HEADER, 0)));
+    }
+
+    private static void writeTcpHeader(byte[] frame, int src, int dst, int srcPort, int dstPort, int seq, int ack, int flags, int window,
+        int headerLength, int dataLength) {
+        int t = ETH_HEADER + IP_HEADER;
+        put16(frame, t, srcPort);
+        put16(frame, t + 2, dstPort);
+        put32(frame, t + 4, seq);
+        put32(frame, t + 8, ack);
+        frame[t + 12] = (byte)(headerLength / 4 << 4);
+        frame[t + 13] = (byte)flags;
+        put16(frame, t + 14, window);
+        put16(frame, t + 16, 0);
+        put16(frame, t + 18, 0);
+        int length = headerLength + dataLength;
+        put16(frame, t + 16, fold(sum(frame, t, length, pseudoHeaderSum(src, dst, PROTOCOL_TCP, length))));
+    }
+
+    private static int pseudoHeaderSum(int src, int dst, int protocol, int length) {
+        return (src >>> 16) + (src & 0xFFFF) + (dst >>> 16) + (dst & 0xFFFF) + protocol + length;
+    }
+
+    private static int sum(byte[] b, int offset, int length, int sum) {
+        int end = offset + (length & ~1);
+        for (int i = offset; i < end; i += 2)
+            sum += (b[i] & 0xFF) << 8 | b[i + 1] & 0xFF;
+        if ((length & 1) != 0)
+            sum += (b[end] & 0xFF) << 8;
+        return sum;
+    }
+
+    private static int fold(int sum) {
+        while (sum >>> 16 != 0)
+            sum = (sum & 0xFFFF) + (sum >>> 16);
+        return ~sum & 0xFFFF;
+    }
+
+    private static long flowKey(int guestPort, int ip, int port) {
+        return (long)guestPort << 48 | (long)port << 32 | ip & 0xFFFFFFFFL;
+    }
+
+    private static boolean matches(byte[] b, int offset, byte[] mac) {
+        for (int i = 0; i < 6; i++)
+            if (b[offset + i] != mac[i])
+                return false;
+        return true;
+    }
+
+    private static int u16(byte[] b, int i) {
+        return (b[i] & 0xFF) << 8 | b[i + 1] & 0xFF;
+    }
+
+    private static int i32(byte[] b, int i) {
+        return (b[i] & 0xFF) << 24 | (b[i + 1] & 0xFF) << 16 | (b[i + 2] & 0xFF) << 8 | b[i + 3] & 0xFF;
+    }
+
+    private static void put16(byte[] b, int i, int v) {
+        b[i] = (byte)(v >> 8);
+        b[i + 1] = (byte)v;
+    }
+
+    private static void put32(byte[] b, int i, int v) {
+        b[i] = (byte)(v >> 24);
+        b[i + 1] = (byte)(v >> 16);
+        b[i + 2] = (byte)(v >> 8);
+        b[i + 3] = (byte)v;
+    }
+
+    @Override
+    public String toString() {
+        return "user network: " + framesFromGuest + " frames from guest, " + framesToGuest + " to guest (" + drops + " dropped), "
+            + tcpConnections.size() + " TCP connections, " + udpFlows.size() + " UDP flows";
+    }
+}